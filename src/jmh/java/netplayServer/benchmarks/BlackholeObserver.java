@@ -0,0 +1,32 @@
+package netplayServer.benchmarks;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.grpc.stub.StreamObserver;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+
+/**
+ * Stands in for a client's response stream, handing every event to a blackhole so that the
+ * writes are not optimized away while nothing is serialized or sent.
+ */
+class BlackholeObserver implements StreamObserver<IncomingEventPB> {
+
+  private final Blackhole blackhole;
+
+  BlackholeObserver(Blackhole blackhole) {
+    this.blackhole = blackhole;
+  }
+
+  @Override
+  public void onNext(IncomingEventPB value) {
+    blackhole.consume(value);
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    blackhole.consume(t);
+  }
+
+  @Override
+  public void onCompleted() {}
+}
@@ -0,0 +1,63 @@
+package netplayServer.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import netplayServer.Client;
+import netplayServer.Console;
+import netplayServer.Ports;
+import netplayServer.Server;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+
+/**
+ * Measures a console relaying one keypress from one of its clients to all the others, for
+ * consoles of increasing size, each client on a port of its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+  @Param({"2", "4", "16", "64"})
+  public int clients;
+
+  private Console console;
+  private long senderId;
+  private long frame;
+
+  @Setup
+  public void setUp(Blackhole blackhole) throws Exception {
+    Server server = new Server(false);
+    console = server.createConsole(clients);
+    for (int slot = 0; slot < clients; ++slot) {
+      Client client = console.tryAddPlayersByValue(0, Ports.valueOf(slot));
+      client.setStreamObserver(new BlackholeObserver(blackhole));
+      if (slot == 0) {
+        senderId = client.getId();
+      }
+    }
+  }
+
+  @Benchmark
+  public Object broadcast() {
+    return console.broadcastKeypresses(Collections.singletonList(KeyStatePB.newBuilder()
+        .setConsoleId(console.getId()).setPortValue(Ports.valueOf(0)).setFrameNumber(++frame)
+        .build()), senderId);
+  }
+}
@@ -0,0 +1,59 @@
+package netplayServer.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+
+import netplayServer.Ports;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+
+/**
+ * Measures building the event a console relays from the keypresses it accepted, and sizing it as
+ * the relay's counters do, for events carrying the keypresses of one or several ports.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventConstructionBenchmark {
+
+  @Param({"1", "4"})
+  public int keyPresses;
+
+  private List<KeyStatePB> keyStates;
+
+  @Setup
+  public void setUp() {
+    keyStates = Lists.newArrayList();
+    for (int slot = 0; slot < keyPresses; ++slot) {
+      keyStates.add(KeyStatePB.newBuilder().setConsoleId(1).setPortValue(Ports.valueOf(slot))
+          .setFrameNumber(1000).setKeys(0x1234).build());
+    }
+  }
+
+  @Benchmark
+  public IncomingEventPB build() {
+    return IncomingEventPB.newBuilder().addAllKeyPress(keyStates).build();
+  }
+
+  @Benchmark
+  public int buildAndSize() {
+    return IncomingEventPB.newBuilder().addAllKeyPress(keyStates).build().getSerializedSize();
+  }
+}
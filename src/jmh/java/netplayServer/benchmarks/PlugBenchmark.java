@@ -0,0 +1,63 @@
+package netplayServer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import netplayServer.Console;
+import netplayServer.PlugRequestException;
+import netplayServer.Server;
+import netplayprotos.NetplayServiceProto.Port;
+
+/**
+ * Measures plugging controllers into a console: filling an unregistered standard console with one
+ * client per port, and refusing a client whose port is taken.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlugBenchmark {
+
+  private Server server;
+  private Console full;
+
+  @Setup
+  public void setUp() throws Exception {
+    server = new Server(false);
+    full = new Console(server);
+    full.tryAddPlayers(0, Port.PORT_1, Port.PORT_2, Port.PORT_3, Port.PORT_4);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(4)
+  public Console plugEveryPort() throws PlugRequestException {
+    Console console = new Console(server);
+    console.tryAddPlayers(0, Port.PORT_ANY);
+    console.tryAddPlayers(0, Port.PORT_ANY);
+    console.tryAddPlayers(0, Port.PORT_ANY);
+    console.tryAddPlayers(0, Port.PORT_ANY);
+    return console;
+  }
+
+  @Benchmark
+  public Object rejectOccupiedPort() {
+    try {
+      return full.tryAddPlayers(0, Port.PORT_2);
+    } catch (PlugRequestException e) {
+      return e;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package netplayServer.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Compares two runs of the JMH benchmarks, as written in JMH's CSV result format, and flags the
+ * benchmarks that got slower, or allocate more per operation, than the baseline by more than a
+ * threshold and by more than the error of both runs. Exits with status 1 if any did, so that a
+ * build can fail on it.
+ *
+ * Usage: RegressionReport baseline.csv results.csv [threshold percent, default 10]
+ */
+public class RegressionReport {
+
+  private static final double DEFAULT_THRESHOLD_PERCENT = 10;
+  // Secondary result of the GC profiler compared besides the time per operation.
+  private static final String ALLOCATION_SUFFIX = "gc.alloc.rate.norm";
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: RegressionReport baseline.csv results.csv [threshold percent]");
+      System.exit(2);
+    }
+    File baselineFile = new File(args[0]);
+    if (!baselineFile.exists()) {
+      System.err.println("No baseline at " + baselineFile + "; record one with jmhBaseline");
+      System.exit(2);
+    }
+    double threshold =
+        (args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD_PERCENT) / 100;
+    Map<String, Result> baseline = read(baselineFile);
+    Map<String, Result> current = read(new File(args[1]));
+
+    int regressions = 0;
+    System.out.println(String.format("%-70s %14s %14s %-8s %8s", "Benchmark", "Baseline",
+        "Current", "Unit", "Change"));
+    for (Map.Entry<String, Result> entry : current.entrySet()) {
+      Result now = entry.getValue();
+      Result before = baseline.get(entry.getKey());
+      if (before == null) {
+        System.out.println(String.format("%-70s %14s %14.3f %-8s %8s", entry.getKey(), "-",
+            now.score, now.unit, "new"));
+        continue;
+      }
+      double change = before.score == 0 ? 0 : (now.score - before.score) / before.score;
+      boolean regressed =
+          change > threshold && now.score - before.score > now.error + before.error;
+      if (regressed) {
+        regressions++;
+      }
+      System.out.println(String.format("%-70s %14.3f %14.3f %-8s %+7.1f%%%s", entry.getKey(),
+          before.score, now.score, now.unit, change * 100, regressed ? "  REGRESSION" : ""));
+    }
+    System.out.println(String.format("%d of %d results regressed by more than %.0f%%",
+        regressions, current.size(), threshold * 100));
+    System.exit(regressions > 0 ? 1 : 0);
+  }
+
+  /**
+   * Reads the time per operation and the allocation per operation of each benchmark and set of
+   * parameters in a results file.
+   */
+  private static Map<String, Result> read(File file) throws IOException {
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    Map<String, Result> results = Maps.newLinkedHashMap();
+    if (lines.isEmpty()) {
+      return results;
+    }
+    List<String> header = parseLine(lines.get(0));
+    int benchmark = header.indexOf("Benchmark");
+    int score = header.indexOf("Score");
+    int unit = header.indexOf("Unit");
+    int error = score + 1;
+    for (String line : lines.subList(1, lines.size())) {
+      List<String> fields = parseLine(line);
+      String name = fields.get(benchmark);
+      if (name.contains(":") && !name.endsWith(ALLOCATION_SUFFIX)) {
+        continue;
+      }
+      StringBuilder key = new StringBuilder(name);
+      for (int i = 0; i < header.size(); ++i) {
+        if (header.get(i).startsWith("Param: ") && i < fields.size()
+            && !fields.get(i).isEmpty()) {
+          key.append(' ').append(header.get(i).substring("Param: ".length())).append('=')
+              .append(fields.get(i));
+        }
+      }
+      results.put(key.toString(), new Result(parseNumber(fields.get(score)),
+          parseNumber(fields.get(error)), fields.get(unit)));
+    }
+    return results;
+  }
+
+  private static double parseNumber(String field) {
+    try {
+      double value = Double.parseDouble(field);
+      return Double.isNaN(value) ? 0 : value;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static List<String> parseLine(String line) {
+    List<String> fields = Lists.newArrayList();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); ++i) {
+      char c = line.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+      } else if (c == ',' && !quoted) {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+
+  private static class Result {
+    final double score;
+    final double error;
+    final String unit;
+
+    Result(double score, double error, String unit) {
+      this.score = score;
+      this.error = error;
+      this.unit = unit;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package netplayServer.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import netplayServer.Client;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+
+/**
+ * Measures a client's stream handler taking an event from its stream: validating the console and
+ * ports of its keypresses, counting it, and handing it to the console, which has no other client
+ * to relay it to. Each event carries a new frame, built in the benchmark, so that the console's
+ * history does not drop it; {@link EventConstructionBenchmark} measures building events alone.
+ * The server's event visitors are removed, as they run on a thread of their own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamHandlerBenchmark {
+
+  private Console console;
+  private Client client;
+  private OutgoingEventPB foreignPort;
+  private long frame;
+
+  @Setup
+  public void setUp(Blackhole blackhole) throws Exception {
+    Server server = new Server(false);
+    server.getEventVisitors().clear();
+    console = server.createConsole();
+    client = console.tryAddPlayers(1, Port.PORT_1);
+    client.setStreamObserver(new BlackholeObserver(blackhole));
+    foreignPort = OutgoingEventPB.newBuilder().addKeyPress(KeyStatePB.newBuilder()
+        .setConsoleId(console.getId()).setPort(Port.PORT_2).setFrameNumber(1)).build();
+  }
+
+  @Benchmark
+  public void acceptKeypress() {
+    client.onNext(OutgoingEventPB.newBuilder().addKeyPress(KeyStatePB.newBuilder()
+        .setConsoleId(console.getId()).setPort(Port.PORT_1).setFrameNumber(++frame)).build());
+  }
+
+  @Benchmark
+  public void rejectForeignPort() {
+    client.onNext(foreignPort);
+  }
+}
@@ -6,6 +6,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
@@ -13,10 +14,19 @@ import org.apache.commons.logging.LogFactory;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSet.Builder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.CallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import netplayServer.datagram.DatagramPath;
+import netplayServer.jfr.FlightEvents;
+import netplayServer.jfr.FlightEvents.RelayStall;
+import netplayServer.metrics.ClientMetrics;
+import netplayServer.tracing.KeypressTrace;
+import netplayServer.visitors.OutgoingEventVisitor;
 import netplayprotos.NetplayServiceProto.IncomingEventPB;
 import netplayprotos.NetplayServiceProto.InvalidDataPB;
 import netplayprotos.NetplayServiceProto.KeyStatePB;
@@ -32,10 +42,10 @@ import netplayprotos.NetplayServiceProto.StopConsolePB;
  */
 public class Client implements StreamObserver<OutgoingEventPB> {
 
-  private Log log = LogFactory.getLog(this.getClass());
+  private static Log log = LogFactory.getLog(Client.class);
 
   public enum ClientStatus {
-    UNKNOWN(0), CREATED(1), READY(2), PLAYING(3), DONE(4), SPECTATING(5);
+    UNKNOWN(0), CREATED(1), READY(2), PLAYING(3), DONE(4), SPECTATING(5), DISCONNECTED(6);
 
     int statusInt;
 
@@ -47,12 +57,26 @@ public class Client implements StreamObserver<OutgoingEventPB> {
   public static AtomicLong atomicId = new AtomicLong();
   private int delay;
   private Set<Player> players;
+  // Slots of the console occupied by this client's players, see Ports.
+  private volatile long portMask = 0;
   private long clientId;
   private ClientStreamHandler streamHandler;
   private Console console;
-  private ClientStatus status;
-  private ExecutorService keypressVisitorExecutor = Executors.newSingleThreadExecutor();
-  
+  // Volatile so that the admin snapshot can read it without locking.
+  private volatile ClientStatus status;
+  private ClientStatus statusBeforeDisconnect;
+  // Ports of a game that started while this client was disconnected, sent to it when it resumes,
+  // or null; guarded by this.
+  private Set<ConnectedPortPB> pendingStart;
+  // Created by the first event to visit, so that idle and restored clients cost no executor.
+  private volatile ExecutorService keypressVisitorExecutor;
+  // Set once the client's console is torn down; no executor is created after that.
+  private volatile boolean released = false;
+  // Newest frame written to this client for each port value, guarded by this.
+  private Map<Integer, Long> deliveredFrames = Maps.newHashMap();
+  // Set once the client moves its keypresses to UDP.
+  private volatile DatagramPath datagramPath;
+  private final ClientMetrics metrics = new ClientMetrics();
 
   public Client(Console console, int delay) {
     this.clientId = atomicId.incrementAndGet();
@@ -62,12 +86,52 @@ public class Client implements StreamObserver<OutgoingEventPB> {
     this.delay = delay;
   }
 
-  	/**
-	 * Sets this client to ready state - must be called before the start of the
-	 * game.
-	 */
-  public void setReady() {
-    this.status = ClientStatus.READY;
+  /**
+   * Recreates a client of a console migrated from another server. A client that was connected
+   * there is left disconnected until it resumes its stream on this server.
+   */
+  Client(Console console, long clientId, int delay, ClientStatus sourceStatus) {
+    this.clientId = clientId;
+    players = Sets.newConcurrentHashSet();
+    this.console = console;
+    this.delay = delay;
+    switch (sourceStatus) {
+      case READY:
+      case PLAYING:
+        this.statusBeforeDisconnect = sourceStatus;
+        this.status = ClientStatus.DISCONNECTED;
+        break;
+      case DISCONNECTED:
+        this.statusBeforeDisconnect = ClientStatus.PLAYING;
+        this.status = ClientStatus.DISCONNECTED;
+        break;
+      default:
+        this.status = sourceStatus;
+    }
+  }
+
+  /**
+   * Makes sure ids handed out from now on do not collide with the given one, e.g. after clients
+   * were restored from a checkpoint.
+   */
+  public static void reserveId(long clientId) {
+    long current;
+    while ((current = atomicId.get()) < clientId) {
+      atomicId.compareAndSet(current, clientId);
+    }
+  }
+
+  /**
+   * Sets this client to ready state - must be called before the start of the game. Does nothing
+   * unless the client was just created, so that a late ready message cannot revive a client whose
+   * stream already ended. Returns true if the client became ready.
+   */
+  public synchronized boolean setReady() {
+    if (status != ClientStatus.CREATED) {
+      return false;
+    }
+    status = ClientStatus.READY;
+    return true;
   }
 
 	/**
@@ -75,12 +139,21 @@ public class Client implements StreamObserver<OutgoingEventPB> {
 	 * Returns true if a player was successfully added.
 	 */
   public boolean addPlayerForPort(Port port) {
-    if (getPlayer(port) != null) {
-    log.warn(String.format("Cannot add duplicate player on port %s for console %d", 
-				port, console.getId()));
-    return false;
+    return addPlayerForPortValue(port.getNumber());
+  }
+
+  /**
+   * Adds a player on the port with the given value, which may name a slot beyond the fourth. See
+   * {@link Ports}.
+   */
+  public synchronized boolean addPlayerForPortValue(int portValue) {
+    if (getPlayerForPortValue(portValue) != null) {
+      log.warn(String.format("Cannot add duplicate player on port %d for console %d", portValue,
+          console.getId()));
+      return false;
     }
-    players.add(new Player(port, this));
+    players.add(new Player(portValue, this));
+    portMask |= Ports.bitOf(portValue);
     return true;
   }
 
@@ -88,18 +161,37 @@ public class Client implements StreamObserver<OutgoingEventPB> {
    * Returns the player at this port or null if port is unoccupied.
    */
   public Player getPlayer(Port port) {
+    return getPlayerForPortValue(port.getNumber());
+  }
+
+  public Player getPlayerForPortValue(int portValue) {
     for (Player player : players) {
-      if (player.getPort().equals(port)) {
+      if (player.getPortValue() == portValue) {
         return player;
       }
     }
     return null;
   }
 
+  /**
+   * Returns true if one of this client's players is on the port with the given value.
+   */
+  public boolean ownsPort(int portValue) {
+    return (portMask & Ports.bitOf(portValue)) != 0;
+  }
+
   public long getId() {
     return clientId;
   }
 
+  /**
+   * Returns the slots of the console occupied by this client's players, one bit per slot; see
+   * {@link Ports}.
+   */
+  public long getSlotMask() {
+    return portMask;
+  }
+
   public ClientStatus getStatus() {
     return status;
   }
@@ -108,21 +200,54 @@ public class Client implements StreamObserver<OutgoingEventPB> {
     return delay;
   }
 
+  public ClientMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns true if this client's stream cannot take more events, so that they queue up in the
+   * server. Reads the stream without locking the client; clients sharing a multiplexed stream are
+   * never reported.
+   */
+  public boolean isBacklogged() {
+    ClientStreamHandler handler = streamHandler;
+    return handler != null && handler.incomingStream instanceof CallStreamObserver
+        && !((CallStreamObserver<?>) handler.incomingStream).isReady();
+  }
+
+  public long getConsoleId() {
+    return console.getId();
+  }
+
   /**
-   * Convenience method to return all the ports in this client
+   * Convenience method to return all the ports in this client. Ports beyond the fourth have no Port
+   * constant and are left out; see {@link #getPortValues}.
    * 
    * @return A set of ports - will not contain duplicates.
    */
   public Set<Port> getPorts() {
     Builder<Port> portSet = ImmutableSet.builder();
-    for (Player p : players) {
-      portSet.add(p.getPort());
+    for (int portValue : getPortValues()) {
+      Port port = Port.forNumber(portValue);
+      if (port != null) {
+        portSet.add(port);
+      }
     }
-    log.debug(String.format("Client %d has players: %s", clientId, players.toString()));
     return portSet.build();
   }
 
-  public void setStreamObserver(StreamObserver<IncomingEventPB> incomingStream) {
+  /**
+   * Returns the values of all the ports in this client, in slot order.
+   */
+  public Set<Integer> getPortValues() {
+    Builder<Integer> portValues = ImmutableSet.builder();
+    for (long remaining = portMask; remaining != 0; remaining &= remaining - 1) {
+      portValues.add(Ports.valueOf(Long.numberOfTrailingZeros(remaining)));
+    }
+    return portValues.build();
+  }
+
+  public synchronized void setStreamObserver(StreamObserver<IncomingEventPB> incomingStream) {
     if (streamHandler == null) {
       this.streamHandler = new ClientStreamHandler(incomingStream);
     } else {
@@ -133,7 +258,8 @@ public class Client implements StreamObserver<OutgoingEventPB> {
 
   /**
    * Sends the start game message on the outgoing stream. Behavior is undefined if client is not
-   * ready.
+   * ready. A client whose stream ended is left alone, and one that is disconnected is sent the
+   * start when it resumes.
    */
   public void acceptStartGame() {
     if (streamHandler == null) {
@@ -141,29 +267,237 @@ public class Client implements StreamObserver<OutgoingEventPB> {
           String.format("acceptStartGame called on client %d with no handler.", clientId));
     }
     Set<ConnectedPortPB> playerList = Sets.newConcurrentHashSet();
-    Map<Port, Integer> delayMap = console.getPortDelayMap();
-    for (Entry<Port, Integer> entry : delayMap.entrySet()) {
-      playerList.add(ConnectedPortPB.newBuilder().setPort(entry.getKey())
+    // Read before locking this client, as the console locks its clients while holding its lock.
+    Map<Integer, Integer> delayMap = console.getPortValueDelayMap();
+    for (Entry<Integer, Integer> entry : delayMap.entrySet()) {
+      playerList.add(ConnectedPortPB.newBuilder().setPortValue(entry.getKey())
           .setDelayFrames(entry.getValue()).build());
     }
-    streamHandler.returnStartGame(playerList);
-    this.status = ClientStatus.PLAYING;
+    synchronized (this) {
+      if (status == ClientStatus.DONE) {
+        return;
+      }
+      if (status == ClientStatus.DISCONNECTED) {
+        if (statusBeforeDisconnect != ClientStatus.PLAYING) {
+          pendingStart = playerList;
+        }
+        statusBeforeDisconnect = ClientStatus.PLAYING;
+        return;
+      }
+      streamHandler.returnStartGame(playerList);
+      status = ClientStatus.PLAYING;
+    }
   }
 
   /**
    * Sends the keypresses on the outgoing stream. The console for this client should be sending the
-   * keypresses back to the client.
+   * keypresses back to the client. Keypresses are held back while the client is disconnected, and
+   * frames the client was already sent are skipped.
    */
   public void acceptKeyPresses(List<KeyStatePB> keyPressList) {
+    acceptKeyPresses(keyPressList, null);
+  }
+
+  /**
+   * Like {@link #acceptKeyPresses(List)}, but writes {@code event}, which must carry exactly
+   * {@code keyPressList}, when nothing is filtered out, so that a console can build one event for
+   * all its clients.
+   */
+  public synchronized void acceptKeyPresses(List<KeyStatePB> keyPressList, IncomingEventPB event) {
+    if (status == ClientStatus.DISCONNECTED || status == ClientStatus.DONE) {
+      return;
+    }
     if (streamHandler == null) {
       throw new IllegalStateException(
           String.format("Accept called on client %d with no handler.", clientId));
     }
-    streamHandler.returnKeypresses(keyPressList);
+    List<KeyStatePB> undelivered = filterDelivered(keyPressList);
+    if (undelivered.isEmpty()) {
+      return;
+    }
+    metrics.recordSent(undelivered.get(undelivered.size() - 1).getFrameNumber(), delay);
+    RelayStall stall = FlightEvents.beginStall();
+    if (datagramPath == null || !datagramPath.send(undelivered)) {
+      if (event != null && undelivered == keyPressList) {
+        streamHandler.returnEvent(event);
+      } else {
+        streamHandler.returnKeypresses(undelivered);
+      }
+    }
+    FlightEvents.endStall(stall, console.getId(), clientId, FlightEvents.STAGE_WRITE);
+    KeypressTrace trace = KeypressTrace.current();
+    if (trace != null) {
+      trace.written();
+    }
+  }
+
+  /**
+   * Routes this client's keypresses over the given datagram path from now on, returning the path
+   * it replaces, if any.
+   */
+  public synchronized DatagramPath setDatagramPath(DatagramPath datagramPath) {
+    DatagramPath previous = this.datagramPath;
+    this.datagramPath = datagramPath;
+    return previous;
+  }
+
+  public DatagramPath getDatagramPath() {
+    return datagramPath;
+  }
+
+  /**
+   * Relays keypresses this client sent over its datagram path. Unlike the stream, datagrams carry
+   * frames that were already relayed, which the console's history drops; keypresses for another
+   * console or for ports the client does not own are dropped too, as there is no stream position
+   * to report them at.
+   */
+  public void acceptDatagramKeyPresses(List<KeyStatePB> keyPressList) {
+    if (status == ClientStatus.DONE || streamHandler == null) {
+      return;
+    }
+    List<KeyStatePB> valid = Lists.newArrayListWithCapacity(keyPressList.size());
+    for (KeyStatePB keyPress : keyPressList) {
+      if (keyPress.getConsoleId() == console.getId() && ownsPort(keyPress.getPortValue())) {
+        valid.add(keyPress);
+      } else {
+        log.debug(String.format("Client %d: dropping datagram keypress for console %d, port %d",
+            clientId, keyPress.getConsoleId(), keyPress.getPortValue()));
+      }
+    }
+    if (!valid.isEmpty()) {
+      metrics.recordReceived(valid.get(valid.size() - 1).getFrameNumber());
+    }
+    List<KeyStatePB> relayed = console.broadcastKeypresses(valid, clientId);
+    if (!relayed.isEmpty()) {
+      streamHandler.visitEvent(OutgoingEventPB.newBuilder().addAllKeyPress(relayed).build());
+    }
+  }
+
+  private List<KeyStatePB> filterDelivered(List<KeyStatePB> keyPressList) {
+    List<KeyStatePB> undelivered = keyPressList;
+    for (int i = 0; i < keyPressList.size(); ++i) {
+      KeyStatePB keyPress = keyPressList.get(i);
+      Long delivered = deliveredFrames.get(keyPress.getPortValue());
+      if (delivered != null && keyPress.getFrameNumber() <= delivered) {
+        if (undelivered == keyPressList) {
+          undelivered = Lists.newArrayList(keyPressList.subList(0, i));
+        }
+        continue;
+      }
+      deliveredFrames.put(keyPress.getPortValue(), keyPress.getFrameNumber());
+      if (undelivered != keyPressList) {
+        undelivered.add(keyPress);
+      }
+    }
+    return undelivered;
   }
 
-  public void acceptStopConsole(StopConsolePB.Reason reason) {
-    streamHandler.returnStopConsole(reason);
+  public synchronized void acceptStopConsole(StopConsolePB.Reason reason) {
+    if (streamHandler != null && status != ClientStatus.DONE) {
+      streamHandler.returnStopConsole(reason);
+    }
+    status = ClientStatus.DONE;
+  }
+
+  /**
+   * Ends this client's stream, telling it to resume on another server.
+   */
+  public synchronized void redirect(String target) {
+    if (streamHandler != null) {
+      streamHandler.returnRedirect(target);
+    }
+    status = ClientStatus.DONE;
+  }
+
+  /**
+   * Switches this client from one stream to another that delivers to the same remote client, as
+   * when its stream becomes shared with other consoles. Does nothing if the client is not bound to
+   * {@code from}.
+   */
+  public synchronized void moveStream(StreamObserver<IncomingEventPB> from,
+      StreamObserver<IncomingEventPB> to) {
+    if (streamHandler != null && streamHandler.incomingStream == from) {
+      streamHandler = new ClientStreamHandler(to);
+    }
+  }
+
+  /**
+   * Returns true if the given stream is the one this client currently writes to. Streams replaced
+   * by a resume are no longer bound.
+   */
+  public synchronized boolean isBoundTo(StreamObserver<IncomingEventPB> incomingStream) {
+    return streamHandler != null && streamHandler.incomingStream == incomingStream;
+  }
+
+  /**
+   * Returns true if a new stream may take over for this client, which is the case while its
+   * stream is disconnected or while a game is running.
+   */
+  public synchronized boolean canResume() {
+    return status == ClientStatus.DISCONNECTED || status == ClientStatus.PLAYING;
+  }
+
+  /**
+   * Rebinds this client to a new stream after its previous one dropped, and sends it the start of
+   * a game that began meanwhile, then every keypress relayed since the given last received frames;
+   * ports without a last received frame are not replayed. Returns false if the missed keypresses
+   * are no longer retained, in which case the console is stopped.
+   */
+  public synchronized boolean resume(StreamObserver<IncomingEventPB> incomingStream,
+      Map<Integer, Long> lastFrames) {
+    List<KeyStatePB> missed;
+    try {
+      missed = console.getKeyHistory().framesAfter(lastFrames, getPortValues());
+    } catch (IllegalStateException e) {
+      log.warn(String.format("Cannot resume client %d: %s", clientId, e.getMessage()));
+      ClientStreamHandler rejected = new ClientStreamHandler(incomingStream);
+      rejected.returnStopConsole(StopConsolePB.Reason.ERROR);
+      incomingStream.onCompleted();
+      status = ClientStatus.DONE;
+      console.broadcastStopConsole(StopConsolePB.Reason.ERROR, this);
+      return false;
+    }
+    log.info(String.format("Client %d resumed, replaying %d keypresses.", clientId, missed.size()));
+    streamHandler = new ClientStreamHandler(incomingStream);
+    if (status == ClientStatus.DISCONNECTED) {
+      status = statusBeforeDisconnect;
+    }
+    if (pendingStart != null) {
+      streamHandler.returnStartGame(pendingStart);
+      pendingStart = null;
+    }
+    deliveredFrames.clear();
+    deliveredFrames.putAll(lastFrames);
+    List<KeyStatePB> undelivered = filterDelivered(missed);
+    if (!undelivered.isEmpty()) {
+      streamHandler.returnKeypresses(undelivered);
+    }
+    console.onClientResumed();
+    return true;
+  }
+
+  /**
+   * Marks this client as having lost its stream. Returns false if it was not connected.
+   */
+  private synchronized boolean markDisconnected() {
+    if (status != ClientStatus.READY && status != ClientStatus.PLAYING) {
+      return false;
+    }
+    statusBeforeDisconnect = status;
+    status = ClientStatus.DISCONNECTED;
+    return true;
+  }
+
+  /**
+   * Gives up on a disconnected client once its grace window has passed. Returns true if the client
+   * was still disconnected.
+   */
+  public synchronized boolean expireDisconnect() {
+    if (status != ClientStatus.DISCONNECTED) {
+      return false;
+    }
+    status = ClientStatus.DONE;
+    return true;
   }
 
   @Override
@@ -224,13 +558,24 @@ public class Client implements StreamObserver<OutgoingEventPB> {
           .build();
       try {
         incomingStream.onNext(event);
-      } catch (StatusRuntimeException e) {
+      } catch (IllegalStateException | StatusRuntimeException e) {
         log.warn("Failed to write stop console event to client with ID " + clientId + ": " + e);
       }
     }
 
+    public void returnRedirect(String target) {
+      try {
+        incomingStream.onError(Redirects.redirectTo(target));
+      } catch (IllegalStateException | StatusRuntimeException e) {
+        log.warn("Failed to redirect client with ID " + clientId + ": " + e);
+      }
+    }
+
     public void returnKeypresses(List<KeyStatePB> presses) {
-      IncomingEventPB event = IncomingEventPB.newBuilder().addAllKeyPress(presses).build();
+      returnEvent(IncomingEventPB.newBuilder().addAllKeyPress(presses).build());
+    }
+
+    public void returnEvent(IncomingEventPB event) {
       incomingStream.onNext(event);
     }
 
@@ -245,9 +590,9 @@ public class Client implements StreamObserver<OutgoingEventPB> {
     @Override
     public void onNext(OutgoingEventPB value) {
       if (value.hasClientReady()) {
-        if (status == ClientStatus.CREATED) {
+        if (setReady()) {
           log.info(String.format("Client %d is now ready.", clientId));
-          status = ClientStatus.READY;
+          FlightEvents.clientReady(console.getId(), clientId);
         }
         return;
       }
@@ -258,51 +603,156 @@ public class Client implements StreamObserver<OutgoingEventPB> {
           sendInvalidDataPb(keypress, InvalidDataPB.Status.INVALID_CONSOLE);
           return;
         }
-        if (!getPorts().contains(keypress.getPort())) {
+        if (!ownsPort(keypress.getPortValue())) {
           sendInvalidDataPb(keypress, InvalidDataPB.Status.INVALID_PORT);
           return;
         }
       }
-      console.broadcastKeypresses(value.getKeyPressList(), clientId);
+      KeypressTrace trace = KeypressTrace.current();
+      if (trace != null) {
+        trace.validated(console.getId(), clientId);
+      }
+      if (value.getKeyPressCount() > 0) {
+        metrics.recordReceived(value.getKeyPress(value.getKeyPressCount() - 1).getFrameNumber());
+      }
+      console.getMetrics().recordReceived(value.getKeyPressCount(), value.getSerializedSize());
+      List<KeyStatePB> relayed = console.broadcastKeypresses(value.getKeyPressList(), clientId);
+      // Visitors only see what was relayed, not resent or frozen keypresses.
+      if (relayed.isEmpty()) {
+        return;
+      }
+      visitEvent(relayed.size() == value.getKeyPressCount() ? value
+          : OutgoingEventPB.newBuilder().addAllKeyPress(relayed).build());
+    }
+
+    /**
+     * Hands a validated event to the console's visitors on this client's visitor thread, keeping
+     * them off the relay path.
+     */
+    private void visitEvent(final OutgoingEventPB value) {
+      final List<OutgoingEventVisitor> visitors = console.getEventVisitors();
+      if (visitors.isEmpty()) {
+        return;
+      }
+      ExecutorService executor = visitorExecutor();
+      if (executor == null) {
+        return;
+      }
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            for (OutgoingEventVisitor visitor : visitors) {
+              visitor.visit(value);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // The console was torn down since the executor was looked up.
+      }
     }
 
     @Override
     public void onError(Throwable t) {
       log.warn(String.format("Error on stream for client %d: %s", clientId, t));
-      console.broadcastStopConsole(StopConsolePB.Reason.ERROR, Client.this);
+      if (markDisconnected()) {
+        console.awaitResume(Client.this);
+      } else if (status != ClientStatus.DONE) {
+        console.broadcastStopConsole(StopConsolePB.Reason.ERROR, Client.this);
+      }
     }
 
 
+    /**
+     * Ends the response stream once the client closed its side, so that the call is released
+     * rather than left open for the life of the connection.
+     */
     @Override
     public void onCompleted() {
       log.info(String.format("Stream closed for client: %d", clientId));
-      status = ClientStatus.DONE;
+      synchronized (Client.this) {
+        status = ClientStatus.DONE;
+        try {
+          incomingStream.onCompleted();
+        } catch (IllegalStateException | StatusRuntimeException e) {
+          log.debug("Response stream of client " + clientId + " already ended: " + e);
+        }
+      }
+      console.onClientDone();
     }
 
     private void sendInvalidDataPb(KeyStatePB key, InvalidDataPB.Status reason) {
       InvalidDataPB data = InvalidDataPB.newBuilder().setConsoleId(key.getConsoleId())
-          .setPort(key.getPort()).setStatus(reason).build();
+          .setPortValue(key.getPortValue()).setStatus(reason).build();
       IncomingEventPB event = IncomingEventPB.newBuilder().addInvalidData(data).build();
-      incomingStream.onNext(event);
+      synchronized (Client.this) {
+        incomingStream.onNext(event);
+      }
+    }
+
+  }
+
+  /**
+   * Returns the executor visiting this client's events, or null once the client is released.
+   */
+  private ExecutorService visitorExecutor() {
+    if (released) {
+      return null;
+    }
+    ExecutorService executor = keypressVisitorExecutor;
+    if (executor == null) {
+      synchronized (this) {
+        executor = keypressVisitorExecutor;
+        if (released) {
+          return null;
+        }
+        if (executor == null) {
+          executor = Executors.newSingleThreadExecutor();
+          keypressVisitorExecutor = executor;
+        }
+      }
     }
+    return executor;
+  }
 
+  /**
+   * Stops the thread visiting this client's events once the visits already queued have run. Called
+   * when the client's console is torn down; events the client sends afterwards are not visited.
+   */
+  public synchronized void release() {
+    released = true;
+    if (keypressVisitorExecutor != null) {
+      keypressVisitorExecutor.shutdown();
+    }
   }
 
   public static class Player {
     public static AtomicLong atomicId = new AtomicLong();
 
     private long id;
-    private Port port;
+    private int portValue;
     private Client client;
 
     public Player(Port port, Client client) {
+      this(port.getNumber(), client);
+    }
+
+    public Player(int portValue, Client client) {
       this.id = atomicId.getAndIncrement();
-      this.port = port;
+      this.portValue = portValue;
       this.client = client;
     }
 
+    /**
+     * Returns the port of this player, or UNRECOGNIZED for a port beyond the fourth.
+     */
     public Port getPort() {
-      return port;
+      Port port = Port.forNumber(portValue);
+      return port == null ? Port.UNRECOGNIZED : port;
+    }
+
+    public int getPortValue() {
+      return portValue;
     }
     
     public Client getClient() {
@@ -311,7 +761,7 @@ public class Client implements StreamObserver<OutgoingEventPB> {
 
     @Override
     public String toString() {
-      return String.format("Id: %d, Port: %d, ClientId: %d", id, port.getNumber(),
+      return String.format("Id: %d, Port: %d, ClientId: %d", id, portValue,
           client != null ? client.getId() : 0);
     }
   }
@@ -5,14 +5,20 @@ import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.collect.Maps;
+
 import io.grpc.stub.StreamObserver;
+import netplayServer.tracing.KeypressTrace;
+import netplayprotos.NetplayServiceProto.ClientReadyPB;
 import netplayprotos.NetplayServiceProto.IncomingEventPB;
 import netplayprotos.NetplayServiceProto.InvalidDataPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
 import netplayprotos.NetplayServiceProto.OutgoingEventPB;
 
 /**
  * Implementation of an observer that handles incoming messages to the server. We unfortunately do
- * not know what client this is for until after we receive a request.
+ * not know what client this is for until after we receive a request. A stream may serve the
+ * clients of several consoles, such as those of a bot farm or a tournament observer.
  * 
  * @param <T> The proto message to observe
  */
@@ -22,56 +28,218 @@ public class ClientHandoffStreamObserver<T> implements StreamObserver<OutgoingEv
 
   private Map<Long, Console> consoleMap;
   private StreamObserver<IncomingEventPB> responseObserver;
+  private Map<Integer, Long> resumeFrames;
+  private Server server;
 
   public ClientHandoffStreamObserver(StreamObserver<IncomingEventPB> responseObserver,
       Map<Long, Console> consoleMap) {
+    this(responseObserver, consoleMap, null);
+  }
+
+  /**
+   * Creates an observer that redirects clients of consoles owned by other servers of the cluster
+   * of the given server.
+   */
+  public ClientHandoffStreamObserver(StreamObserver<IncomingEventPB> responseObserver,
+      Map<Long, Console> consoleMap, Server server) {
     this.consoleMap = consoleMap;
     this.responseObserver = responseObserver;
+    this.resumeFrames = ResumeInterceptor.RESUME_FRAMES.get();
+    this.server = server;
+    if (server != null) {
+      server.getAdmissionController().streamOpened(responseObserver);
+    }
   }
 
-  private Client client;
+  // Clients attached to this stream by console id, in attach order. Only touched by the stream's
+  // callbacks, which gRPC delivers one at a time.
+  private final Map<Long, Client> clients = Maps.newLinkedHashMap();
+  // The stream each attached client writes to, by console id.
+  private final Map<Long, StreamObserver<IncomingEventPB>> clientStreams = Maps.newHashMap();
+  // Created once a second console is attached.
+  private MultiplexedStream multiplexer;
 
+  /**
+   * Handles an event from the client. The first ClientReady binds the stream to a client; each
+   * ClientReady for another console attaches that console's client as well, after which
+   * keypresses are routed by their console id and the clients share the response stream.
+   */
   @Override
   public void onNext(OutgoingEventPB value) {
-    if (client != null) {
-      client.onNext(value);
-    } else if (value.hasClientReady()) {
-      Console console = consoleMap.get(value.getClientReady().getConsoleId());
-      if (console != null) {
-        this.client = console.getClientById(value.getClientReady().getClientId());
-        client.setStreamObserver(responseObserver);
-        client.setReady();
+    if (server == null || value.getKeyPressCount() == 0) {
+      handle(value);
+      return;
+    }
+    long start = System.nanoTime();
+    KeypressTrace trace = server.getTracer().start(value, start);
+    try {
+      handle(value);
+    } finally {
+      long end = System.nanoTime();
+      server.getMetrics().recordResidency(end - start);
+      if (trace != null) {
+        server.getTracer().finish(trace, end);
+      }
+    }
+  }
+
+  private void handle(OutgoingEventPB value) {
+    if (value.hasClientReady()) {
+      Client attached = clients.get(value.getClientReady().getConsoleId());
+      if (attached != null) {
+        attached.onNext(value);
       } else {
-        IncomingEventPB invalidEvent =
-            IncomingEventPB.newBuilder()
-                .addInvalidData(
-                    InvalidDataPB.newBuilder().setStatus(InvalidDataPB.Status.INVALID_CONSOLE))
-                .build();
-        responseObserver.onNext(invalidEvent);
-        responseObserver.onCompleted();
+        attach(value.getClientReady());
       }
-    } else {
+    } else if (clients.isEmpty()) {
       log.warn(
           String.format("Stream message sent without client ready first - ignoring: %s", value));
+    } else if (clients.size() == 1) {
+      clients.values().iterator().next().onNext(value);
+    } else {
+      route(value);
+    }
+  }
+
+  private void attach(ClientReadyPB ready) {
+    Console console = server != null ? server.getConsole(ready.getConsoleId())
+        : consoleMap.get(ready.getConsoleId());
+    if (console == null) {
+      rejectUnknownConsole(ready.getConsoleId());
+      return;
+    }
+    Client client = console.getClientById(ready.getClientId());
+    if (client == null) {
+      log.info(String.format("Client ready for unknown client %d of console %d",
+          ready.getClientId(), ready.getConsoleId()));
+      rejectInvalidConsole(ready.getConsoleId());
+      return;
+    }
+    StreamObserver<IncomingEventPB> stream = responseObserver;
+    if (!clients.isEmpty()) {
+      if (multiplexer == null) {
+        multiplexer = new MultiplexedStream(responseObserver);
+        long firstConsoleId = clients.keySet().iterator().next();
+        StreamObserver<IncomingEventPB> lane = multiplexer.newLane(firstConsoleId);
+        clients.get(firstConsoleId).moveStream(responseObserver, lane);
+        clientStreams.put(firstConsoleId, lane);
+      }
+      stream = multiplexer.newLane(ready.getConsoleId());
+      log.info(String.format("Client %d of console %d joined a stream shared with %d others",
+          ready.getClientId(), ready.getConsoleId(), clients.size()));
+    }
+    clients.put(ready.getConsoleId(), client);
+    clientStreams.put(ready.getConsoleId(), stream);
+    if (resumeFrames != null && client.canResume()) {
+      client.resume(stream, resumeFrames);
+    } else {
+      client.setStreamObserver(stream);
+      client.setReady();
+    }
+  }
+
+  /**
+   * Splits the keypresses of an event by console and hands each share to that console's client.
+   */
+  private void route(OutgoingEventPB value) {
+    Map<Long, OutgoingEventPB.Builder> byConsole = Maps.newLinkedHashMap();
+    for (KeyStatePB keyPress : value.getKeyPressList()) {
+      OutgoingEventPB.Builder share = byConsole.get(keyPress.getConsoleId());
+      if (share == null) {
+        share = OutgoingEventPB.newBuilder();
+        byConsole.put(keyPress.getConsoleId(), share);
+      }
+      share.addKeyPress(keyPress);
+    }
+    for (Map.Entry<Long, OutgoingEventPB.Builder> share : byConsole.entrySet()) {
+      Client client = clients.get(share.getKey());
+      if (client != null) {
+        client.onNext(share.getValue().build());
+      } else {
+        multiplexer.write(IncomingEventPB.newBuilder().addInvalidData(InvalidDataPB.newBuilder()
+            .setConsoleId(share.getKey()).setStatus(InvalidDataPB.Status.INVALID_CONSOLE))
+            .build());
+      }
+    }
+  }
+
+  /**
+   * Redirects the stream to the server owning the console if there is one, and otherwise reports
+   * the console as invalid. Streams are redirected rather than proxied, which would add a hop to
+   * every keypress.
+   */
+  private void rejectUnknownConsole(long consoleId) {
+    String owner = server == null || !clients.isEmpty() ? null : server.getRemoteOwner(consoleId);
+    if (owner != null) {
+      responseObserver.onError(Redirects.redirectTo(owner));
+      return;
+    }
+    rejectInvalidConsole(consoleId);
+  }
+
+  /**
+   * Reports the console as invalid, on its own if other consoles are live on this stream, and
+   * otherwise by ending the stream.
+   */
+  private void rejectInvalidConsole(long consoleId) {
+    if (!clients.isEmpty()) {
+      // Other consoles are live on this stream, so do not end it.
+      IncomingEventPB invalidEvent = IncomingEventPB.newBuilder().addInvalidData(InvalidDataPB
+          .newBuilder().setConsoleId(consoleId).setStatus(InvalidDataPB.Status.INVALID_CONSOLE))
+          .build();
+      if (multiplexer != null) {
+        multiplexer.write(invalidEvent);
+      } else {
+        responseObserver.onNext(invalidEvent);
+      }
+      return;
     }
+    IncomingEventPB invalidEvent =
+        IncomingEventPB.newBuilder()
+            .addInvalidData(
+                InvalidDataPB.newBuilder().setStatus(InvalidDataPB.Status.INVALID_CONSOLE))
+            .build();
+    responseObserver.onNext(invalidEvent);
+    responseObserver.onCompleted();
   }
 
   @Override
   public void onError(Throwable t) {
-    if (client == null) {
+    streamClosed();
+    if (clients.isEmpty()) {
       log.warn(String.format("Error with no client set"), t);
-    } else {
-      client.onError(t);
+    }
+    for (Map.Entry<Long, Client> entry : clients.entrySet()) {
+      Client client = entry.getValue();
+      if (!client.isBoundTo(clientStreams.get(entry.getKey()))) {
+        log.info(String.format("Error on replaced stream of client %d: %s", client.getId(), t));
+      } else {
+        client.onError(t);
+      }
     }
   }
 
   @Override
   public void onCompleted() {
-    if (client == null) {
+    streamClosed();
+    if (clients.isEmpty()) {
       log.warn(String.format("Completed with no client set"));
-    } else {
-      client.onCompleted();
+      try {
+        responseObserver.onCompleted();
+      } catch (IllegalStateException e) {
+        // Already ended, as when the stream named an unknown console.
+      }
+    }
+    for (Map.Entry<Long, Client> entry : clients.entrySet()) {
+      if (entry.getValue().isBoundTo(clientStreams.get(entry.getKey()))) {
+        entry.getValue().onCompleted();
+      }
     }
   }
 
+  private void streamClosed() {
+    if (server != null) {
+      server.getAdmissionController().streamClosed(responseObserver);
+    }
+  }
 }
@@ -1,26 +1,34 @@
 package netplayServer;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
 
 import netplayServer.Client.ClientStatus;
+import netplayServer.jfr.FlightEvents;
+import netplayServer.jfr.FlightEvents.RelayStall;
+import netplayServer.lobby.LobbyIndex;
+import netplayServer.metrics.ConsoleMetrics;
+import netplayServer.tracing.KeypressTrace;
+import netplayServer.visitors.OutgoingEventVisitor;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
 import netplayprotos.NetplayServiceProto.KeyStatePB;
 import netplayprotos.NetplayServiceProto.PlugControllerResponsePB.PortRejectionPB;
-import netplayprotos.NetplayServiceProto.PlugControllerResponsePB.PortRejectionPB.Builder;
 import netplayprotos.NetplayServiceProto.PlugControllerResponsePB.PortRejectionPB.Reason;
 import netplayprotos.NetplayServiceProto.Port;
 import netplayprotos.NetplayServiceProto.StopConsolePB;
+import netplayserverprotos.MigrationServiceProto.ClientSnapshotPB;
+import netplayserverprotos.MigrationServiceProto.ConsoleSnapshotPB;
 
 /**
  * A console represents the physical game console that maintains the state of the game, and also
@@ -28,7 +36,7 @@ import netplayprotos.NetplayServiceProto.StopConsolePB;
  */
 public class Console {
 
-  private Log log = LogFactory.getLog(Console.class);
+  private static Log log = LogFactory.getLog(Console.class);
 
   public enum ConsoleStatus {
     UNKNOWN(0), CREATED(1), POWERED(2), DONE(3);
@@ -40,25 +48,54 @@ public class Console {
     }
   }
 
-  private List<Port> allPorts =
-      ImmutableList.of(Port.PORT_1, Port.PORT_2, Port.PORT_3, Port.PORT_4);
+  /** Frame rate used to express pauses in frames. */
+  public static final int FRAMES_PER_SECOND = 60;
 
-  private static AtomicLong atomicId = new AtomicLong(1);
-
-  private Map<Port, Client> clientPortMap;
+  private final int portCount;
+  // Client occupying each slot, and a mask of the occupied slots; both guarded by this.
+  private final Client[] slotClients;
+  private long occupiedSlots = 0;
+  // Every client of this console, replaced rather than modified so that it can be read unlocked.
+  private volatile Client[] clients = new Client[0];
   private long consoleId;
-  private ConsoleStatus status;
+  // Volatile so that the admin snapshot can read it without locking.
+  private volatile ConsoleStatus status;
   private Server server;
+  private KeyHistory keyHistory = new KeyHistory();
+  // Set while the console is being moved to another server; keypresses are not relayed.
+  private volatile boolean frozen = false;
+  // When the console was frozen on the server it was migrated from, or 0.
+  private long migratedFrozenAtMillis = 0;
+  private volatile long migrationPauseFrames = -1;
+  private volatile int minimumDelayFrames;
+  // Set once the console is registered with its server.
+  private volatile LobbyIndex lobbyIndex;
+  private final ConsoleMetrics metrics = new ConsoleMetrics();
 
   public Console(Server server) {
-    this.consoleId = atomicId.getAndIncrement();
-    this.clientPortMap = Maps.newConcurrentMap();
+    this(server, ConsoleIds.next(0));
+  }
+
+  public Console(Server server, long consoleId) {
+    this(server, consoleId, Ports.STANDARD_PORT_COUNT);
+  }
+
+  /**
+   * Creates a console with the given number of input slots, from 1 to {@link Ports#MAX_PORT_COUNT}.
+   */
+  public Console(Server server, long consoleId, int portCount) {
+    if (portCount < 1 || portCount > Ports.MAX_PORT_COUNT) {
+      throw new IllegalArgumentException("Unsupported port count: " + portCount);
+    }
+    this.consoleId = consoleId;
+    this.portCount = portCount;
+    this.slotClients = new Client[portCount];
     this.status = ConsoleStatus.CREATED;
     this.server = server;
   }
 
-  private Set<Client> allClients() {
-    return Sets.newHashSet(clientPortMap.values());
+  private Client[] allClients() {
+    return clients;
   }
 
   /**
@@ -68,6 +105,22 @@ public class Console {
     return consoleId;
   }
 
+  public ConsoleStatus getStatus() {
+    return status;
+  }
+
+  public int getPortCount() {
+    return portCount;
+  }
+
+  public ConsoleMetrics getMetrics() {
+    return metrics;
+  }
+
+  public synchronized int getFreePortCount() {
+    return portCount - Long.bitCount(occupiedSlots);
+  }
+
   /**
    * Attempts to add the players to this game. This method will first attempt to assign named ports,
    * and then handle the request for PORT_ANY.
@@ -78,68 +131,155 @@ public class Console {
    * @param ports
    * @return
    */
-  public synchronized Client tryAddPlayers(int delay, Port... ports) throws PlugRequestException {
-    List<Port> availablePorts = Lists.newArrayList();
-    List<PortRejectionPB> rejectionList = Lists.newArrayList();
-    for (Port port : allPorts) {
-      if (!clientPortMap.containsKey(port))
-        availablePorts.add(port);
+  public Client tryAddPlayers(int delay, Port... ports) throws PlugRequestException {
+    int[] portValues = new int[ports.length];
+    for (int i = 0; i < ports.length; ++i) {
+      portValues[i] = ports[i] == Port.UNRECOGNIZED ? Port.UNKNOWN_VALUE : ports[i].getNumber();
     }
-    Set<Port> assignedPorts = Sets.newHashSet();
+    return tryAddPlayersByValue(delay, portValues);
+  }
 
+  /**
+   * Like {@link #tryAddPlayers}, but takes raw port values so that the slots beyond the fourth,
+   * which have no Port constant, can be requested. Values naming no slot of this console are
+   * rejected; UNKNOWN values are ignored.
+   */
+  public synchronized Client tryAddPlayersByValue(int delay, int... portValues)
+      throws PlugRequestException {
+    int[] requested = portValues.clone();
+    Arrays.sort(requested);
+    if (status == ConsoleStatus.DONE) {
+      throw new PlugRequestException(rejectAll(requested));
+    }
+    List<PortRejectionPB> rejectionList = Lists.newArrayList();
+    long assigned = 0;
+    int anyRequests = 0;
     boolean canAssign = true;
 
-    List<Port> requestPortList = Lists.newArrayList(ports);
-    Collections.sort(requestPortList);
-
-    for (Port requestPort : requestPortList) {
-      if (requestPort.equals(Port.UNKNOWN) || requestPort.equals(Port.UNRECOGNIZED)) {
+    for (int portValue : requested) {
+      if (portValue == Port.UNKNOWN_VALUE) {
         continue;
       }
-      Builder rejectionsBuilder =
-          PortRejectionPB.newBuilder().setPort(requestPort).setReason(Reason.ACCEPTABLE);
-      if (requestPort.equals(Port.PORT_ANY)) {
-        if (availablePorts.size() > 0) {
-          Port nextPort = availablePorts.iterator().next();
-          availablePorts.remove(nextPort);
-          rejectionsBuilder.clear().setPort(nextPort).setReason(Reason.ACCEPTABLE);
-          assignedPorts.add(nextPort);
-        } else {
-          canAssign = false;
-          rejectionsBuilder.clear().setPort(requestPort).setReason(Reason.ALL_PORTS_OCCUPIED);
-        }
+      if (portValue == Port.PORT_ANY_VALUE) {
+        anyRequests++;
+        continue;
+      }
+      PortRejectionPB.Builder rejection =
+          PortRejectionPB.newBuilder().setPortValue(portValue).setReason(Reason.ACCEPTABLE);
+      long bit = Ports.bitOf(portValue);
+      if (bit == 0 || Ports.slotOf(portValue) >= portCount) {
+        canAssign = false;
+        rejection.setReason(Reason.UNKNOWN);
+      } else if ((occupiedSlots & bit) != 0) {
+        canAssign = false;
+        rejection.setReason(Reason.PORT_ALREADY_OCCUPIED);
       } else {
-        if (clientPortMap.containsKey(requestPort)) {
-          canAssign = false;
-          rejectionsBuilder.clear().setPort(requestPort).setReason(Reason.PORT_ALREADY_OCCUPIED);
-        } else {
-          assignedPorts.add(requestPort);
-          availablePorts.remove(requestPort);
-        }
+        assigned |= bit;
       }
-      rejectionList.add(rejectionsBuilder.build());
+      rejectionList.add(rejection.build());
     }
+
+    long free = allSlots() & ~(occupiedSlots | assigned);
+    for (int i = 0; i < anyRequests; ++i) {
+      if (free == 0) {
+        canAssign = false;
+        rejectionList.add(PortRejectionPB.newBuilder().setPort(Port.PORT_ANY)
+            .setReason(Reason.ALL_PORTS_OCCUPIED).build());
+        continue;
+      }
+      int slot = Long.numberOfTrailingZeros(free);
+      free &= free - 1;
+      assigned |= 1L << slot;
+      rejectionList.add(PortRejectionPB.newBuilder().setPortValue(Ports.valueOf(slot))
+          .setReason(Reason.ACCEPTABLE).build());
+    }
+
     if (!canAssign) {
       throw new PlugRequestException(rejectionList);
     }
-    Client newClient = makeNewClient(assignedPorts, delay);
+    if (assigned == 0) {
+      throw new PlugRequestException(null);
+    }
+    Client newClient = new Client(this, delay);
+    occupy(newClient, assigned);
+    FlightEvents.controllerPlugged(consoleId, newClient.getId(), assigned, delay);
     return newClient;
   }
 
-  private Client makeNewClient(Set<Port> assignedPorts, int delay) throws PlugRequestException {
-    Client newClient = new Client(this, delay);
-    if (assignedPorts.isEmpty()) {
-      throw new PlugRequestException(null);
+  /**
+   * Rejects every requested port, as when the console stopped.
+   */
+  private static List<PortRejectionPB> rejectAll(int[] portValues) {
+    List<PortRejectionPB> rejectionList = Lists.newArrayList();
+    for (int portValue : portValues) {
+      if (portValue != Port.UNKNOWN_VALUE) {
+        rejectionList.add(PortRejectionPB.newBuilder().setPortValue(portValue)
+            .setReason(Reason.UNKNOWN).build());
+      }
     }
-    for (Port port : assignedPorts) {
-      clientPortMap.put(port, newClient);
-      newClient.addPlayerForPort(port);
+    return rejectionList;
+  }
+
+  private long allSlots() {
+    return portCount == Ports.MAX_PORT_COUNT ? -1L : (1L << portCount) - 1;
+  }
+
+  /**
+   * Seats a client on the given slots, which must be free.
+   */
+  private synchronized void occupy(Client client, long slots) {
+    for (long remaining = slots; remaining != 0; remaining &= remaining - 1) {
+      int slot = Long.numberOfTrailingZeros(remaining);
+      slotClients[slot] = client;
+      client.addPlayerForPortValue(Ports.valueOf(slot));
     }
-    return newClient;
+    occupiedSlots |= slots;
+    Client[] grown = Arrays.copyOf(clients, clients.length + 1);
+    grown[clients.length] = client;
+    clients = grown;
+    updateLobby();
+  }
+
+  /**
+   * Plugs a client read back from a checkpoint into the given slots, one bit per slot. The client
+   * has no stream until it sends its ClientReadyPB again.
+   */
+  public synchronized Client restoreClient(long clientId, int delay, ClientStatus status,
+      long slots) {
+    if ((occupiedSlots & slots) != 0 || (slots >>> portCount) != 0) {
+      throw new IllegalArgumentException(
+          String.format("Client %d restored into taken or missing slots", clientId));
+    }
+    Client.reserveId(clientId);
+    Client client = new Client(this, clientId, delay,
+        status == ClientStatus.DONE ? ClientStatus.DONE : ClientStatus.CREATED);
+    occupy(client, slots);
+    return client;
+  }
+
+  /**
+   * Has this console report its free ports and status to the given index whenever they change.
+   */
+  public void setLobbyIndex(LobbyIndex lobbyIndex) {
+    this.lobbyIndex = lobbyIndex;
+  }
+
+  private void updateLobby() {
+    LobbyIndex index = lobbyIndex;
+    if (index != null) {
+      index.update(this);
+    }
+  }
+
+  /**
+   * Returns the clients of this console in the order they were plugged.
+   */
+  public List<Client> getClients() {
+    return Collections.unmodifiableList(Arrays.asList(allClients()));
   }
 
   public Client getClientById(long id) {
-    for (Client client : clientPortMap.values()) {
+    for (Client client : allClients()) {
       if (client.getId() == id) {
         return client;
       }
@@ -151,7 +291,7 @@ public class Console {
    * Returns true if all connected clients are in the ready state, false otherwise.
    */
   public boolean verifyClientsReady() {
-    for (Client client : clientPortMap.values()) {
+    for (Client client : allClients()) {
       if (!client.getStatus().equals(ClientStatus.READY)) {
         log.warn(String.format("Start game called with client that is not ready: %s", client));
         return false;
@@ -160,21 +300,92 @@ public class Console {
     return true;
   }
 
+  /**
+   * Returns the recent keypresses relayed by this console.
+   */
+  public KeyHistory getKeyHistory() {
+    return keyHistory;
+  }
+
   /*
    * Broadcasts keys from one client to the rest of the clients. The console will not perform any
-   * processing on the keypresses, and will not broadcast back to the senderId.
+   * processing on the keypresses, and will not broadcast back to the senderId. Frames that were
+   * already broadcast, such as those resent by a resuming client, are dropped. Returns the frames
+   * that were broadcast. Every receiving client is handed the same event, so a broadcast allocates
+   * one event however many clients the console has.
    */
-  public void broadcastKeypresses(List<KeyStatePB> keyPressList, long senderId) {
-    log.debug(String.format("Broadcasting keys from client %d:  %s", senderId, keyPressList));
+  public List<KeyStatePB> broadcastKeypresses(List<KeyStatePB> keyPressList, long senderId) {
+    KeypressTrace trace = KeypressTrace.current();
+    if (trace != null) {
+      trace.broadcast();
+    }
+    if (log.isDebugEnabled()) {
+      log.debug(String.format("Broadcasting keys from client %d:  %s", senderId, keyPressList));
+    }
+    if (frozen) {
+      return Collections.emptyList();
+    }
+    List<KeyStatePB> newKeyPresses = keyHistory.record(keyPressList);
+    if (newKeyPresses.isEmpty()) {
+      return newKeyPresses;
+    }
+    IncomingEventPB event = IncomingEventPB.newBuilder().addAllKeyPress(newKeyPresses).build();
+    int recipients = 0;
+    RelayStall stall = FlightEvents.beginStall();
     for (Client client : allClients()) {
       if (client.getId() == senderId) {
         continue;
       }
-      client.acceptKeyPresses(keyPressList);
+      if (trace != null) {
+        trace.enqueued(client.getId());
+      }
+      client.acceptKeyPresses(newKeyPresses, event);
+      recipients++;
+    }
+    FlightEvents.endStall(stall, consoleId, senderId, FlightEvents.STAGE_BROADCAST);
+    metrics.recordSent(recipients, event.getSerializedSize());
+    return newKeyPresses;
+  }
+
+  /**
+   * Keeps the console running while a client whose stream dropped reconnects. If the client does
+   * not resume within the server's grace window, the console is stopped.
+   */
+  public void awaitResume(final Client client) {
+    log.info(String.format("Console %d: waiting %d ms for client %d to resume", consoleId,
+        server.getResumeGraceMillis(), client.getId()));
+    server.getScheduler().schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (client.expireDisconnect()) {
+          log.info(
+              String.format("Console %d: client %d did not resume", consoleId, client.getId()));
+          broadcastStopConsole(StopConsolePB.Reason.ERROR, client);
+        }
+      }
+    }, server.getResumeGraceMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the visitors to be shown the events sent by the clients of this console. The relay hub
+   * is among them only while someone watches the console, so that the events of a console nobody
+   * watches are not handed off at all.
+   */
+  public List<OutgoingEventVisitor> getEventVisitors() {
+    List<OutgoingEventVisitor> visitors = server.getEventVisitors();
+    if (!server.getRelayHub().isWatched(consoleId)) {
+      return visitors;
     }
+    List<OutgoingEventVisitor> watched = Lists.newArrayList(visitors);
+    watched.add(server.getRelayVisitor());
+    return watched;
   }
 
   public void broadcastStopConsole(StopConsolePB.Reason reason, Client requestingClient) {
+    if (!markDone()) {
+      return;
+    }
+    FlightEvents.consoleStopped(consoleId, reason.name(), requestingClient.getId());
     for (Client client : allClients()) {
       log.info("this client: " + client.getId() + ", requesting client: " + requestingClient.getId());
       if (client.getId() != requestingClient.getId()) {
@@ -184,11 +395,110 @@ public class Console {
     server.tearDownConsole(consoleId);
   }
 
-  public Map<Port, Integer> getPortDelayMap() {
-    Map<Port, Integer> portDelayMap = Maps.newConcurrentMap();
+  /**
+   * Tells every client that this console stopped, for example when the server shuts down, and
+   * tears it down.
+   */
+  public void stop(StopConsolePB.Reason reason) {
+    if (!markDone()) {
+      return;
+    }
+    notifyStopped(reason);
+  }
+
+  /**
+   * Stops this console like {@link #stop}, but only if its game has not started. Returns true if
+   * it was stopped.
+   */
+  public boolean stopLobby(StopConsolePB.Reason reason) {
+    synchronized (this) {
+      if (status != ConsoleStatus.CREATED) {
+        return false;
+      }
+      status = ConsoleStatus.DONE;
+    }
+    notifyStopped(reason);
+    return true;
+  }
+
+  private void notifyStopped(StopConsolePB.Reason reason) {
+    FlightEvents.consoleStopped(consoleId, reason.name(), 0);
     for (Client client : allClients()) {
-      for (Port port : client.getPorts()) {
-        portDelayMap.put(port, client.getDelay());
+      client.acceptStopConsole(reason);
+    }
+    server.tearDownConsole(consoleId);
+  }
+
+  /**
+   * Tears this console down once the stream of every client ended, so that consoles whose games
+   * finished normally leave the server like those stopped on an error.
+   */
+  void onClientDone() {
+    synchronized (this) {
+      if (!isFinished() || !markDone()) {
+        return;
+      }
+    }
+    server.tearDownConsole(consoleId);
+  }
+
+  /**
+   * Marks this console as ended, after which no client can plug into it and it cannot be stopped
+   * or started again. Returns false if it had already ended.
+   */
+  synchronized boolean markDone() {
+    if (status == ConsoleStatus.DONE) {
+      return false;
+    }
+    status = ConsoleStatus.DONE;
+    return true;
+  }
+
+  /**
+   * Releases the resources held by the clients of a console that was torn down.
+   */
+  public void release() {
+    for (Client client : allClients()) {
+      client.release();
+    }
+  }
+
+  /**
+   * Returns true once the stream of every client ended. Consoles without clients are finished too.
+   */
+  public boolean isFinished() {
+    for (Client client : allClients()) {
+      if (client.getStatus() != ClientStatus.DONE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the input delay of each occupied standard port. See {@link #getPortValueDelayMap} for
+   * the delays of every port.
+   */
+  public Map<Port, Integer> getPortDelayMap() {
+    Map<Port, Integer> portDelayMap = Maps.newEnumMap(Port.class);
+    for (Map.Entry<Integer, Integer> entry : getPortValueDelayMap().entrySet()) {
+      Port port = Port.forNumber(entry.getKey());
+      if (port != null) {
+        portDelayMap.put(port, entry.getValue());
+      }
+    }
+    return portDelayMap;
+  }
+
+  /**
+   * Returns the input delay of each occupied port by port value, in slot order.
+   */
+  public synchronized Map<Integer, Integer> getPortValueDelayMap() {
+    Map<Integer, Integer> portDelayMap = Maps.newLinkedHashMap();
+    for (int slot = 0; slot < portCount; ++slot) {
+      Client client = slotClients[slot];
+      if (client != null) {
+        portDelayMap.put(Ports.valueOf(slot), Math.max(client.getDelay(), minimumDelayFrames));
       }
     }
     return portDelayMap;
@@ -196,13 +506,152 @@ public class Console {
 
   /**
    * Broadcasts the ready game message to all clients. Behavior is undefined if not all clients are
-   * ready.
+   * ready. Only the first call starts the game; returns false for the others, and once the console
+   * ended.
    */
-  public void broadcastStartGame() {
+  public boolean broadcastStartGame() {
     log.debug(String.format("Broadcasting start game from client"));
+    synchronized (this) {
+      if (status != ConsoleStatus.CREATED) {
+        return false;
+      }
+      status = ConsoleStatus.POWERED;
+    }
+    updateLobby();
+    FlightEvents.gameStarted(consoleId, allClients().length);
     for (Client client : allClients()) {
       client.acceptStartGame();
     }
+    return true;
+  }
+
+  /**
+   * Stops relaying keypresses, for example while the console is moved to another server.
+   */
+  public void freeze() {
+    frozen = true;
+  }
+
+  public void unfreeze() {
+    frozen = false;
+  }
+
+  /**
+   * Sends every connected client to another server, which must already hold a copy of this
+   * console. The clients are expected to resume their streams there.
+   */
+  public void redirectClients(String target) {
+    for (Client client : allClients()) {
+      client.redirect(target);
+    }
+  }
+
+  /**
+   * Captures the state of this console so that it can be recreated on another server. The console
+   * should be frozen first so that no keypress is relayed after the snapshot is taken.
+   */
+  public ConsoleSnapshotPB snapshot(long frozenAtMillis) {
+    ConsoleSnapshotPB.Builder snapshot = ConsoleSnapshotPB.newBuilder().setConsoleId(consoleId)
+        .setStatus(status.name()).setFrozenAtMillis(frozenAtMillis)
+        .setMinimumDelayFrames(minimumDelayFrames).setPortCount(portCount);
+    for (Client client : allClients()) {
+      ClientSnapshotPB.Builder clientSnapshot = ClientSnapshotPB.newBuilder()
+          .setClientId(client.getId()).setDelayFrames(client.getDelay())
+          .setStatus(client.getStatus().name());
+      for (int portValue : client.getPortValues()) {
+        clientSnapshot.addPort(portValue);
+      }
+      snapshot.addClients(clientSnapshot);
+    }
+    for (KeyStatePB keyPress : keyHistory.allFrames()) {
+      snapshot.addKeyHistory(keyPress.toByteString());
+    }
+    return snapshot.build();
+  }
+
+  /**
+   * Recreates a console captured by {@link #snapshot}. Clients that had a stream on the source
+   * server are left disconnected, waiting for them to resume on this one.
+   * 
+   * @throws InvalidProtocolBufferException if the key history cannot be parsed
+   */
+  public static Console fromSnapshot(Server server, ConsoleSnapshotPB snapshot)
+      throws InvalidProtocolBufferException {
+    Console console = new Console(server, snapshot.getConsoleId(),
+        snapshot.getPortCount() == 0 ? Ports.STANDARD_PORT_COUNT : snapshot.getPortCount());
+    ConsoleIds.reserve(snapshot.getConsoleId());
+    console.status = ConsoleStatus.valueOf(snapshot.getStatus());
+    console.migratedFrozenAtMillis = snapshot.getFrozenAtMillis();
+    console.minimumDelayFrames = snapshot.getMinimumDelayFrames();
+    List<KeyStatePB> history = Lists.newArrayList();
+    for (ByteString keyPress : snapshot.getKeyHistoryList()) {
+      history.add(KeyStatePB.parseFrom(keyPress));
+    }
+    console.keyHistory.record(history);
+    for (ClientSnapshotPB clientSnapshot : snapshot.getClientsList()) {
+      Client.reserveId(clientSnapshot.getClientId());
+      Client client = new Client(console, clientSnapshot.getClientId(),
+          clientSnapshot.getDelayFrames(), ClientStatus.valueOf(clientSnapshot.getStatus()));
+      long slots = 0;
+      for (int portValue : clientSnapshot.getPortList()) {
+        slots |= Ports.bitOf(portValue);
+      }
+      console.occupy(client, slots);
+    }
+    return console;
+  }
+
+  /**
+   * Waits for every client left disconnected by {@link #fromSnapshot} to resume.
+   */
+  public void awaitMigratedClients() {
+    for (Client client : allClients()) {
+      if (client.getStatus() == ClientStatus.DISCONNECTED) {
+        awaitResume(client);
+      }
+    }
+  }
+
+  /**
+   * Called when a client resumed its stream. Once every client of a migrated console is back, the
+   * time the console spent without relaying is recorded.
+   */
+  void onClientResumed() {
+    if (migratedFrozenAtMillis == 0 || migrationPauseFrames >= 0) {
+      return;
+    }
+    for (Client client : allClients()) {
+      if (client.getStatus() == ClientStatus.DISCONNECTED) {
+        return;
+      }
+    }
+    migrationPauseFrames = millisToFrames(System.currentTimeMillis() - migratedFrozenAtMillis);
+    log.info(String.format("Console %d resumed after migration, paused for %d frames", consoleId,
+        migrationPauseFrames));
+  }
+
+  /**
+   * Returns how many frames this console went without relaying when it was migrated to this
+   * server, or -1 if it was not migrated or its clients have not all resumed yet.
+   */
+  public long getMigrationPauseFrames() {
+    return migrationPauseFrames;
+  }
+
+  /**
+   * Sets the input delay every port of this console uses at least, whatever delay its client asked
+   * for. Placement sets it to cover the worst player's delay to this server.
+   */
+  public void setMinimumDelayFrames(int minimumDelayFrames) {
+    this.minimumDelayFrames = minimumDelayFrames;
+  }
+
+  public int getMinimumDelayFrames() {
+    return minimumDelayFrames;
+  }
+
+  public static long millisToFrames(long millis) {
+    return (millis * FRAMES_PER_SECOND + 999) / 1000;
   }
 
 }
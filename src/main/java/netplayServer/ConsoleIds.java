@@ -0,0 +1,50 @@
+package netplayServer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates console ids. In a cluster, the high bits of an id name the node owning the console, so
+ * that any node can tell where a console lives from its id alone. A standalone server is node 0 and
+ * hands out the plain sequence 1, 2, 3...
+ */
+public class ConsoleIds {
+
+  /** Number of low bits holding the per-process sequence. */
+  public static final int NODE_SHIFT = 48;
+  /** Largest node id that fits in a positive console id. */
+  public static final int MAX_NODE_ID = (1 << (63 - NODE_SHIFT)) - 1;
+
+  private static final long SEQUENCE_MASK = (1L << NODE_SHIFT) - 1;
+  private static AtomicLong sequence = new AtomicLong(1);
+
+  private ConsoleIds() {}
+
+  /**
+   * Returns a new console id owned by the given node.
+   */
+  public static long next(int nodeId) {
+    if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+      throw new IllegalArgumentException("Invalid node id: " + nodeId);
+    }
+    return ((long) nodeId << NODE_SHIFT) | (sequence.getAndIncrement() & SEQUENCE_MASK);
+  }
+
+  /**
+   * Returns the node owning the console with the given id.
+   */
+  public static int nodeOf(long consoleId) {
+    return (int) (consoleId >>> NODE_SHIFT);
+  }
+
+  /**
+   * Makes sure ids handed out from now on do not collide with the given one, e.g. after consoles
+   * were restored or imported.
+   */
+  public static void reserve(long consoleId) {
+    long reserved = consoleId & SEQUENCE_MASK;
+    long current;
+    while ((current = sequence.get()) <= reserved) {
+      sequence.compareAndSet(current, reserved + 1);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package netplayServer;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.Port;
+
+/**
+ * A bounded history of the keypresses relayed by a console, kept so that a client whose stream
+ * dropped can be sent what it missed. Frame numbers act as per-port sequence numbers: a port only
+ * accepts frames newer than the last one it recorded, so the history never holds duplicates. Ports
+ * are keyed by their raw value so that slots beyond the fourth, see {@link Ports}, are kept too.
+ */
+public class KeyHistory {
+
+  /** Number of frames retained per port, about ten seconds of play at 60 frames per second. */
+  public static final int DEFAULT_FRAMES_PER_PORT = 600;
+
+  private static final Comparator<KeyStatePB> BY_FRAME = new Comparator<KeyStatePB>() {
+    @Override
+    public int compare(KeyStatePB a, KeyStatePB b) {
+      return Long.compare(a.getFrameNumber(), b.getFrameNumber());
+    }
+  };
+
+  private final int framesPerPort;
+  private final Map<Integer, PortHistory> ports;
+
+  public KeyHistory() {
+    this(DEFAULT_FRAMES_PER_PORT);
+  }
+
+  public KeyHistory(int framesPerPort) {
+    this.framesPerPort = framesPerPort;
+    this.ports = Maps.newHashMap();
+  }
+
+  /**
+   * Records the given keypresses and returns the ones that were not seen before, in order.
+   */
+  public synchronized List<KeyStatePB> record(List<KeyStatePB> keyPresses) {
+    List<KeyStatePB> accepted = Lists.newArrayListWithCapacity(keyPresses.size());
+    for (KeyStatePB keyPress : keyPresses) {
+      PortHistory history = ports.get(keyPress.getPortValue());
+      if (history == null) {
+        history = new PortHistory(framesPerPort);
+        ports.put(keyPress.getPortValue(), history);
+      }
+      if (history.add(keyPress)) {
+        accepted.add(keyPress);
+      }
+    }
+    return accepted;
+  }
+
+  /**
+   * Returns the newest frame recorded for a port, or -1 if nothing was recorded.
+   */
+  public long newestFrame(Port port) {
+    return newestFrame(port.getNumber());
+  }
+
+  public synchronized long newestFrame(int portValue) {
+    PortHistory history = ports.get(portValue);
+    return history == null ? -1 : history.newestFrame();
+  }
+
+  /**
+   * Returns every recorded keypress that follows the given last seen frames, ordered by frame.
+   * Ports in {@code excludedPorts} and ports missing from {@code lastFrames} are skipped.
+   * 
+   * @throws IllegalStateException if some of the missed frames were already evicted, in which case
+   *         the history cannot be replayed without a gap
+   */
+  public synchronized List<KeyStatePB> framesAfter(Map<Integer, Long> lastFrames,
+      Set<Integer> excludedPorts) {
+    List<KeyStatePB> missed = Lists.newArrayList();
+    for (Map.Entry<Integer, PortHistory> entry : ports.entrySet()) {
+      Long lastFrame = lastFrames.get(entry.getKey());
+      if (lastFrame != null && !excludedPorts.contains(entry.getKey())) {
+        entry.getValue().collectAfter(lastFrame, missed);
+      }
+    }
+    Collections.sort(missed, BY_FRAME);
+    return missed;
+  }
+
+  /**
+   * Returns every retained keypress, ordered by frame. Unlike {@link #framesAfter}, this does not
+   * mind frames evicted before the oldest retained ones.
+   */
+  public synchronized List<KeyStatePB> allFrames() {
+    List<KeyStatePB> frames = Lists.newArrayList();
+    for (PortHistory history : ports.values()) {
+      history.collectRetainedAfter(-1, frames);
+    }
+    Collections.sort(frames, BY_FRAME);
+    return frames;
+  }
+
+  /**
+   * Ring buffer of the most recent frames of a single port.
+   */
+  private static class PortHistory {
+    private final KeyStatePB[] ring;
+    private int size = 0;
+    private int next = 0;
+    private long newestFrame = -1;
+    private boolean evicted = false;
+
+    PortHistory(int capacity) {
+      this.ring = new KeyStatePB[capacity];
+    }
+
+    boolean add(KeyStatePB keyPress) {
+      if (keyPress.getFrameNumber() <= newestFrame) {
+        return false;
+      }
+      if (size == ring.length) {
+        evicted = true;
+      } else {
+        size++;
+      }
+      ring[next] = keyPress;
+      next = (next + 1) % ring.length;
+      newestFrame = keyPress.getFrameNumber();
+      return true;
+    }
+
+    long newestFrame() {
+      return newestFrame;
+    }
+
+    void collectAfter(long lastFrame, List<KeyStatePB> out) {
+      if (lastFrame >= newestFrame) {
+        return;
+      }
+      int oldest = (next - size + ring.length) % ring.length;
+      if (evicted && ring[oldest].getFrameNumber() > lastFrame + 1) {
+        throw new IllegalStateException(String.format(
+            "Frames after %d on port %d are no longer retained", lastFrame,
+            ring[oldest].getPortValue()));
+      }
+      collectRetainedAfter(lastFrame, out);
+    }
+
+    void collectRetainedAfter(long lastFrame, List<KeyStatePB> out) {
+      int oldest = (next - size + ring.length) % ring.length;
+      for (int i = 0; i < size; ++i) {
+        KeyStatePB keyPress = ring[(oldest + i) % ring.length];
+        if (keyPress.getFrameNumber() > lastFrame) {
+          out.add(keyPress);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package netplayServer;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Sets;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.InvalidDataPB;
+
+/**
+ * One response stream shared by the clients of several consoles. Each client writes to its own
+ * lane; events written while the stream is busy are combined into a single IncomingEventPB, so
+ * that a client attached to many consoles gets one write per burst rather than one per console.
+ * Writes are serialized, which a gRPC stream requires anyway.
+ */
+public class MultiplexedStream {
+
+  private Log log = LogFactory.getLog(MultiplexedStream.class);
+
+  private static final Object COMPLETED = new Object();
+
+  private final StreamObserver<IncomingEventPB> stream;
+  // IncomingEventPBs to write, or a terminal Throwable or COMPLETED.
+  private final Queue<Object> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean draining = new AtomicBoolean();
+  private final Set<Lane> openLanes = Sets.newConcurrentHashSet();
+  private boolean terminated = false;
+
+  public MultiplexedStream(StreamObserver<IncomingEventPB> stream) {
+    this.stream = stream;
+  }
+
+  /**
+   * Returns a new lane for the client of a console. The shared stream ends once every lane has.
+   */
+  public StreamObserver<IncomingEventPB> newLane(long consoleId) {
+    Lane lane = new Lane(consoleId);
+    openLanes.add(lane);
+    return lane;
+  }
+
+  /**
+   * Writes an event that concerns the stream rather than one console.
+   */
+  public void write(IncomingEventPB event) {
+    enqueue(event);
+  }
+
+  private void enqueue(Object item) {
+    pending.add(item);
+    while (!pending.isEmpty() && draining.compareAndSet(false, true)) {
+      try {
+        drain();
+      } finally {
+        draining.set(false);
+      }
+    }
+  }
+
+  private void drain() {
+    IncomingEventPB.Builder batch = null;
+    Object item;
+    while ((item = pending.poll()) != null) {
+      if (terminated) {
+        continue;
+      }
+      if (item instanceof IncomingEventPB && isCombinable((IncomingEventPB) item)) {
+        if (batch == null) {
+          batch = ((IncomingEventPB) item).toBuilder();
+        } else {
+          batch.mergeFrom((IncomingEventPB) item);
+        }
+        continue;
+      }
+      if (batch != null) {
+        send(batch.build());
+        batch = null;
+      }
+      if (item instanceof IncomingEventPB) {
+        send((IncomingEventPB) item);
+      } else {
+        terminate(item);
+      }
+    }
+    if (batch != null && !terminated) {
+      send(batch.build());
+    }
+  }
+
+  /**
+   * Only events made of repeated fields can be merged without losing anything.
+   */
+  private static boolean isCombinable(IncomingEventPB event) {
+    return !event.hasStartGame() && !event.hasStopConsole();
+  }
+
+  private void send(IncomingEventPB event) {
+    try {
+      stream.onNext(event);
+    } catch (IllegalStateException | StatusRuntimeException e) {
+      log.warn("Failed to write to multiplexed stream: " + e);
+    }
+  }
+
+  private void terminate(Object item) {
+    terminated = true;
+    try {
+      if (item == COMPLETED) {
+        stream.onCompleted();
+      } else {
+        stream.onError((Throwable) item);
+      }
+    } catch (IllegalStateException | StatusRuntimeException e) {
+      log.warn("Failed to end multiplexed stream: " + e);
+    }
+  }
+
+  /**
+   * The part of the stream belonging to one console's client.
+   */
+  private class Lane implements StreamObserver<IncomingEventPB> {
+
+    private final long consoleId;
+
+    Lane(long consoleId) {
+      this.consoleId = consoleId;
+    }
+
+    @Override
+    public void onNext(IncomingEventPB value) {
+      enqueue(value);
+    }
+
+    /**
+     * Ends the shared stream with the error if this is its last lane. Otherwise the other consoles
+     * carry on, and the client is told this console is no longer served on the stream. The shared
+     * protos have no field for the target of a redirect, as when the console migrated, so the
+     * client finds it by opening a stream of its own for the console, which is redirected.
+     */
+    @Override
+    public void onError(Throwable t) {
+      if (openLanes.remove(this) && openLanes.isEmpty()) {
+        enqueue(t);
+        return;
+      }
+      String target = Redirects.targetOf(Status.fromThrowable(t));
+      if (target != null) {
+        log.info(String.format("Lane of console %d ended, console moved to %s", consoleId,
+            target));
+      } else {
+        log.info(String.format("Lane of console %d ended: %s", consoleId, t));
+      }
+      enqueue(IncomingEventPB.newBuilder().addInvalidData(InvalidDataPB.newBuilder()
+          .setConsoleId(consoleId).setStatus(InvalidDataPB.Status.INVALID_CONSOLE)).build());
+    }
+
+    @Override
+    public void onCompleted() {
+      if (openLanes.remove(this) && openLanes.isEmpty()) {
+        enqueue(COMPLETED);
+      }
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package netplayServer;
+
+import java.util.List;
+
+/**
+ * Consoles a server owns but only builds when they are first needed, such as the lobbies of a
+ * checkpoint, so that a large registry does not hold up the server's start. The server calls these
+ * methods with the instance's lock held.
+ */
+public interface PendingConsoles {
+
+  /**
+   * Builds the console with the given id and forgets it, or returns null if it is not pending.
+   */
+  Console take(long consoleId);
+
+  /**
+   * Builds every console still pending and forgets them.
+   */
+  List<Console> takeAll();
+}
@@ -0,0 +1,50 @@
+package netplayServer;
+
+import netplayprotos.NetplayServiceProto.Port;
+
+/**
+ * Maps the input slots of a console to the port values used on the wire. The first four slots are
+ * PORT_1 to PORT_4. The Port enum is shared with the clients and has no further values, so the
+ * slots of wider consoles travel as raw enum values: port number n, counting from 1, is sent as
+ * {@code EXTENDED_PORT_BASE + n} for n above 4, i.e. 105 for the fifth port.
+ */
+public class Ports {
+
+  /** Number of ports a console has unless configured otherwise. */
+  public static final int STANDARD_PORT_COUNT = 4;
+
+  /** Largest number of ports a console can have; slots are tracked in a long bitmask. */
+  public static final int MAX_PORT_COUNT = 64;
+
+  public static final int EXTENDED_PORT_BASE = 100;
+
+  private Ports() {}
+
+  /**
+   * Returns the port value of the slot with the given index, counting from 0.
+   */
+  public static int valueOf(int slot) {
+    return slot < STANDARD_PORT_COUNT ? slot + 1 : EXTENDED_PORT_BASE + slot + 1;
+  }
+
+  /**
+   * Returns the index of the slot with the given port value, or -1 if the value names no slot,
+   * such as UNKNOWN or PORT_ANY.
+   */
+  public static int slotOf(int portValue) {
+    if (portValue >= Port.PORT_1_VALUE && portValue <= Port.PORT_4_VALUE) {
+      return portValue - 1;
+    }
+    int slot = portValue - EXTENDED_PORT_BASE - 1;
+    return slot >= STANDARD_PORT_COUNT && slot < MAX_PORT_COUNT ? slot : -1;
+  }
+
+  /**
+   * Returns the bit of the slot with the given port value in a slot mask, or 0 if the value names
+   * no slot.
+   */
+  public static long bitOf(int portValue) {
+    int slot = slotOf(portValue);
+    return slot < 0 ? 0 : 1L << slot;
+  }
+}
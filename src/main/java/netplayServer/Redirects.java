@@ -0,0 +1,34 @@
+package netplayServer;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+/**
+ * Encodes redirects to another server. A redirected call fails with UNAVAILABLE and a description
+ * naming the server to retry against, since the shared protos have no field for it.
+ */
+public class Redirects {
+
+  public static final String PREFIX = "netplay-redirect:";
+
+  private Redirects() {}
+
+  /**
+   * Returns an exception telling the caller to retry against the given host:port.
+   */
+  public static StatusRuntimeException redirectTo(String target) {
+    return Status.UNAVAILABLE.withDescription(PREFIX + target).asRuntimeException();
+  }
+
+  /**
+   * Returns the host:port a status redirects to, or null if it is not a redirect.
+   */
+  public static String targetOf(Status status) {
+    String description = status.getDescription();
+    if (status.getCode() != Status.Code.UNAVAILABLE || description == null
+        || !description.startsWith(PREFIX)) {
+      return null;
+    }
+    return description.substring(PREFIX.length());
+  }
+}
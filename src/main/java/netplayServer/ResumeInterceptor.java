@@ -0,0 +1,85 @@
+package netplayServer;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+/**
+ * Reads the resume header a client sends when it reopens its event stream after a drop. The header
+ * lists, for every port it receives keypresses for, the last frame it got, e.g.
+ * {@code "2:1180,3:1179"} (port values as in the Port enum, or as given by {@link Ports} for
+ * slots beyond the fourth). Ports left out of the header are not replayed. The parsed frames are
+ * exposed to the stream through {@link #RESUME_FRAMES}.
+ */
+public class ResumeInterceptor implements ServerInterceptor {
+
+  private static Log log = LogFactory.getLog(ResumeInterceptor.class);
+
+  public static final Metadata.Key<String> RESUME_HEADER =
+      Metadata.Key.of("netplay-resume-frames", Metadata.ASCII_STRING_MARSHALLER);
+
+  /** Last received frame per port value, or null if the call is not a resume. */
+  public static final Context.Key<Map<Integer, Long>> RESUME_FRAMES = Context.key("resume-frames");
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+      ServerCall<RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    String header = headers.get(RESUME_HEADER);
+    if (header == null) {
+      return next.startCall(method, call, headers);
+    }
+    Map<Integer, Long> frames = parseFrames(header);
+    if (frames == null) {
+      log.warn("Ignoring malformed resume header: " + header);
+      return next.startCall(method, call, headers);
+    }
+    return Contexts.interceptCall(Context.current().withValue(RESUME_FRAMES, frames), method, call,
+        headers, next);
+  }
+
+  /**
+   * Parses a resume header value, returning null if it is malformed.
+   */
+  public static Map<Integer, Long> parseFrames(String header) {
+    Map<Integer, Long> frames = Maps.newHashMap();
+    try {
+      for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(header)) {
+        int separator = entry.indexOf(':');
+        int portValue = Integer.parseInt(entry.substring(0, separator));
+        if (Ports.slotOf(portValue) < 0) {
+          return null;
+        }
+        frames.put(portValue, Long.parseLong(entry.substring(separator + 1)));
+      }
+    } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+      return null;
+    }
+    return frames;
+  }
+
+  /**
+   * Formats last received frames as a resume header value.
+   */
+  public static String formatFrames(Map<Integer, Long> frames) {
+    StringBuilder header = new StringBuilder();
+    for (Map.Entry<Integer, Long> entry : frames.entrySet()) {
+      if (header.length() > 0) {
+        header.append(',');
+      }
+      header.append(entry.getKey()).append(':').append(entry.getValue());
+    }
+    return header.toString();
+  }
+}
@@ -1,13 +1,38 @@
 package netplayServer;
 
-import java.util.Map;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import io.grpc.stub.StreamObserver;
+import netplayServer.Console.ConsoleStatus;
+import netplayServer.admission.AdmissionController;
+import netplayServer.cluster.ClusterMembership;
+import netplayServer.cluster.ForwardedCallInterceptor;
+import netplayServer.cluster.PeerChannels;
+import netplayServer.datagram.DatagramRelay;
+import netplayServer.drain.DrainController;
+import netplayServer.jfr.FlightEvents;
+import netplayServer.lanes.ExecutionLanes;
+import netplayServer.lobby.LobbyIndex;
+import netplayServer.matchmaking.Matchmaker;
+import netplayServer.metrics.ServerMetrics;
+import netplayServer.reaper.ConsoleReaper;
+import netplayServer.tracing.KeypressTracer;
+import netplayServer.relay.RelayHub;
+import netplayServer.relay.RelayVisitor;
+import netplayServer.visitors.OutgoingEventVisitor;
 import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerService;
 import netplayprotos.NetplayServiceProto.IncomingEventPB;
 import netplayprotos.NetplayServiceProto.MakeConsoleRequestPB;
@@ -34,12 +59,269 @@ public class Server implements NetPlayServerService {
 
   private Log log = LogFactory.getLog(Server.class);
 
-  private Map<Long, Console> consoleMap;
+  private ConcurrentMap<Long, Console> consoleMap;
   private final boolean testMode;
+  private final RelayHub relayHub;
+  private final DatagramRelay datagramRelay;
+  private final Matchmaker matchmaker;
+  private final LobbyIndex lobbyIndex;
+  private final AdmissionController admission;
+  private final ExecutionLanes lanes;
+  private final DrainController drain;
+  private final ConsoleReaper reaper;
+  private final ServerMetrics metrics;
+  private final KeypressTracer tracer;
+  private final List<OutgoingEventVisitor> eventVisitors;
+  // Shown the events of a console only while the relay hub has a feed for it.
+  private final RelayVisitor relayVisitor;
+  private final ScheduledExecutorService scheduler;
+  private long resumeGraceMillis = DEFAULT_RESUME_GRACE_MILLIS;
+  private int portsPerConsole = Ports.STANDARD_PORT_COUNT;
+  private ClusterMembership cluster;
+  private final PeerChannels peers;
+  // Consoles migrated away from this server, mapped to the host:port now owning them.
+  private final ConcurrentMap<Long, String> movedConsoles;
+  // Consoles not built yet, such as the lobbies of a checkpoint, or null once all are registered.
+  private volatile PendingConsoles pendingConsoles;
+
+  /** How long a console waits for a client whose stream dropped before stopping. */
+  public static final long DEFAULT_RESUME_GRACE_MILLIS = 5000;
 
   public Server(boolean testMode) {
     consoleMap = Maps.newConcurrentMap();
     this.testMode = testMode;
+    this.relayHub = new RelayHub(this);
+    this.datagramRelay = new DatagramRelay(this);
+    this.matchmaker = new Matchmaker(this);
+    this.lobbyIndex = new LobbyIndex(this);
+    this.admission = new AdmissionController(this);
+    this.lanes = new ExecutionLanes();
+    this.drain = new DrainController(this);
+    this.reaper = new ConsoleReaper(this);
+    this.metrics = new ServerMetrics(this);
+    this.tracer = new KeypressTracer();
+    this.eventVisitors = Lists.newCopyOnWriteArrayList();
+    this.relayVisitor = new RelayVisitor(relayHub);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("netplay-scheduler-%d").build());
+    this.peers = new PeerChannels();
+    this.movedConsoles = Maps.newConcurrentMap();
+  }
+
+  /**
+   * Puts this server in cluster mode. Consoles it creates get ids naming it as their owner, and
+   * requests for consoles owned by other nodes are proxied or redirected to them.
+   */
+  public void setCluster(ClusterMembership cluster) {
+    this.cluster = cluster;
+  }
+
+  public ClusterMembership getCluster() {
+    return cluster;
+  }
+
+  public PeerChannels getPeers() {
+    return peers;
+  }
+
+  /**
+   * Records that a console now lives on another server, so that requests for it can follow it.
+   */
+  public void recordMovedConsole(long consoleId, String target) {
+    movedConsoles.put(consoleId, target);
+  }
+
+  /**
+   * Returns the host:port of the server owning a console that is not on this server, or null if
+   * no other server is known to own it.
+   */
+  public String getRemoteOwner(long consoleId) {
+    String moved = movedConsoles.get(consoleId);
+    if (moved != null) {
+      return moved;
+    }
+    if (cluster != null && !cluster.isLocal(consoleId)) {
+      return cluster.ownerOf(consoleId);
+    }
+    return null;
+  }
+
+  /**
+   * Returns the executor used for timers such as resume grace windows.
+   */
+  public ScheduledExecutorService getScheduler() {
+    return scheduler;
+  }
+
+  public long getResumeGraceMillis() {
+    return resumeGraceMillis;
+  }
+
+  /**
+   * Sets how long a console keeps running after a client's stream dropped, waiting for the client
+   * to resume. Zero stops the console as soon as a stream drops.
+   */
+  public void setResumeGraceMillis(long resumeGraceMillis) {
+    this.resumeGraceMillis = resumeGraceMillis;
+  }
+
+  /**
+   * Sets how many input slots the consoles this server creates have, from 1 to
+   * {@link Ports#MAX_PORT_COUNT}.
+   */
+  public void setPortsPerConsole(int portsPerConsole) {
+    if (portsPerConsole < 1 || portsPerConsole > Ports.MAX_PORT_COUNT) {
+      throw new IllegalArgumentException("Unsupported port count: " + portsPerConsole);
+    }
+    this.portsPerConsole = portsPerConsole;
+  }
+
+  public int getPortsPerConsole() {
+    return portsPerConsole;
+  }
+
+  public int getConsoleCount() {
+    restorePendingConsoles();
+    return consoleMap.size();
+  }
+
+  /**
+   * Returns the consoles this server owns. The view is live and never throws
+   * ConcurrentModificationException.
+   */
+  public Collection<Console> getConsoles() {
+    restorePendingConsoles();
+    return Collections.unmodifiableCollection(consoleMap.values());
+  }
+
+  /**
+   * Returns the console with the given id, or null if this server does not own it.
+   */
+  public Console getConsole(long consoleId) {
+    Console console = consoleMap.get(consoleId);
+    if (console != null || pendingConsoles == null) {
+      return console;
+    }
+    return restorePendingConsole(consoleId);
+  }
+
+  /**
+   * Hands this server consoles that it owns from now on but builds only when they are first looked
+   * up, or when its consoles are listed. See {@link #restorePendingConsoles}.
+   */
+  public void setPendingConsoles(PendingConsoles pendingConsoles) {
+    this.pendingConsoles = pendingConsoles;
+  }
+
+  private Console restorePendingConsole(long consoleId) {
+    PendingConsoles pending = pendingConsoles;
+    Console restored = null;
+    if (pending != null) {
+      synchronized (pending) {
+        restored = pending.take(consoleId);
+        if (restored != null && consoleMap.putIfAbsent(consoleId, restored) != null) {
+          restored = null;
+        }
+      }
+    }
+    if (restored != null) {
+      registered(restored);
+    }
+    return consoleMap.get(consoleId);
+  }
+
+  /**
+   * Builds and registers every pending console, for example once the server has started. Does
+   * nothing if none is pending.
+   */
+  public void restorePendingConsoles() {
+    PendingConsoles pending = pendingConsoles;
+    if (pending == null) {
+      return;
+    }
+    List<Console> restored = Lists.newArrayList();
+    synchronized (pending) {
+      for (Console console : pending.takeAll()) {
+        if (consoleMap.putIfAbsent(console.getId(), console) == null) {
+          restored.add(console);
+        }
+      }
+      pendingConsoles = null;
+    }
+    // Outside the lock, as the lobby index looks consoles up while holding its own.
+    for (Console console : restored) {
+      registered(console);
+    }
+  }
+
+  /**
+   * Returns the hub relaying the consoles of this server to spectators.
+   */
+  public RelayHub getRelayHub() {
+    return relayHub;
+  }
+
+  /**
+   * Returns the relay carrying keypresses over UDP, which only runs once started.
+   */
+  public DatagramRelay getDatagramRelay() {
+    return datagramRelay;
+  }
+
+  public Matchmaker getMatchmaker() {
+    return matchmaker;
+  }
+
+  public LobbyIndex getLobbyIndex() {
+    return lobbyIndex;
+  }
+
+  public AdmissionController getAdmissionController() {
+    return admission;
+  }
+
+  /**
+   * Returns the lanes the calls of this server run on; see {@link ServerStart#addServices}.
+   */
+  public ExecutionLanes getExecutionLanes() {
+    return lanes;
+  }
+
+  public ServerMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns the tracer sampling the keypress events relayed by this server.
+   */
+  public KeypressTracer getTracer() {
+    return tracer;
+  }
+
+  /**
+   * Returns the controller that empties this server before a restart.
+   */
+  public DrainController getDrainController() {
+    return drain;
+  }
+
+  /**
+   * Returns the reaper removing the consoles that stay idle.
+   */
+  public ConsoleReaper getConsoleReaper() {
+    return reaper;
+  }
+
+  /**
+   * Returns the visitors that are shown every valid event sent by a client. The relay hub is not
+   * among them; see {@link Console#getEventVisitors}.
+   */
+  public List<OutgoingEventVisitor> getEventVisitors() {
+    return eventVisitors;
+  }
+
+  RelayVisitor getRelayVisitor() {
+    return relayVisitor;
   }
 
   @Override
@@ -48,27 +330,50 @@ public class Server implements NetPlayServerService {
     responseObserver.onCompleted();
   }
 
-  private int numConsolesCreated = 0;
+  private final AtomicInteger numConsolesCreated = new AtomicInteger();
 
   @Override
   public void makeConsole(MakeConsoleRequestPB request,
       StreamObserver<MakeConsoleResponsePB> responseObserver) {
     log.debug("Received makeConsole request: " + request.toString());
 
-    if (testMode && numConsolesCreated >= 10) {
+    io.grpc.Status refusal = admission.admitConsole();
+    if (refusal != null) {
+      responseObserver.onError(refusal.asRuntimeException());
+      return;
+    }
+    if (testMode && numConsolesCreated.getAndIncrement() >= 10) {
       throw new IllegalStateException(
           "Server running in test mode created a client with ID greater than 10");
     }
 
-    Console newConsole = new Console(this);
-    numConsolesCreated++;
+    Console newConsole = createConsole();
 
     long id = newConsole.getId();
-    consoleMap.put(id, newConsole);
     responseObserver.onNext(createMakeConsoleResponse(id));
     responseObserver.onCompleted();
   }
 
+  /**
+   * Creates a console owned by this server and registers it.
+   */
+  public Console createConsole() {
+    return createConsole(portsPerConsole);
+  }
+
+  public Console createConsole(int portCount) {
+    Console console = new Console(this,
+        ConsoleIds.next(cluster == null ? 0 : cluster.getLocalNodeId()), portCount);
+    consoleMap.put(console.getId(), console);
+    registered(console);
+    return console;
+  }
+
+  private void registered(Console console) {
+    lobbyIndex.add(console);
+    FlightEvents.consoleCreated(console.getId(), console.getPortCount());
+  }
+
   private MakeConsoleResponsePB createMakeConsoleResponse(long id) {
     if (id > 0) {
       return MakeConsoleResponsePB.newBuilder().setConsoleId(id).setStatus(Status.SUCCESS).build();
@@ -90,7 +395,14 @@ public class Server implements NetPlayServerService {
       responseObserver.onCompleted();
       return;
     }
-    if (!consoleMap.containsKey(request.getConsoleId())) {
+    Console console = getConsole(request.getConsoleId());
+    if (console == null) {
+      String owner = getRemoteOwner(request.getConsoleId());
+      // A call proxied here already is not proxied again, lest two servers loop over it.
+      if (owner != null && !ForwardedCallInterceptor.isForwarded()) {
+        peers.stubFor(owner).plugController(request, responseObserver);
+        return;
+      }
       PlugControllerResponsePB resp = PlugControllerResponsePB.newBuilder()
           .setStatus(PlugControllerResponsePB.Status.NO_SUCH_CONSOLE)
           .setConsoleId(request.getConsoleId()).build();
@@ -98,12 +410,25 @@ public class Server implements NetPlayServerService {
       responseObserver.onCompleted();
       return;
     }
-    Console console = consoleMap.get(request.getConsoleId());
+    io.grpc.Status refusal = admission.admitPlug();
+    if (refusal != null) {
+      responseObserver.onError(refusal.asRuntimeException());
+      return;
+    }
     Client client = null;
     try {
-      client = console.tryAddPlayers(request.getDelayFrames(), request.getRequestedPort1(),
-          request.getRequestedPort2(), request.getRequestedPort3(), request.getRequestedPort4());
+      client = console.tryAddPlayersByValue(request.getDelayFrames(),
+          request.getRequestedPort1Value(), request.getRequestedPort2Value(),
+          request.getRequestedPort3Value(), request.getRequestedPort4Value());
     } catch (PlugRequestException e) {
+      if (console.getStatus() == ConsoleStatus.DONE) {
+        // The console ended since it was looked up.
+        responseObserver.onNext(PlugControllerResponsePB.newBuilder()
+            .setStatus(PlugControllerResponsePB.Status.NO_SUCH_CONSOLE)
+            .setConsoleId(request.getConsoleId()).build());
+        responseObserver.onCompleted();
+        return;
+      }
       responseObserver.onNext(PlugControllerResponsePB.newBuilder()
           .setStatus(PlugControllerResponsePB.Status.PORT_REQUEST_REJECTED)
           .addAllPortRejections(e.getRejections()).build());
@@ -111,10 +436,13 @@ public class Server implements NetPlayServerService {
       return;
     }
     long clientId = client.getId();
-    PlugControllerResponsePB resp = PlugControllerResponsePB.newBuilder()
-        .setStatus(PlugControllerResponsePB.Status.SUCCESS).addAllPort(client.getPorts())
-        .setClientId(clientId).setConsoleId(console.getId()).build();
-    responseObserver.onNext(resp);
+    PlugControllerResponsePB.Builder resp = PlugControllerResponsePB.newBuilder()
+        .setStatus(PlugControllerResponsePB.Status.SUCCESS).setClientId(clientId)
+        .setConsoleId(console.getId());
+    for (int portValue : client.getPortValues()) {
+      resp.addPortValue(portValue);
+    }
+    responseObserver.onNext(resp.build());
     responseObserver.onCompleted();
   }
 
@@ -125,14 +453,20 @@ public class Server implements NetPlayServerService {
   @Override
   public void startGame(StartGameRequestPB request,
       StreamObserver<StartGameResponsePB> responseObserver) {
-    if (!consoleMap.containsKey(request.getConsoleId())) {
+    Console console = getConsole(request.getConsoleId());
+    if (console == null) {
+      String owner = getRemoteOwner(request.getConsoleId());
+      // A call proxied here already is not proxied again, lest two servers loop over it.
+      if (owner != null && !ForwardedCallInterceptor.isForwarded()) {
+        peers.stubFor(owner).startGame(request, responseObserver);
+        return;
+      }
       StartGameResponsePB resp = StartGameResponsePB.newBuilder()
           .setStatus(StartGameResponsePB.Status.NO_SUCH_CONSOLE).build();
       responseObserver.onNext(resp);
       responseObserver.onCompleted();
       return;
     }
-    Console console = consoleMap.get(request.getConsoleId());
     if (!console.verifyClientsReady()) {
       StartGameResponsePB resp = StartGameResponsePB.newBuilder()
           .setStatus(StartGameResponsePB.Status.CLIENTS_NOT_READY).build();
@@ -150,11 +484,33 @@ public class Server implements NetPlayServerService {
   @Override
   public StreamObserver<OutgoingEventPB> sendEvent(
       StreamObserver<IncomingEventPB> responseObserver) {
-    return new ClientHandoffStreamObserver<OutgoingEventPB>(responseObserver, consoleMap);
+    return new ClientHandoffStreamObserver<OutgoingEventPB>(responseObserver, consoleMap, this);
+  }
+
+  /**
+   * Registers a console created elsewhere, such as one migrated from another server. Returns false
+   * if a console with the same id already exists.
+   */
+  public boolean adoptConsole(Console console) {
+    if (getConsole(console.getId()) != null
+        || consoleMap.putIfAbsent(console.getId(), console) != null) {
+      return false;
+    }
+    registered(console);
+    return true;
   }
 
   public void tearDownConsole(long consoleId) {
-    consoleMap.remove(consoleId);
+    Console console = consoleMap.remove(consoleId);
+    if (console != null) {
+      console.markDone();
+      metrics.retire(console.getMetrics());
+      console.release();
+      FlightEvents.consoleTornDown(consoleId);
+    }
+    lobbyIndex.remove(consoleId);
+    relayHub.closeFeed(consoleId);
+    datagramRelay.forgetConsole(consoleId);
   }
 
   private io.grpc.Server serverImpl;
@@ -1,6 +1,11 @@
 package netplayServer;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -10,9 +15,38 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.google.common.collect.ImmutableList;
+
+import netplayServer.admin.ServerAdmin;
+import netplayServer.admission.AdmissionController;
+import netplayServer.checkpoint.RegistryCheckpoint;
+import netplayServer.cluster.ClusterMembership;
+import netplayServer.cluster.ConsolePlacer;
+import netplayServer.cluster.ForwardedCallInterceptor;
+import netplayServer.drain.DrainController;
+import netplayServer.lanes.ExecutionLanes;
+import netplayServer.metrics.ServerMetrics;
+import netplayServer.migration.ConsoleMigrator;
+import netplayServer.reaper.ConsoleReaper;
+import netplayServer.tracing.KeypressTracer;
+import netplayServer.transport.DomainSocketTransport;
+import netplayServer.warmup.RelayWarmup;
 import netplayprotos.NetPlayServerServiceGrpc;
+import netplayserverprotos.AdminServiceGrpc;
+import netplayserverprotos.DatagramServiceGrpc;
+import netplayserverprotos.LobbyServiceGrpc;
+import netplayserverprotos.MatchmakingServiceGrpc;
+import netplayserverprotos.MigrationServiceGrpc;
+import netplayserverprotos.PlacementServiceGrpc;
+import netplayserverprotos.RelayServiceGrpc;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
 import io.grpc.internal.ServerImpl;
+import io.grpc.netty.NettyChannelBuilder;
 import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
 
 public class ServerStart {
 
@@ -23,6 +57,63 @@ public class ServerStart {
     Options options = new Options();
     options.addOption("p", "port", true, "Port number on which to run. Defaults to 10001.");
     options.addOption("testMode", "testMode", false, "If set, run in test mode.");
+    options.addOption("u", "upstream", true,
+        "host:port of a server whose consoles should be relayed to spectators of this one.");
+    options.addOption("g", "resumeGraceMs", true,
+        "How long a console waits for a dropped client to reconnect. Defaults to "
+            + Server.DEFAULT_RESUME_GRACE_MILLIS + ".");
+    options.addOption("n", "nodeId", true,
+        "Index of this server in the --peers list when running as part of a cluster.");
+    options.addOption("peers", "peers", true,
+        "Comma separated host:port list of every server of the cluster, including this one.");
+    options.addOption("udp", "udpPort", true,
+        "UDP port on which clients may send and receive keypresses. Disabled if not set.");
+    options.addOption("uds", "unixSocket", true,
+        "Path of a Unix domain socket to listen on for clients on this host, besides TCP.");
+    options.addOption("maxConsoles", "maxConsoles", true,
+        "Refuse new consoles once this many are live. Unlimited if not set.");
+    options.addOption("maxStreams", "maxStreams", true,
+        "Refuse new consoles and plugs once this many event streams are open.");
+    options.addOption("maxBacklog", "maxBacklog", true,
+        "Refuse new consoles and plugs once this many streams have a full outbound buffer.");
+    options.addOption("maxLagMs", "maxLagMs", true,
+        "Refuse new consoles and plugs once the event loops lag this far behind.");
+    options.addOption("controlThreads", "controlThreads", true,
+        "Threads serving control calls such as makeConsole. Defaults to "
+            + ExecutionLanes.DEFAULT_CONTROL_THREADS + ".");
+    options.addOption("maxControlQueue", "maxControlQueue", true,
+        "Control calls that may wait for a thread before new ones are refused. Defaults to "
+            + ExecutionLanes.DEFAULT_MAX_CONTROL_QUEUE + ".");
+    options.addOption("checkpoint", "checkpoint", true,
+        "File to checkpoint the lobbies to, and to restore them from at start up.");
+    options.addOption("checkpointMs", "checkpointMs", true,
+        "Time between checkpoints. Defaults to " + RegistryCheckpoint.DEFAULT_INTERVAL_MILLIS
+            + ".");
+    options.addOption("metricsFile", "metricsFile", true,
+        "File to export relay metrics to in the Prometheus text format. Disabled if not set.");
+    options.addOption("metricsMs", "metricsMs", true,
+        "Time between metrics exports. Defaults to " + ServerMetrics.DEFAULT_EXPORT_MILLIS + ".");
+    options.addOption("adminPort", "adminPort", true,
+        "Port on the loopback interface on which to serve the admin and migration services. "
+            + "Disabled if not set.");
+    options.addOption("traceSampleRate", "traceSampleRate", true,
+        "Trace one in this many keypress events through the relay, 0 for none. Defaults to "
+            + KeypressTracer.DEFAULT_SAMPLE_RATE + ".");
+    options.addOption("drainSeconds", "drainSeconds", true,
+        "On SIGTERM, how long running games get to finish before they are stopped. Defaults to "
+            + TimeUnit.MILLISECONDS.toSeconds(DrainController.DEFAULT_DEADLINE_MILLIS) + ".");
+    options.addOption("idleSeconds", "idleSeconds", true,
+        "Stop consoles, lobbies included, that relay no keypress for this long, such as "
+            + TimeUnit.MILLISECONDS.toSeconds(ConsoleReaper.DEFAULT_IDLE_MILLIS)
+            + ". Idle consoles are kept unless given.");
+    options.addOption("ports", "portsPerConsole", true,
+        "Number of input slots of each console, up to " + Ports.MAX_PORT_COUNT
+            + ". Defaults to " + Ports.STANDARD_PORT_COUNT + ".");
+    options.addOption("warmupMatches", "warmupMatches", true,
+        "Before opening the port, play this many synthetic matches to warm up the relay, "
+            + "e.g. " + RelayWarmup.DEFAULT_MATCHES + ". Disabled if not set or 0.");
+    options.addOption("exitAfterWarmup", "exitAfterWarmup", false,
+        "Exit once warmed up instead of serving, as when training a class data sharing archive.");
     CommandLineParser parser = new DefaultParser();
     CommandLine cmd = null;
     try {
@@ -40,18 +131,202 @@ public class ServerStart {
     }
     boolean testMode = cmd.hasOption("testMode");
 
+    // Before anything else starts, so that the warm-up runs alone.
+    int warmupMatches = cmd.hasOption("warmupMatches")
+        ? Integer.parseInt(cmd.getOptionValue("warmupMatches")) : 0;
+    if (warmupMatches > 0) {
+      try {
+        new RelayWarmup(warmupMatches).run();
+      } catch (Exception e) {
+        log.warn("Relay warm-up failed, starting cold", e);
+      }
+    }
+    if (cmd.hasOption("exitAfterWarmup")) {
+      return;
+    }
+
     Server server = new Server(testMode);
+    if (cmd.hasOption("g")) {
+      server.setResumeGraceMillis(Long.parseLong(cmd.getOptionValue("g")));
+    }
+    if (cmd.hasOption("ports")) {
+      server.setPortsPerConsole(Integer.parseInt(cmd.getOptionValue("ports")));
+    }
+    AdmissionController admission = server.getAdmissionController();
+    if (cmd.hasOption("maxConsoles")) {
+      admission.setMaxConsoles(Integer.parseInt(cmd.getOptionValue("maxConsoles")));
+    }
+    if (cmd.hasOption("maxStreams")) {
+      admission.setMaxStreams(Integer.parseInt(cmd.getOptionValue("maxStreams")));
+    }
+    if (cmd.hasOption("maxBacklog")) {
+      admission.setMaxBackloggedStreams(Integer.parseInt(cmd.getOptionValue("maxBacklog")));
+    }
+    if (cmd.hasOption("maxLagMs")) {
+      admission.setMaxLoopLagMillis(Long.parseLong(cmd.getOptionValue("maxLagMs")));
+    }
+    if (cmd.hasOption("controlThreads")) {
+      server.getExecutionLanes()
+          .setControlThreads(Integer.parseInt(cmd.getOptionValue("controlThreads")));
+    }
+    if (cmd.hasOption("maxControlQueue")) {
+      server.getExecutionLanes()
+          .setMaxControlQueue(Integer.parseInt(cmd.getOptionValue("maxControlQueue")));
+    }
+    if (cmd.hasOption("peers")) {
+      int nodeId = cmd.hasOption("n") ? Integer.parseInt(cmd.getOptionValue("n")) : 0;
+      server.setCluster(ClusterMembership.parse(nodeId, cmd.getOptionValue("peers")));
+      log.info(String.format("Running as node %d of cluster %s", nodeId,
+          cmd.getOptionValue("peers")));
+    }
+    if (cmd.hasOption("u")) {
+      server.getRelayHub().setUpstream(
+          NettyChannelBuilder.forTarget(cmd.getOptionValue("u")).usePlaintext(true).build());
+      log.info("Relaying consoles from upstream " + cmd.getOptionValue("u"));
+    }
 
-    ServerImpl serverImpl = NettyServerBuilder.forPort(port)
-        .addService(NetPlayServerServiceGrpc.bindService(server)).build();
+    if (cmd.hasOption("udp")) {
+      server.getDatagramRelay()
+          .start(new InetSocketAddress(Integer.parseInt(cmd.getOptionValue("udp"))));
+    }
+
+    if (cmd.hasOption("idleSeconds")) {
+      long idleMillis =
+          TimeUnit.SECONDS.toMillis(Long.parseLong(cmd.getOptionValue("idleSeconds")));
+      if (idleMillis > 0) {
+        server.getConsoleReaper().start(idleMillis);
+      }
+    }
+    if (cmd.hasOption("traceSampleRate")) {
+      server.getTracer().setSampleRate(Integer.parseInt(cmd.getOptionValue("traceSampleRate")));
+    }
+    if (cmd.hasOption("metricsFile")) {
+      server.getMetrics().startExporting(new File(cmd.getOptionValue("metricsFile")),
+          cmd.hasOption("metricsMs") ? Long.parseLong(cmd.getOptionValue("metricsMs"))
+              : ServerMetrics.DEFAULT_EXPORT_MILLIS);
+    }
+
+    RegistryCheckpoint checkpoint = null;
+    if (cmd.hasOption("checkpoint")) {
+      checkpoint = new RegistryCheckpoint(server, new File(cmd.getOptionValue("checkpoint")));
+      checkpoint.load();
+      checkpoint.start(cmd.hasOption("checkpointMs")
+          ? Long.parseLong(cmd.getOptionValue("checkpointMs"))
+          : RegistryCheckpoint.DEFAULT_INTERVAL_MILLIS);
+    }
+
+    EventLoopGroup workers = new NioEventLoopGroup();
+    admission.watchEventLoops(workers);
+    server.getExecutionLanes().watchRelayLoops(workers);
+    ServerImpl serverImpl = addServices(
+        NettyServerBuilder.forPort(port).workerEventLoopGroup(workers), server).build();
 
     server.setServerImpl(serverImpl);
 
     serverImpl.start();
     log.info("Server started on port " + port);
+
+    long drainMillis = cmd.hasOption("drainSeconds")
+        ? TimeUnit.SECONDS.toMillis(Long.parseLong(cmd.getOptionValue("drainSeconds")))
+        : DrainController.DEFAULT_DEADLINE_MILLIS;
+    Runtime.getRuntime()
+        .addShutdownHook(drainOnShutdown(server, serverImpl, checkpoint, drainMillis));
+
+    ServerImpl domainSocketImpl = null;
+    if (cmd.hasOption("uds")) {
+      if (!DomainSocketTransport.isAvailable()) {
+        log.error("Unix domain sockets need the native epoll transport, which is unavailable");
+      } else {
+        String path = cmd.getOptionValue("uds");
+        domainSocketImpl =
+            addServices(DomainSocketTransport.serverBuilder(path), server).build().start();
+        log.info("Server listening on Unix domain socket " + path);
+      }
+    }
+    ServerImpl adminImpl = null;
+    if (cmd.hasOption("adminPort")) {
+      int adminPort = Integer.parseInt(cmd.getOptionValue("adminPort"));
+      adminImpl = addAdminServices(NettyServerBuilder
+          .forAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), adminPort)), server)
+          .build().start();
+      log.info("Admin service listening on loopback port " + adminPort);
+    }
     if (testMode) {
       log.warn("Server started in test mode");
     }
     serverImpl.awaitTermination();
+    if (domainSocketImpl != null) {
+      domainSocketImpl.shutdown();
+    }
+    if (adminImpl != null) {
+      adminImpl.shutdown();
+    }
+    workers.shutdownGracefully();
+  }
+
+  /**
+   * Returns a shutdown hook that drains the server, so that a rolling restart does not cut the
+   * games it runs short, and then stops it. The checkpoint, if any, is brought up to date so that
+   * the lobbies stopped by the drain are not restored.
+   */
+  private static Thread drainOnShutdown(final Server server, final ServerImpl serverImpl,
+      final RegistryCheckpoint checkpoint, final long drainMillis) {
+    return new Thread("netplay-drain") {
+      @Override
+      public void run() {
+        DrainController drain = server.getDrainController();
+        drain.drain(drainMillis);
+        try {
+          if (!drain.awaitDrained(drainMillis + DrainController.SWEEP_MILLIS * 2,
+              TimeUnit.MILLISECONDS)) {
+            log.warn(String.format("%d consoles left after draining", server.getConsoleCount()));
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        if (checkpoint != null) {
+          try {
+            checkpoint.stop();
+          } catch (IOException e) {
+            log.error("Last checkpoint failed", e);
+          }
+        }
+        serverImpl.shutdown();
+      }
+    };
+  }
+
+  /**
+   * Adds every service of the given server to a builder. Each transport the server listens on is
+   * built this way. Calls run on the transport's event loops, except control calls, which the
+   * server's execution lanes move to a pool of their own.
+   */
+  public static NettyServerBuilder addServices(NettyServerBuilder builder, Server server,
+      ServerInterceptor... interceptors) {
+    ServerServiceDefinition netplayService =
+        ServerInterceptors.intercept(NetPlayServerServiceGrpc.bindService(server), interceptors);
+    netplayService = ServerInterceptors.intercept(netplayService, new ResumeInterceptor(),
+        new ForwardedCallInterceptor());
+    List<ServerServiceDefinition> services = ImmutableList.of(netplayService,
+        RelayServiceGrpc.bindService(server.getRelayHub()),
+        PlacementServiceGrpc.bindService(new ConsolePlacer(server)),
+        DatagramServiceGrpc.bindService(server.getDatagramRelay()),
+        MatchmakingServiceGrpc.bindService(server.getMatchmaker()),
+        LobbyServiceGrpc.bindService(server.getLobbyIndex()));
+    builder.directExecutor();
+    for (ServerServiceDefinition service : services) {
+      builder.addService(ServerInterceptors.intercept(service, server.getExecutionLanes()));
+    }
+    return builder;
+  }
+
+  /**
+   * Adds the services operators use to a builder: the admin service and the migration service,
+   * which moves consoles between servers. They are not served to clients, only on the admin
+   * listener.
+   */
+  public static NettyServerBuilder addAdminServices(NettyServerBuilder builder, Server server) {
+    return builder.addService(AdminServiceGrpc.bindService(new ServerAdmin(server)))
+        .addService(MigrationServiceGrpc.bindService(new ConsoleMigrator(server)));
   }
 }
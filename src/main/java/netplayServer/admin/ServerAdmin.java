@@ -0,0 +1,185 @@
+package netplayServer.admin;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Maps;
+
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.metrics.ClientMetrics;
+import netplayServer.metrics.ConsoleMetrics;
+import netplayServer.tracing.KeypressTrace;
+import netplayprotos.NetplayServiceProto.StopConsolePB;
+import netplayserverprotos.AdminServiceGrpc.AdminService;
+import netplayserverprotos.AdminServiceProto.AdminClientPB;
+import netplayserverprotos.AdminServiceProto.AdminConsolePB;
+import netplayserverprotos.AdminServiceProto.DescribeServerRequestPB;
+import netplayserverprotos.AdminServiceProto.DumpTracesRequestPB;
+import netplayserverprotos.AdminServiceProto.DumpTracesResponsePB;
+import netplayserverprotos.AdminServiceProto.ForceStopRequestPB;
+import netplayserverprotos.AdminServiceProto.ForceStopResponsePB;
+import netplayserverprotos.AdminServiceProto.ServerDescriptionPB;
+
+/**
+ * Operator view of a server. Descriptions are built from a snapshot that only reads volatile
+ * state of the consoles and clients and their counters, never taking their locks, and that is
+ * reused until it is {@link #DEFAULT_SNAPSHOT_MILLIS} old, so the cost to the relay does not grow
+ * with the number of dashboards polling. Message rates are those between the last two snapshots.
+ */
+public class ServerAdmin implements AdminService {
+
+  private static Log log = LogFactory.getLog(ServerAdmin.class);
+
+  /** Time a snapshot is reused for. */
+  public static final long DEFAULT_SNAPSHOT_MILLIS = 1000;
+
+  private final Server server;
+  private final long snapshotNanos;
+
+  private volatile Snapshot latest;
+  // Set while a thread takes a new snapshot; the others keep describing the previous one.
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  public ServerAdmin(Server server) {
+    this(server, DEFAULT_SNAPSHOT_MILLIS);
+  }
+
+  public ServerAdmin(Server server, long snapshotMillis) {
+    this.server = server;
+    this.snapshotNanos = TimeUnit.MILLISECONDS.toNanos(snapshotMillis);
+  }
+
+  /**
+   * Returns the latest snapshot of the server, taking a new one if it is too old.
+   */
+  public ServerDescriptionPB describe() {
+    Snapshot current = latest;
+    if (current != null && System.nanoTime() - current.takenNanos < snapshotNanos) {
+      return current.description;
+    }
+    if (!refreshing.compareAndSet(false, true)) {
+      return current != null ? current.description : new Snapshot(server, null).description;
+    }
+    try {
+      current = new Snapshot(server, current);
+      latest = current;
+      return current.description;
+    } finally {
+      refreshing.set(false);
+    }
+  }
+
+  @Override
+  public void describeServer(DescribeServerRequestPB request,
+      StreamObserver<ServerDescriptionPB> responseObserver) {
+    ServerDescriptionPB description = describe();
+    if (request.getConsoleId() != 0) {
+      ServerDescriptionPB.Builder filtered = description.toBuilder().clearConsoles();
+      for (AdminConsolePB console : description.getConsolesList()) {
+        if (console.getConsoleId() == request.getConsoleId()) {
+          filtered.addConsoles(console);
+        }
+      }
+      description = filtered.build();
+    }
+    responseObserver.onNext(description);
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void forceStopConsole(ForceStopRequestPB request,
+      StreamObserver<ForceStopResponsePB> responseObserver) {
+    Console console = server.getConsole(request.getConsoleId());
+    ForceStopResponsePB.Status status = ForceStopResponsePB.Status.NO_SUCH_CONSOLE;
+    if (console != null) {
+      log.info(String.format("Console %d stopped by an operator", console.getId()));
+      console.stop(StopConsolePB.Reason.ERROR);
+      status = ForceStopResponsePB.Status.SUCCESS;
+    }
+    responseObserver.onNext(ForceStopResponsePB.newBuilder().setStatus(status).build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void dumpTraces(DumpTracesRequestPB request,
+      StreamObserver<DumpTracesResponsePB> responseObserver) {
+    DumpTracesResponsePB.Builder response = DumpTracesResponsePB.newBuilder();
+    for (KeypressTrace trace : server.getTracer().getTraces()) {
+      if ((request.getConsoleId() == 0 || trace.getConsoleId() == request.getConsoleId())
+          && (request.getClientId() == 0 || trace.getSenderId() == request.getClientId())) {
+        response.addTraces(trace.toProto());
+      }
+    }
+    responseObserver.onNext(response.build());
+    responseObserver.onCompleted();
+  }
+
+  /**
+   * The description of a server at one point, with the counters it was built from so that the
+   * next snapshot can turn them into rates.
+   */
+  private static class Snapshot {
+    final long takenNanos = System.nanoTime();
+    final ServerDescriptionPB description;
+    // Messages in and out of each console and client, by id.
+    final Map<Long, long[]> consoleCounts = Maps.newHashMap();
+    final Map<Long, long[]> clientCounts = Maps.newHashMap();
+
+    Snapshot(Server server, Snapshot previous) {
+      double elapsedSeconds =
+          previous == null ? 0 : (takenNanos - previous.takenNanos) / 1e9;
+      ServerDescriptionPB.Builder description = ServerDescriptionPB.newBuilder()
+          .setSnapshotTimeMillis(System.currentTimeMillis())
+          .setStreams(server.getAdmissionController().getStreamCount())
+          .setBackloggedStreams(server.getAdmissionController().countBackloggedStreams())
+          .setRelayQueueDepth(server.getExecutionLanes().getRelayQueueDepth())
+          .setControlQueueDepth(server.getExecutionLanes().getControlQueueDepth())
+          .setDraining(server.getDrainController().isDraining());
+      for (Console console : server.getConsoles()) {
+        ConsoleMetrics metrics = console.getMetrics();
+        long[] counts = {metrics.getMessagesIn(), metrics.getMessagesOut()};
+        consoleCounts.put(console.getId(), counts);
+        long[] before = previous == null ? null : previous.consoleCounts.get(console.getId());
+        AdminConsolePB.Builder consoleEntry = AdminConsolePB.newBuilder()
+            .setConsoleId(console.getId()).setStatus(console.getStatus().name())
+            .setPortCount(console.getPortCount())
+            .setMinimumDelayFrames(console.getMinimumDelayFrames())
+            .setMessagesInPerSecond(rate(counts[0], before, 0, elapsedSeconds))
+            .setMessagesOutPerSecond(rate(counts[1], before, 1, elapsedSeconds));
+        for (Client client : console.getClients()) {
+          consoleEntry.addClients(describe(client, previous, elapsedSeconds));
+        }
+        description.addConsoles(consoleEntry);
+      }
+      this.description = description.build();
+    }
+
+    private AdminClientPB describe(Client client, Snapshot previous, double elapsedSeconds) {
+      ClientMetrics metrics = client.getMetrics();
+      long[] counts = {metrics.getMessagesIn(), metrics.getMessagesOut()};
+      clientCounts.put(client.getId(), counts);
+      long[] before = previous == null ? null : previous.clientCounts.get(client.getId());
+      return AdminClientPB.newBuilder().setClientId(client.getId())
+          .setStatus(client.getStatus().name()).addAllPort(client.getPortValues())
+          .setDelayFrames(client.getDelay()).setInputRttMicros(metrics.getRttMicros())
+          .setMessagesInPerSecond(rate(counts[0], before, 0, elapsedSeconds))
+          .setMessagesOutPerSecond(rate(counts[1], before, 1, elapsedSeconds))
+          .setBacklogged(client.isBacklogged()).setDatagram(client.getDatagramPath() != null)
+          .build();
+    }
+
+    private static double rate(long count, long[] before, int index, double elapsedSeconds) {
+      if (before == null || elapsedSeconds <= 0) {
+        return 0;
+      }
+      return (count - before[index]) / elapsedSeconds;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package netplayServer.admission;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import io.grpc.Status;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import netplayServer.Server;
+
+/**
+ * Decides whether the server takes on new consoles and plugs. The live console and event stream
+ * counts, the number of streams whose outbound buffer is full, and the lag of the event loops are
+ * compared with configured limits; once one is crossed, new work is refused with
+ * RESOURCE_EXHAUSTED so that the matches already running keep their latency. The description of
+ * the refusal carries a backoff hint, as the shared protos have no field for it:
+ * {@code "netplay-retry-after-ms:1500 <reason>"}.
+ *
+ * Limits of 0 are not enforced. The outbound buffers and event loops are sampled every
+ * {@link #PROBE_MILLIS} on the server's scheduler, so an admission decision costs no scan. A
+ * draining server refuses all new work as its {@link netplayServer.drain.DrainController} says.
+ */
+public class AdmissionController {
+
+  private static Log log = LogFactory.getLog(AdmissionController.class);
+
+  public static final String RETRY_PREFIX = "netplay-retry-after-ms:";
+
+  /** Time between samples of the outbound buffers and event loops. */
+  public static final long PROBE_MILLIS = 100;
+
+  /** Backoff suggested when a limit is just crossed; it grows with the overload. */
+  public static final long BASE_BACKOFF_MILLIS = 1000;
+  public static final long MAX_BACKOFF_MILLIS = 30000;
+
+  private final Server server;
+  private final Set<StreamObserver<?>> streams = Sets.newConcurrentHashSet();
+  private final Random jitter = new Random();
+
+  private volatile int maxConsoles = 0;
+  private volatile int maxStreams = 0;
+  private volatile int maxBackloggedStreams = 0;
+  private volatile long maxLoopLagMillis = 0;
+
+  private final AtomicBoolean probing = new AtomicBoolean();
+  private volatile int backloggedStreams = 0;
+  private volatile long loopLagMillis = 0;
+  // When the probe still waiting on each event loop was queued, or 0; and the lag it last saw.
+  private final Map<EventExecutor, AtomicLong> pendingProbes = Maps.newConcurrentMap();
+  private final Map<EventExecutor, AtomicLong> observedLag = Maps.newConcurrentMap();
+
+  public AdmissionController(Server server) {
+    this.server = server;
+  }
+
+  public void setMaxConsoles(int maxConsoles) {
+    this.maxConsoles = maxConsoles;
+  }
+
+  public void setMaxStreams(int maxStreams) {
+    this.maxStreams = maxStreams;
+  }
+
+  /**
+   * Sets how many event streams may have a full outbound buffer, meaning their client reads slower
+   * than keypresses are relayed to it, before new work is refused.
+   */
+  public void setMaxBackloggedStreams(int maxBackloggedStreams) {
+    this.maxBackloggedStreams = maxBackloggedStreams;
+    startProbing();
+  }
+
+  public void setMaxLoopLagMillis(long maxLoopLagMillis) {
+    this.maxLoopLagMillis = maxLoopLagMillis;
+    startProbing();
+  }
+
+  /**
+   * Measures the lag of the given event loops, those serving the server's calls.
+   */
+  public void watchEventLoops(EventLoopGroup group) {
+    for (EventExecutor loop : group) {
+      pendingProbes.put(loop, new AtomicLong());
+      observedLag.put(loop, new AtomicLong());
+    }
+  }
+
+  /**
+   * Counts an event stream until {@link #streamClosed} is called for it.
+   */
+  public void streamOpened(StreamObserver<?> stream) {
+    streams.add(stream);
+  }
+
+  public void streamClosed(StreamObserver<?> stream) {
+    streams.remove(stream);
+  }
+
+  public int getStreamCount() {
+    return streams.size();
+  }
+
+  /**
+   * Returns the number of streams with a full outbound buffer as of the last probe.
+   */
+  public int getBackloggedStreams() {
+    return backloggedStreams;
+  }
+
+  /**
+   * Counts the streams with a full outbound buffer now, whether or not the streams are probed.
+   */
+  public int countBackloggedStreams() {
+    int backlogged = 0;
+    for (StreamObserver<?> stream : streams) {
+      if (stream instanceof CallStreamObserver && !((CallStreamObserver<?>) stream).isReady()) {
+        backlogged++;
+      }
+    }
+    return backlogged;
+  }
+
+  public long getLoopLagMillis() {
+    return loopLagMillis;
+  }
+
+  /**
+   * Returns null if a new console may be created, or the status to refuse it with.
+   */
+  public Status admitConsole() {
+    Status draining = server.getDrainController().refuseConsole();
+    if (draining != null) {
+      return draining;
+    }
+    if (maxConsoles > 0 && server.getConsoleCount() >= maxConsoles) {
+      return refuse(server.getConsoleCount(), maxConsoles, "console limit reached");
+    }
+    return admitPlug();
+  }
+
+  /**
+   * Returns null if new players may be plugged into a console, or the status to refuse them with.
+   */
+  public Status admitPlug() {
+    Status draining = server.getDrainController().refusePlug();
+    if (draining != null) {
+      return draining;
+    }
+    if (maxStreams > 0 && streams.size() >= maxStreams) {
+      return refuse(streams.size(), maxStreams, "stream limit reached");
+    }
+    if (maxBackloggedStreams > 0 && backloggedStreams >= maxBackloggedStreams) {
+      return refuse(backloggedStreams, maxBackloggedStreams, "outbound queues backed up");
+    }
+    if (maxLoopLagMillis > 0 && loopLagMillis >= maxLoopLagMillis) {
+      return refuse(loopLagMillis, maxLoopLagMillis, "event loops lagging");
+    }
+    return null;
+  }
+
+  private Status refuse(long observed, long limit, String reason) {
+    // The hint grows with the overload and is jittered so that refused clients do not come back
+    // together.
+    long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS * observed / limit);
+    backoff += jitter.nextInt((int) (backoff / 2) + 1);
+    log.info(String.format("Refusing new work, %s (%d of %d), retry in %d ms", reason, observed,
+        limit, backoff));
+    return retryAfter(backoff, reason);
+  }
+
+  /**
+   * Returns a refusal suggesting to retry after the given time.
+   */
+  public static Status retryAfter(long backoffMillis, String reason) {
+    return Status.RESOURCE_EXHAUSTED.withDescription(RETRY_PREFIX + backoffMillis + " " + reason);
+  }
+
+  /**
+   * Returns the backoff suggested by a refusal, or -1 if the status is not one.
+   */
+  public static long retryAfterMillis(Status status) {
+    String description = status.getDescription();
+    if (status.getCode() != Status.Code.RESOURCE_EXHAUSTED || description == null
+        || !description.startsWith(RETRY_PREFIX)) {
+      return -1;
+    }
+    int end = description.indexOf(' ');
+    try {
+      return Long.parseLong(
+          description.substring(RETRY_PREFIX.length(), end < 0 ? description.length() : end));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private void startProbing() {
+    if (!probing.compareAndSet(false, true)) {
+      return;
+    }
+    server.getScheduler().scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        probe();
+      }
+    }, PROBE_MILLIS, PROBE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Samples the outbound buffers and event loops. Called by the server's scheduler every
+   * {@link #PROBE_MILLIS} once a limit depending on them is set.
+   */
+  public void probe() {
+    backloggedStreams = countBackloggedStreams();
+
+    long now = System.nanoTime();
+    long lag = 0;
+    for (Map.Entry<EventExecutor, AtomicLong> entry : pendingProbes.entrySet()) {
+      final AtomicLong queuedAt = entry.getValue();
+      final AtomicLong lastLag = observedLag.get(entry.getKey());
+      long pending = queuedAt.get();
+      if (pending != 0) {
+        // The previous probe has not run yet; the loop is at least this far behind.
+        lag = Math.max(lag, now - pending);
+        continue;
+      }
+      lag = Math.max(lag, lastLag.get());
+      queuedAt.set(now);
+      entry.getKey().execute(new Runnable() {
+        @Override
+        public void run() {
+          lastLag.set(System.nanoTime() - queuedAt.get());
+          queuedAt.set(0);
+        }
+      });
+    }
+    loopLagMillis = TimeUnit.NANOSECONDS.toMillis(lag);
+  }
+}
@@ -0,0 +1,322 @@
+package netplayServer.checkpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.Console.ConsoleStatus;
+import netplayServer.ConsoleIds;
+import netplayServer.PendingConsoles;
+import netplayServer.Ports;
+import netplayServer.Server;
+
+/**
+ * Periodically writes the lobbies of a server, the consoles that were not started yet, to a file
+ * so that they survive a crash. Each checkpoint records the consoles' ids, port counts and
+ * delays, and the ids, delays, statuses and ports of their clients. Keypresses are not recorded,
+ * so games that were running are lost.
+ *
+ * Checkpoints are written on a thread of their own from unlocked reads of the consoles, to a
+ * memory mapped temporary file that then replaces the previous checkpoint, so a crash while
+ * writing leaves the previous one intact. The layout is a fixed size header followed by fixed
+ * size records, all big endian, which {@link #load} reads straight from a mapping of the file:
+ *
+ * <pre>
+ * header:  int magic, int version, long writtenAtMillis, int consoleCount
+ * console: long id, byte portCount, int minimumDelayFrames, byte clientCount, clients...
+ * client:  long id, int delayFrames, byte status, long slots
+ * trailer: int crc32 of everything before it
+ * </pre>
+ */
+public class RegistryCheckpoint {
+
+  private static Log log = LogFactory.getLog(RegistryCheckpoint.class);
+
+  public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+  static final int MAGIC = 0x4e50434b;
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+  static final int CONSOLE_BYTES = 8 + 1 + 4 + 1;
+  static final int CLIENT_BYTES = 8 + 4 + 1 + 8;
+  static final int TRAILER_BYTES = 4;
+
+  private final Server server;
+  private final File file;
+  private final File tempFile;
+  private ScheduledExecutorService writer;
+
+  public RegistryCheckpoint(Server server, File file) {
+    this.server = server;
+    this.file = file;
+    this.tempFile = new File(file.getPath() + ".tmp");
+  }
+
+  /**
+   * Writes a checkpoint every given interval from now on.
+   */
+  public synchronized void start(long intervalMillis) {
+    if (writer != null) {
+      return;
+    }
+    writer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("netplay-checkpoint-%d").build());
+    writer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          write();
+        } catch (IOException | RuntimeException e) {
+          log.error("Checkpoint failed", e);
+        }
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the periodic checkpoints and writes a last one.
+   */
+  public void stop() throws IOException {
+    synchronized (this) {
+      if (writer != null) {
+        writer.shutdown();
+        writer = null;
+      }
+    }
+    write();
+  }
+
+  /**
+   * Captures the lobbies of the server and writes them out. Returns the number of consoles
+   * written.
+   */
+  public synchronized int write() throws IOException {
+    long start = System.nanoTime();
+    List<ConsoleRecord> records = Lists.newArrayList();
+    int size = HEADER_BYTES + TRAILER_BYTES;
+    for (Console console : server.getConsoles()) {
+      if (console.getStatus() != ConsoleStatus.CREATED) {
+        continue;
+      }
+      ConsoleRecord record = new ConsoleRecord(console);
+      records.add(record);
+      size += CONSOLE_BYTES + CLIENT_BYTES * record.clients.size();
+    }
+
+    try (RandomAccessFile out = new RandomAccessFile(tempFile, "rw")) {
+      out.setLength(size);
+      MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis())
+          .putInt(records.size());
+      for (ConsoleRecord record : records) {
+        record.writeTo(buffer);
+      }
+      buffer.putInt(crc(buffer, size - TRAILER_BYTES));
+      buffer.force();
+    }
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    log.debug(String.format("Checkpointed %d lobbies, %d bytes, in %d us", records.size(), size,
+        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)));
+    return records.size();
+  }
+
+  /**
+   * Hands the lobbies of the last checkpoint, if there is one, to the server. Their clients are
+   * expected to send their ClientReadyPB again. Consoles whose id is already registered are
+   * skipped. Returns the number of consoles restored.
+   *
+   * Only the file is checked and indexed here, which takes milliseconds even for 100k lobbies, so
+   * that the server can start at once. Each console is built when the server first looks it up,
+   * and those nobody asked for are built and registered on the server's scheduler right away.
+   *
+   * @throws IOException if the checkpoint cannot be read or is corrupt
+   */
+  public int load() throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+    long start = System.nanoTime();
+    ByteBuffer buffer;
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+    }
+    int size = buffer.limit();
+    if (size < HEADER_BYTES + TRAILER_BYTES || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a console checkpoint: " + file);
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported checkpoint version " + buffer.getInt(4));
+    }
+    if (crc(buffer, size - TRAILER_BYTES) != buffer.getInt(size - TRAILER_BYTES)) {
+      throw new IOException("Corrupt checkpoint: " + file);
+    }
+    long writtenAtMillis = buffer.getLong(8);
+    int consoleCount = buffer.getInt(16);
+    Map<Long, Integer> offsets = Maps.newHashMapWithExpectedSize(Math.max(consoleCount, 0));
+    long maxClientId = 0;
+    int position = HEADER_BYTES;
+    try {
+      for (int i = 0; i < consoleCount; ++i) {
+        long consoleId = buffer.getLong(position);
+        int portCount = buffer.get(position + 8);
+        int clientCount = buffer.get(position + 13);
+        if (portCount < 1 || portCount > Ports.MAX_PORT_COUNT || clientCount < 0) {
+          throw new IOException("Corrupt checkpoint: " + file);
+        }
+        for (int j = 0; j < clientCount; ++j) {
+          int client = position + CONSOLE_BYTES + j * CLIENT_BYTES;
+          maxClientId = Math.max(maxClientId, buffer.getLong(client));
+          int status = buffer.get(client + 12);
+          if (status < 0 || status >= ClientStatus.values().length) {
+            throw new IOException("Corrupt checkpoint: " + file);
+          }
+        }
+        ConsoleIds.reserve(consoleId);
+        if (server.getConsole(consoleId) == null) {
+          offsets.put(consoleId, position);
+        }
+        position += CONSOLE_BYTES + clientCount * CLIENT_BYTES;
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt checkpoint: " + file, e);
+    }
+    if (position != size - TRAILER_BYTES) {
+      throw new IOException("Corrupt checkpoint: " + file);
+    }
+    Client.reserveId(maxClientId);
+
+    int restored = offsets.size();
+    server.setPendingConsoles(new CheckpointedLobbies(server, buffer, offsets));
+    server.getScheduler().execute(new Runnable() {
+      @Override
+      public void run() {
+        long registerStart = System.nanoTime();
+        server.restorePendingConsoles();
+        log.info(String.format("Registered the restored lobbies in %d ms",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - registerStart)));
+      }
+    });
+    log.info(String.format("Restored %d lobbies checkpointed %d ms ago in %d us", restored,
+        System.currentTimeMillis() - writtenAtMillis,
+        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)));
+    return restored;
+  }
+
+  private static int crc(ByteBuffer buffer, int length) {
+    ByteBuffer body = buffer.duplicate();
+    body.position(0).limit(length);
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * The fields of a console read at one point, so that its record has the size it was given.
+   */
+  private static class ConsoleRecord {
+    private final long id;
+    private final int portCount;
+    private final int minimumDelayFrames;
+    private final List<Client> clients;
+    private final long[] slots;
+    private final ClientStatus[] statuses;
+
+    ConsoleRecord(Console console) {
+      this.id = console.getId();
+      this.portCount = console.getPortCount();
+      this.minimumDelayFrames = console.getMinimumDelayFrames();
+      this.clients = console.getClients();
+      this.slots = new long[clients.size()];
+      this.statuses = new ClientStatus[clients.size()];
+      for (int i = 0; i < clients.size(); ++i) {
+        slots[i] = clients.get(i).getSlotMask();
+        statuses[i] = clients.get(i).getStatus();
+      }
+    }
+
+    void writeTo(ByteBuffer buffer) {
+      buffer.putLong(id).put((byte) portCount).putInt(minimumDelayFrames)
+          .put((byte) clients.size());
+      for (int i = 0; i < clients.size(); ++i) {
+        Client client = clients.get(i);
+        buffer.putLong(client.getId()).putInt(client.getDelay()).put((byte) statuses[i].ordinal())
+            .putLong(slots[i]);
+      }
+    }
+  }
+
+  /**
+   * The lobbies of a loaded checkpoint that are not built yet, read from the checkpoint's mapping
+   * by the offset of their record.
+   */
+  private static class CheckpointedLobbies implements PendingConsoles {
+    private final Server server;
+    private final ByteBuffer buffer;
+    private final Map<Long, Integer> offsets;
+
+    CheckpointedLobbies(Server server, ByteBuffer buffer, Map<Long, Integer> offsets) {
+      this.server = server;
+      this.buffer = buffer;
+      this.offsets = offsets;
+    }
+
+    @Override
+    public Console take(long consoleId) {
+      Integer offset = offsets.remove(consoleId);
+      return offset == null ? null : read(offset);
+    }
+
+    @Override
+    public List<Console> takeAll() {
+      List<Console> consoles = Lists.newArrayListWithCapacity(offsets.size());
+      for (int offset : offsets.values()) {
+        Console console = read(offset);
+        if (console != null) {
+          consoles.add(console);
+        }
+      }
+      offsets.clear();
+      return consoles;
+    }
+
+    private Console read(int offset) {
+      long consoleId = buffer.getLong(offset);
+      Console console = new Console(server, consoleId, buffer.get(offset + 8));
+      console.setMinimumDelayFrames(buffer.getInt(offset + 9));
+      int clientCount = buffer.get(offset + 13);
+      try {
+        for (int j = 0; j < clientCount; ++j) {
+          int client = offset + CONSOLE_BYTES + j * CLIENT_BYTES;
+          console.restoreClient(buffer.getLong(client), buffer.getInt(client + 8),
+              ClientStatus.values()[buffer.get(client + 12)], buffer.getLong(client + 13));
+        }
+      } catch (IllegalArgumentException e) {
+        log.warn(String.format("Dropping checkpointed console %d: %s", consoleId, e));
+        return null;
+      }
+      return console;
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package netplayServer.cluster;
+
+import java.util.List;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+import netplayServer.ConsoleIds;
+
+/**
+ * Static membership of a cluster of servers. Every node is started with the same ordered list of
+ * host:port peers and its own index in that list, which is the node id encoded in the ids of the
+ * consoles it creates.
+ */
+public class ClusterMembership {
+
+  private final int localNodeId;
+  private final List<String> peers;
+
+  public ClusterMembership(int localNodeId, List<String> peers) {
+    if (localNodeId < 0 || localNodeId >= peers.size()) {
+      throw new IllegalArgumentException(
+          String.format("Node id %d is not in the peer list %s", localNodeId, peers));
+    }
+    if (peers.size() - 1 > ConsoleIds.MAX_NODE_ID) {
+      throw new IllegalArgumentException("Too many peers: " + peers.size());
+    }
+    this.localNodeId = localNodeId;
+    this.peers = ImmutableList.copyOf(peers);
+  }
+
+  /**
+   * Parses a comma separated list of host:port peers.
+   */
+  public static ClusterMembership parse(int localNodeId, String peerList) {
+    return new ClusterMembership(localNodeId,
+        Splitter.on(',').trimResults().omitEmptyStrings().splitToList(peerList));
+  }
+
+  public int getLocalNodeId() {
+    return localNodeId;
+  }
+
+  public List<String> getPeers() {
+    return peers;
+  }
+
+  public int size() {
+    return peers.size();
+  }
+
+  /**
+   * Returns true if the console with the given id was created by this node.
+   */
+  public boolean isLocal(long consoleId) {
+    return ConsoleIds.nodeOf(consoleId) == localNodeId;
+  }
+
+  /**
+   * Returns the host:port of the node that created the console with the given id, or null if the
+   * id names a node outside of the cluster.
+   */
+  public String ownerOf(long consoleId) {
+    int nodeId = ConsoleIds.nodeOf(consoleId);
+    return nodeId < peers.size() ? peers.get(nodeId) : null;
+  }
+}
@@ -0,0 +1,106 @@
+package netplayServer.cluster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.cluster.PlacementPlanner.Placement;
+import netplayserverprotos.PlacementServiceGrpc;
+import netplayserverprotos.PlacementServiceGrpc.PlacementService;
+import netplayserverprotos.PlacementServiceProto.PlaceConsoleRequestPB;
+import netplayserverprotos.PlacementServiceProto.PlaceConsoleResponsePB;
+
+/**
+ * Creates a console on the node of the cluster closest to all of its players. Any node can take
+ * the request; if it picks another node it forwards the request there, so that the console is
+ * created by, and named after, the node that will relay it. A refusal of the node it is forwarded
+ * to is passed back as is, with its backoff.
+ */
+public class ConsolePlacer implements PlacementService {
+
+  private Log log = LogFactory.getLog(ConsolePlacer.class);
+
+  private static final long FORWARD_DEADLINE_SECONDS = 5;
+
+  private final Server server;
+
+  public ConsolePlacer(Server server) {
+    this.server = server;
+  }
+
+  @Override
+  public void placeConsole(PlaceConsoleRequestPB request,
+      final StreamObserver<PlaceConsoleResponsePB> responseObserver) {
+    if (request.getPlayersCount() == 0) {
+      respond(responseObserver, PlaceConsoleResponsePB.Status.NO_PLAYERS);
+      return;
+    }
+    ClusterMembership cluster = server.getCluster();
+    int localNodeId = cluster == null ? 0 : cluster.getLocalNodeId();
+    int nodeCount = cluster == null ? 1 : cluster.size();
+    Placement placement = PlacementPlanner.choose(request.getPlayersList(), nodeCount);
+    if (placement == null) {
+      respond(responseObserver, PlaceConsoleResponsePB.Status.NO_COMMON_NODE);
+      return;
+    }
+    if (request.getForwarded() || placement.getNodeId() == localNodeId) {
+      Status refusal = server.getAdmissionController().admitConsole();
+      if (refusal != null) {
+        responseObserver.onError(refusal.asRuntimeException());
+        return;
+      }
+      Console console = server.createConsole();
+      console.setMinimumDelayFrames(placement.getDelayFrames());
+      log.info(String.format("Placed console %d for %d players, worst one way delay %dms, "
+          + "delay of %d frames", console.getId(), request.getPlayersCount(),
+          placement.getMaxOneWayMillis(), placement.getDelayFrames()));
+      responseObserver.onNext(PlaceConsoleResponsePB.newBuilder()
+          .setStatus(PlaceConsoleResponsePB.Status.SUCCESS).setNodeId(localNodeId)
+          .setNodeTarget(cluster == null ? "" : cluster.getPeers().get(localNodeId))
+          .setConsoleId(console.getId()).setMaxOneWayMillis(placement.getMaxOneWayMillis())
+          .setDelayFrames(placement.getDelayFrames()).build());
+      responseObserver.onCompleted();
+      return;
+    }
+
+    final String target = cluster.getPeers().get(placement.getNodeId());
+    PlacementServiceGrpc.newStub(server.getPeers().channelTo(target))
+        .withDeadlineAfter(FORWARD_DEADLINE_SECONDS, TimeUnit.SECONDS)
+        .placeConsole(request.toBuilder().setForwarded(true).build(),
+            new StreamObserver<PlaceConsoleResponsePB>() {
+              @Override
+              public void onNext(PlaceConsoleResponsePB value) {
+                responseObserver.onNext(value);
+              }
+
+              @Override
+              public void onError(Throwable t) {
+                Status status = Status.fromThrowable(t);
+                // A node refusing the console under load is not unreachable, and its refusal
+                // tells the client when to retry.
+                if (status.getCode() == Status.Code.RESOURCE_EXHAUSTED) {
+                  responseObserver.onError(status.asRuntimeException());
+                  return;
+                }
+                log.warn(String.format("Could not place console on %s: %s", target, t));
+                respond(responseObserver, PlaceConsoleResponsePB.Status.NODE_UNREACHABLE);
+              }
+
+              @Override
+              public void onCompleted() {
+                responseObserver.onCompleted();
+              }
+            });
+  }
+
+  private static void respond(StreamObserver<PlaceConsoleResponsePB> responseObserver,
+      PlaceConsoleResponsePB.Status status) {
+    responseObserver.onNext(PlaceConsoleResponsePB.newBuilder().setStatus(status).build());
+    responseObserver.onCompleted();
+  }
+}
@@ -0,0 +1,50 @@
+package netplayServer.cluster;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.stub.AbstractStub;
+import io.grpc.stub.MetadataUtils;
+
+/**
+ * Marks the calls a server proxies to the owner of a console, so that they are proxied at most
+ * once. Two servers that each take the other for the console's owner, one of them from a stale
+ * record of a migration, would otherwise pass the call back and forth until it timed out.
+ */
+public class ForwardedCallInterceptor implements ServerInterceptor {
+
+  public static final Metadata.Key<String> FORWARDED_HEADER =
+      Metadata.Key.of("netplay-forwarded", Metadata.ASCII_STRING_MARSHALLER);
+
+  private static final Context.Key<Boolean> FORWARDED = Context.key("forwarded");
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+      ServerCall<RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    if (headers.get(FORWARDED_HEADER) == null) {
+      return next.startCall(method, call, headers);
+    }
+    return Contexts.interceptCall(Context.current().withValue(FORWARDED, true), method, call,
+        headers, next);
+  }
+
+  /**
+   * Returns true if the current call was proxied here by another server.
+   */
+  public static boolean isForwarded() {
+    return FORWARDED.get() != null;
+  }
+
+  /**
+   * Returns a stub whose calls carry the forwarded header.
+   */
+  public static <T extends AbstractStub<T>> T markForwarded(T stub) {
+    Metadata headers = new Metadata();
+    headers.put(FORWARDED_HEADER, "1");
+    return MetadataUtils.attachHeaders(stub, headers);
+  }
+}
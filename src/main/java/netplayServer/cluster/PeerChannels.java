@@ -0,0 +1,52 @@
+package netplayServer.cluster;
+
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Maps;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceStub;
+
+/**
+ * Channels to other servers, opened on first use and kept for the life of the server so that
+ * proxied requests do not pay for a new connection.
+ */
+public class PeerChannels {
+
+  private final ConcurrentMap<String, ManagedChannel> channels = Maps.newConcurrentMap();
+
+  /**
+   * Returns the channel to the server at the given host:port.
+   */
+  public ManagedChannel channelTo(String target) {
+    ManagedChannel channel = channels.get(target);
+    if (channel == null) {
+      ManagedChannel newChannel = NettyChannelBuilder.forTarget(target).usePlaintext(true).build();
+      channel = channels.putIfAbsent(target, newChannel);
+      if (channel == null) {
+        channel = newChannel;
+      } else {
+        newChannel.shutdown();
+      }
+    }
+    return channel;
+  }
+
+  /**
+   * Returns a stub for proxying calls to the server at the given host:port. The calls are marked
+   * as forwarded, so that the server answers them itself rather than proxying them again.
+   */
+  public NetPlayServerServiceStub stubFor(String target) {
+    return ForwardedCallInterceptor
+        .markForwarded(NetPlayServerServiceGrpc.newStub(channelTo(target)));
+  }
+
+  public void shutdown() {
+    for (ManagedChannel channel : channels.values()) {
+      channel.shutdown();
+    }
+    channels.clear();
+  }
+}
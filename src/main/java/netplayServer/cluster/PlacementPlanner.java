@@ -0,0 +1,88 @@
+package netplayServer.cluster;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import netplayServer.Console;
+import netplayserverprotos.PlacementServiceProto.NodeRttPB;
+import netplayserverprotos.PlacementServiceProto.PlayerProbePB;
+
+/**
+ * Chooses the node that should host a console from the round trip times its players measured to
+ * each node. The chosen node minimizes the largest one way delay of any player, since that delay
+ * sets the input delay of every player of the match.
+ */
+public class PlacementPlanner {
+
+  private PlacementPlanner() {}
+
+  /**
+   * The outcome of a placement.
+   */
+  public static class Placement {
+    private final int nodeId;
+    private final int maxOneWayMillis;
+
+    Placement(int nodeId, int maxOneWayMillis) {
+      this.nodeId = nodeId;
+      this.maxOneWayMillis = maxOneWayMillis;
+    }
+
+    public int getNodeId() {
+      return nodeId;
+    }
+
+    public int getMaxOneWayMillis() {
+      return maxOneWayMillis;
+    }
+
+    /**
+     * Returns the input delay, in frames, covering the largest one way delay.
+     */
+    public int getDelayFrames() {
+      return (int) Console.millisToFrames(maxOneWayMillis);
+    }
+  }
+
+  /**
+   * Returns the best node among the first {@code nodeCount} nodes probed by every player, or null
+   * if there is none. Ties go to the node with the smallest total delay, then to the lowest id.
+   */
+  public static Placement choose(List<PlayerProbePB> players, int nodeCount) {
+    if (players.isEmpty()) {
+      return null;
+    }
+    Map<Integer, Integer> worstOneWay = Maps.newTreeMap();
+    Map<Integer, Integer> totalOneWay = Maps.newHashMap();
+    Map<Integer, Integer> probedBy = Maps.newHashMap();
+    for (PlayerProbePB player : players) {
+      for (NodeRttPB rtt : player.getRttsList()) {
+        if (rtt.getNodeId() < 0 || rtt.getNodeId() >= nodeCount) {
+          continue;
+        }
+        int oneWay = (rtt.getRttMillis() + 1) / 2;
+        Integer worst = worstOneWay.get(rtt.getNodeId());
+        worstOneWay.put(rtt.getNodeId(), worst == null ? oneWay : Math.max(worst, oneWay));
+        Integer total = totalOneWay.get(rtt.getNodeId());
+        totalOneWay.put(rtt.getNodeId(), total == null ? oneWay : total + oneWay);
+        Integer count = probedBy.get(rtt.getNodeId());
+        probedBy.put(rtt.getNodeId(), count == null ? 1 : count + 1);
+      }
+    }
+    Integer bestNode = null;
+    for (Map.Entry<Integer, Integer> entry : worstOneWay.entrySet()) {
+      int node = entry.getKey();
+      if (probedBy.get(node) != players.size()) {
+        continue;
+      }
+      if (bestNode == null || entry.getValue() < worstOneWay.get(bestNode)
+          || (entry.getValue().equals(worstOneWay.get(bestNode))
+              && totalOneWay.get(node) < totalOneWay.get(bestNode))) {
+        bestNode = node;
+      }
+    }
+    return bestNode == null ? null : new Placement(bestNode, worstOneWay.get(bestNode));
+  }
+}
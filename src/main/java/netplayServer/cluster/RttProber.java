@@ -0,0 +1,65 @@
+package netplayServer.cluster;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Channel;
+import io.grpc.StatusRuntimeException;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetplayServiceProto.PingPB;
+import netplayserverprotos.PlacementServiceProto.NodeRttPB;
+import netplayserverprotos.PlacementServiceProto.PlayerProbePB;
+
+/**
+ * Measures a player's round trip time to each node of a cluster with the Ping RPC, producing the
+ * probe expected by the placement service. Frontends can use it as is.
+ */
+public class RttProber {
+
+  private static final long PING_DEADLINE_SECONDS = 2;
+
+  private final int attempts;
+
+  /**
+   * @param attempts number of pings per node; the fastest one is kept, which filters out
+   *        connection setup and scheduling noise
+   */
+  public RttProber(int attempts) {
+    this.attempts = attempts;
+  }
+
+  /**
+   * Probes every node, identified by its index in {@code nodes}. Unreachable nodes are left out.
+   */
+  public PlayerProbePB probe(String player, List<? extends Channel> nodes) {
+    PlayerProbePB.Builder probe = PlayerProbePB.newBuilder().setPlayer(player);
+    for (int nodeId = 0; nodeId < nodes.size(); ++nodeId) {
+      long rttNanos = probeNode(nodes.get(nodeId));
+      if (rttNanos >= 0) {
+        probe.addRtts(NodeRttPB.newBuilder().setNodeId(nodeId)
+            .setRttMillis((int) TimeUnit.NANOSECONDS.toMillis(rttNanos)));
+      }
+    }
+    return probe.build();
+  }
+
+  private long probeNode(Channel node) {
+    NetPlayServerServiceBlockingStub stub = NetPlayServerServiceGrpc.newBlockingStub(node)
+        .withDeadlineAfter(PING_DEADLINE_SECONDS, TimeUnit.SECONDS);
+    long best = -1;
+    for (int i = 0; i < attempts; ++i) {
+      long start = System.nanoTime();
+      try {
+        stub.ping(PingPB.getDefaultInstance());
+      } catch (StatusRuntimeException e) {
+        return -1;
+      }
+      long rtt = System.nanoTime() - start;
+      if (best < 0 || rtt < best) {
+        best = rtt;
+      }
+    }
+    return best;
+  }
+}
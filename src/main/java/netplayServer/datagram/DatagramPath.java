@@ -0,0 +1,123 @@
+package netplayServer.datagram;
+
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import netplayServer.Client;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayserverprotos.DatagramServiceProto.DatagramPB;
+
+/**
+ * The UDP route to one client. The client's address is learned from the datagrams it sends, so
+ * nothing is sent until the first one arrives.
+ */
+public class DatagramPath {
+
+  private final DatagramRelay relay;
+  private final long token;
+  private final int redundancy;
+  private final Client client;
+  private volatile SocketAddress peer;
+  // The serialized frames of the last redundancy - 1 batches sent, which the next datagram
+  // repeats, guarded by this.
+  private final Deque<List<ByteString>> recentBatches = new ArrayDeque<>();
+
+  DatagramPath(DatagramRelay relay, long token, int redundancy, Client client) {
+    this.relay = relay;
+    this.token = token;
+    this.redundancy = redundancy;
+    this.client = client;
+  }
+
+  public long getToken() {
+    return token;
+  }
+
+  public Client getClient() {
+    return client;
+  }
+
+  void setPeer(SocketAddress peer) {
+    this.peer = peer;
+  }
+
+  public boolean isConnected() {
+    return peer != null;
+  }
+
+  /**
+   * Sends the given frames along with those of the previous datagrams. Frames that do not fit in
+   * one datagram of {@link DatagramRelay#MAX_SENT_BYTES} are split over several, and only the first
+   * repeats previous frames, as many whole batches of them as fit. Returns false if the client's
+   * address is not known yet, in which case nothing is sent.
+   */
+  public synchronized boolean send(List<KeyStatePB> keyPresses) {
+    SocketAddress target = peer;
+    if (target == null) {
+      return false;
+    }
+    int emptySize = CodedOutputStream.computeInt64Size(1, token);
+    List<ByteString> batch = Lists.newArrayListWithCapacity(keyPresses.size());
+    List<List<ByteString>> chunks = Lists.newArrayList();
+    List<ByteString> chunk = Lists.newArrayList();
+    int chunkSize = emptySize;
+    int firstSize = 0;
+    for (KeyStatePB keyPress : keyPresses) {
+      ByteString keyState = keyPress.toByteString();
+      batch.add(keyState);
+      int size = keyStateSize(keyState);
+      if (!chunk.isEmpty() && chunkSize + size > DatagramRelay.MAX_SENT_BYTES) {
+        if (chunks.isEmpty()) {
+          firstSize = chunkSize;
+        }
+        chunks.add(chunk);
+        chunk = Lists.newArrayList();
+        chunkSize = emptySize;
+      }
+      chunk.add(keyState);
+      chunkSize += size;
+    }
+    if (chunks.isEmpty()) {
+      firstSize = chunkSize;
+    }
+    chunks.add(chunk);
+
+    // Put the newest previous batches that still fit in front of the first chunk.
+    List<ByteString> first = chunks.get(0);
+    Iterator<List<ByteString>> previous = recentBatches.descendingIterator();
+    while (previous.hasNext()) {
+      List<ByteString> previousBatch = previous.next();
+      int size = 0;
+      for (ByteString keyState : previousBatch) {
+        size += keyStateSize(keyState);
+      }
+      if (firstSize + size > DatagramRelay.MAX_SENT_BYTES) {
+        break;
+      }
+      first.addAll(0, previousBatch);
+      firstSize += size;
+    }
+
+    for (List<ByteString> keyStates : chunks) {
+      relay.send(target, DatagramPB.newBuilder().setToken(token).addAllKeyState(keyStates).build());
+    }
+    if (redundancy > 1) {
+      if (recentBatches.size() == redundancy - 1) {
+        recentBatches.removeFirst();
+      }
+      recentBatches.addLast(batch);
+    }
+    return true;
+  }
+
+  private static int keyStateSize(ByteString keyState) {
+    return CodedOutputStream.computeBytesSize(2, keyState);
+  }
+}
@@ -0,0 +1,213 @@
+package netplayServer.datagram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayserverprotos.DatagramServiceGrpc.DatagramService;
+import netplayserverprotos.DatagramServiceProto.DatagramPB;
+import netplayserverprotos.DatagramServiceProto.DatagramTokenRequestPB;
+import netplayserverprotos.DatagramServiceProto.DatagramTokenResponsePB;
+
+/**
+ * Relays keypresses over UDP for clients that ask for it. Over a stream, one late packet holds up
+ * every frame behind it; over datagrams a lost frame is simply recovered from the redundant copies
+ * carried by the next datagram. The console fans the frames out as usual, and each client that has
+ * a datagram path is sent them over it instead of its stream.
+ */
+public class DatagramRelay implements DatagramService {
+
+  private Log log = LogFactory.getLog(DatagramRelay.class);
+
+  /** Number of datagrams whose frames every datagram repeats, including its own. */
+  public static final int DEFAULT_REDUNDANCY = 3;
+
+  /**
+   * Largest datagram the server sends. Datagrams this size pass a 1500 byte MTU without being
+   * fragmented, even with IPv6 and tunnel headers; a fragmented datagram is lost with any of its
+   * fragments.
+   */
+  public static final int MAX_SENT_BYTES = 1200;
+
+  // The largest UDP payload, so that no datagram a client sends is truncated.
+  private static final int MAX_RECEIVED_BYTES = 65507;
+
+  private final Server server;
+  private final Map<Long, DatagramPath> paths;
+  private final Random tokens = new SecureRandom();
+  private int redundancy = DEFAULT_REDUNDANCY;
+  private DatagramChannel channel;
+
+  public DatagramRelay(Server server) {
+    this.server = server;
+    this.paths = Maps.newConcurrentMap();
+  }
+
+  public void setRedundancy(int redundancy) {
+    this.redundancy = redundancy;
+  }
+
+  /**
+   * Binds the datagram socket, port 0 picking any free port, and starts receiving.
+   */
+  public void start(InetSocketAddress address) throws IOException {
+    channel = DatagramChannel.open();
+    channel.bind(address);
+    Thread receiver = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        receiveLoop();
+      }
+    }, "netplay-datagram-receiver");
+    receiver.setDaemon(true);
+    receiver.start();
+    log.info("Relaying keypresses over UDP on " + channel.getLocalAddress());
+  }
+
+  public boolean isStarted() {
+    return channel != null;
+  }
+
+  /**
+   * Returns the bound UDP port, or 0 if the relay was not started.
+   */
+  public int getPort() {
+    if (channel == null) {
+      return 0;
+    }
+    try {
+      return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  public void close() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.warn("Failed to close datagram socket: " + e);
+      }
+    }
+  }
+
+  @Override
+  public void getToken(DatagramTokenRequestPB request,
+      StreamObserver<DatagramTokenResponsePB> responseObserver) {
+    DatagramTokenResponsePB.Builder response = DatagramTokenResponsePB.newBuilder();
+    Console console = server.getConsole(request.getConsoleId());
+    Client client = console == null ? null : console.getClientById(request.getClientId());
+    if (!isStarted()) {
+      response.setStatus(DatagramTokenResponsePB.Status.DISABLED);
+    } else if (client == null) {
+      response.setStatus(DatagramTokenResponsePB.Status.NO_SUCH_CLIENT);
+    } else if (client.getStatus() != ClientStatus.READY
+        && client.getStatus() != ClientStatus.PLAYING) {
+      response.setStatus(DatagramTokenResponsePB.Status.CLIENT_NOT_READY);
+    } else {
+      long token = newToken();
+      DatagramPath path = new DatagramPath(this, token, redundancy, client);
+      paths.put(token, path);
+      DatagramPath previous = client.setDatagramPath(path);
+      if (previous != null) {
+        paths.remove(previous.getToken());
+      }
+      log.info(String.format("Client %d of console %d switched to datagrams", client.getId(),
+          console.getId()));
+      response.setStatus(DatagramTokenResponsePB.Status.SUCCESS).setToken(token)
+          .setUdpPort(getPort());
+    }
+    responseObserver.onNext(response.build());
+    responseObserver.onCompleted();
+  }
+
+  private long newToken() {
+    long token;
+    do {
+      token = tokens.nextLong();
+    } while (token == 0 || paths.containsKey(token));
+    return token;
+  }
+
+  /**
+   * Forgets the tokens of a console's clients once it is torn down.
+   */
+  public void forgetConsole(long consoleId) {
+    Iterator<DatagramPath> consolePaths = paths.values().iterator();
+    while (consolePaths.hasNext()) {
+      if (consolePaths.next().getClient().getConsoleId() == consoleId) {
+        consolePaths.remove();
+      }
+    }
+  }
+
+  void send(SocketAddress target, DatagramPB datagram) {
+    try {
+      channel.send(ByteBuffer.wrap(datagram.toByteArray()), target);
+    } catch (IOException e) {
+      log.warn(String.format("Failed to send datagram to %s: %s", target, e));
+    }
+  }
+
+  private void receiveLoop() {
+    ByteBuffer buffer = ByteBuffer.allocate(MAX_RECEIVED_BYTES);
+    while (true) {
+      SocketAddress sender;
+      try {
+        buffer.clear();
+        sender = channel.receive(buffer);
+      } catch (ClosedChannelException e) {
+        return;
+      } catch (IOException e) {
+        log.warn("Failed to receive datagram: " + e);
+        continue;
+      }
+      buffer.flip();
+      try {
+        onDatagram(sender, DatagramPB.parseFrom(ByteString.copyFrom(buffer)));
+      } catch (InvalidProtocolBufferException e) {
+        log.debug(String.format("Dropping malformed datagram from %s", sender));
+      }
+    }
+  }
+
+  private void onDatagram(SocketAddress sender, DatagramPB datagram)
+      throws InvalidProtocolBufferException {
+    DatagramPath path = paths.get(datagram.getToken());
+    if (path == null) {
+      log.debug(String.format("Dropping datagram with unknown token from %s", sender));
+      return;
+    }
+    path.setPeer(sender);
+    List<KeyStatePB> keyPresses = Lists.newArrayListWithCapacity(datagram.getKeyStateCount());
+    for (ByteString keyState : datagram.getKeyStateList()) {
+      keyPresses.add(KeyStatePB.parseFrom(keyState));
+    }
+    if (!keyPresses.isEmpty()) {
+      path.getClient().acceptDatagramKeyPresses(keyPresses);
+    }
+  }
+}
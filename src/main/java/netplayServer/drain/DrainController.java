@@ -0,0 +1,141 @@
+package netplayServer.drain;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import io.grpc.Status;
+import netplayServer.Console;
+import netplayServer.Redirects;
+import netplayServer.Server;
+import netplayServer.cluster.ClusterMembership;
+import netplayprotos.NetplayServiceProto.StopConsolePB;
+
+/**
+ * Empties a server before it is restarted. Once draining, the server takes no new consoles, which
+ * are redirected to another node in cluster mode, and no new plugs. Consoles whose game has not
+ * started are stopped at once, since they could not fill up; the others are torn down as their
+ * games finish, and those still running at the deadline are stopped. The server can exit once it
+ * has no console left.
+ *
+ * The shared protos have no maintenance reason for stopping a console, so stragglers are stopped
+ * with ERROR, as when a player drops for good.
+ */
+public class DrainController {
+
+  private static Log log = LogFactory.getLog(DrainController.class);
+
+  /** Time the running games get to finish by default. */
+  public static final long DEFAULT_DEADLINE_MILLIS = 300000;
+
+  /** Time between checks for finished consoles while draining. */
+  public static final long SWEEP_MILLIS = 500;
+
+  private final Server server;
+  private final CountDownLatch drained = new CountDownLatch(1);
+  private volatile boolean draining = false;
+  // Guarded by this.
+  private long deadlineAtMillis;
+  private ScheduledFuture<?> sweeper;
+
+  public DrainController(Server server) {
+    this.server = server;
+  }
+
+  public boolean isDraining() {
+    return draining;
+  }
+
+  /**
+   * Starts draining the server, giving the running games the given time to finish. Does nothing
+   * if the server is already draining.
+   */
+  public synchronized void drain(long deadlineMillis) {
+    if (draining) {
+      return;
+    }
+    draining = true;
+    deadlineAtMillis = System.currentTimeMillis() + deadlineMillis;
+    // A lobby cannot fill up once plugs are refused. Its clients are told it stopped, so that they
+    // make a new console, which is redirected to another node in cluster mode.
+    int lobbies = 0;
+    for (Console console : server.getConsoles()) {
+      if (console.stopLobby(StopConsolePB.Reason.ERROR)) {
+        ++lobbies;
+      }
+    }
+    log.info(String.format("Draining %d consoles, stopping the rest in %d ms; stopped %d lobbies",
+        server.getConsoleCount(), deadlineMillis, lobbies));
+    sweeper = server.getScheduler().scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep();
+        } catch (RuntimeException e) {
+          log.error("Drain sweep failed", e);
+        }
+      }
+    }, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    sweep();
+  }
+
+  /**
+   * Tears down the consoles whose games finished, and stops every other one once the deadline
+   * passed. Called by the server's scheduler every {@link #SWEEP_MILLIS} while draining.
+   */
+  public synchronized void sweep() {
+    if (!draining) {
+      return;
+    }
+    boolean overdue = System.currentTimeMillis() >= deadlineAtMillis;
+    for (Console console : server.getConsoles()) {
+      if (console.isFinished()) {
+        server.tearDownConsole(console.getId());
+      } else if (overdue) {
+        log.info(String.format("Console %d still running at the drain deadline, stopping it",
+            console.getId()));
+        console.stop(StopConsolePB.Reason.ERROR);
+      }
+    }
+    if (server.getConsoleCount() == 0 && drained.getCount() > 0) {
+      log.info("Drained, no console left");
+      sweeper.cancel(false);
+      drained.countDown();
+    }
+  }
+
+  /**
+   * Waits until the server is drained. Returns false if it still has consoles after the timeout.
+   */
+  public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+    return drained.await(timeout, unit);
+  }
+
+  /**
+   * Returns null if new consoles may be created, or the status to refuse them with: a redirect to
+   * another node in cluster mode, UNAVAILABLE otherwise.
+   */
+  public Status refuseConsole() {
+    if (!isDraining()) {
+      return null;
+    }
+    ClusterMembership cluster = server.getCluster();
+    if (cluster != null && cluster.size() > 1) {
+      List<String> peers = cluster.getPeers();
+      return Redirects.redirectTo(peers.get((cluster.getLocalNodeId() + 1) % peers.size()))
+          .getStatus();
+    }
+    return Status.UNAVAILABLE.withDescription("Server draining");
+  }
+
+  /**
+   * Returns null if new players may be plugged into a console, or the status to refuse them with.
+   */
+  public Status refusePlug() {
+    return isDraining() ? Status.UNAVAILABLE.withDescription("Server draining") : null;
+  }
+}
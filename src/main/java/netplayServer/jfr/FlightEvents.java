@@ -0,0 +1,176 @@
+package netplayServer.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events of the server, so that a recording of production shows which match
+ * a GC or safepoint pause hit. Events cost nothing beyond an allocation the JIT removes unless a
+ * recording enables them: lifecycle events are only filled in when enabled, and relay stalls are
+ * only committed when they last longer than their threshold, 1 ms unless the recording's settings
+ * say otherwise.
+ *
+ * Record with {@code -XX:StartFlightRecording}; the events are in the Netplay category.
+ */
+public final class FlightEvents {
+
+  private FlightEvents() {}
+
+  /** Relay stage of a stall: writing an event to a client's stream or datagram path. */
+  public static final String STAGE_WRITE = "write";
+  /** Relay stage of a stall: handing an event to every other client of a console. */
+  public static final String STAGE_BROADCAST = "broadcast";
+
+  @Category({"Netplay", "Console"})
+  @StackTrace(false)
+  abstract static class ConsoleEvent extends Event {
+    @Label("Console Id")
+    long consoleId;
+  }
+
+  @Name("netplay.ConsoleCreated")
+  @Label("Console Created")
+  public static class ConsoleCreated extends ConsoleEvent {
+    @Label("Port Count")
+    int portCount;
+  }
+
+  @Name("netplay.ConsoleTornDown")
+  @Label("Console Torn Down")
+  public static class ConsoleTornDown extends ConsoleEvent {}
+
+  @Name("netplay.ControllerPlugged")
+  @Label("Controller Plugged")
+  public static class ControllerPlugged extends ConsoleEvent {
+    @Label("Client Id")
+    long clientId;
+    @Label("Slots")
+    @Description("Slots of the console given to the client, one bit per slot")
+    long slotMask;
+    @Label("Delay Frames")
+    int delayFrames;
+  }
+
+  @Name("netplay.ClientReady")
+  @Label("Client Ready")
+  public static class ClientReady extends ConsoleEvent {
+    @Label("Client Id")
+    long clientId;
+  }
+
+  @Name("netplay.GameStarted")
+  @Label("Game Started")
+  public static class GameStarted extends ConsoleEvent {
+    @Label("Clients")
+    int clientCount;
+  }
+
+  @Name("netplay.ConsoleStopped")
+  @Label("Console Stopped")
+  public static class ConsoleStopped extends ConsoleEvent {
+    @Label("Reason")
+    String reason;
+    @Label("Requesting Client Id")
+    @Description("Client whose stream ended the console, or 0 if the server stopped it")
+    long requestingClientId;
+  }
+
+  @Name("netplay.RelayStall")
+  @Label("Relay Stall")
+  @Category({"Netplay", "Relay"})
+  @Description("A relay stage that took longer than the threshold")
+  @Threshold("1 ms")
+  public static class RelayStall extends Event {
+    @Label("Console Id")
+    long consoleId;
+    @Label("Client Id")
+    @Description("Client written to, or the sender for a broadcast")
+    long clientId;
+    @Label("Stage")
+    String stage;
+  }
+
+  public static void consoleCreated(long consoleId, int portCount) {
+    ConsoleCreated event = new ConsoleCreated();
+    if (event.isEnabled()) {
+      event.consoleId = consoleId;
+      event.portCount = portCount;
+      event.commit();
+    }
+  }
+
+  public static void consoleTornDown(long consoleId) {
+    ConsoleTornDown event = new ConsoleTornDown();
+    if (event.isEnabled()) {
+      event.consoleId = consoleId;
+      event.commit();
+    }
+  }
+
+  public static void controllerPlugged(long consoleId, long clientId, long slotMask,
+      int delayFrames) {
+    ControllerPlugged event = new ControllerPlugged();
+    if (event.isEnabled()) {
+      event.consoleId = consoleId;
+      event.clientId = clientId;
+      event.slotMask = slotMask;
+      event.delayFrames = delayFrames;
+      event.commit();
+    }
+  }
+
+  public static void clientReady(long consoleId, long clientId) {
+    ClientReady event = new ClientReady();
+    if (event.isEnabled()) {
+      event.consoleId = consoleId;
+      event.clientId = clientId;
+      event.commit();
+    }
+  }
+
+  public static void gameStarted(long consoleId, int clientCount) {
+    GameStarted event = new GameStarted();
+    if (event.isEnabled()) {
+      event.consoleId = consoleId;
+      event.clientCount = clientCount;
+      event.commit();
+    }
+  }
+
+  public static void consoleStopped(long consoleId, String reason, long requestingClientId) {
+    ConsoleStopped event = new ConsoleStopped();
+    if (event.isEnabled()) {
+      event.consoleId = consoleId;
+      event.reason = reason;
+      event.requestingClientId = requestingClientId;
+      event.commit();
+    }
+  }
+
+  /**
+   * Starts timing a relay stage; pass the result to {@link #endStall} once the stage is done.
+   */
+  public static RelayStall beginStall() {
+    RelayStall stall = new RelayStall();
+    stall.begin();
+    return stall;
+  }
+
+  /**
+   * Ends a relay stage, recording it if it took longer than the threshold.
+   */
+  public static void endStall(RelayStall stall, long consoleId, long clientId, String stage) {
+    stall.end();
+    if (stall.shouldCommit()) {
+      stall.consoleId = consoleId;
+      stall.clientId = clientId;
+      stall.stage = stage;
+      stall.commit();
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package netplayServer.lanes;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.grpc.Context;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import netplayServer.admission.AdmissionController;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayserverprotos.RelayServiceGrpc;
+
+/**
+ * Splits the calls of the server into two lanes. The server runs its calls directly on the
+ * transport's event loops, which is the relay lane: keypress streams and spectator feeds are
+ * handled as soon as their bytes arrive and never wait behind other work. Every other call, such
+ * as makeConsole, plugController or a lobby query, is moved to the control lane, a bounded pool of
+ * its own, so that a burst of lobby traffic can only delay other lobby traffic. Once the control
+ * lane has too many tasks queued, new control calls are refused with a backoff hint.
+ *
+ * Each call's callbacks run in order on the control lane, with the call's context attached.
+ */
+public class ExecutionLanes implements ServerInterceptor {
+
+  private static Log log = LogFactory.getLog(ExecutionLanes.class);
+
+  /** Methods served on the relay lane; everything else goes to the control lane. */
+  public static final Set<String> RELAY_METHODS = ImmutableSet.of(
+      NetPlayServerServiceGrpc.METHOD_SEND_EVENT.getFullMethodName(),
+      RelayServiceGrpc.METHOD_SUBSCRIBE.getFullMethodName());
+
+  public static final int DEFAULT_CONTROL_THREADS = 4;
+  public static final int DEFAULT_MAX_CONTROL_QUEUE = 1000;
+
+  /** Backoff suggested to control calls refused because the lane is full. */
+  public static final long CONTROL_BACKOFF_MILLIS = 500;
+
+  private final ThreadPoolExecutor controlPool;
+  private volatile int maxControlQueue;
+  private final AtomicLong controlRejected = new AtomicLong();
+  private final AtomicLong controlCalls = new AtomicLong();
+  private final List<EventExecutor> relayLoops = Lists.newCopyOnWriteArrayList();
+
+  public ExecutionLanes() {
+    this(DEFAULT_CONTROL_THREADS, DEFAULT_MAX_CONTROL_QUEUE);
+  }
+
+  public ExecutionLanes(int controlThreads, int maxControlQueue) {
+    this.controlPool = new ThreadPoolExecutor(controlThreads, controlThreads, 0,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("netplay-control-%d").build());
+    this.maxControlQueue = maxControlQueue;
+  }
+
+  /**
+   * Resizes the control lane's pool.
+   */
+  public synchronized void setControlThreads(int controlThreads) {
+    if (controlThreads > controlPool.getMaximumPoolSize()) {
+      controlPool.setMaximumPoolSize(controlThreads);
+      controlPool.setCorePoolSize(controlThreads);
+    } else {
+      controlPool.setCorePoolSize(controlThreads);
+      controlPool.setMaximumPoolSize(controlThreads);
+    }
+  }
+
+  /**
+   * Sets how many calls may wait for a thread of the control lane before new ones are refused.
+   */
+  public void setMaxControlQueue(int maxControlQueue) {
+    this.maxControlQueue = maxControlQueue;
+  }
+
+  /**
+   * Includes the given event loops, those the server runs its calls on, in the relay lane's
+   * queue depth.
+   */
+  public void watchRelayLoops(EventLoopGroup group) {
+    for (EventExecutor loop : group) {
+      relayLoops.add(loop);
+    }
+  }
+
+  /**
+   * Returns the number of tasks waiting on the event loops of the relay lane.
+   */
+  public int getRelayQueueDepth() {
+    int depth = 0;
+    for (EventExecutor loop : relayLoops) {
+      if (loop instanceof SingleThreadEventExecutor) {
+        depth += ((SingleThreadEventExecutor) loop).pendingTasks();
+      }
+    }
+    return depth;
+  }
+
+  /**
+   * Returns the number of calls waiting for a thread of the control lane.
+   */
+  public int getControlQueueDepth() {
+    return controlPool.getQueue().size();
+  }
+
+  public int getControlActiveThreads() {
+    return controlPool.getActiveCount();
+  }
+
+  public long getControlCalls() {
+    return controlCalls.get();
+  }
+
+  public long getControlRejected() {
+    return controlRejected.get();
+  }
+
+  public void shutdown() {
+    controlPool.shutdown();
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+      ServerCall<RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    if (RELAY_METHODS.contains(method.getFullMethodName())) {
+      return next.startCall(method, call, headers);
+    }
+    if (controlPool.getQueue().size() >= maxControlQueue) {
+      controlRejected.incrementAndGet();
+      log.warn(String.format("Control lane full, refusing %s", method.getFullMethodName()));
+      call.close(AdmissionController.retryAfter(CONTROL_BACKOFF_MILLIS, "control lane full"),
+          new Metadata());
+      return new ServerCall.Listener<ReqT>() {};
+    }
+    controlCalls.incrementAndGet();
+    return new ControlListener<>(method, call, headers, next);
+  }
+
+  /**
+   * Runs the callbacks of one control call on the control lane, one at a time and in order.
+   */
+  private class ControlListener<ReqT, RespT> extends ServerCall.Listener<ReqT> implements Runnable {
+    private final Context context = Context.current();
+    private final ServerCall<RespT> call;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // Only touched by the tasks.
+    private ServerCall.Listener<ReqT> delegate;
+
+    ControlListener(final MethodDescriptor<ReqT, RespT> method, final ServerCall<RespT> call,
+        final Metadata headers, final ServerCallHandler<ReqT, RespT> next) {
+      this.call = call;
+      submit(new Runnable() {
+        @Override
+        public void run() {
+          delegate = next.startCall(method, call, headers);
+        }
+      });
+    }
+
+    private void submit(Runnable task) {
+      tasks.add(task);
+      if (scheduled.compareAndSet(false, true)) {
+        controlPool.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      Context previous = context.attach();
+      try {
+        for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+          try {
+            task.run();
+          } catch (RuntimeException e) {
+            log.warn("Control call failed", e);
+            closeQuietly(Status.fromThrowable(e));
+          }
+        }
+      } finally {
+        context.detach(previous);
+        scheduled.set(false);
+        if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+          controlPool.execute(this);
+        }
+      }
+    }
+
+    private void closeQuietly(Status status) {
+      try {
+        call.close(status, new Metadata());
+      } catch (IllegalStateException e) {
+        // Already closed.
+      }
+    }
+
+    @Override
+    public void onMessage(final ReqT message) {
+      submit(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onMessage(message);
+        }
+      });
+    }
+
+    @Override
+    public void onHalfClose() {
+      submit(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onHalfClose();
+        }
+      });
+    }
+
+    @Override
+    public void onCancel() {
+      submit(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onCancel();
+        }
+      });
+    }
+
+    @Override
+    public void onComplete() {
+      submit(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onComplete();
+        }
+      });
+    }
+
+    @Override
+    public void onReady() {
+      submit(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onReady();
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,271 @@
+package netplayServer.lobby;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Console;
+import netplayServer.Console.ConsoleStatus;
+import netplayServer.Server;
+import netplayserverprotos.LobbyServiceGrpc.LobbyService;
+import netplayserverprotos.LobbyServiceProto.ListConsolesRequestPB;
+import netplayserverprotos.LobbyServiceProto.ListConsolesResponsePB;
+import netplayserverprotos.LobbyServiceProto.LobbyEntryPB;
+import netplayserverprotos.LobbyServiceProto.LobbyUpdatePB;
+import netplayserverprotos.LobbyServiceProto.WatchLobbyRequestPB;
+
+/**
+ * Index of the consoles of a server by status and free port count, kept up to date by the consoles
+ * as players plug in, games start and consoles are torn down, so that browsing never scans the
+ * console map.
+ *
+ * Watchers are sent the open consoles, those that were not started and have a free port, and then
+ * the changes to them. Changes are batched into a single update per tick that every watcher is
+ * sent, so the cost of a change does not grow with the number of watchers.
+ */
+public class LobbyIndex implements LobbyService {
+
+  private static Log log = LogFactory.getLog(LobbyIndex.class);
+
+  /** Time between updates sent to watchers. */
+  public static final long DEFAULT_PUBLISH_MILLIS = 100;
+
+  private final Server server;
+  private final long publishMillis;
+
+  // Guarded by this.
+  private final Map<Long, LobbyEntryPB> entries = Maps.newHashMap();
+  private final Map<ConsoleStatus, NavigableMap<Integer, Set<Long>>> index =
+      Maps.newEnumMap(ConsoleStatus.class);
+  // Changes to the open consoles since the last update, guarded by this.
+  private final Map<Long, LobbyEntryPB> changed = Maps.newLinkedHashMap();
+  private final Set<Long> removed = Sets.newLinkedHashSet();
+
+  // Held while updates are written, so that a new watcher's snapshot is not followed by an older
+  // update. Taken before this.
+  private final Object publishLock = new Object();
+  private final List<StreamObserver<LobbyUpdatePB>> watchers = Lists.newCopyOnWriteArrayList();
+  private final AtomicBoolean publishing = new AtomicBoolean();
+
+  public LobbyIndex(Server server) {
+    this(server, DEFAULT_PUBLISH_MILLIS);
+  }
+
+  public LobbyIndex(Server server, long publishMillis) {
+    this.server = server;
+    this.publishMillis = publishMillis;
+  }
+
+  /**
+   * Starts indexing a console registered with the server.
+   */
+  public void add(Console console) {
+    console.setLobbyIndex(this);
+    update(console);
+  }
+
+  /**
+   * Reindexes a console after its status or ports changed. Consoles no longer registered with the
+   * server are ignored.
+   */
+  public void update(Console console) {
+    LobbyEntryPB entry = LobbyEntryPB.newBuilder().setConsoleId(console.getId())
+        .setStatus(console.getStatus().name()).setFreePorts(console.getFreePortCount())
+        .setPortCount(console.getPortCount()).build();
+    synchronized (this) {
+      if (server.getConsole(console.getId()) != console) {
+        return;
+      }
+      LobbyEntryPB previous = unindex(console.getId());
+      entries.put(entry.getConsoleId(), entry);
+      NavigableMap<Integer, Set<Long>> byFreePorts = statusIndex(console.getStatus());
+      Set<Long> ids = byFreePorts.get(entry.getFreePorts());
+      if (ids == null) {
+        ids = Sets.newLinkedHashSet();
+        byFreePorts.put(entry.getFreePorts(), ids);
+      }
+      ids.add(entry.getConsoleId());
+      if (isOpen(entry)) {
+        removed.remove(entry.getConsoleId());
+        if (!watchers.isEmpty()) {
+          changed.put(entry.getConsoleId(), entry);
+        }
+      } else if (previous != null && isOpen(previous)) {
+        markClosed(entry.getConsoleId());
+      }
+    }
+  }
+
+  /**
+   * Stops indexing a console that was torn down.
+   */
+  public synchronized void remove(long consoleId) {
+    LobbyEntryPB previous = unindex(consoleId);
+    if (previous != null && isOpen(previous)) {
+      markClosed(consoleId);
+    }
+  }
+
+  /**
+   * Returns the consoles with the given status and at least the given free ports, those with the
+   * fewest free ports first.
+   */
+  public synchronized List<LobbyEntryPB> find(ConsoleStatus status, int minFreePorts, int limit) {
+    List<LobbyEntryPB> found = Lists.newArrayList();
+    for (Set<Long> ids : statusIndex(status).tailMap(minFreePorts, true).values()) {
+      for (long id : ids) {
+        if (found.size() == limit) {
+          return found;
+        }
+        found.add(entries.get(id));
+      }
+    }
+    return found;
+  }
+
+  private LobbyEntryPB unindex(long consoleId) {
+    LobbyEntryPB previous = entries.remove(consoleId);
+    if (previous != null) {
+      NavigableMap<Integer, Set<Long>> byFreePorts =
+          statusIndex(ConsoleStatus.valueOf(previous.getStatus()));
+      Set<Long> ids = byFreePorts.get(previous.getFreePorts());
+      ids.remove(consoleId);
+      if (ids.isEmpty()) {
+        byFreePorts.remove(previous.getFreePorts());
+      }
+    }
+    return previous;
+  }
+
+  /**
+   * Records a console that left the lobby for the next update. Changes are only kept while
+   * someone watches, or they would pile up between updates that never come.
+   */
+  private void markClosed(long consoleId) {
+    changed.remove(consoleId);
+    if (!watchers.isEmpty()) {
+      removed.add(consoleId);
+    }
+  }
+
+  private NavigableMap<Integer, Set<Long>> statusIndex(ConsoleStatus status) {
+    NavigableMap<Integer, Set<Long>> byFreePorts = index.get(status);
+    if (byFreePorts == null) {
+      byFreePorts = Maps.newTreeMap();
+      index.put(status, byFreePorts);
+    }
+    return byFreePorts;
+  }
+
+  private static boolean isOpen(LobbyEntryPB entry) {
+    return entry.getStatus().equals(ConsoleStatus.CREATED.name()) && entry.getFreePorts() > 0;
+  }
+
+  @Override
+  public void listConsoles(ListConsolesRequestPB request,
+      StreamObserver<ListConsolesResponsePB> responseObserver) {
+    ConsoleStatus status = ConsoleStatus.CREATED;
+    if (!request.getStatus().isEmpty()) {
+      try {
+        status = ConsoleStatus.valueOf(request.getStatus());
+      } catch (IllegalArgumentException e) {
+        responseObserver.onError(Status.INVALID_ARGUMENT
+            .withDescription("Unknown console status " + request.getStatus()).asException());
+        return;
+      }
+    }
+    int limit = request.getLimit() == 0 ? Integer.MAX_VALUE : request.getLimit();
+    server.restorePendingConsoles();
+    responseObserver.onNext(ListConsolesResponsePB.newBuilder()
+        .addAllConsoles(find(status, request.getMinFreePorts(), limit)).build());
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void watchLobby(WatchLobbyRequestPB request,
+      final StreamObserver<LobbyUpdatePB> responseObserver) {
+    Context.current().addListener(new Context.CancellationListener() {
+      @Override
+      public void cancelled(Context context) {
+        watchers.remove(responseObserver);
+      }
+    }, MoreExecutors.directExecutor());
+    server.restorePendingConsoles();
+    synchronized (publishLock) {
+      // Watch before the snapshot is taken, so that changes made after it are kept for the next
+      // update.
+      watchers.add(responseObserver);
+      LobbyUpdatePB snapshot = LobbyUpdatePB.newBuilder().setSnapshot(true)
+          .addAllChanged(find(ConsoleStatus.CREATED, 1, Integer.MAX_VALUE)).build();
+      if (!send(responseObserver, snapshot)) {
+        watchers.remove(responseObserver);
+      }
+    }
+    startPublishing();
+  }
+
+  private void startPublishing() {
+    if (!publishing.compareAndSet(false, true)) {
+      return;
+    }
+    server.getScheduler().scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          publish();
+        } catch (RuntimeException e) {
+          log.error("Lobby update failed", e);
+        }
+      }
+    }, publishMillis, publishMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends the changes since the last update to every watcher. Called by the server's scheduler
+   * once per tick.
+   */
+  public void publish() {
+    synchronized (publishLock) {
+      LobbyUpdatePB update;
+      synchronized (this) {
+        if (changed.isEmpty() && removed.isEmpty()) {
+          return;
+        }
+        update = LobbyUpdatePB.newBuilder().addAllChanged(changed.values()).addAllRemoved(removed)
+            .build();
+        changed.clear();
+        removed.clear();
+      }
+      for (StreamObserver<LobbyUpdatePB> watcher : watchers) {
+        if (!send(watcher, update)) {
+          watchers.remove(watcher);
+        }
+      }
+    }
+  }
+
+  private boolean send(StreamObserver<LobbyUpdatePB> watcher, LobbyUpdatePB update) {
+    try {
+      watcher.onNext(update);
+      return true;
+    } catch (IllegalStateException | StatusRuntimeException e) {
+      log.debug("Dropping lobby watcher: " + e);
+      return false;
+    }
+  }
+}
@@ -0,0 +1,252 @@
+package netplayServer.matchmaking;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Console;
+import netplayServer.Console.ConsoleStatus;
+import netplayServer.PlugRequestException;
+import netplayServer.Ports;
+import netplayServer.Server;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayserverprotos.MatchmakingServiceGrpc.MatchmakingService;
+import netplayserverprotos.MatchmakingServiceProto.JoinQueueRequestPB;
+import netplayserverprotos.MatchmakingServiceProto.MatchAssignmentPB;
+
+/**
+ * Queues clients looking for a game and seats them on consoles the server forms. Requests are
+ * only collected as they arrive; once per tick a single pass packs every waiting request into
+ * consoles, largest parties first, filling the consoles it formed earlier before creating new
+ * ones. As that pass is the only writer of the consoles it forms, clients no longer contend for
+ * ports with PORT_ANY plug requests.
+ */
+public class Matchmaker implements MatchmakingService {
+
+  private static Log log = LogFactory.getLog(Matchmaker.class);
+
+  /** Time between packing passes, about three frames. */
+  public static final long DEFAULT_TICK_MILLIS = 50;
+
+  private final Server server;
+  private final long tickMillis;
+  private final Queue<Ticket> arrivals = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean ticking = new AtomicBoolean();
+  // The remaining fields are only touched by the packing pass.
+  private final List<Ticket> waiting = Lists.newArrayList();
+  // Consoles formed by earlier passes that still have free ports, by group.
+  private final Map<String, List<Console>> openConsoles = Maps.newHashMap();
+
+  public Matchmaker(Server server) {
+    this(server, DEFAULT_TICK_MILLIS);
+  }
+
+  public Matchmaker(Server server, long tickMillis) {
+    this.server = server;
+    this.tickMillis = tickMillis;
+  }
+
+  @Override
+  public void joinQueue(JoinQueueRequestPB request,
+      StreamObserver<MatchAssignmentPB> responseObserver) {
+    int consoleSize = request.getConsoleSize() == 0 ? server.getPortsPerConsole()
+        : request.getConsoleSize();
+    if (consoleSize < 1 || consoleSize > Ports.MAX_PORT_COUNT || request.getPlayerCount() < 1
+        || request.getPlayerCount() > consoleSize) {
+      responseObserver.onNext(MatchAssignmentPB.newBuilder()
+          .setStatus(MatchAssignmentPB.Status.INVALID_REQUEST).build());
+      responseObserver.onCompleted();
+      return;
+    }
+    Status draining = server.getDrainController().refuseConsole();
+    if (draining != null) {
+      responseObserver.onError(draining.asRuntimeException());
+      return;
+    }
+    final Ticket ticket = new Ticket(request, consoleSize, responseObserver);
+    Context.current().addListener(new Context.CancellationListener() {
+      @Override
+      public void cancelled(Context context) {
+        ticket.cancelled = true;
+      }
+    }, MoreExecutors.directExecutor());
+    responseObserver.onNext(
+        MatchAssignmentPB.newBuilder().setStatus(MatchAssignmentPB.Status.QUEUED).build());
+    arrivals.add(ticket);
+    startTicking();
+  }
+
+  private void startTicking() {
+    if (!ticking.compareAndSet(false, true)) {
+      return;
+    }
+    server.getScheduler().scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          tick();
+        } catch (RuntimeException e) {
+          log.error("Matchmaking pass failed", e);
+        }
+      }
+    }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs one packing pass over every waiting request. Called by the server's scheduler once per
+   * tick.
+   */
+  public synchronized void tick() {
+    for (Ticket ticket = arrivals.poll(); ticket != null; ticket = arrivals.poll()) {
+      waiting.add(ticket);
+    }
+    if (waiting.isEmpty()) {
+      return;
+    }
+    Status draining = server.getDrainController().refuseConsole();
+    if (draining != null) {
+      // Nothing will be seated on this server any more; send everyone elsewhere.
+      for (Ticket ticket : waiting) {
+        refuse(ticket, draining);
+      }
+      waiting.clear();
+      openConsoles.clear();
+      return;
+    }
+    // Largest parties first packs consoles tightly; the sort is stable, so equal parties keep
+    // their arrival order.
+    Collections.sort(waiting, new Comparator<Ticket>() {
+      @Override
+      public int compare(Ticket a, Ticket b) {
+        return Integer.compare(b.request.getPlayerCount(), a.request.getPlayerCount());
+      }
+    });
+    for (Iterator<Ticket> it = waiting.iterator(); it.hasNext();) {
+      Ticket ticket = it.next();
+      if (ticket.cancelled || seat(ticket)) {
+        it.remove();
+      }
+    }
+    log.debug(String.format("Matchmaking pass done, %d requests still waiting", waiting.size()));
+  }
+
+  /**
+   * Seats a request on the first open console of its group with room for it, or on a new console.
+   * Returns false if the request should wait for the next pass.
+   */
+  private boolean seat(Ticket ticket) {
+    List<Console> consoles = openConsoles.get(ticket.group);
+    if (consoles == null) {
+      consoles = Lists.newArrayList();
+      openConsoles.put(ticket.group, consoles);
+    }
+    for (Iterator<Console> it = consoles.iterator(); it.hasNext();) {
+      Console console = it.next();
+      if (!isOpen(console)) {
+        it.remove();
+        continue;
+      }
+      if (console.getFreePortCount() >= ticket.request.getPlayerCount()
+          && tryAssign(ticket, console)) {
+        if (console.getFreePortCount() == 0) {
+          it.remove();
+        }
+        return true;
+      }
+    }
+    if (server.getAdmissionController().admitConsole() != null) {
+      // Keep the request queued until the server has room for another console.
+      return false;
+    }
+    Console console = server.createConsole(ticket.consoleSize);
+    log.info(String.format("Formed console %d for %s", console.getId(), ticket.group));
+    if (!tryAssign(ticket, console)) {
+      return false;
+    }
+    if (console.getFreePortCount() > 0) {
+      consoles.add(console);
+    }
+    return true;
+  }
+
+  private boolean isOpen(Console console) {
+    return server.getConsole(console.getId()) == console
+        && console.getStatus() == ConsoleStatus.CREATED && console.getFreePortCount() > 0;
+  }
+
+  private boolean tryAssign(Ticket ticket, Console console) {
+    int[] anyPorts = new int[ticket.request.getPlayerCount()];
+    Arrays.fill(anyPorts, Port.PORT_ANY_VALUE);
+    Client client;
+    try {
+      client = console.tryAddPlayersByValue(ticket.request.getDelayFrames(), anyPorts);
+    } catch (PlugRequestException e) {
+      // A frontend plugged into the console directly, or it ended, since it was last looked at.
+      return false;
+    }
+    MatchAssignmentPB.Builder assignment = MatchAssignmentPB.newBuilder()
+        .setStatus(MatchAssignmentPB.Status.ASSIGNED).setConsoleId(console.getId())
+        .setClientId(client.getId());
+    for (int portValue : client.getPortValues()) {
+      assignment.addPort(portValue);
+    }
+    try {
+      ticket.responseObserver.onNext(assignment.build());
+      ticket.responseObserver.onCompleted();
+    } catch (IllegalStateException | StatusRuntimeException e) {
+      log.warn(String.format("Could not send assignment of client %d on console %d: %s",
+          client.getId(), console.getId(), e));
+    }
+    return true;
+  }
+
+  private static void refuse(Ticket ticket, Status status) {
+    if (ticket.cancelled) {
+      return;
+    }
+    try {
+      ticket.responseObserver.onError(status.asRuntimeException());
+    } catch (IllegalStateException | StatusRuntimeException e) {
+      log.debug("Could not refuse queued request: " + e);
+    }
+  }
+
+  /**
+   * A queued request.
+   */
+  private static class Ticket {
+    private final JoinQueueRequestPB request;
+    private final int consoleSize;
+    // Requests are only packed with requests of the same group.
+    private final String group;
+    private final StreamObserver<MatchAssignmentPB> responseObserver;
+    private volatile boolean cancelled = false;
+
+    Ticket(JoinQueueRequestPB request, int consoleSize,
+        StreamObserver<MatchAssignmentPB> responseObserver) {
+      this.request = request;
+      this.consoleSize = consoleSize;
+      this.group = String.format("game '%s' on %d ports", request.getGame(), consoleSize);
+      this.responseObserver = responseObserver;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package netplayServer.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic counters of one client, and an estimate of its round trip time.
+ *
+ * The netplay protocol has no way to ping a client, so the round trip is measured on the
+ * lockstep instead: a client given the frames of the others up to frame f can play frame f, and
+ * then sends its own input for frame f plus its delay. One frame written to the client is timed
+ * at a time, until that input arrives, so the estimate costs a clock read per round trip.
+ */
+public class ClientMetrics {
+
+  private static final long NO_PROBE = -1;
+
+  private final AtomicLong messagesIn = new AtomicLong();
+  private final AtomicLong messagesOut = new AtomicLong();
+
+  // Frame whose input ends the round trip being timed, set by the writer of the client's events
+  // once the previous one ended, and cleared by its reader. probeSentNanos is written before.
+  private volatile long probeFrame = NO_PROBE;
+  private volatile long probeSentNanos;
+  private volatile long smoothedRttNanos;
+
+  /**
+   * Counts an event carrying keypresses received from the client, whose newest frame is given.
+   */
+  public void recordReceived(long newestFrame) {
+    messagesIn.incrementAndGet();
+    long target = probeFrame;
+    if (target != NO_PROBE && newestFrame >= target) {
+      long sample = System.nanoTime() - probeSentNanos;
+      probeFrame = NO_PROBE;
+      long smoothed = smoothedRttNanos;
+      // Weighted like TCP's smoothed round trip time.
+      smoothedRttNanos = smoothed == 0 ? sample : smoothed + (sample - smoothed) / 8;
+    }
+  }
+
+  /**
+   * Counts an event written to the client, whose newest frame is given. Called with the client
+   * locked.
+   */
+  public void recordSent(long newestFrame, int delay) {
+    messagesOut.incrementAndGet();
+    if (probeFrame == NO_PROBE) {
+      probeSentNanos = System.nanoTime();
+      probeFrame = newestFrame + delay;
+    }
+  }
+
+  public long getMessagesIn() {
+    return messagesIn.get();
+  }
+
+  public long getMessagesOut() {
+    return messagesOut.get();
+  }
+
+  /**
+   * Returns the smoothed round trip time in microseconds, or 0 before the first measurement.
+   */
+  public long getRttMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(smoothedRttNanos);
+  }
+}
@@ -0,0 +1,53 @@
+package netplayServer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic counters of one console. Only the console's own clients write to them, so they are
+ * plain atomics without contention between consoles.
+ */
+public class ConsoleMetrics {
+
+  private final AtomicLong messagesIn = new AtomicLong();
+  private final AtomicLong keyStatesIn = new AtomicLong();
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong messagesOut = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+
+  /**
+   * Counts an event carrying keypresses received from a client.
+   */
+  public void recordReceived(int keyStates, int bytes) {
+    messagesIn.incrementAndGet();
+    keyStatesIn.addAndGet(keyStates);
+    bytesIn.addAndGet(bytes);
+  }
+
+  /**
+   * Counts an event written to the given number of clients.
+   */
+  public void recordSent(int recipients, int bytes) {
+    messagesOut.addAndGet(recipients);
+    bytesOut.addAndGet((long) recipients * bytes);
+  }
+
+  public long getMessagesIn() {
+    return messagesIn.get();
+  }
+
+  public long getKeyStatesIn() {
+    return keyStatesIn.get();
+  }
+
+  public long getBytesIn() {
+    return bytesIn.get();
+  }
+
+  public long getMessagesOut() {
+    return messagesOut.get();
+  }
+
+  public long getBytesOut() {
+    return bytesOut.get();
+  }
+}
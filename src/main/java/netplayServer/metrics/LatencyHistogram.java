@@ -0,0 +1,149 @@
+package netplayServer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds that can be recorded into from any thread without
+ * locking. Like HdrHistogram, values are counted in buckets whose width grows with the value, so
+ * that every value is kept to within about 6% of itself from 1ns up to {@link #MAX_VALUE}, in a
+ * fixed array of counters. Recording is a few shifts and an atomic increment.
+ *
+ * Counts only grow; {@link Snapshot#minus} gives the values recorded between two snapshots.
+ */
+public class LatencyHistogram {
+
+  // Values below 2^SUB_BUCKET_BITS get a bucket each; above, each power of two is split in half as
+  // many buckets.
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_COUNT = SUB_BUCKET_COUNT / 2;
+  private static final int MAX_MAGNITUDE = 40;
+
+  /** Largest value told apart from larger ones, about 36 minutes in nanoseconds. */
+  public static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+  static final int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records one value. Negative values are counted as 0, values above {@link #MAX_VALUE} as
+   * {@link #MAX_VALUE}.
+   */
+  public void record(long nanos) {
+    long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+    counts.incrementAndGet(indexOf(value));
+    sum.addAndGet(value);
+    long current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+      // Lost a race with a concurrent record, try again.
+    }
+  }
+
+  static int indexOf(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+    return SUB_BUCKET_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+  }
+
+  /**
+   * Returns the largest value counted in the given bucket.
+   */
+  static long highestValueAt(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int offset = index - SUB_BUCKET_COUNT;
+    int shift = offset / HALF_COUNT + 1;
+    long subBucket = offset % HALF_COUNT + HALF_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * Copies the counts recorded so far. Records made while the copy is taken may be partly in it.
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      copy[i] = counts.get(i);
+      count += copy[i];
+    }
+    return new Snapshot(copy, count, sum.get(), max.get());
+  }
+
+  /**
+   * The counts of a histogram at one point.
+   */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns the sum of the recorded values in nanoseconds.
+     */
+    public long getSum() {
+      return sum;
+    }
+
+    /**
+     * Returns the largest value recorded since the histogram was created.
+     */
+    public long getMax() {
+      return max;
+    }
+
+    public double getMean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value at the given percentile, from 0 to 100, or 0 if nothing was recorded.
+     * Values are rounded up to the end of their bucket.
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; ++i) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(highestValueAt(i), max);
+        }
+      }
+      return max;
+    }
+
+    /**
+     * Returns the values recorded since an earlier snapshot of the same histogram. The maximum is
+     * still the overall one.
+     */
+    public Snapshot minus(Snapshot earlier) {
+      long[] difference = new long[counts.length];
+      for (int i = 0; i < counts.length; ++i) {
+        difference[i] = counts[i] - earlier.counts[i];
+      }
+      return new Snapshot(difference, count - earlier.count, sum - earlier.sum, max);
+    }
+  }
+}
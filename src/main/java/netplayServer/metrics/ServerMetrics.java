@@ -0,0 +1,182 @@
+package netplayServer.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.admission.AdmissionController;
+import netplayServer.lanes.ExecutionLanes;
+
+/**
+ * Relay metrics of a server. The relay path only records into lock-free counters: the residency
+ * histogram, how long each event carrying keypresses spent in the server from the moment its
+ * stream handed it over until it was written to every recipient, and the traffic counters of its
+ * console. Everything else, summing the consoles and reading the queue depths, happens when the
+ * metrics are exported, on a thread of its own.
+ *
+ * The export is a file in the Prometheus text format, replaced atomically, for a node exporter's
+ * textfile collector or any other scraper. Residency quantiles are those of the last interval.
+ */
+public class ServerMetrics {
+
+  private static Log log = LogFactory.getLog(ServerMetrics.class);
+
+  public static final long DEFAULT_EXPORT_MILLIS = 10000;
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private final Server server;
+  private final LatencyHistogram residency = new LatencyHistogram();
+  // Counters of the consoles torn down so far.
+  private final AtomicLong retiredMessagesIn = new AtomicLong();
+  private final AtomicLong retiredKeyStatesIn = new AtomicLong();
+  private final AtomicLong retiredBytesIn = new AtomicLong();
+  private final AtomicLong retiredMessagesOut = new AtomicLong();
+  private final AtomicLong retiredBytesOut = new AtomicLong();
+
+  // Only touched by the exporting thread.
+  private LatencyHistogram.Snapshot lastExported;
+  private ScheduledExecutorService exporter;
+
+  public ServerMetrics(Server server) {
+    this.server = server;
+    this.lastExported = residency.snapshot();
+  }
+
+  /**
+   * Records how long an event spent in the server.
+   */
+  public void recordResidency(long nanos) {
+    residency.record(nanos);
+  }
+
+  public LatencyHistogram getResidency() {
+    return residency;
+  }
+
+  /**
+   * Keeps the counts of a console that is torn down in the server's totals.
+   */
+  public void retire(ConsoleMetrics console) {
+    retiredMessagesIn.addAndGet(console.getMessagesIn());
+    retiredKeyStatesIn.addAndGet(console.getKeyStatesIn());
+    retiredBytesIn.addAndGet(console.getBytesIn());
+    retiredMessagesOut.addAndGet(console.getMessagesOut());
+    retiredBytesOut.addAndGet(console.getBytesOut());
+  }
+
+  /**
+   * Writes the metrics to the given file every interval from now on.
+   */
+  public synchronized void startExporting(final File file, long intervalMillis) {
+    if (exporter != null) {
+      return;
+    }
+    exporter = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("netplay-metrics-%d").build());
+    exporter.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          export(file);
+        } catch (IOException | RuntimeException e) {
+          log.error("Metrics export failed", e);
+        }
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Replaces the given file with the current metrics.
+   */
+  public void export(File file) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    try (Writer out = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+      writeTo(out);
+    }
+    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Writes the metrics in the Prometheus text format. Residency quantiles cover the time since the
+   * previous call.
+   */
+  public synchronized void writeTo(Appendable out) throws IOException {
+    LatencyHistogram.Snapshot current = residency.snapshot();
+    LatencyHistogram.Snapshot interval = current.minus(lastExported);
+    lastExported = current;
+
+    out.append("# HELP netplay_relay_residency_seconds Time an event spent in the server.\n");
+    out.append("# TYPE netplay_relay_residency_seconds summary\n");
+    for (double quantile : QUANTILES) {
+      sample(out, "netplay_relay_residency_seconds{quantile=\"" + quantile + "\"}",
+          seconds(interval.getValueAtPercentile(quantile * 100)));
+    }
+    sample(out, "netplay_relay_residency_seconds_sum", seconds(current.getSum()));
+    sample(out, "netplay_relay_residency_seconds_count", current.getCount());
+    gauge(out, "netplay_relay_residency_max_seconds", seconds(current.getMax()));
+
+    long messagesIn = retiredMessagesIn.get();
+    long keyStatesIn = retiredKeyStatesIn.get();
+    long bytesIn = retiredBytesIn.get();
+    long messagesOut = retiredMessagesOut.get();
+    long bytesOut = retiredBytesOut.get();
+    for (Console console : server.getConsoles()) {
+      ConsoleMetrics metrics = console.getMetrics();
+      messagesIn += metrics.getMessagesIn();
+      keyStatesIn += metrics.getKeyStatesIn();
+      bytesIn += metrics.getBytesIn();
+      messagesOut += metrics.getMessagesOut();
+      bytesOut += metrics.getBytesOut();
+    }
+    counter(out, "netplay_messages_received_total", messagesIn);
+    counter(out, "netplay_key_states_received_total", keyStatesIn);
+    counter(out, "netplay_bytes_received_total", bytesIn);
+    counter(out, "netplay_messages_sent_total", messagesOut);
+    counter(out, "netplay_bytes_sent_total", bytesOut);
+
+    AdmissionController admission = server.getAdmissionController();
+    ExecutionLanes lanes = server.getExecutionLanes();
+    gauge(out, "netplay_consoles", server.getConsoleCount());
+    gauge(out, "netplay_streams", admission.getStreamCount());
+    gauge(out, "netplay_backlogged_streams", admission.getBackloggedStreams());
+    gauge(out, "netplay_event_loop_lag_seconds",
+        seconds(TimeUnit.MILLISECONDS.toNanos(admission.getLoopLagMillis())));
+    gauge(out, "netplay_relay_queue_depth", lanes.getRelayQueueDepth());
+    gauge(out, "netplay_control_queue_depth", lanes.getControlQueueDepth());
+    counter(out, "netplay_control_rejected_total", lanes.getControlRejected());
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / 1e9;
+  }
+
+  private static void counter(Appendable out, String name, double value) throws IOException {
+    out.append("# TYPE ").append(name).append(" counter\n");
+    sample(out, name, value);
+  }
+
+  private static void gauge(Appendable out, String name, double value) throws IOException {
+    out.append("# TYPE ").append(name).append(" gauge\n");
+    sample(out, name, value);
+  }
+
+  private static void sample(Appendable out, String name, double value) throws IOException {
+    out.append(name).append(' ').append(Double.toString(value)).append('\n');
+  }
+}
@@ -0,0 +1,134 @@
+package netplayServer.migration;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import io.grpc.ManagedChannel;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayserverprotos.MigrationServiceGrpc;
+import netplayserverprotos.MigrationServiceGrpc.MigrationService;
+import netplayserverprotos.MigrationServiceProto.ConsoleSnapshotPB;
+import netplayserverprotos.MigrationServiceProto.ImportConsoleResponsePB;
+import netplayserverprotos.MigrationServiceProto.MigrateConsoleRequestPB;
+import netplayserverprotos.MigrationServiceProto.MigrateConsoleResponsePB;
+
+/**
+ * Moves live consoles between servers. The source freezes the console, ships a snapshot of its
+ * clients, ports, delays, status and key history to the target, and then redirects the clients,
+ * which resume their streams on the target without the match ending.
+ *
+ * The service is served only on the admin listener, since whoever can call it can move or
+ * overwrite consoles: the snapshot is imported through the target's admin listener, and the clients
+ * are redirected to its client port.
+ */
+public class ConsoleMigrator implements MigrationService {
+
+  private Log log = LogFactory.getLog(ConsoleMigrator.class);
+
+  private static final long IMPORT_DEADLINE_SECONDS = 5;
+
+  private final Server server;
+
+  public ConsoleMigrator(Server server) {
+    this.server = server;
+  }
+
+  @Override
+  public void migrateConsole(MigrateConsoleRequestPB request,
+      StreamObserver<MigrateConsoleResponsePB> responseObserver) {
+    Console console = server.getConsole(request.getConsoleId());
+    if (request.getImportTarget().isEmpty()) {
+      responseObserver.onNext(MigrateConsoleResponsePB.newBuilder()
+          .setStatus(MigrateConsoleResponsePB.Status.TARGET_UNREACHABLE).build());
+      responseObserver.onCompleted();
+      return;
+    }
+    if (console == null) {
+      responseObserver.onNext(MigrateConsoleResponsePB.newBuilder()
+          .setStatus(MigrateConsoleResponsePB.Status.NO_SUCH_CONSOLE).build());
+      responseObserver.onCompleted();
+      return;
+    }
+
+    long frozenAtMillis = System.currentTimeMillis();
+    console.freeze();
+    boolean imported = false;
+    try {
+      ConsoleSnapshotPB snapshot = console.snapshot(frozenAtMillis);
+      MigrateConsoleResponsePB.Status status =
+          importOnTarget(request.getImportTarget(), snapshot);
+      if (status != MigrateConsoleResponsePB.Status.SUCCESS) {
+        responseObserver.onNext(MigrateConsoleResponsePB.newBuilder().setStatus(status).build());
+        responseObserver.onCompleted();
+        return;
+      }
+      imported = true;
+    } finally {
+      // Whatever went wrong, the console keeps running here.
+      if (!imported) {
+        console.unfreeze();
+      }
+    }
+
+    server.tearDownConsole(console.getId());
+    server.recordMovedConsole(console.getId(), request.getTarget());
+    console.redirectClients(request.getTarget());
+    long pauseFrames = Console.millisToFrames(System.currentTimeMillis() - frozenAtMillis);
+    log.info(String.format("Console %d migrated to %s, source-side pause of %d frames",
+        console.getId(), request.getTarget(), pauseFrames));
+    responseObserver.onNext(MigrateConsoleResponsePB.newBuilder()
+        .setStatus(MigrateConsoleResponsePB.Status.SUCCESS).setPauseFrames(pauseFrames).build());
+    responseObserver.onCompleted();
+  }
+
+  private MigrateConsoleResponsePB.Status importOnTarget(String target,
+      ConsoleSnapshotPB snapshot) {
+    ManagedChannel channel = NettyChannelBuilder.forTarget(target).usePlaintext(true).build();
+    try {
+      ImportConsoleResponsePB response = MigrationServiceGrpc.newBlockingStub(channel)
+          .withDeadlineAfter(IMPORT_DEADLINE_SECONDS, TimeUnit.SECONDS).importConsole(snapshot);
+      if (response.getStatus() != ImportConsoleResponsePB.Status.SUCCESS) {
+        log.warn(String.format("Target %s refused console %d: %s", target,
+            snapshot.getConsoleId(), response.getStatus()));
+        return MigrateConsoleResponsePB.Status.TARGET_REJECTED;
+      }
+      return MigrateConsoleResponsePB.Status.SUCCESS;
+    } catch (StatusRuntimeException e) {
+      log.warn(String.format("Could not migrate console %d to %s: %s", snapshot.getConsoleId(),
+          target, e));
+      return MigrateConsoleResponsePB.Status.TARGET_UNREACHABLE;
+    } finally {
+      channel.shutdown();
+    }
+  }
+
+  @Override
+  public void importConsole(ConsoleSnapshotPB request,
+      StreamObserver<ImportConsoleResponsePB> responseObserver) {
+    ImportConsoleResponsePB.Status status;
+    try {
+      Console console = Console.fromSnapshot(server, request);
+      if (server.adoptConsole(console)) {
+        console.awaitMigratedClients();
+        log.info(String.format("Imported console %d with %d clients", console.getId(),
+            request.getClientsCount()));
+        status = ImportConsoleResponsePB.Status.SUCCESS;
+      } else {
+        status = ImportConsoleResponsePB.Status.CONSOLE_ID_IN_USE;
+      }
+    } catch (InvalidProtocolBufferException | IllegalArgumentException e) {
+      log.warn(String.format("Invalid snapshot for console %d: %s", request.getConsoleId(), e));
+      status = ImportConsoleResponsePB.Status.INVALID_SNAPSHOT;
+    }
+    responseObserver.onNext(ImportConsoleResponsePB.newBuilder().setStatus(status).build());
+    responseObserver.onCompleted();
+  }
+}
@@ -0,0 +1,111 @@
+package netplayServer.reaper;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayprotos.NetplayServiceProto.StopConsolePB;
+
+/**
+ * Removes the consoles nobody will end. A console leaves the server when it is stopped or when
+ * the streams of all its clients ended, but a lobby whose players never got ready, or a game whose
+ * players stopped sending without closing their streams, would otherwise stay forever. Consoles
+ * that relayed no keypress for the idle timeout are stopped, and consoles whose clients are all
+ * done are torn down. The reaper only sweeps once started, which the server does when given an
+ * idle timeout, so that a lobby may otherwise wait for its players as long as it takes.
+ *
+ * The shared protos have no reason for an idle console, so idle consoles are stopped with ERROR,
+ * as when a player drops for good.
+ */
+public class ConsoleReaper {
+
+  private static Log log = LogFactory.getLog(ConsoleReaper.class);
+
+  /**
+   * Time a console may relay nothing, including a lobby waiting for its players, until the reaper
+   * is started with another.
+   */
+  public static final long DEFAULT_IDLE_MILLIS = 600000;
+
+  /** Longest time between checks for idle consoles. */
+  public static final long MAX_SWEEP_MILLIS = 10000;
+
+  private final Server server;
+  // Per console, the messages it had received at the last sweep that saw them change, and when.
+  // Guarded by this.
+  private final Map<Long, long[]> lastActivity = Maps.newHashMap();
+  private long idleMillis = DEFAULT_IDLE_MILLIS;
+  private ScheduledFuture<?> sweeper;
+
+  public ConsoleReaper(Server server) {
+    this.server = server;
+  }
+
+  /**
+   * Starts stopping the consoles that stay idle for the given time, checking a few times per
+   * timeout. Calling it again changes the timeout.
+   */
+  public synchronized void start(long idleMillis) {
+    if (idleMillis <= 0) {
+      throw new IllegalArgumentException("Idle timeout must be positive: " + idleMillis);
+    }
+    this.idleMillis = idleMillis;
+    if (sweeper != null) {
+      sweeper.cancel(false);
+    }
+    long sweepMillis = Math.max(1, Math.min(MAX_SWEEP_MILLIS, idleMillis / 4));
+    sweeper = server.getScheduler().scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+          log.error("Console reaper sweep failed", e);
+        }
+      }
+    }, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    if (sweeper != null) {
+      sweeper.cancel(false);
+      sweeper = null;
+    }
+  }
+
+  /**
+   * Tears down the finished consoles and stops those that relayed nothing for the idle timeout as
+   * of the given time. Called by the server's scheduler once started.
+   */
+  public synchronized void sweep(long nowMillis) {
+    Set<Long> seen = Sets.newHashSet();
+    for (Console console : server.getConsoles()) {
+      long consoleId = console.getId();
+      if (!console.getClients().isEmpty() && console.isFinished()) {
+        server.tearDownConsole(consoleId);
+        continue;
+      }
+      seen.add(consoleId);
+      long messages = console.getMetrics().getMessagesIn();
+      long[] activity = lastActivity.get(consoleId);
+      if (activity == null || activity[0] != messages) {
+        lastActivity.put(consoleId, new long[] {messages, nowMillis});
+      } else if (nowMillis - activity[1] >= idleMillis) {
+        log.info(String.format("Console %d relayed nothing for %d ms, stopping it", consoleId,
+            nowMillis - activity[1]));
+        console.stop(StopConsolePB.Reason.ERROR);
+        seen.remove(consoleId);
+      }
+    }
+    lastActivity.keySet().retainAll(seen);
+  }
+}
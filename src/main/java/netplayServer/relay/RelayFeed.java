@@ -0,0 +1,235 @@
+package netplayServer.relay;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import netplayserverprotos.RelayServiceProto.RelayFramePB;
+
+/**
+ * The set of subscribers watching a single console through this server. Frames either originate
+ * from the console itself, if it lives on this server, or are forwarded unchanged from an upstream
+ * relay.
+ *
+ * A feed closes itself once its last subscriber leaves, cancelling its upstream subscription if it
+ * has one, and a closed feed takes no new subscribers.
+ */
+public class RelayFeed {
+
+  private Log log = LogFactory.getLog(RelayFeed.class);
+
+  /**
+   * Frames a subscriber may fall behind by before it is dropped, about ten seconds of play. Until
+   * then gRPC buffers them for it.
+   */
+  public static final int MAX_BACKLOG_FRAMES = 600;
+
+  private final long consoleId;
+  private final RelayHub hub;
+  private final List<Subscriber> subscribers;
+  private final AtomicBoolean upstreamStarted;
+  private long sequence = 0;
+  private boolean closed = false;
+  private Context.CancellableContext upstreamCall;
+
+  public RelayFeed(long consoleId, RelayHub hub) {
+    this.consoleId = consoleId;
+    this.hub = hub;
+    this.subscribers = Lists.newArrayList();
+    this.upstreamStarted = new AtomicBoolean();
+  }
+
+  /**
+   * A subscriber's stream, with the frames sent to it while it was not ready for more.
+   */
+  private static class Subscriber {
+    final StreamObserver<RelayFramePB> stream;
+    int backlog = 0;
+
+    Subscriber(StreamObserver<RelayFramePB> stream) {
+      this.stream = stream;
+    }
+
+    boolean isReady() {
+      return !(stream instanceof CallStreamObserver)
+          || ((CallStreamObserver<RelayFramePB>) stream).isReady();
+    }
+  }
+
+  public long getConsoleId() {
+    return consoleId;
+  }
+
+  public synchronized boolean hasSubscribers() {
+    return !subscribers.isEmpty();
+  }
+
+  public synchronized int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  /**
+   * Adds a subscriber, which is removed when it cancels its call. Returns false if the feed is
+   * already closed.
+   */
+  public synchronized boolean addSubscriber(final StreamObserver<RelayFramePB> subscriber) {
+    if (closed) {
+      return false;
+    }
+    subscribers.add(new Subscriber(subscriber));
+    if (subscriber instanceof ServerCallStreamObserver) {
+      ((ServerCallStreamObserver<RelayFramePB>) subscriber).setOnCancelHandler(new Runnable() {
+        @Override
+        public void run() {
+          removeSubscriber(subscriber);
+        }
+      });
+    }
+    return true;
+  }
+
+  private void removeSubscriber(StreamObserver<RelayFramePB> subscriber) {
+    boolean emptied;
+    synchronized (this) {
+      Iterator<Subscriber> it = subscribers.iterator();
+      while (it.hasNext()) {
+        if (it.next().stream == subscriber) {
+          it.remove();
+        }
+      }
+      emptied = retireIfEmpty();
+    }
+    if (emptied) {
+      cancelUpstream();
+      hub.forgetFeed(this);
+    }
+  }
+
+  /**
+   * Closes the feed if its last subscriber left. Returns true if it did.
+   */
+  private boolean retireIfEmpty() {
+    if (closed || !subscribers.isEmpty()) {
+      return false;
+    }
+    closed = true;
+    return true;
+  }
+
+  private void cancelUpstream() {
+    Context.CancellableContext call;
+    synchronized (this) {
+      call = upstreamCall;
+    }
+    if (call != null) {
+      call.cancel(null);
+    }
+  }
+
+  /**
+   * Marks this feed as fed by an upstream relay. Returns true only for the first caller, which is
+   * then responsible for opening the upstream subscription.
+   */
+  boolean claimUpstream() {
+    return upstreamStarted.compareAndSet(false, true);
+  }
+
+  /**
+   * Records the context the upstream subscription runs in, so that closing the feed cancels it.
+   * Returns false, without recording it, if the feed is already closed.
+   */
+  synchronized boolean setUpstreamCall(Context.CancellableContext call) {
+    if (closed) {
+      return false;
+    }
+    upstreamCall = call;
+    return true;
+  }
+
+  /**
+   * Publishes a frame serialized by the console owning this feed, stamping it with the next
+   * sequence number.
+   */
+  public synchronized void publish(ByteString incomingEvent) {
+    forward(RelayFramePB.newBuilder().setConsoleId(consoleId).setSequence(++sequence)
+        .setIncomingEvent(incomingEvent).build());
+  }
+
+  /**
+   * Sends a frame to every subscriber as is. Frames received from an upstream relay pass through
+   * here without their payload being decoded. Subscribers more than {@link #MAX_BACKLOG_FRAMES}
+   * behind are dropped.
+   */
+  public void forward(RelayFramePB frame) {
+    boolean emptied;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      Iterator<Subscriber> it = subscribers.iterator();
+      while (it.hasNext()) {
+        Subscriber subscriber = it.next();
+        if (subscriber.isReady()) {
+          subscriber.backlog = 0;
+        } else if (++subscriber.backlog > MAX_BACKLOG_FRAMES) {
+          log.info(String.format("Dropping relay subscriber for console %d: %d frames behind",
+              consoleId, subscriber.backlog));
+          it.remove();
+          fail(subscriber, Status.RESOURCE_EXHAUSTED.withDescription("Relay subscriber too slow"));
+          continue;
+        }
+        try {
+          subscriber.stream.onNext(frame);
+        } catch (StatusRuntimeException e) {
+          log.info(String.format("Dropping relay subscriber for console %d: %s", consoleId, e));
+          it.remove();
+        }
+      }
+      emptied = retireIfEmpty();
+    }
+    if (emptied) {
+      cancelUpstream();
+      hub.forgetFeed(this);
+    }
+  }
+
+  private void fail(Subscriber subscriber, Status status) {
+    try {
+      subscriber.stream.onError(status.asRuntimeException());
+    } catch (StatusRuntimeException e) {
+      log.debug(String.format("Relay subscriber for console %d already gone: %s", consoleId, e));
+    }
+  }
+
+  /**
+   * Ends the feed for every subscriber, for example when the console is torn down, and cancels
+   * the upstream subscription.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      for (Subscriber subscriber : subscribers) {
+        try {
+          subscriber.stream.onCompleted();
+        } catch (StatusRuntimeException e) {
+          log.debug(String.format("Relay subscriber for console %d already gone: %s", consoleId,
+              e));
+        }
+      }
+      subscribers.clear();
+    }
+    cancelUpstream();
+  }
+}
@@ -0,0 +1,166 @@
+package netplayServer.relay;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Channel;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Server;
+import netplayserverprotos.RelayServiceGrpc;
+import netplayserverprotos.RelayServiceGrpc.RelayService;
+import netplayserverprotos.RelayServiceProto.RelayFramePB;
+import netplayserverprotos.RelayServiceProto.RelaySubscribeRequestPB;
+
+/**
+ * Fans the frames of running consoles out to spectators. A hub serves the consoles of its own
+ * server and, when given an upstream channel, re-fans the feeds of consoles owned by the upstream
+ * server. Chaining servers through their upstreams builds a distribution tree in which each hop
+ * forwards frames that were serialized once at the root.
+ */
+public class RelayHub implements RelayService {
+
+  private Log log = LogFactory.getLog(RelayHub.class);
+
+  private final Server server;
+  private final Map<Long, RelayFeed> feeds;
+  private RelayServiceGrpc.RelayServiceStub upstream;
+
+  public RelayHub(Server server) {
+    this.server = server;
+    this.feeds = Maps.newConcurrentMap();
+  }
+
+  /**
+   * Sets the server whose consoles should be relayed when they are not owned by this server.
+   */
+  public void setUpstream(Channel channel) {
+    this.upstream = RelayServiceGrpc.newStub(channel);
+  }
+
+  @Override
+  public void subscribe(RelaySubscribeRequestPB request,
+      StreamObserver<RelayFramePB> responseObserver) {
+    long consoleId = request.getConsoleId();
+    boolean local = server.getConsole(consoleId) != null;
+    if (!local && upstream == null) {
+      responseObserver.onError(Status.NOT_FOUND
+          .withDescription(String.format("No such console: %d", consoleId)).asRuntimeException());
+      return;
+    }
+    RelayFeed feed = getOrCreateFeed(consoleId);
+    // A feed whose last subscriber just left is closed; it is replaced by a new one.
+    while (!feed.addSubscriber(responseObserver)) {
+      forgetFeed(feed);
+      feed = getOrCreateFeed(consoleId);
+    }
+    log.info(String.format("Relay subscriber added for console %d (%d total)", consoleId,
+        feed.getSubscriberCount()));
+    if (local && server.getConsole(consoleId) == null) {
+      // The console was torn down before the feed existed, so nothing else would close it.
+      closeFeed(feed);
+      return;
+    }
+    if (!local && feed.claimUpstream()) {
+      subscribeUpstream(feed);
+    }
+  }
+
+  private RelayFeed getOrCreateFeed(long consoleId) {
+    RelayFeed feed = feeds.get(consoleId);
+    if (feed == null) {
+      RelayFeed newFeed = new RelayFeed(consoleId, this);
+      feed = feeds.putIfAbsent(consoleId, newFeed);
+      if (feed == null) {
+        feed = newFeed;
+      }
+    }
+    return feed;
+  }
+
+  private void subscribeUpstream(final RelayFeed feed) {
+    RelaySubscribeRequestPB request =
+        RelaySubscribeRequestPB.newBuilder().setConsoleId(feed.getConsoleId()).build();
+    // Not a child of the first subscriber's call, which may leave before the others.
+    Context.CancellableContext call = Context.ROOT.withCancellation();
+    if (!feed.setUpstreamCall(call)) {
+      return;
+    }
+    Context previous = call.attach();
+    try {
+      upstream.subscribe(request, new StreamObserver<RelayFramePB>() {
+        @Override
+        public void onNext(RelayFramePB frame) {
+          feed.forward(frame);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+          if (Status.fromThrowable(t).getCode() != Status.Code.CANCELLED) {
+            log.warn(String.format("Upstream relay for console %d failed: %s",
+                feed.getConsoleId(), t));
+          }
+          closeFeed(feed);
+        }
+
+        @Override
+        public void onCompleted() {
+          closeFeed(feed);
+        }
+      });
+    } finally {
+      call.detach(previous);
+    }
+  }
+
+  /**
+   * Returns true if someone is watching the given console through this hub.
+   */
+  public boolean isWatched(long consoleId) {
+    RelayFeed feed = feeds.get(consoleId);
+    return feed != null && feed.hasSubscribers();
+  }
+
+  public int getSubscriberCount(long consoleId) {
+    RelayFeed feed = feeds.get(consoleId);
+    return feed == null ? 0 : feed.getSubscriberCount();
+  }
+
+  /**
+   * Publishes a serialized IncomingEventPB of a console owned by this server.
+   */
+  public void publish(long consoleId, ByteString incomingEvent) {
+    RelayFeed feed = feeds.get(consoleId);
+    if (feed != null) {
+      feed.publish(incomingEvent);
+    }
+  }
+
+  /**
+   * Completes and forgets the feed of a console.
+   */
+  public void closeFeed(long consoleId) {
+    RelayFeed feed = feeds.remove(consoleId);
+    if (feed != null) {
+      feed.close();
+    }
+  }
+
+  private void closeFeed(RelayFeed feed) {
+    forgetFeed(feed);
+    feed.close();
+  }
+
+  /**
+   * Forgets a feed, unless another one already replaced it.
+   */
+  void forgetFeed(RelayFeed feed) {
+    feeds.remove(feed.getConsoleId(), feed);
+  }
+}
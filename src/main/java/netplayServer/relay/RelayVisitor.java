@@ -0,0 +1,32 @@
+package netplayServer.relay;
+
+import netplayServer.visitors.OutgoingEventVisitor;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+
+/**
+ * Visitor publishing the keypresses of locally owned consoles to the relay hub. Each event is
+ * serialized once here, no matter how many spectators and downstream relays end up receiving it.
+ */
+public class RelayVisitor implements OutgoingEventVisitor {
+
+  private final RelayHub hub;
+
+  public RelayVisitor(RelayHub hub) {
+    this.hub = hub;
+  }
+
+  @Override
+  public void visit(OutgoingEventPB event) {
+    if (event.getKeyPressCount() == 0) {
+      return;
+    }
+    long consoleId = event.getKeyPress(0).getConsoleId();
+    if (!hub.isWatched(consoleId)) {
+      return;
+    }
+    IncomingEventPB relayed = IncomingEventPB.newBuilder().addAllKeyPress(event.getKeyPressList())
+        .build();
+    hub.publish(consoleId, relayed.toByteString());
+  }
+}
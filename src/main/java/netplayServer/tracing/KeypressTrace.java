@@ -0,0 +1,135 @@
+package netplayServer.tracing;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayserverprotos.AdminServiceProto.KeypressTracePB;
+import netplayserverprotos.AdminServiceProto.RecipientTracePB;
+
+/**
+ * Timestamps of one sampled keypress event at each stage of the relay. An event is relayed on the
+ * thread its stream delivered it on, so the trace being recorded is kept in a thread local from
+ * the moment the stream hands the event over until it was written to every recipient, and the
+ * stages stamp it there without it being passed along.
+ */
+public class KeypressTrace {
+
+  private static final ThreadLocal<KeypressTrace> CURRENT = new ThreadLocal<>();
+
+  private final long receivedMillis = System.currentTimeMillis();
+  private final long receivedNanos;
+  private final int portValue;
+  private final long frameNumber;
+  private final int keyPressCount;
+  private long consoleId;
+  private long senderId;
+  private long validatedNanos;
+  private long broadcastNanos;
+  private long finishedNanos;
+  private final List<Recipient> recipients = Lists.newArrayListWithCapacity(4);
+
+  KeypressTrace(KeyStatePB first, int keyPressCount, long receivedNanos) {
+    this.receivedNanos = receivedNanos;
+    this.portValue = first.getPortValue();
+    this.frameNumber = first.getFrameNumber();
+    this.keyPressCount = keyPressCount;
+  }
+
+  /**
+   * Returns the trace of the event being relayed on this thread, or null if it is not sampled.
+   */
+  public static KeypressTrace current() {
+    return CURRENT.get();
+  }
+
+  static void setCurrent(KeypressTrace trace) {
+    if (trace == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(trace);
+    }
+  }
+
+  /**
+   * Stamps the event as validated by the client that sent it.
+   */
+  public void validated(long consoleId, long senderId) {
+    if (validatedNanos == 0) {
+      this.consoleId = consoleId;
+      this.senderId = senderId;
+      validatedNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Stamps the event as handed to its console for broadcast.
+   */
+  public void broadcast() {
+    if (broadcastNanos == 0) {
+      broadcastNanos = System.nanoTime();
+    }
+  }
+
+  /**
+   * Stamps the event as handed to a recipient.
+   */
+  public void enqueued(long clientId) {
+    recipients.add(new Recipient(clientId, System.nanoTime()));
+  }
+
+  /**
+   * Stamps the event as written to the transport of the recipient it was last handed to.
+   */
+  public void written() {
+    if (!recipients.isEmpty()) {
+      recipients.get(recipients.size() - 1).writtenNanos = System.nanoTime();
+    }
+  }
+
+  void finish(long finishedNanos) {
+    this.finishedNanos = finishedNanos;
+  }
+
+  public long getConsoleId() {
+    return consoleId;
+  }
+
+  public long getSenderId() {
+    return senderId;
+  }
+
+  /**
+   * Returns the trace with every stamp relative to when the event was received. Stages the event
+   * did not reach are 0.
+   */
+  public KeypressTracePB toProto() {
+    KeypressTracePB.Builder trace = KeypressTracePB.newBuilder().setConsoleId(consoleId)
+        .setClientId(senderId).setPort(portValue).setFrameNumber(frameNumber)
+        .setKeyPressCount(keyPressCount).setReceivedTimeMillis(receivedMillis)
+        .setValidatedNanos(since(validatedNanos)).setBroadcastNanos(since(broadcastNanos))
+        .setFinishedNanos(since(finishedNanos));
+    for (Recipient recipient : recipients) {
+      trace.addRecipients(RecipientTracePB.newBuilder().setClientId(recipient.clientId)
+          .setEnqueuedNanos(since(recipient.enqueuedNanos))
+          .setWrittenNanos(since(recipient.writtenNanos)));
+    }
+    return trace.build();
+  }
+
+  private long since(long stampNanos) {
+    return stampNanos == 0 ? 0 : stampNanos - receivedNanos;
+  }
+
+  private static class Recipient {
+    final long clientId;
+    final long enqueuedNanos;
+    long writtenNanos;
+
+    Recipient(long clientId, long enqueuedNanos) {
+      this.clientId = clientId;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package netplayServer.tracing;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.collect.Lists;
+
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+
+/**
+ * Samples keypress events for tracing and keeps the latest traces in a ring, so that when a
+ * player complains about lag the stage that added the time can be looked up. Events that are not
+ * sampled cost a random draw here and a thread local read at each stage.
+ */
+public class KeypressTracer {
+
+  /** One in this many keypress events is traced by default. */
+  public static final int DEFAULT_SAMPLE_RATE = 1000;
+
+  /** Number of traces kept, a power of two. */
+  public static final int RING_SIZE = 1024;
+
+  private volatile int sampleRate = DEFAULT_SAMPLE_RATE;
+  private final AtomicReferenceArray<KeypressTrace> ring = new AtomicReferenceArray<>(RING_SIZE);
+  private final AtomicLong recorded = new AtomicLong();
+
+  /**
+   * Traces one in the given number of keypress events from now on; 0 turns tracing off.
+   */
+  public void setSampleRate(int sampleRate) {
+    this.sampleRate = sampleRate;
+  }
+
+  /**
+   * Decides whether to trace an event received at the given time, and if so makes its trace the
+   * current one of this thread. Returns the trace, or null if the event is not sampled.
+   */
+  public KeypressTrace start(OutgoingEventPB event, long receivedNanos) {
+    int rate = sampleRate;
+    if (rate <= 0 || event.getKeyPressCount() == 0
+        || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0)) {
+      return null;
+    }
+    KeypressTrace trace = new KeypressTrace(event.getKeyPress(0), event.getKeyPressCount(),
+        receivedNanos);
+    KeypressTrace.setCurrent(trace);
+    return trace;
+  }
+
+  /**
+   * Ends the trace started on this thread once its event was relayed, and keeps it in the ring.
+   */
+  public void finish(KeypressTrace trace, long finishedNanos) {
+    KeypressTrace.setCurrent(null);
+    trace.finish(finishedNanos);
+    ring.set((int) (recorded.getAndIncrement() & (RING_SIZE - 1)), trace);
+  }
+
+  /**
+   * Returns the traces in the ring, newest first.
+   */
+  public List<KeypressTrace> getTraces() {
+    long end = recorded.get();
+    List<KeypressTrace> traces = Lists.newArrayList();
+    for (long i = end - 1; i >= Math.max(0, end - RING_SIZE); --i) {
+      KeypressTrace trace = ring.get((int) (i & (RING_SIZE - 1)));
+      if (trace != null) {
+        traces.add(trace);
+      }
+    }
+    return traces;
+  }
+}
@@ -0,0 +1,64 @@
+package netplayServer.transport;
+
+import java.io.File;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/**
+ * Serves and reaches the netplay services over a Unix domain socket, for clients running on the
+ * same host as the server. Requires Netty's native epoll transport, so Linux only.
+ */
+public class DomainSocketTransport {
+
+  private static EventLoopGroup clientGroup;
+
+  private DomainSocketTransport() {}
+
+  /**
+   * Returns true if the native transport could be loaded on this machine.
+   */
+  public static boolean isAvailable() {
+    return Epoll.isAvailable();
+  }
+
+  /**
+   * Returns a server builder listening on the socket file at the given path. A file left at that
+   * path by a previous run is removed first.
+   */
+  public static NettyServerBuilder serverBuilder(String path) {
+    new File(path).delete();
+    return NettyServerBuilder.forAddress(new DomainSocketAddress(path))
+        .channelType(EpollServerDomainSocketChannel.class)
+        .bossEventLoopGroup(new EpollEventLoopGroup(1, daemonThreads("netplay-uds-boss")))
+        .workerEventLoopGroup(new EpollEventLoopGroup(0, daemonThreads("netplay-uds")));
+  }
+
+  /**
+   * Returns a channel to a server listening on the socket file at the given path.
+   */
+  public static ManagedChannel channelTo(String path) {
+    return NettyChannelBuilder.forAddress(new DomainSocketAddress(path))
+        .channelType(EpollDomainSocketChannel.class).eventLoopGroup(clientGroup())
+        .usePlaintext(true).build();
+  }
+
+  private static synchronized EventLoopGroup clientGroup() {
+    if (clientGroup == null) {
+      clientGroup = new EpollEventLoopGroup(0, daemonThreads("netplay-uds-client"));
+    }
+    return clientGroup;
+  }
+
+  private static DefaultThreadFactory daemonThreads(String name) {
+    return new DefaultThreadFactory(name, true);
+  }
+}
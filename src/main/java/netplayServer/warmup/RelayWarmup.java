@@ -0,0 +1,198 @@
+package netplayServer.warmup;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.grpc.ManagedChannel;
+import io.grpc.internal.ServerImpl;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Server;
+import netplayServer.ServerStart;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetplayServiceProto.ClientReadyPB;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.MakeConsoleRequestPB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.PlugControllerResponsePB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StartGameRequestPB;
+import netplayprotos.NetplayServiceProto.StartGameResponsePB;
+
+/**
+ * Plays synthetic matches through the relay before the server opens its port, so that the first
+ * real matches do not run in the interpreter while the JIT compiles the relay, nor wait for its
+ * classes to load. Each match goes through makeConsole, plugController, ClientReadyPB and
+ * startGame, then its two players trade a few seconds' worth of keypresses as fast as they can.
+ *
+ * The matches are played against a throwaway server wired up like the real one and served on a
+ * loopback port, so the same code, transport included, is compiled while the real server's
+ * consoles and metrics are left untouched. Console and client ids are drawn from counters every
+ * server of the process shares, so the real server's first ids come after the warm-up's.
+ */
+public class RelayWarmup {
+
+  private static Log log = LogFactory.getLog(RelayWarmup.class);
+
+  public static final int DEFAULT_MATCHES = 40;
+
+  // Enough keypresses per match that the relay's methods are compiled by C2 over the warm-up.
+  private static final int FRAMES_PER_MATCH = 600;
+  private static final int CONCURRENT_MATCHES = 4;
+  private static final long MATCH_TIMEOUT_SECONDS = 30;
+  private static final Port[] PORTS = {Port.PORT_1, Port.PORT_2};
+
+  private final int matches;
+
+  public RelayWarmup(int matches) {
+    this.matches = matches;
+  }
+
+  /**
+   * Plays the matches and returns the time taken, in milliseconds. Throws if a match fails.
+   */
+  public long run() throws Exception {
+    long startMillis = System.currentTimeMillis();
+    Server server = new Server(false);
+    ServerImpl serverImpl = ServerStart.addServices(NettyServerBuilder.forAddress(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)), server).build();
+    server.setServerImpl(serverImpl);
+    serverImpl.start();
+    final ManagedChannel channel = NettyChannelBuilder
+        .forAddress(InetAddress.getLoopbackAddress().getHostAddress(), serverImpl.getPort())
+        .usePlaintext(true).directExecutor().build();
+    ExecutorService players = Executors.newFixedThreadPool(CONCURRENT_MATCHES,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("netplay-warmup-%d").build());
+    try {
+      List<Future<?>> played = Lists.newArrayList();
+      for (int i = 0; i < matches; ++i) {
+        played.add(players.submit(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              playMatch(channel);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        }));
+      }
+      for (Future<?> match : played) {
+        match.get();
+      }
+    } finally {
+      players.shutdownNow();
+      channel.shutdownNow();
+      serverImpl.shutdownNow();
+      server.getExecutionLanes().shutdown();
+      server.getScheduler().shutdownNow();
+    }
+    long elapsedMillis = System.currentTimeMillis() - startMillis;
+    log.info(String.format("Warmed up the relay with %d matches in %d ms", matches,
+        elapsedMillis));
+    return elapsedMillis;
+  }
+
+  private static void playMatch(ManagedChannel channel) throws InterruptedException {
+    NetPlayServerServiceBlockingStub control = NetPlayServerServiceGrpc.newBlockingStub(channel);
+    long consoleId =
+        control.makeConsole(MakeConsoleRequestPB.getDefaultInstance()).getConsoleId();
+    CountDownLatch started = new CountDownLatch(PORTS.length);
+    CountDownLatch finished = new CountDownLatch(PORTS.length);
+    List<Player> players = Lists.newArrayList();
+    for (Port port : PORTS) {
+      PlugControllerResponsePB plug = control.plugController(PlugControllerRequestPB.newBuilder()
+          .setConsoleId(consoleId).setRequestedPort1(port).build());
+      if (plug.getStatus() != PlugControllerResponsePB.Status.SUCCESS) {
+        throw new IllegalStateException("Warm-up plug failed: " + plug.getStatus());
+      }
+      players.add(new Player(channel, consoleId, plug.getClientId(), port, started, finished));
+    }
+    StartGameRequestPB startRequest =
+        StartGameRequestPB.newBuilder().setConsoleId(consoleId).build();
+    // The ready messages travel on other streams than startGame and may not have arrived.
+    while (control.startGame(startRequest).getStatus()
+        == StartGameResponsePB.Status.CLIENTS_NOT_READY) {
+      Thread.sleep(1);
+    }
+    if (!started.await(MATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Warm-up console " + consoleId + " did not start");
+    }
+    for (long frame = 1; frame <= FRAMES_PER_MATCH; ++frame) {
+      for (Player player : players) {
+        player.send(frame);
+      }
+    }
+    if (!finished.await(MATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Warm-up console " + consoleId + " did not relay");
+    }
+    for (Player player : players) {
+      player.stream.onCompleted();
+    }
+  }
+
+  /**
+   * A synthetic player, whose stream counts down its latches once its game started and once it
+   * received the other player's last frame.
+   */
+  private static class Player implements StreamObserver<IncomingEventPB> {
+    final StreamObserver<OutgoingEventPB> stream;
+    private final long consoleId;
+    private final Port port;
+    private final CountDownLatch started;
+    private final CountDownLatch finished;
+
+    Player(ManagedChannel channel, long consoleId, long clientId, Port port,
+        CountDownLatch started, CountDownLatch finished) {
+      this.consoleId = consoleId;
+      this.port = port;
+      this.started = started;
+      this.finished = finished;
+      this.stream = NetPlayServerServiceGrpc.newStub(channel).sendEvent(this);
+      stream.onNext(OutgoingEventPB.newBuilder().setClientReady(ClientReadyPB.newBuilder()
+          .setConsoleId(consoleId).setClientId(clientId)).build());
+    }
+
+    void send(long frame) {
+      stream.onNext(OutgoingEventPB.newBuilder().addKeyPress(KeyStatePB.newBuilder()
+          .setConsoleId(consoleId).setPort(port).setFrameNumber(frame).setKeys((int) frame))
+          .build());
+    }
+
+    @Override
+    public void onNext(IncomingEventPB value) {
+      if (value.hasStartGame()) {
+        started.countDown();
+      }
+      for (KeyStatePB keyPress : value.getKeyPressList()) {
+        if (keyPress.getFrameNumber() == FRAMES_PER_MATCH) {
+          finished.countDown();
+        }
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      log.warn("Warm-up stream failed", t);
+    }
+
+    @Override
+    public void onCompleted() {}
+  }
+}
@@ -0,0 +1,54 @@
+package netplayServer.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import netplayServer.Server;
+import netplayServer.checkpoint.RegistryCheckpoint;
+import netplayprotos.NetplayServiceProto.Port;
+
+/**
+ * Measures how long writing a checkpoint of many lobbies takes, how long a restarting server is
+ * held up loading it, and how long after that the lobbies are registered in the background. Each
+ * lobby has one client on one port, as most lobbies waiting for players do.
+ * 
+ * Usage: CheckpointBenchmark [lobbies] [rounds]
+ */
+public class CheckpointBenchmark {
+
+  private static final int DEFAULT_LOBBIES = 100000;
+  private static final int DEFAULT_ROUNDS = 5;
+
+  public static void main(String[] args) throws Exception {
+    int lobbies = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_LOBBIES;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+    File file = File.createTempFile("netplay-benchmark", ".checkpoint");
+    file.deleteOnExit();
+    Server server = new Server(false);
+    for (int i = 0; i < lobbies; ++i) {
+      server.createConsole().tryAddPlayers(1, Port.PORT_ANY);
+    }
+    RegistryCheckpoint checkpoint = new RegistryCheckpoint(server, file);
+    // The first rounds warm the code up; the last one counts.
+    for (int round = 1; round <= rounds; ++round) {
+      long start = System.nanoTime();
+      checkpoint.write();
+      long writeNanos = System.nanoTime() - start;
+
+      Server restarted = new Server(false);
+      start = System.nanoTime();
+      new RegistryCheckpoint(restarted, file).load();
+      long loadNanos = System.nanoTime() - start;
+      // The lobbies are built and registered on the scheduler once loaded.
+      restarted.getScheduler().shutdown();
+      restarted.getScheduler().awaitTermination(1, TimeUnit.MINUTES);
+      long registerNanos = System.nanoTime() - start;
+      System.out.println(String.format("round %d: %d lobbies, %d bytes, written in %d ms, "
+          + "loaded in %d us, registered in the background after %d ms", round,
+          restarted.getConsoleCount(), file.length(), TimeUnit.NANOSECONDS.toMillis(writeNanos),
+          TimeUnit.NANOSECONDS.toMicros(loadNanos), TimeUnit.NANOSECONDS.toMillis(registerNanos)));
+      restarted.getExecutionLanes().shutdown();
+    }
+  }
+}
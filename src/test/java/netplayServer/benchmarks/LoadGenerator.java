@@ -0,0 +1,275 @@
+package netplayServer.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.metrics.LatencyHistogram;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetplayServiceProto.ClientReadyPB;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.MakeConsoleRequestPB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.PlugControllerResponsePB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StartGameRequestPB;
+import netplayprotos.NetplayServiceProto.StartGameResponsePB;
+
+/**
+ * Finds how many matches one server sustains. Starts a server on a loopback port and adds matches
+ * of 2 to 4 clients, each going through makeConsole, plugController, ClientReadyPB on its event
+ * stream and startGame, then sending a keypress every frame at 60 Hz. After each step of matches
+ * is added, the relay latency of the keypresses, the CPU used per match and the share of
+ * keypresses delivered are measured; the load is sustainable while the 99th percentile stays
+ * within the budget and nearly every keypress arrives.
+ *
+ * The simulated clients run in the same process, so the CPU per match includes theirs and is an
+ * upper bound for the server's. Each keypress carries its send time, in microseconds since the
+ * run started, in its keys.
+ *
+ * Usage: LoadGenerator [maxMatches] [step] [stageSeconds] [p99BudgetMillis]
+ */
+public class LoadGenerator {
+
+  private static final int DEFAULT_MAX_MATCHES = 5000;
+  private static final int DEFAULT_STEP = 250;
+  private static final int DEFAULT_STAGE_SECONDS = 10;
+  // One frame: a keypress later than that holds up the next frame of every player.
+  private static final long DEFAULT_P99_BUDGET_MILLIS = 16;
+  private static final double MIN_DELIVERED = 0.99;
+  private static final int CHANNELS = 8;
+  private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / Console.FRAMES_PER_SECOND;
+  private static final Port[] PORTS = {Port.PORT_1, Port.PORT_2, Port.PORT_3, Port.PORT_4};
+
+  private static final long startNanos = System.nanoTime();
+
+  private final LocalServerNode node;
+  private final List<ManagedChannel> channels = Lists.newArrayList();
+  private final ScheduledExecutorService ticker;
+  private final List<Match> matches = Lists.newArrayList();
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final AtomicLong expected = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+
+  public static void main(String[] args) throws Exception {
+    int maxMatches = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MAX_MATCHES;
+    int step = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_STEP;
+    int stageSeconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_STAGE_SECONDS;
+    long budgetNanos = TimeUnit.MILLISECONDS
+        .toNanos(args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_P99_BUDGET_MILLIS);
+
+    LoadGenerator generator = new LoadGenerator(new LocalServerNode(new Server(false)));
+    int sustained = 0;
+    try {
+      System.out.println(String.format("%8s %8s %10s %10s %10s %12s %10s", "matches", "clients",
+          "p50(us)", "p99(us)", "p99.9(us)", "cpu/match(%)", "delivered"));
+      for (int target = step; target <= maxMatches; target += step) {
+        generator.addMatches(target - generator.matches.size());
+        if (!generator.measure(stageSeconds, budgetNanos)) {
+          break;
+        }
+        sustained = target;
+      }
+    } finally {
+      generator.shutdown();
+    }
+    System.out.println(String.format("Sustained %d matches within a p99 of %dms", sustained,
+        TimeUnit.NANOSECONDS.toMillis(budgetNanos)));
+    // Per-client executors are not daemons and would keep the JVM alive.
+    System.exit(0);
+  }
+
+  private LoadGenerator(LocalServerNode node) {
+    this.node = node;
+    for (int i = 0; i < CHANNELS; ++i) {
+      channels.add(node.newChannel());
+    }
+    ticker = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "load-ticker");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  private void shutdown() {
+    ticker.shutdownNow();
+    for (ManagedChannel channel : channels) {
+      channel.shutdownNow();
+    }
+    node.shutdown();
+  }
+
+  private void addMatches(int count) throws InterruptedException {
+    for (int i = 0; i < count; ++i) {
+      ManagedChannel channel = channels.get(matches.size() % channels.size());
+      Match match = new Match(channel, 2 + ThreadLocalRandom.current().nextInt(3));
+      match.start();
+      matches.add(match);
+    }
+  }
+
+  /**
+   * Lets the matches run for a second, then measures them for the given number of seconds and
+   * prints a line of results. Returns true if the load was sustained.
+   */
+  private boolean measure(int seconds, long budgetNanos) throws InterruptedException {
+    Thread.sleep(1000);
+    LatencyHistogram.Snapshot before = latency.snapshot();
+    long expectedBefore = expected.get();
+    long deliveredBefore = delivered.get();
+    long cpuBefore = processCpuNanos();
+    long wallBefore = System.nanoTime();
+    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+    long wall = System.nanoTime() - wallBefore;
+    long cpu = processCpuNanos() - cpuBefore;
+    LatencyHistogram.Snapshot stage = latency.snapshot().minus(before);
+    long expectedCount = expected.get() - expectedBefore;
+    double deliveredShare =
+        expectedCount == 0 ? 0 : (double) (delivered.get() - deliveredBefore) / expectedCount;
+    int clients = 0;
+    for (Match match : matches) {
+      clients += match.clients.size();
+    }
+
+    long p99 = stage.getValueAtPercentile(99);
+    System.out.println(String.format("%8d %8d %10.1f %10.1f %10.1f %12.2f %9.2f%%",
+        matches.size(), clients, stage.getValueAtPercentile(50) / 1000.0, p99 / 1000.0,
+        stage.getValueAtPercentile(99.9) / 1000.0, 100.0 * cpu / wall / matches.size(),
+        deliveredShare * 100));
+    return p99 <= budgetNanos && deliveredShare >= MIN_DELIVERED;
+  }
+
+  private static long processCpuNanos() {
+    return ((com.sun.management.OperatingSystemMXBean) ManagementFactory
+        .getOperatingSystemMXBean()).getProcessCpuTime();
+  }
+
+  /**
+   * Microseconds since the run started, truncated to the 32 bits of a keypress's keys. Differences
+   * stay right across the wrap, every 35 minutes.
+   */
+  private static int nowMicros() {
+    return (int) TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * A console and its clients, one per port, each with an event stream of its own.
+   */
+  private class Match implements Runnable {
+    private final NetPlayServerServiceBlockingStub control;
+    private final ManagedChannel channel;
+    private final int size;
+    private final List<SimulatedClient> clients = Lists.newArrayList();
+    private long consoleId;
+    private long frame;
+    private volatile ScheduledFuture<?> ticks;
+
+    Match(ManagedChannel channel, int size) {
+      this.channel = channel;
+      this.size = size;
+      this.control = NetPlayServerServiceGrpc.newBlockingStub(channel);
+    }
+
+    void start() throws InterruptedException {
+      consoleId = control.makeConsole(MakeConsoleRequestPB.getDefaultInstance()).getConsoleId();
+      CountDownLatch started = new CountDownLatch(size);
+      for (int slot = 0; slot < size; ++slot) {
+        PlugControllerResponsePB plug = control.plugController(PlugControllerRequestPB
+            .newBuilder().setConsoleId(consoleId).setRequestedPort1(PORTS[slot]).build());
+        if (plug.getStatus() != PlugControllerResponsePB.Status.SUCCESS) {
+          throw new IllegalStateException("Plugging a controller failed: " + plug.getStatus());
+        }
+        clients.add(new SimulatedClient(PORTS[slot], plug.getClientId(), started));
+      }
+      for (SimulatedClient client : clients) {
+        client.stream.onNext(OutgoingEventPB.newBuilder().setClientReady(ClientReadyPB
+            .newBuilder().setConsoleId(consoleId).setClientId(client.clientId)).build());
+      }
+      StartGameRequestPB startRequest =
+          StartGameRequestPB.newBuilder().setConsoleId(consoleId).build();
+      // The ready messages travel on other streams than startGame and may not have arrived.
+      while (control.startGame(startRequest).getStatus()
+          == StartGameResponsePB.Status.CLIENTS_NOT_READY) {
+        Thread.sleep(1);
+      }
+      if (!started.await(10, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Console " + consoleId + " did not start");
+      }
+      ticks = ticker.scheduleAtFixedRate(this, ThreadLocalRandom.current().nextLong(FRAME_NANOS),
+          FRAME_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends the keypress of every client for the next frame.
+     */
+    @Override
+    public void run() {
+      ++frame;
+      for (SimulatedClient client : clients) {
+        OutgoingEventPB event = OutgoingEventPB.newBuilder().addKeyPress(KeyStatePB.newBuilder()
+            .setConsoleId(consoleId).setPort(client.port).setFrameNumber(frame)
+            .setKeys(nowMicros())).build();
+        client.stream.onNext(event);
+        expected.addAndGet(size - 1);
+      }
+    }
+
+    private class SimulatedClient implements StreamObserver<IncomingEventPB> {
+      final Port port;
+      final long clientId;
+      final StreamObserver<OutgoingEventPB> stream;
+      private final CountDownLatch started;
+
+      SimulatedClient(Port port, long clientId, CountDownLatch started) {
+        this.port = port;
+        this.clientId = clientId;
+        this.started = started;
+        this.stream = NetPlayServerServiceGrpc.newStub(channel).sendEvent(this);
+      }
+
+      @Override
+      public void onNext(IncomingEventPB value) {
+        if (value.hasStartGame()) {
+          started.countDown();
+        }
+        int now = nowMicros();
+        for (KeyStatePB keyPress : value.getKeyPressList()) {
+          latency.record(TimeUnit.MICROSECONDS.toNanos(now - keyPress.getKeys()));
+        }
+        delivered.addAndGet(value.getKeyPressCount());
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        System.err.println("Stream of client " + clientId + " failed: " + t);
+        if (ticks != null) {
+          ticks.cancel(false);
+        }
+      }
+
+      @Override
+      public void onCompleted() {}
+    }
+  }
+}
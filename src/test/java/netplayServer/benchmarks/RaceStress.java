@@ -0,0 +1,353 @@
+package netplayServer.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Console;
+import netplayServer.PlugRequestException;
+import netplayServer.Server;
+import netplayprotos.NetplayServiceProto.ClientReadyPB;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StartGameRequestPB;
+import netplayprotos.NetplayServiceProto.StartGameResponsePB;
+import netplayprotos.NetplayServiceProto.StopConsolePB;
+
+/**
+ * Stresses the operations that race on a console and its clients, in the manner of jcstress: two
+ * threads released together run one operation each on fresh state, many times over, and the
+ * outcome of every trial is recorded. The outcomes seen are counted per case and judged acceptable
+ * or forbidden; the run fails if a forbidden one shows up. Where InterleavingTest explores the
+ * orders of stream writes, this runs the real threads, so it can also hit the races between two
+ * plain reads and writes, at the price of finding them only by chance. Run it on a box with
+ * several cores.
+ *
+ * Usage: RaceStress [trialsPerCase]
+ */
+public class RaceStress {
+
+  private static final int DEFAULT_TRIALS = 20000;
+
+  private final Server server;
+
+  public static void main(String[] args) throws Exception {
+    int trials = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_TRIALS;
+    // Every trial logs its clients' streams ending; only the outcomes matter here.
+    Logger.getLogger("").setLevel(Level.SEVERE);
+    RaceStress stress = new RaceStress();
+    boolean forbidden = false;
+    for (StressCase stressCase : stress.cases()) {
+      forbidden |= stress.run(stressCase, trials);
+    }
+    System.out.println(forbidden ? "FORBIDDEN outcomes seen" : "All outcomes acceptable");
+    System.exit(forbidden ? 1 : 0);
+  }
+
+  private RaceStress() {
+    server = new Server(false);
+    // Disconnected clients stay disconnected for the whole run.
+    server.setResumeGraceMillis(TimeUnit.DAYS.toMillis(1));
+  }
+
+  /**
+   * Two operations racing on fresh state, and the outcomes allowed once both are done.
+   */
+  private abstract static class StressCase {
+    final String name;
+    final ImmutableSet<String> acceptable;
+
+    StressCase(String name, String... acceptable) {
+      this.name = name;
+      this.acceptable = ImmutableSet.copyOf(acceptable);
+    }
+
+    abstract void setUp() throws Exception;
+
+    abstract void actor1();
+
+    abstract void actor2();
+
+    abstract String outcome();
+  }
+
+  /**
+   * A stream that records what it is sent and whether two calls ever overlapped, which a gRPC
+   * stream does not allow.
+   */
+  private static class RecordingStream implements StreamObserver<IncomingEventPB> {
+    final List<IncomingEventPB> events = Lists.newCopyOnWriteArrayList();
+    final AtomicInteger callers = new AtomicInteger();
+    volatile boolean overlapped = false;
+
+    @Override
+    public void onNext(IncomingEventPB value) {
+      if (callers.incrementAndGet() > 1) {
+        overlapped = true;
+      }
+      events.add(value);
+      callers.decrementAndGet();
+    }
+
+    @Override
+    public void onError(Throwable t) {}
+
+    @Override
+    public void onCompleted() {}
+
+    int count(boolean startGame) {
+      int count = 0;
+      for (IncomingEventPB event : events) {
+        if (startGame ? event.hasStartGame() : event.hasStopConsole()) {
+          count++;
+        }
+      }
+      return count;
+    }
+  }
+
+  private Client client(Console console, Port port, RecordingStream stream, boolean ready)
+      throws PlugRequestException {
+    Client client = console.tryAddPlayers(0, port);
+    client.setStreamObserver(stream);
+    if (ready) {
+      client.setReady();
+    }
+    return client;
+  }
+
+  private List<StressCase> cases() {
+    List<StressCase> cases = Lists.newArrayList();
+    cases.add(new StressCase("ready message vs stream end", "DONE") {
+      Client client;
+
+      @Override
+      void setUp() throws Exception {
+        client = client(server.createConsole(), Port.PORT_1, new RecordingStream(), false);
+      }
+
+      @Override
+      void actor1() {
+        client.onNext(OutgoingEventPB.newBuilder().setClientReady(ClientReadyPB.newBuilder()
+            .setConsoleId(client.getConsoleId()).setClientId(client.getId())).build());
+      }
+
+      @Override
+      void actor2() {
+        client.onCompleted();
+      }
+
+      @Override
+      String outcome() {
+        return client.getStatus().name();
+      }
+    });
+    cases.add(new StressCase("start game vs stream error", "DISCONNECTED") {
+      Console console;
+      Client client;
+
+      @Override
+      void setUp() throws Exception {
+        console = server.createConsole();
+        client = client(console, Port.PORT_1, new RecordingStream(), true);
+      }
+
+      @Override
+      void actor1() {
+        console.broadcastStartGame();
+      }
+
+      @Override
+      void actor2() {
+        client.onError(Status.UNAVAILABLE.asRuntimeException());
+      }
+
+      @Override
+      String outcome() {
+        return client.getStatus().name();
+      }
+    });
+    cases.add(new StressCase("stop vs plug", "rejected", "plugged DONE") {
+      Console console;
+      Client requester;
+      Client plugged;
+
+      @Override
+      void setUp() throws Exception {
+        console = server.createConsole();
+        requester = client(console, Port.PORT_1, new RecordingStream(), true);
+        client(console, Port.PORT_2, new RecordingStream(), true);
+        plugged = null;
+      }
+
+      @Override
+      void actor1() {
+        console.broadcastStopConsole(StopConsolePB.Reason.ERROR, requester);
+      }
+
+      @Override
+      void actor2() {
+        try {
+          plugged = console.tryAddPlayers(0, Port.PORT_3);
+        } catch (PlugRequestException e) {
+          plugged = null;
+        }
+      }
+
+      @Override
+      String outcome() {
+        return plugged == null ? "rejected" : "plugged " + plugged.getStatus();
+      }
+    });
+    cases.add(new StressCase("start game vs start game", "1 1") {
+      Console console;
+      RecordingStream first;
+      RecordingStream second;
+
+      @Override
+      void setUp() throws Exception {
+        console = server.createConsole();
+        first = new RecordingStream();
+        second = new RecordingStream();
+        client(console, Port.PORT_1, first, true);
+        client(console, Port.PORT_2, second, true);
+      }
+
+      @Override
+      void actor1() {
+        start();
+      }
+
+      @Override
+      void actor2() {
+        start();
+      }
+
+      private void start() {
+        server.startGame(StartGameRequestPB.newBuilder().setConsoleId(console.getId()).build(),
+            new StreamObserver<StartGameResponsePB>() {
+              @Override
+              public void onNext(StartGameResponsePB value) {}
+
+              @Override
+              public void onError(Throwable t) {}
+
+              @Override
+              public void onCompleted() {}
+            });
+      }
+
+      @Override
+      String outcome() {
+        return first.count(true) + " " + second.count(true);
+      }
+    });
+    cases.add(new StressCase("keypress vs stop", "stop last") {
+      Console console;
+      Client sender;
+      RecordingStream receiver;
+
+      @Override
+      void setUp() throws Exception {
+        console = server.createConsole();
+        receiver = new RecordingStream();
+        sender = client(console, Port.PORT_1, new RecordingStream(), true);
+        client(console, Port.PORT_2, receiver, true);
+      }
+
+      @Override
+      void actor1() {
+        sender.onNext(OutgoingEventPB.newBuilder().addKeyPress(KeyStatePB.newBuilder()
+            .setConsoleId(console.getId()).setPort(Port.PORT_1).setFrameNumber(1)).build());
+      }
+
+      @Override
+      void actor2() {
+        console.stop(StopConsolePB.Reason.USER_REQUESTED);
+      }
+
+      @Override
+      String outcome() {
+        if (receiver.overlapped) {
+          return "overlapping writes";
+        }
+        List<IncomingEventPB> events = receiver.events;
+        return events.get(events.size() - 1).hasStopConsole() ? "stop last" : "keypress after stop";
+      }
+    });
+    return cases;
+  }
+
+  /**
+   * Runs the trials of one case and prints the outcomes seen. Returns true if any is forbidden.
+   */
+  private boolean run(StressCase stressCase, int trials) throws Exception {
+    // Both actors are released together once a trial is set up, and the trial ends when both
+    // are done; this thread sets up and reads the outcomes.
+    CyclicBarrier start = new CyclicBarrier(3);
+    CyclicBarrier end = new CyclicBarrier(3);
+    Thread[] actors = {actorThread(stressCase, true, start, end),
+        actorThread(stressCase, false, start, end)};
+    Map<String, Integer> outcomes = Maps.newTreeMap();
+    for (int trial = 0; trial < trials; ++trial) {
+      stressCase.setUp();
+      start.await();
+      end.await();
+      String outcome = stressCase.outcome();
+      Integer count = outcomes.get(outcome);
+      outcomes.put(outcome, count == null ? 1 : count + 1);
+    }
+    for (Thread actor : actors) {
+      actor.interrupt();
+    }
+
+    boolean forbidden = false;
+    System.out.println(stressCase.name);
+    for (Map.Entry<String, Integer> outcome : outcomes.entrySet()) {
+      boolean acceptable = stressCase.acceptable.contains(outcome.getKey());
+      forbidden |= !acceptable;
+      System.out.println(String.format("  %-22s %9d  %s", outcome.getKey(), outcome.getValue(),
+          acceptable ? "ACCEPTABLE" : "FORBIDDEN"));
+    }
+    return forbidden;
+  }
+
+  private static Thread actorThread(final StressCase stressCase, final boolean first,
+      final CyclicBarrier start, final CyclicBarrier end) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            start.await();
+            if (first) {
+              stressCase.actor1();
+            } else {
+              stressCase.actor2();
+            }
+            end.await();
+          }
+        } catch (InterruptedException | BrokenBarrierException e) {
+          // The case is done.
+        }
+      }
+    }, "race-stress-actor-" + (first ? 1 : 2));
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+}
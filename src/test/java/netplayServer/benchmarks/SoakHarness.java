@@ -0,0 +1,315 @@
+package netplayServer.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Server;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetplayServiceProto.ClientReadyPB;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.MakeConsoleRequestPB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StartGameRequestPB;
+import netplayprotos.NetplayServiceProto.StartGameResponsePB;
+
+/**
+ * Churns matches through a local server for a long time and fails if the server leaks. Each round
+ * plays a batch of two-player matches over one channel and ends each of them one of several
+ * ways: both players close their streams after the game, one player's stream fails, one player
+ * closes its stream before the game starts, one player never connects, or both players stop
+ * sending without closing their streams. Once the server removed the round's consoles, the live
+ * threads, the heap used after a full GC and the number of registered consoles are sampled.
+ *
+ * After the first tenth of the run, or 20 rounds, which warm up the JIT and the pools, a line is
+ * fitted through each series; the run fails if the fitted growth over the measured rounds exceeds
+ * a few threads, a tenth of the heap or one console. The server is given short resume grace and
+ * idle timeouts so that the abnormal endings are cleaned up within a round.
+ *
+ * Usage: SoakHarness [minutes] [matchesPerRound]
+ */
+public class SoakHarness {
+
+  private static final int DEFAULT_MINUTES = 120;
+  private static final int DEFAULT_MATCHES_PER_ROUND = 50;
+  private static final int FRAMES = 30;
+  // Rounds left out of the trends at least, while the JIT and the pools warm up.
+  private static final int WARMUP_ROUNDS = 20;
+  private static final long RESUME_GRACE_MILLIS = 200;
+  private static final long IDLE_MILLIS = 1000;
+  // Longest a round waits for the server to remove its consoles.
+  private static final long SETTLE_MILLIS = 10000;
+  private static final double THREAD_TOLERANCE = 4;
+  private static final double HEAP_TOLERANCE = 0.1;
+  private static final double CONSOLE_TOLERANCE = 1;
+
+  private enum Ending {
+    COMPLETED, ERROR, COMPLETED_BEFORE_START, NEVER_READY, ABANDONED
+  }
+
+  private final LocalServerNode node;
+  private final Server server;
+  // A single connection, so that the event loops of new connections are not taken for a leak.
+  private final ManagedChannel channel;
+  private final NetPlayServerServiceBlockingStub control;
+  private final List<double[]> samples = Lists.newArrayList();
+
+  public static void main(String[] args) throws Exception {
+    int minutes = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MINUTES;
+    int matchesPerRound = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MATCHES_PER_ROUND;
+
+    Server server = new Server(false);
+    server.setResumeGraceMillis(RESUME_GRACE_MILLIS);
+    server.getConsoleReaper().start(IDLE_MILLIS);
+    SoakHarness harness = new SoakHarness(new LocalServerNode(server));
+    boolean leaked;
+    try {
+      leaked = harness.run(TimeUnit.MINUTES.toNanos(minutes), matchesPerRound);
+    } finally {
+      harness.channel.shutdownNow();
+      harness.node.shutdown();
+    }
+    System.exit(leaked ? 1 : 0);
+  }
+
+  private SoakHarness(LocalServerNode node) {
+    this.node = node;
+    this.server = node.getServer();
+    this.channel = node.newChannel();
+    this.control = NetPlayServerServiceGrpc.newBlockingStub(channel);
+  }
+
+  /**
+   * Plays rounds until the duration passed, then reports the trends. Returns true if any
+   * resource grew.
+   */
+  private boolean run(long durationNanos, int matchesPerRound) throws Exception {
+    long deadline = System.nanoTime() + durationNanos;
+    System.out.println(String.format("%6s %8s %10s %9s", "round", "threads", "heap(MB)",
+        "consoles"));
+    for (int round = 0; System.nanoTime() < deadline; ++round) {
+      playRound(round, matchesPerRound);
+      double[] sample = sample();
+      samples.add(sample);
+      if (round % 10 == 0) {
+        System.out.println(String.format("%6d %8.0f %10.1f %9.0f", round, sample[0],
+            sample[1] / (1 << 20), sample[2]));
+      }
+    }
+
+    int warmup = Math.max(samples.size() / 10, WARMUP_ROUNDS);
+    if (samples.size() - warmup < 3) {
+      System.out.println("Too few rounds to tell a trend, run for longer");
+      return false;
+    }
+    List<double[]> measured = samples.subList(warmup, samples.size());
+    double heapMean = 0;
+    for (double[] sample : measured) {
+      heapMean += sample[1] / measured.size();
+    }
+    boolean leaked = report("threads", growth(measured, 0), THREAD_TOLERANCE);
+    leaked |= report("heap(MB)", growth(measured, 1) / (1 << 20),
+        HEAP_TOLERANCE * heapMean / (1 << 20));
+    leaked |= report("consoles", growth(measured, 2), CONSOLE_TOLERANCE);
+    System.out.println(leaked ? "LEAK" : "No growth over " + measured.size() + " rounds");
+    return leaked;
+  }
+
+  private static boolean report(String name, double growth, double tolerance) {
+    boolean leaked = growth > tolerance;
+    System.out.println(String.format("%-9s grew by %.1f over the run (tolerance %.1f)%s", name,
+        growth, tolerance, leaked ? "  LEAK" : ""));
+    return leaked;
+  }
+
+  /**
+   * Returns the growth of one series over the given samples, from a least squares fit.
+   */
+  private static double growth(List<double[]> samples, int series) {
+    int n = samples.size();
+    double meanX = (n - 1) / 2.0;
+    double meanY = 0;
+    for (double[] sample : samples) {
+      meanY += sample[series] / n;
+    }
+    double covariance = 0;
+    double variance = 0;
+    for (int x = 0; x < n; ++x) {
+      covariance += (x - meanX) * (samples.get(x)[series] - meanY);
+      variance += (x - meanX) * (x - meanX);
+    }
+    return covariance / variance * (n - 1);
+  }
+
+  /**
+   * Waits for the server to remove every console, then returns the live threads, the heap used
+   * after a full GC, and the consoles left.
+   */
+  private double[] sample() throws InterruptedException {
+    long settleBy = System.currentTimeMillis() + SETTLE_MILLIS;
+    while (server.getConsoleCount() > 0 && System.currentTimeMillis() < settleBy) {
+      Thread.sleep(50);
+    }
+    System.gc();
+    System.gc();
+    return new double[] {ManagementFactory.getThreadMXBean().getThreadCount(),
+        ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+        server.getConsoleCount()};
+  }
+
+  private void playRound(int round, int matchCount) throws Exception {
+    List<Match> matches = Lists.newArrayList();
+    Ending[] endings = Ending.values();
+    for (int i = 0; i < matchCount; ++i) {
+      Match match = new Match(channel, control, endings[(round + i) % endings.length]);
+      match.connect();
+      matches.add(match);
+    }
+    for (Match match : matches) {
+      match.start();
+    }
+    for (int frame = 1; frame <= FRAMES; ++frame) {
+      for (Match match : matches) {
+        match.play(frame);
+      }
+      Thread.sleep(16);
+    }
+    for (Match match : matches) {
+      match.end();
+    }
+  }
+
+  /**
+   * A console with two players, each on a stream of its own unless it never connects.
+   */
+  private static class Match {
+    private final ManagedChannel channel;
+    private final NetPlayServerServiceBlockingStub control;
+    private final Ending ending;
+    private final List<Player> players = Lists.newArrayList();
+    private long consoleId;
+    private boolean started;
+
+    Match(ManagedChannel channel, NetPlayServerServiceBlockingStub control, Ending ending) {
+      this.channel = channel;
+      this.control = control;
+      this.ending = ending;
+    }
+
+    void connect() {
+      consoleId = control.makeConsole(MakeConsoleRequestPB.getDefaultInstance()).getConsoleId();
+      for (Port port : new Port[] {Port.PORT_1, Port.PORT_2}) {
+        long clientId = control.plugController(PlugControllerRequestPB.newBuilder()
+            .setConsoleId(consoleId).setRequestedPort1(port).build()).getClientId();
+        if (ending == Ending.NEVER_READY && port == Port.PORT_2) {
+          continue;
+        }
+        players.add(new Player(port, clientId));
+      }
+      if (ending == Ending.COMPLETED_BEFORE_START) {
+        players.remove(1).stream.onCompleted();
+      }
+    }
+
+    void start() throws InterruptedException {
+      if (ending == Ending.NEVER_READY || ending == Ending.COMPLETED_BEFORE_START) {
+        return;
+      }
+      StartGameRequestPB request = StartGameRequestPB.newBuilder().setConsoleId(consoleId).build();
+      long giveUpAt = System.currentTimeMillis() + SETTLE_MILLIS;
+      while (control.startGame(request).getStatus() != StartGameResponsePB.Status.SUCCESS) {
+        if (System.currentTimeMillis() > giveUpAt) {
+          throw new IllegalStateException("Console " + consoleId + " did not start");
+        }
+        Thread.sleep(1);
+      }
+      started = true;
+    }
+
+    void play(long frame) {
+      if (!started) {
+        return;
+      }
+      for (Player player : players) {
+        player.send(frame);
+      }
+    }
+
+    void end() {
+      switch (ending) {
+        case COMPLETED:
+          for (Player player : players) {
+            player.complete();
+          }
+          break;
+        case ERROR:
+          players.get(0).fail();
+          break;
+        default:
+          // The rest is left to the server: a lobby that never starts, or a game nobody plays
+          // any more, is stopped once idle, after which the players close their streams.
+          break;
+      }
+    }
+
+    private class Player implements StreamObserver<IncomingEventPB> {
+      private final Port port;
+      private final StreamObserver<OutgoingEventPB> stream;
+      private boolean closed;
+
+      Player(Port port, long clientId) {
+        this.port = port;
+        this.stream = NetPlayServerServiceGrpc.newStub(channel).sendEvent(this);
+        stream.onNext(OutgoingEventPB.newBuilder().setClientReady(ClientReadyPB.newBuilder()
+            .setConsoleId(consoleId).setClientId(clientId)).build());
+      }
+
+      synchronized void send(long frame) {
+        if (!closed) {
+          stream.onNext(OutgoingEventPB.newBuilder().addKeyPress(KeyStatePB.newBuilder()
+              .setConsoleId(consoleId).setPort(port).setFrameNumber(frame)).build());
+        }
+      }
+
+      synchronized void complete() {
+        if (!closed) {
+          closed = true;
+          stream.onCompleted();
+        }
+      }
+
+      synchronized void fail() {
+        if (!closed) {
+          closed = true;
+          stream.onError(new IllegalStateException("Simulated client failure"));
+        }
+      }
+
+      @Override
+      public void onNext(IncomingEventPB value) {
+        if (value.hasStopConsole()) {
+          complete();
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        synchronized (this) {
+          closed = true;
+        }
+      }
+
+      @Override
+      public void onCompleted() {}
+    }
+  }
+}
@@ -0,0 +1,331 @@
+package netplayServer.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Console;
+import netplayServer.metrics.LatencyHistogram;
+import netplayServer.warmup.RelayWarmup;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetplayServiceProto.ClientReadyPB;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.MakeConsoleRequestPB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StartGameRequestPB;
+import netplayprotos.NetplayServiceProto.StartGameResponsePB;
+
+/**
+ * Measures what a freshly started server costs its first match, with and without the relay
+ * warm-up and a class data sharing archive. Each run starts the server in a JVM of its own from the
+ * jars of the distribution and times how long it takes to accept connections, then plays one
+ * two-player match at 60 Hz for a few seconds and measures the relay latency of its keypresses,
+ * which is highest while the relay still runs in the interpreter. The variants take turns, and the
+ * medians over the runs are printed.
+ *
+ * The archive is built in a temporary directory the same way the cdsArchive task builds it, from
+ * the classes a warmed up server loads. The matches of this process are warmed up against a
+ * server of its own first, so that only the server under test starts cold.
+ *
+ * Usage: StartupBenchmark libDir [runs] [warmupMatches]
+ */
+public class StartupBenchmark {
+
+  private static final int DEFAULT_RUNS = 5;
+  private static final int FRAMES = 3 * Console.FRAMES_PER_SECOND;
+  private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / Console.FRAMES_PER_SECOND;
+  private static final long READY_TIMEOUT_MILLIS = 120000;
+  private static final Port[] PORTS = {Port.PORT_1, Port.PORT_2};
+
+  private static final long startNanos = System.nanoTime();
+
+  private final String java =
+      new File(System.getProperty("java.home"), "bin/java").getAbsolutePath();
+  private final String classpath;
+  private final File workDir;
+
+  /**
+   * A way of starting the server: extra JVM options and extra server arguments.
+   */
+  private static class Variant {
+    final String name;
+    final List<String> jvmOptions;
+    final List<String> serverArgs;
+    final List<Long> readyMillis = Lists.newArrayList();
+    final List<Long> setupMillis = Lists.newArrayList();
+    final List<Long> p50Micros = Lists.newArrayList();
+    final List<Long> p99Micros = Lists.newArrayList();
+
+    Variant(String name, List<String> jvmOptions, List<String> serverArgs) {
+      this.name = name;
+      this.jvmOptions = jvmOptions;
+      this.serverArgs = serverArgs;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: StartupBenchmark libDir [runs] [warmupMatches]");
+      System.exit(2);
+    }
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RUNS;
+    int warmupMatches = args.length > 2 ? Integer.parseInt(args[2]) : RelayWarmup.DEFAULT_MATCHES;
+
+    StartupBenchmark benchmark = new StartupBenchmark(new File(args[0]));
+    String archive = benchmark.buildArchive(warmupMatches);
+    List<String> warmup = ImmutableList.of("--warmupMatches", Integer.toString(warmupMatches));
+    List<String> shared = ImmutableList.of("-Xshare:auto", "-XX:SharedArchiveFile=" + archive);
+    List<String> none = ImmutableList.of();
+    List<Variant> variants = ImmutableList.of(new Variant("cold", none, none),
+        new Variant("warm-up", none, warmup), new Variant("cds", shared, none),
+        new Variant("cds+warm-up", shared, warmup));
+
+    new RelayWarmup(RelayWarmup.DEFAULT_MATCHES).run();
+    for (int run = 0; run < runs; ++run) {
+      for (Variant variant : variants) {
+        benchmark.measure(variant);
+      }
+    }
+
+    System.out.println(String.format("%-12s %10s %15s %10s %10s", "variant", "ready(ms)",
+        "first match(ms)", "p50(us)", "p99(us)"));
+    for (Variant variant : variants) {
+      System.out.println(String.format("%-12s %10d %15d %10d %10d", variant.name,
+          median(variant.readyMillis), median(variant.setupMillis), median(variant.p50Micros),
+          median(variant.p99Micros)));
+    }
+    // Channel executors are not daemons and would keep the JVM alive.
+    System.exit(0);
+  }
+
+  private StartupBenchmark(File libDir) {
+    File[] jars = libDir.listFiles();
+    if (jars == null || jars.length == 0) {
+      throw new IllegalArgumentException("No jars in " + libDir);
+    }
+    // The archive only covers classes loaded from jars, in the order of the class path.
+    List<String> paths = Lists.newArrayList();
+    for (File jar : jars) {
+      if (jar.getName().endsWith(".jar")) {
+        paths.add(jar.getAbsolutePath());
+      }
+    }
+    Collections.sort(paths);
+    this.classpath = Joiner.on(File.pathSeparator).join(paths);
+    this.workDir = Files.createTempDir();
+  }
+
+  /**
+   * Dumps the classes a server loads while it warms up, then archives them. Returns the path of
+   * the archive.
+   */
+  private String buildArchive(int warmupMatches) throws IOException, InterruptedException {
+    File classList = new File(workDir, "classes.lst");
+    File archive = new File(workDir, "netplay-server.jsa");
+    exec(ImmutableList.of("-XX:DumpLoadedClassList=" + classList.getAbsolutePath()),
+        ImmutableList.of("--warmupMatches", Integer.toString(warmupMatches), "--exitAfterWarmup"));
+    List<String> dump = Lists.newArrayList(java, "-Xshare:dump",
+        "-XX:SharedClassListFile=" + classList.getAbsolutePath(),
+        "-XX:SharedArchiveFile=" + archive.getAbsolutePath(), "-cp", classpath);
+    new ProcessBuilder(dump).redirectErrorStream(true)
+        .redirectOutput(new File(workDir, "dump.log")).start().waitFor();
+    if (!archive.exists()) {
+      throw new IllegalStateException("No archive was dumped; see " + workDir + "/dump.log");
+    }
+    return archive.getAbsolutePath();
+  }
+
+  /**
+   * Starts a server, times it until it accepts connections and through its first match, and
+   * stops it.
+   */
+  private void measure(Variant variant) throws Exception {
+    int port = findFreePort();
+    List<String> serverArgs = Lists.newArrayList("-p", Integer.toString(port));
+    serverArgs.addAll(variant.serverArgs);
+    long spawnNanos = System.nanoTime();
+    Process server = start(variant.jvmOptions, serverArgs);
+    try {
+      awaitListening(server, port);
+      variant.readyMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - spawnNanos));
+      ManagedChannel channel =
+          NettyChannelBuilder.forAddress("localhost", port).usePlaintext(true).build();
+      try {
+        playFirstMatch(channel, variant);
+      } finally {
+        channel.shutdownNow();
+      }
+    } finally {
+      server.destroy();
+      server.waitFor();
+    }
+  }
+
+  private Process start(List<String> jvmOptions, List<String> serverArgs) throws IOException {
+    List<String> command = Lists.newArrayList(java);
+    command.addAll(jvmOptions);
+    command.add("-cp");
+    command.add(classpath);
+    command.add("netplayServer.ServerStart");
+    command.addAll(serverArgs);
+    return new ProcessBuilder(command).redirectErrorStream(true)
+        .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(workDir, "server.log")))
+        .start();
+  }
+
+  private void exec(List<String> jvmOptions, List<String> serverArgs)
+      throws IOException, InterruptedException {
+    int status = start(jvmOptions, serverArgs).waitFor();
+    if (status != 0) {
+      throw new IllegalStateException("Server exited with " + status + "; see " + workDir
+          + "/server.log");
+    }
+  }
+
+  private static void awaitListening(Process server, int port) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + READY_TIMEOUT_MILLIS;
+    while (System.currentTimeMillis() < deadline) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress("localhost", port), 100);
+        return;
+      } catch (IOException e) {
+        // Not listening yet.
+      }
+      if (!server.isAlive()) {
+        throw new IllegalStateException("Server exited with " + server.exitValue());
+      }
+      Thread.sleep(2);
+    }
+    throw new IllegalStateException("Server did not listen on port " + port);
+  }
+
+  /**
+   * Plays one match through the server: records the time from makeConsole until both players'
+   * games started, and the relay latency of every keypress sent over the following frames.
+   */
+  private static void playFirstMatch(ManagedChannel channel, Variant variant)
+      throws InterruptedException {
+    long setupNanos = System.nanoTime();
+    NetPlayServerServiceBlockingStub control = NetPlayServerServiceGrpc.newBlockingStub(channel);
+    long consoleId =
+        control.makeConsole(MakeConsoleRequestPB.getDefaultInstance()).getConsoleId();
+    LatencyHistogram latency = new LatencyHistogram();
+    CountDownLatch started = new CountDownLatch(PORTS.length);
+    CountDownLatch finished = new CountDownLatch(PORTS.length);
+    List<StreamObserver<OutgoingEventPB>> streams = Lists.newArrayList();
+    for (Port port : PORTS) {
+      long clientId = control.plugController(PlugControllerRequestPB.newBuilder()
+          .setConsoleId(consoleId).setRequestedPort1(port).build()).getClientId();
+      StreamObserver<OutgoingEventPB> stream = NetPlayServerServiceGrpc.newStub(channel)
+          .sendEvent(new Receiver(latency, started, finished));
+      stream.onNext(OutgoingEventPB.newBuilder().setClientReady(ClientReadyPB.newBuilder()
+          .setConsoleId(consoleId).setClientId(clientId)).build());
+      streams.add(stream);
+    }
+    StartGameRequestPB startRequest =
+        StartGameRequestPB.newBuilder().setConsoleId(consoleId).build();
+    // The ready messages travel on other streams than startGame and may not have arrived.
+    while (control.startGame(startRequest).getStatus()
+        == StartGameResponsePB.Status.CLIENTS_NOT_READY) {
+      Thread.sleep(1);
+    }
+    if (!started.await(READY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+      throw new IllegalStateException("The first match did not start");
+    }
+    variant.setupMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupNanos));
+
+    long nextFrame = System.nanoTime();
+    for (int frame = 1; frame <= FRAMES; ++frame) {
+      for (int player = 0; player < PORTS.length; ++player) {
+        streams.get(player).onNext(OutgoingEventPB.newBuilder().addKeyPress(KeyStatePB
+            .newBuilder().setConsoleId(consoleId).setPort(PORTS[player]).setFrameNumber(frame)
+            .setKeys(nowMicros())).build());
+      }
+      nextFrame += FRAME_NANOS;
+      TimeUnit.NANOSECONDS.sleep(nextFrame - System.nanoTime());
+    }
+    if (!finished.await(READY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+      throw new IllegalStateException("The first match did not relay every frame");
+    }
+    for (StreamObserver<OutgoingEventPB> stream : streams) {
+      stream.onCompleted();
+    }
+    LatencyHistogram.Snapshot snapshot = latency.snapshot();
+    variant.p50Micros.add(TimeUnit.NANOSECONDS.toMicros(snapshot.getValueAtPercentile(50)));
+    variant.p99Micros.add(TimeUnit.NANOSECONDS.toMicros(snapshot.getValueAtPercentile(99)));
+  }
+
+  /**
+   * A player's stream, which records the latency of the keypresses relayed to it.
+   */
+  private static class Receiver implements StreamObserver<IncomingEventPB> {
+    private final LatencyHistogram latency;
+    private final CountDownLatch started;
+    private final CountDownLatch finished;
+
+    Receiver(LatencyHistogram latency, CountDownLatch started, CountDownLatch finished) {
+      this.latency = latency;
+      this.started = started;
+      this.finished = finished;
+    }
+
+    @Override
+    public void onNext(IncomingEventPB value) {
+      if (value.hasStartGame()) {
+        started.countDown();
+      }
+      int now = nowMicros();
+      for (KeyStatePB keyPress : value.getKeyPressList()) {
+        latency.record(TimeUnit.MICROSECONDS.toNanos(now - keyPress.getKeys()));
+        if (keyPress.getFrameNumber() == FRAMES) {
+          finished.countDown();
+        }
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      System.err.println("First match stream failed: " + t);
+    }
+
+    @Override
+    public void onCompleted() {}
+  }
+
+  /**
+   * Microseconds since the run started, truncated to the 32 bits of a keypress's keys.
+   */
+  private static int nowMicros() {
+    return (int) TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+  }
+
+  private static long median(List<Long> values) {
+    List<Long> sorted = Lists.newArrayList(values);
+    Collections.sort(sorted);
+    return sorted.get(sorted.size() / 2);
+  }
+
+  private static int findFreePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package netplayServer.benchmarks;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.transport.DomainSocketTransport;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetplayServiceProto.ClientReadyPB;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.MakeConsoleRequestPB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.PlugControllerResponsePB;
+import netplayprotos.NetplayServiceProto.Port;
+
+/**
+ * Measures how long a keypress takes to go from one client, through the server, to the other
+ * client of a console, with both clients connected over TCP loopback and then over a Unix domain
+ * socket. Frames are sent one at a time, each after the previous one arrived, so the numbers are
+ * pure relay latency without queueing.
+ * 
+ * Usage: TransportLatencyBenchmark [frames] [warmupFrames]
+ */
+public class TransportLatencyBenchmark {
+
+  private static final int DEFAULT_FRAMES = 20000;
+  private static final int DEFAULT_WARMUP_FRAMES = 5000;
+
+  public static void main(String[] args) throws Exception {
+    int frames = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FRAMES;
+    int warmupFrames = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WARMUP_FRAMES;
+
+    LocalServerNode node = new LocalServerNode(new Server(false));
+    boolean domainSockets = DomainSocketTransport.isAvailable();
+    if (domainSockets) {
+      File socket = File.createTempFile("netplay-benchmark", ".sock");
+      socket.deleteOnExit();
+      node.listenOnDomainSocket(socket.getPath());
+    } else {
+      System.out.println("Native epoll transport unavailable, measuring TCP only");
+    }
+
+    try {
+      // Warm both paths up before measuring either.
+      measure(node, node.newChannel(), warmupFrames);
+      if (domainSockets) {
+        measure(node, node.newDomainSocketChannel(), warmupFrames);
+      }
+      report("tcp loopback", measure(node, node.newChannel(), frames));
+      if (domainSockets) {
+        report("unix socket", measure(node, node.newDomainSocketChannel(), frames));
+      }
+    } finally {
+      node.shutdown();
+    }
+    // Per-client executors are not daemons and would keep the JVM alive.
+    System.exit(0);
+  }
+
+  private static class EventQueue implements StreamObserver<IncomingEventPB> {
+    final BlockingQueue<IncomingEventPB> events = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onNext(IncomingEventPB value) {
+      events.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {}
+
+    @Override
+    public void onCompleted() {}
+  }
+
+  /**
+   * Relays the given number of frames between two clients on the channel and returns the latency
+   * of each, in nanoseconds.
+   */
+  private static long[] measure(LocalServerNode node, ManagedChannel channel, int frames)
+      throws Exception {
+    NetPlayServerServiceBlockingStub control = NetPlayServerServiceGrpc.newBlockingStub(channel);
+    long consoleId =
+        control.makeConsole(MakeConsoleRequestPB.getDefaultInstance()).getConsoleId();
+    PlugControllerResponsePB plug1 = control.plugController(PlugControllerRequestPB.newBuilder()
+        .setConsoleId(consoleId).setRequestedPort1(Port.PORT_1).build());
+    PlugControllerResponsePB plug2 = control.plugController(PlugControllerRequestPB.newBuilder()
+        .setConsoleId(consoleId).setRequestedPort1(Port.PORT_2).build());
+    EventQueue receiver = new EventQueue();
+    StreamObserver<OutgoingEventPB> sender =
+        NetPlayServerServiceGrpc.newStub(channel).sendEvent(new EventQueue());
+    StreamObserver<OutgoingEventPB> receiverStream =
+        NetPlayServerServiceGrpc.newStub(channel).sendEvent(receiver);
+    sender.onNext(OutgoingEventPB.newBuilder().setClientReady(ClientReadyPB.newBuilder()
+        .setConsoleId(consoleId).setClientId(plug1.getClientId())).build());
+    receiverStream.onNext(OutgoingEventPB.newBuilder().setClientReady(ClientReadyPB.newBuilder()
+        .setConsoleId(consoleId).setClientId(plug2.getClientId())).build());
+    Console console = node.getServer().getConsole(consoleId);
+    while (!console.verifyClientsReady()) {
+      Thread.sleep(10);
+    }
+
+    long[] latencies = new long[frames];
+    for (int frame = 0; frame < frames; ++frame) {
+      OutgoingEventPB event = OutgoingEventPB.newBuilder().addKeyPress(KeyStatePB.newBuilder()
+          .setConsoleId(consoleId).setPort(Port.PORT_1).setFrameNumber(frame)).build();
+      long start = System.nanoTime();
+      sender.onNext(event);
+      if (receiver.events.poll(5, TimeUnit.SECONDS) == null) {
+        throw new IllegalStateException("Frame " + frame + " was not relayed");
+      }
+      latencies[frame] = System.nanoTime() - start;
+    }
+    sender.onCompleted();
+    receiverStream.onCompleted();
+    node.getServer().tearDownConsole(consoleId);
+    channel.shutdown();
+    return latencies;
+  }
+
+  private static void report(String transport, long[] latencies) {
+    Arrays.sort(latencies);
+    long total = 0;
+    for (long latency : latencies) {
+      total += latency;
+    }
+    System.out.println(String.format(
+        "%-12s frames=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", transport,
+        latencies.length, total / 1000.0 / latencies.length, percentile(latencies, 0.50),
+        percentile(latencies, 0.99), percentile(latencies, 0.999),
+        latencies[latencies.length - 1] / 1000.0));
+  }
+
+  private static double percentile(long[] sorted, double fraction) {
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1000.0;
+  }
+}
@@ -0,0 +1,190 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.common.collect.ImmutableList;
+
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.admin.ServerAdmin;
+import netplayServer.metrics.ClientMetrics;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StopConsolePB;
+import netplayserverprotos.AdminServiceProto.AdminClientPB;
+import netplayserverprotos.AdminServiceProto.AdminConsolePB;
+import netplayserverprotos.AdminServiceProto.DescribeServerRequestPB;
+import netplayserverprotos.AdminServiceProto.ForceStopRequestPB;
+import netplayserverprotos.AdminServiceProto.ForceStopResponsePB;
+import netplayserverprotos.AdminServiceProto.ServerDescriptionPB;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AdminTest {
+
+  @Mock private StreamObserver<IncomingEventPB> senderStream;
+  @Mock private StreamObserver<IncomingEventPB> receiverStream;
+  @Mock private StreamObserver<ServerDescriptionPB> describeObserver;
+  @Mock private StreamObserver<ForceStopResponsePB> stopObserver;
+
+  private Server server;
+  private Console console;
+  private Client sender;
+  private Client receiver;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new Server(false);
+    console = server.createConsole();
+    sender = console.tryAddPlayers(2, Port.PORT_1, Port.PORT_3);
+    receiver = console.tryAddPlayers(1, Port.PORT_2);
+    sender.setStreamObserver(senderStream);
+    receiver.setStreamObserver(receiverStream);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testDescribeDoesNotLockConsoles() throws Exception {
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (console) {
+          synchronized (sender) {
+            synchronized (receiver) {
+              locked.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          }
+        }
+      }
+    });
+    assertTrue(locked.await(5, TimeUnit.SECONDS));
+    try {
+      Future<ServerDescriptionPB> description =
+          executor.submit(new Callable<ServerDescriptionPB>() {
+            @Override
+            public ServerDescriptionPB call() {
+              return new ServerAdmin(server).describe();
+            }
+          });
+      AdminConsolePB described = description.get(5, TimeUnit.SECONDS).getConsoles(0);
+      assertEquals(console.getId(), described.getConsoleId());
+      assertEquals("CREATED", described.getStatus());
+      assertEquals(4, described.getPortCount());
+      AdminClientPB pair = described.getClients(0);
+      assertEquals(sender.getId(), pair.getClientId());
+      assertEquals(ImmutableList.of(Port.PORT_1_VALUE, Port.PORT_3_VALUE), pair.getPortList());
+      assertEquals(2, pair.getDelayFrames());
+      assertEquals(1, described.getClients(1).getDelayFrames());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void testRatesBetweenSnapshots() throws Exception {
+    ServerAdmin admin = new ServerAdmin(server, 0);
+    admin.describe();
+    for (long frame = 1; frame <= 5; ++frame) {
+      sender.onNext(OutgoingEventPB.newBuilder().addKeyPress(KeyStatePB.newBuilder()
+          .setConsoleId(console.getId()).setPort(Port.PORT_1).setFrameNumber(frame)).build());
+    }
+    Thread.sleep(5);
+    AdminConsolePB described = admin.describe().getConsoles(0);
+    assertTrue(described.getMessagesInPerSecond() > 0);
+    assertTrue(described.getMessagesOutPerSecond() > 0);
+    assertTrue(described.getClients(0).getMessagesInPerSecond() > 0);
+    assertEquals(0, described.getClients(0).getMessagesOutPerSecond(), 0);
+    assertTrue(described.getClients(1).getMessagesOutPerSecond() > 0);
+    assertEquals(5, receiver.getMetrics().getMessagesOut());
+
+    // Nothing relayed since, so the rates drop back to 0.
+    Thread.sleep(5);
+    assertEquals(0, admin.describe().getConsoles(0).getMessagesInPerSecond(), 0);
+  }
+
+  @Test
+  public void testSnapshotReused() {
+    ServerAdmin admin = new ServerAdmin(server, TimeUnit.MINUTES.toMillis(1));
+    ServerDescriptionPB first = admin.describe();
+    server.createConsole();
+    assertTrue(first == admin.describe());
+
+    admin.describeServer(DescribeServerRequestPB.newBuilder().setConsoleId(console.getId())
+        .build(), describeObserver);
+    Mockito.verify(describeObserver).onNext(Mockito.argThat(
+        new ArgumentMatcher<ServerDescriptionPB>() {
+          @Override
+          public boolean matches(Object argument) {
+            ServerDescriptionPB description = (ServerDescriptionPB) argument;
+            return description.getConsolesCount() == 1
+                && description.getConsoles(0).getConsoleId() == console.getId();
+          }
+        }));
+  }
+
+  @Test
+  public void testRoundTripEstimate() throws Exception {
+    ClientMetrics metrics = new ClientMetrics();
+    metrics.recordSent(10, 2);
+    // Later frames do not restart the measurement.
+    metrics.recordSent(11, 2);
+    Thread.sleep(5);
+    metrics.recordReceived(11);
+    assertEquals(0, metrics.getRttMicros());
+    metrics.recordReceived(12);
+    assertTrue(metrics.getRttMicros() >= TimeUnit.MILLISECONDS.toMicros(5));
+  }
+
+  @Test
+  public void testForceStop() {
+    ServerAdmin admin = new ServerAdmin(server);
+    admin.forceStopConsole(ForceStopRequestPB.newBuilder().setConsoleId(console.getId()).build(),
+        stopObserver);
+    Mockito.verify(stopObserver).onNext(ForceStopResponsePB.newBuilder()
+        .setStatus(ForceStopResponsePB.Status.SUCCESS).build());
+    assertNull(server.getConsole(console.getId()));
+    Mockito.verify(receiverStream).onNext(IncomingEventPB.newBuilder()
+        .setStopConsole(StopConsolePB.newBuilder().setConsoleId(console.getId())
+            .setStopReason(StopConsolePB.Reason.ERROR))
+        .build());
+
+    admin.forceStopConsole(ForceStopRequestPB.newBuilder().setConsoleId(console.getId()).build(),
+        stopObserver);
+    Mockito.verify(stopObserver).onNext(ForceStopResponsePB.newBuilder()
+        .setStatus(ForceStopResponsePB.Status.NO_SUCH_CONSOLE).build());
+  }
+}
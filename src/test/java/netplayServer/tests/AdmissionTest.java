@@ -0,0 +1,163 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import io.netty.channel.nio.NioEventLoopGroup;
+import netplayServer.Server;
+import netplayServer.admission.AdmissionController;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.MakeConsoleRequestPB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.PlugControllerResponsePB;
+import netplayprotos.NetplayServiceProto.Port;
+
+@RunWith(JUnit4.class)
+public class AdmissionTest {
+
+  private LocalServerNode node;
+  private ManagedChannel channel;
+  private NetPlayServerServiceBlockingStub stub;
+  private AdmissionController admission;
+
+  @Before
+  public void setUp() throws Exception {
+    node = new LocalServerNode(new Server(false));
+    channel = node.connect();
+    stub = NetPlayServerServiceGrpc.newBlockingStub(channel);
+    admission = node.getServer().getAdmissionController();
+  }
+
+  @After
+  public void tearDown() {
+    node.shutdown();
+  }
+
+  @Test
+  public void testConsoleLimitRefusesWithBackoff() {
+    admission.setMaxConsoles(1);
+    long consoleId = stub.makeConsole(MakeConsoleRequestPB.getDefaultInstance()).getConsoleId();
+    try {
+      stub.makeConsole(MakeConsoleRequestPB.getDefaultInstance());
+      fail("Expected the second console to be refused");
+    } catch (StatusRuntimeException expected) {
+      assertEquals(Status.Code.RESOURCE_EXHAUSTED, expected.getStatus().getCode());
+      long backoff = AdmissionController.retryAfterMillis(expected.getStatus());
+      assertTrue(backoff >= AdmissionController.BASE_BACKOFF_MILLIS);
+      assertTrue(backoff <= AdmissionController.BASE_BACKOFF_MILLIS * 3 / 2);
+    }
+    // The live console still takes players.
+    assertEquals(PlugControllerResponsePB.Status.SUCCESS, plug(consoleId).getStatus());
+  }
+
+  @Test
+  public void testStreamLimitRefusesPlugsUntilAStreamCloses() throws Exception {
+    long consoleId = stub.makeConsole(MakeConsoleRequestPB.getDefaultInstance()).getConsoleId();
+    admission.setMaxStreams(1);
+    final CountDownLatch closed = new CountDownLatch(1);
+    StreamObserver<OutgoingEventPB> stream = NetPlayServerServiceGrpc.newStub(channel)
+        .sendEvent(new StreamObserver<IncomingEventPB>() {
+          @Override
+          public void onNext(IncomingEventPB value) {}
+
+          @Override
+          public void onError(Throwable t) {
+            closed.countDown();
+          }
+
+          @Override
+          public void onCompleted() {
+            closed.countDown();
+          }
+        });
+    for (int i = 0; i < 100 && admission.getStreamCount() == 0; ++i) {
+      Thread.sleep(20);
+    }
+    try {
+      plug(consoleId);
+      fail("Expected the plug to be refused");
+    } catch (StatusRuntimeException expected) {
+      assertEquals(Status.Code.RESOURCE_EXHAUSTED, expected.getStatus().getCode());
+    }
+
+    stream.onCompleted();
+    for (int i = 0; i < 100 && admission.getStreamCount() > 0; ++i) {
+      Thread.sleep(20);
+    }
+    assertEquals(PlugControllerResponsePB.Status.SUCCESS, plug(consoleId).getStatus());
+  }
+
+  @Test
+  public void testEventLoopLag() throws Exception {
+    NioEventLoopGroup loops = new NioEventLoopGroup(1);
+    try {
+      // Start the loop's thread first, so that its start up is not taken for lag.
+      loops.submit(new Runnable() {
+        @Override
+        public void run() {}
+      }).await();
+      admission.watchEventLoops(loops);
+      admission.probe();
+      Thread.sleep(50);
+      admission.probe();
+      assertTrue(admission.getLoopLagMillis() < 50);
+      // Let the last probe run, so that the next one is queued behind the blocked task.
+      loops.submit(new Runnable() {
+        @Override
+        public void run() {}
+      }).await();
+
+      final CountDownLatch release = new CountDownLatch(1);
+      loops.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+      admission.probe();
+      Thread.sleep(200);
+      admission.probe();
+      assertTrue(admission.getLoopLagMillis() >= 200);
+      admission.setMaxLoopLagMillis(150);
+      assertNotNull(admission.admitPlug());
+      release.countDown();
+    } finally {
+      loops.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void testNoLimitsAdmitsEverything() {
+    assertNull(admission.admitConsole());
+    assertNull(admission.admitPlug());
+  }
+
+  private PlugControllerResponsePB plug(long consoleId) {
+    return stub.plugController(PlugControllerRequestPB.newBuilder().setConsoleId(consoleId)
+        .setRequestedPort1(Port.PORT_ANY).build());
+  }
+}
@@ -0,0 +1,145 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.Console.ConsoleStatus;
+import netplayServer.Ports;
+import netplayServer.Server;
+import netplayServer.checkpoint.RegistryCheckpoint;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StartGameRequestPB;
+import netplayprotos.NetplayServiceProto.StartGameResponsePB;
+
+@RunWith(JUnit4.class)
+public class CheckpointTest {
+
+  private File file;
+  private Server before;
+  private Server after;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("netplay", ".checkpoint");
+    file.delete();
+    file.deleteOnExit();
+    before = new Server(false);
+    after = new Server(false);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testLobbiesSurviveRestart() throws Exception {
+    Console lobby = before.createConsole();
+    lobby.setMinimumDelayFrames(3);
+    Client pair = lobby.tryAddPlayers(2, Port.PORT_1, Port.PORT_3);
+    Client single = lobby.tryAddPlayers(5, Port.PORT_ANY);
+    single.setReady();
+    Console party = before.createConsole(16);
+    Client tenth = party.tryAddPlayersByValue(1, Ports.valueOf(9));
+    Console started = before.createConsole();
+    started.broadcastStartGame();
+
+    assertEquals(2, new RegistryCheckpoint(before, file).write());
+    assertEquals(2, new RegistryCheckpoint(after, file).load());
+
+    Console restored = after.getConsole(lobby.getId());
+    assertEquals(ConsoleStatus.CREATED, restored.getStatus());
+    assertEquals(1, restored.getFreePortCount());
+    assertEquals(ImmutableMap.of(Port.PORT_1_VALUE, 3, Port.PORT_2_VALUE, 5, Port.PORT_3_VALUE, 3),
+        restored.getPortValueDelayMap());
+    Client restoredPair = restored.getClientById(pair.getId());
+    assertEquals(2, restoredPair.getDelay());
+    assertEquals(ImmutableSet.of(Port.PORT_1_VALUE, Port.PORT_3_VALUE),
+        restoredPair.getPortValues());
+    // Nobody has a stream after a restart, so ready clients must say so again.
+    assertEquals(ClientStatus.CREATED, restored.getClientById(single.getId()).getStatus());
+
+    Console restoredParty = after.getConsole(party.getId());
+    assertEquals(16, restoredParty.getPortCount());
+    assertTrue(restoredParty.getClientById(tenth.getId()).ownsPort(Ports.valueOf(9)));
+    assertNull(after.getConsole(started.getId()));
+
+    // New consoles and clients do not reuse restored ids.
+    assertTrue(after.createConsole().getId() > party.getId());
+    assertTrue(new Client(restored, 1).getId() > tenth.getId());
+  }
+
+  @Test
+  public void testReturningClientsAreAccepted() throws Exception {
+    Console lobby = before.createConsole();
+    Client client1 = lobby.tryAddPlayers(1, Port.PORT_1);
+    Client client2 = lobby.tryAddPlayers(1, Port.PORT_2);
+    new RegistryCheckpoint(before, file).write();
+
+    LocalServerNode node = new LocalServerNode(after);
+    try {
+      assertEquals(1, new RegistryCheckpoint(after, file).load());
+      for (Client client : new Client[] {client1, client2}) {
+        node.openStream(lobby.getId(), client.getId(), new EventQueue());
+      }
+      assertTrue(node.awaitClientsReady(lobby.getId()));
+      assertEquals(StartGameResponsePB.Status.SUCCESS, node.control()
+          .startGame(StartGameRequestPB.newBuilder().setConsoleId(lobby.getId()).build())
+          .getStatus());
+    } finally {
+      node.shutdown();
+    }
+  }
+
+  @Test
+  public void testUnusedLobbiesRegisteredInBackground() throws Exception {
+    Console lobby = before.createConsole();
+    lobby.tryAddPlayers(1, Port.PORT_1);
+    new RegistryCheckpoint(before, file).write();
+    assertEquals(1, new RegistryCheckpoint(after, file).load());
+
+    // Nobody looks the lobby up, yet the scheduler registers it with the lobby index.
+    for (int i = 0; i < 250
+        && after.getLobbyIndex().find(ConsoleStatus.CREATED, 1, 10).isEmpty(); ++i) {
+      Thread.sleep(20);
+    }
+    assertEquals(lobby.getId(),
+        after.getLobbyIndex().find(ConsoleStatus.CREATED, 1, 10).get(0).getConsoleId());
+  }
+
+  @Test
+  public void testCorruptCheckpointRefused() throws Exception {
+    before.createConsole().tryAddPlayers(1, Port.PORT_1);
+    new RegistryCheckpoint(before, file).write();
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      out.seek(out.length() / 2);
+      out.write(0x7f);
+    }
+    try {
+      new RegistryCheckpoint(after, file).load();
+      fail("Expected the corrupt checkpoint to be refused");
+    } catch (IOException expected) {
+      assertEquals(0, after.getConsoleCount());
+    }
+  }
+}
@@ -20,7 +20,9 @@ import netplayServer.Client.ClientStatus;
 import netplayServer.Client.Player;
 import netplayServer.Console;
 import netplayServer.Server;
+import netplayServer.visitors.OutgoingEventVisitor;
 import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
 import netplayprotos.NetplayServiceProto.OutgoingEventPB;
 import netplayprotos.NetplayServiceProto.Port;
 
@@ -113,6 +115,34 @@ public class ClientTest {
 	client.onCompleted();
 	assertEquals(client.getStatus(), ClientStatus.DONE);
   }
-  
 
+  @Test
+  public void testVisitorsSeeOnlyRelayedKeypresses() throws Exception {
+    Server realServer = new Server(false);
+    OutgoingEventVisitor visitor = Mockito.mock(OutgoingEventVisitor.class);
+    realServer.getEventVisitors().clear();
+    realServer.getEventVisitors().add(visitor);
+    Console realConsole = realServer.createConsole();
+    Client sender = realConsole.tryAddPlayers(0, Port.PORT_1);
+    sender.setStreamObserver(incomingStream);
+
+    sender.onNext(keypresses(realConsole, 1, 2));
+    Mockito.verify(visitor, Mockito.timeout(1000)).visit(keypresses(realConsole, 1, 2));
+    // Frame 2 is resent along with frame 3, and frame 3 alone is visited.
+    sender.onNext(keypresses(realConsole, 2, 3));
+    Mockito.verify(visitor, Mockito.timeout(1000)).visit(keypresses(realConsole, 3));
+    // A resend of relayed frames only is not visited at all.
+    sender.onNext(keypresses(realConsole, 3));
+    Mockito.verify(visitor, Mockito.after(200).times(2)).visit(Mockito.any(OutgoingEventPB.class));
+    realServer.tearDownConsole(realConsole.getId());
+  }
+
+  private static OutgoingEventPB keypresses(Console console, long... frames) {
+    OutgoingEventPB.Builder event = OutgoingEventPB.newBuilder();
+    for (long frame : frames) {
+      event.addKeyPress(KeyStatePB.newBuilder().setConsoleId(console.getId())
+          .setPort(Port.PORT_1).setFrameNumber(frame));
+    }
+    return event.build();
+  }
 }
@@ -0,0 +1,135 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import io.grpc.Status;
+import netplayServer.ConsoleIds;
+import netplayServer.Redirects;
+import netplayServer.Server;
+import netplayServer.cluster.ClusterMembership;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetplayServiceProto.MakeConsoleRequestPB;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.PlugControllerResponsePB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StartGameRequestPB;
+import netplayprotos.NetplayServiceProto.StartGameResponsePB;
+
+/**
+ * Runs a three node cluster on localhost and sends requests for a console to nodes that do not own
+ * it.
+ */
+@RunWith(JUnit4.class)
+public class ClusterTest {
+
+  private List<LocalServerNode> nodes = Lists.newArrayList();
+
+  @Before
+  public void setUp() throws Exception {
+    List<String> peers = Lists.newArrayList();
+    for (int i = 0; i < 3; ++i) {
+      LocalServerNode node = new LocalServerNode(new Server(false));
+      nodes.add(node);
+      peers.add(node.getTarget());
+    }
+    for (int i = 0; i < 3; ++i) {
+      nodes.get(i).getServer().setCluster(new ClusterMembership(i, peers));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    for (LocalServerNode node : nodes) {
+      node.getServer().getPeers().shutdown();
+      node.shutdown();
+    }
+  }
+
+  private NetPlayServerServiceBlockingStub control(int node) {
+    return nodes.get(node).control();
+  }
+
+  @Test
+  public void testConsoleIdsEncodeNode() {
+    long id = ConsoleIds.next(5);
+    assertTrue(id > 0);
+    assertEquals(5, ConsoleIds.nodeOf(id));
+    assertEquals(0, ConsoleIds.nodeOf(ConsoleIds.next(0)));
+    long last = ConsoleIds.next(ConsoleIds.MAX_NODE_ID);
+    assertTrue(last > 0);
+    assertEquals(ConsoleIds.MAX_NODE_ID, ConsoleIds.nodeOf(last));
+  }
+
+  @Test
+  public void testRequestsFollowTheOwner() throws Exception {
+    long consoleId =
+        control(1).makeConsole(MakeConsoleRequestPB.getDefaultInstance()).getConsoleId();
+    assertEquals(1, ConsoleIds.nodeOf(consoleId));
+    assertNotNull(nodes.get(1).getServer().getConsole(consoleId));
+    assertNull(nodes.get(0).getServer().getConsole(consoleId));
+
+    // Plugging through node 0 is proxied to node 1.
+    PlugControllerResponsePB plug = control(0).plugController(PlugControllerRequestPB.newBuilder()
+        .setConsoleId(consoleId).setRequestedPort1(Port.PORT_ANY).build());
+    assertEquals(PlugControllerResponsePB.Status.SUCCESS, plug.getStatus());
+    assertEquals(consoleId, plug.getConsoleId());
+    assertNotNull(nodes.get(1).getServer().getConsole(consoleId).getClientById(plug.getClientId()));
+
+    // Streams for the console are redirected to node 1.
+    EventQueue events = new EventQueue();
+    nodes.get(2).openStream(consoleId, plug.getClientId(), events);
+    Throwable error = events.pollError(5000);
+    assertNotNull(error);
+    assertEquals(nodes.get(1).getTarget(), Redirects.targetOf(Status.fromThrowable(error)));
+
+    // Starting through node 2 is proxied too. The client never became ready on node 1.
+    StartGameResponsePB start = control(2)
+        .startGame(StartGameRequestPB.newBuilder().setConsoleId(consoleId).build());
+    assertEquals(StartGameResponsePB.Status.CLIENTS_NOT_READY, start.getStatus());
+  }
+
+  @Test
+  public void testForwardedCallsAreNotProxiedAgain() {
+    // Node 1 wrongly believes its console moved to node 0, which takes node 1 for its owner.
+    long consoleId = ConsoleIds.next(1);
+    nodes.get(1).getServer().recordMovedConsole(consoleId, nodes.get(0).getTarget());
+
+    PlugControllerResponsePB plug = control(0).plugController(PlugControllerRequestPB.newBuilder()
+        .setConsoleId(consoleId).setRequestedPort1(Port.PORT_ANY).build());
+    assertEquals(PlugControllerResponsePB.Status.NO_SUCH_CONSOLE, plug.getStatus());
+    StartGameResponsePB start = control(0)
+        .startGame(StartGameRequestPB.newBuilder().setConsoleId(consoleId).build());
+    assertEquals(StartGameResponsePB.Status.NO_SUCH_CONSOLE, start.getStatus());
+  }
+
+  @Test
+  public void testConsoleOfUnknownNode() {
+    long consoleId = ConsoleIds.next(7);
+    assertFalse(nodes.get(0).getServer().getCluster().isLocal(consoleId));
+    PlugControllerResponsePB plug = control(0).plugController(PlugControllerRequestPB.newBuilder()
+        .setConsoleId(consoleId).setRequestedPort1(Port.PORT_ANY).build());
+    assertEquals(PlugControllerResponsePB.Status.NO_SUCH_CONSOLE, plug.getStatus());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNodeMustBeAPeer() {
+    new ClusterMembership(3, ImmutableList.of("a:1", "b:2"));
+  }
+}
@@ -1,6 +1,7 @@
 package netplayServer.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -15,11 +16,17 @@ import org.junit.runners.JUnit4;
 import org.mockito.Mock;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 
 import netplayServer.Client;
 import netplayServer.Console;
 import netplayServer.PlugRequestException;
+import netplayServer.Ports;
 import netplayServer.Server;
+import netplayServer.utils.EventQueue;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
 import netplayprotos.NetplayServiceProto.PlugControllerResponsePB.PortRejectionPB;
 import netplayprotos.NetplayServiceProto.PlugControllerResponsePB.PortRejectionPB.Reason;
 import netplayprotos.NetplayServiceProto.Port;
@@ -119,5 +126,75 @@ public class ConsoleTest {
     }
   }
 
+  @Test
+  public void testWideConsolePortAnyFillsLowestFreeSlots() throws PlugRequestException {
+    console = new Console(server, 1, 16);
+    console.tryAddPlayers(1, Port.PORT_1, Port.PORT_3);
+    Client client = console.tryAddPlayers(1, Port.PORT_ANY, Port.PORT_ANY, Port.PORT_ANY);
+    assertEquals(ImmutableSet.of(Port.PORT_2_VALUE, Port.PORT_4_VALUE, Ports.valueOf(4)),
+        client.getPortValues());
+    assertEquals(ImmutableSet.of(Port.PORT_2, Port.PORT_4), client.getPorts());
+    assertTrue(client.ownsPort(105));
+  }
 
+  @Test
+  public void testSixtyFourPortConsoleFills() throws PlugRequestException {
+    console = new Console(server, 1, Ports.MAX_PORT_COUNT);
+    for (int i = 0; i < Ports.MAX_PORT_COUNT / 4; ++i) {
+      console.tryAddPlayers(1, Port.PORT_ANY, Port.PORT_ANY, Port.PORT_ANY, Port.PORT_ANY);
+    }
+    assertEquals(Ports.MAX_PORT_COUNT, console.getPortValueDelayMap().size());
+    assertTrue(console.getPortValueDelayMap().containsKey(Ports.valueOf(63)));
+    try {
+      console.tryAddPlayers(1, Port.PORT_ANY);
+      fail();
+    } catch (PlugRequestException expected) {
+      assertEquals(Reason.ALL_PORTS_OCCUPIED,
+          expected.getRejections().iterator().next().getReason());
+    }
+  }
+
+  @Test
+  public void testExtendedPortOutsideConsoleRejected() throws PlugRequestException {
+    try {
+      console.tryAddPlayersByValue(1, Ports.valueOf(4));
+      fail();
+    } catch (PlugRequestException expected) {
+      PortRejectionPB reject = expected.getRejections().iterator().next();
+      assertEquals(Ports.valueOf(4), reject.getPortValue());
+      assertEquals(Reason.UNKNOWN, reject.getReason());
+    }
+    console = new Console(server, 1, 8);
+    Client client = console.tryAddPlayersByValue(1, Ports.valueOf(7));
+    assertEquals(ImmutableSet.of(108), client.getPortValues());
+  }
+
+  @Test
+  public void testBroadcastSharesOneEvent() throws PlugRequestException {
+    console = new Console(server, 1, 32);
+    Client sender = console.tryAddPlayers(1, Port.PORT_ANY);
+    sender.setStreamObserver(new EventQueue());
+    List<EventQueue> receivers = Lists.newArrayList();
+    for (int i = 1; i < 32; ++i) {
+      EventQueue receiver = new EventQueue();
+      console.tryAddPlayers(1, Port.PORT_ANY).setStreamObserver(receiver);
+      receivers.add(receiver);
+    }
+    console.broadcastKeypresses(ImmutableList.of(KeyStatePB.newBuilder().setConsoleId(1)
+        .setPort(Port.PORT_1).setFrameNumber(1).build()), sender.getId());
+    IncomingEventPB first = receivers.get(0).getValues().peek();
+    for (EventQueue receiver : receivers) {
+      assertEquals(1, receiver.getValues().size());
+      assertSame(first, receiver.getValues().peek());
+    }
+  }
+
+  @Test
+  public void testWideConsoleSnapshotRoundTrip() throws Exception {
+    console = new Console(server, 1, 12);
+    console.tryAddPlayersByValue(2, Ports.valueOf(11), Port.PORT_1_VALUE);
+    Console copy = Console.fromSnapshot(server, console.snapshot(0));
+    assertEquals(12, copy.getPortCount());
+    assertEquals(console.getPortValueDelayMap(), copy.getPortValueDelayMap());
+  }
 }
@@ -0,0 +1,192 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Lists;
+
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Console;
+import netplayServer.Ports;
+import netplayServer.Server;
+import netplayServer.datagram.DatagramRelay;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.Events;
+import netplayServer.utils.LocalServerNode;
+import netplayServer.utils.LossyDatagramClient;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayserverprotos.DatagramServiceGrpc;
+import netplayserverprotos.DatagramServiceGrpc.DatagramServiceBlockingStub;
+import netplayserverprotos.DatagramServiceProto.DatagramTokenRequestPB;
+import netplayserverprotos.DatagramServiceProto.DatagramTokenResponsePB;
+
+/**
+ * Relays keypresses between two clients over loopback UDP while both sides drop datagrams.
+ */
+@RunWith(JUnit4.class)
+public class DatagramTest {
+
+  private static final int FRAMES = 100;
+
+  private LocalServerNode node;
+  private List<LossyDatagramClient> datagramClients = Lists.newArrayList();
+
+  @Before
+  public void setUp() throws Exception {
+    node = new LocalServerNode(new Server(false));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (LossyDatagramClient client : datagramClients) {
+      client.close();
+    }
+    node.shutdown();
+  }
+
+  private LossyDatagramClient connect(DatagramServiceBlockingStub datagrams, Console console,
+      long clientId, int dropSentEvery, int dropReceivedEvery) throws Exception {
+    DatagramTokenResponsePB token = datagrams.getToken(DatagramTokenRequestPB.newBuilder()
+        .setConsoleId(console.getId()).setClientId(clientId).build());
+    assertEquals(DatagramTokenResponsePB.Status.SUCCESS, token.getStatus());
+    assertEquals(node.getServer().getDatagramRelay().getPort(), token.getUdpPort());
+    LossyDatagramClient client = new LossyDatagramClient(token.getUdpPort(), token.getToken(),
+        DatagramRelay.DEFAULT_REDUNDANCY, dropSentEvery, dropReceivedEvery);
+    datagramClients.add(client);
+    client.open();
+    Client serverSide = console.getClientById(clientId);
+    for (int i = 0; i < 100 && !serverSide.getDatagramPath().isConnected(); ++i) {
+      Thread.sleep(20);
+    }
+    assertTrue(serverSide.getDatagramPath().isConnected());
+    return client;
+  }
+
+  @Test
+  public void testKeypressesSurvivePacketLoss() throws Exception {
+    node.getServer().getDatagramRelay().start(new InetSocketAddress("localhost", 0));
+    long consoleId = node.makeConsole();
+    long clientId1 = node.plug(consoleId, Port.PORT_1);
+    long clientId2 = node.plug(consoleId, Port.PORT_2);
+    EventQueue events2 = new EventQueue();
+    StreamObserver<OutgoingEventPB> stream1 =
+        node.openStream(consoleId, clientId1, new EventQueue());
+    StreamObserver<OutgoingEventPB> stream2 = node.openStream(consoleId, clientId2, events2);
+    assertTrue(node.awaitClientsReady(consoleId));
+    Console console = node.getServer().getConsole(consoleId);
+
+    // Player 1 loses every third datagram it sends and player 2 every fourth it receives; with
+    // each datagram repeating the previous two, no frame is lost.
+    DatagramServiceBlockingStub datagrams = DatagramServiceGrpc.newBlockingStub(node.connect());
+    LossyDatagramClient player1 = connect(datagrams, console, clientId1, 3, 0);
+    LossyDatagramClient player2 = connect(datagrams, console, clientId2, 0, 4);
+    for (int frame = 1; frame <= FRAMES; ++frame) {
+      player1.send(Events.keyState(consoleId, Port.PORT_1, frame));
+      Thread.sleep(2);
+    }
+
+    for (int i = 0; i < 100 && console.getKeyHistory().newestFrame(Port.PORT_1) < FRAMES; ++i) {
+      Thread.sleep(20);
+    }
+    assertEquals(FRAMES, console.getKeyHistory().newestFrame(Port.PORT_1));
+    assertEquals(FRAMES, console.getKeyHistory().allFrames().size());
+
+    // The last datagram may be among those player 2 drops, so only the frames it repeats are
+    // certain to arrive.
+    Map<Long, KeyStatePB> received = player2.getReceivedFrames(Port.PORT_1);
+    int certain = FRAMES - DatagramRelay.DEFAULT_REDUNDANCY + 1;
+    for (int i = 0; i < 100 && received.size() < certain; ++i) {
+      Thread.sleep(20);
+    }
+    for (long frame = 1; frame <= certain; ++frame) {
+      assertNotNull("Missing frame " + frame, received.get(frame));
+    }
+
+    // Keypresses went over UDP only; the streams carried nothing.
+    for (IncomingEventPB event : events2.getValues()) {
+      assertEquals(0, event.getKeyPressCount());
+    }
+    stream1.onCompleted();
+    stream2.onCompleted();
+  }
+
+  @Test
+  public void testLargeBatchesOnSixtyFourPortConsole() throws Exception {
+    node.getServer().setPortsPerConsole(Ports.MAX_PORT_COUNT);
+    node.getServer().getDatagramRelay().start(new InetSocketAddress("localhost", 0));
+    long consoleId = node.makeConsole();
+    Port[] ports = {Port.PORT_1, Port.PORT_2, Port.PORT_3, Port.PORT_4};
+    long senderId = node.control().plugController(PlugControllerRequestPB.newBuilder()
+        .setConsoleId(consoleId).setRequestedPort1(ports[0]).setRequestedPort2(ports[1])
+        .setRequestedPort3(ports[2]).setRequestedPort4(ports[3]).build()).getClientId();
+    long receiverId = node.control().plugController(PlugControllerRequestPB.newBuilder()
+        .setConsoleId(consoleId).setRequestedPort1Value(Ports.valueOf(Ports.MAX_PORT_COUNT - 1))
+        .build()).getClientId();
+    StreamObserver<OutgoingEventPB> senderStream =
+        node.openStream(consoleId, senderId, new EventQueue());
+    StreamObserver<OutgoingEventPB> receiverStream =
+        node.openStream(consoleId, receiverId, new EventQueue());
+    assertTrue(node.awaitClientsReady(consoleId));
+    Console console = node.getServer().getConsole(consoleId);
+    DatagramServiceBlockingStub datagrams = DatagramServiceGrpc.newBlockingStub(node.connect());
+    LossyDatagramClient sender = connect(datagrams, console, senderId, 0, 0);
+    LossyDatagramClient receiver = connect(datagrams, console, receiverId, 0, 0);
+
+    // A sender catching up after a stall sends its four ports' last frames in one datagram, too
+    // large for an MTU. The receiver's buffer only takes datagrams that fit one.
+    List<KeyStatePB> burst = Lists.newArrayList();
+    for (int frame = 1; frame <= FRAMES / 2; ++frame) {
+      for (Port port : ports) {
+        burst.add(Events.keyState(consoleId, port, frame));
+      }
+    }
+    sender.send(burst);
+
+    for (int i = 0; i < 100 && console.getKeyHistory().allFrames().size() < burst.size(); ++i) {
+      Thread.sleep(20);
+    }
+    assertEquals(burst.size(), console.getKeyHistory().allFrames().size());
+    for (Port port : ports) {
+      for (int i = 0; i < 100 && receiver.getReceivedFrames(port).size() < FRAMES / 2; ++i) {
+        Thread.sleep(20);
+      }
+      assertEquals(FRAMES / 2, receiver.getReceivedFrames(port).size());
+    }
+    assertTrue(receiver.getReceivedDatagrams() > 1);
+    senderStream.onCompleted();
+    receiverStream.onCompleted();
+  }
+
+  @Test
+  public void testTokenRequiresReadyClient() throws Exception {
+    DatagramServiceBlockingStub datagrams = DatagramServiceGrpc.newBlockingStub(node.connect());
+    long consoleId = node.makeConsole();
+    long clientId = node.plug(consoleId, Port.PORT_1);
+    DatagramTokenRequestPB request = DatagramTokenRequestPB.newBuilder().setConsoleId(consoleId)
+        .setClientId(clientId).build();
+
+    assertEquals(DatagramTokenResponsePB.Status.DISABLED,
+        datagrams.getToken(request).getStatus());
+    node.getServer().getDatagramRelay().start(new InetSocketAddress("localhost", 0));
+    assertEquals(DatagramTokenResponsePB.Status.CLIENT_NOT_READY,
+        datagrams.getToken(request).getStatus());
+    assertEquals(DatagramTokenResponsePB.Status.NO_SUCH_CLIENT, datagrams
+        .getToken(request.toBuilder().setClientId(clientId + 100).build()).getStatus());
+  }
+}
@@ -0,0 +1,91 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Server;
+import netplayServer.transport.DomainSocketTransport;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.Events;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.PingPB;
+import netplayprotos.NetplayServiceProto.Port;
+
+/**
+ * Plays a console with one client on TCP and one on a Unix domain socket of the same server.
+ * Skipped where the native epoll transport is unavailable.
+ */
+@RunWith(JUnit4.class)
+public class DomainSocketTest {
+
+  private LocalServerNode node;
+  private ManagedChannel domainChannel;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(DomainSocketTransport.isAvailable());
+    File socket = File.createTempFile("netplay", ".sock");
+    socket.deleteOnExit();
+    node = new LocalServerNode(new Server(false));
+    node.listenOnDomainSocket(socket.getPath());
+    domainChannel = node.newDomainSocketChannel();
+  }
+
+  @After
+  public void tearDown() {
+    if (node == null) {
+      return;
+    }
+    domainChannel.shutdownNow();
+    node.shutdown();
+  }
+
+  @Test
+  public void testRelayAcrossTransports() throws Exception {
+    NetPlayServerServiceBlockingStub local =
+        NetPlayServerServiceGrpc.newBlockingStub(domainChannel);
+    local.ping(PingPB.getDefaultInstance());
+    // The lobby is set up over TCP, as a frontend would, and played from both transports.
+    long consoleId = node.makeConsole();
+    long clientId1 = node.plug(consoleId, Port.PORT_1);
+    long clientId2 = node.plug(consoleId, Port.PORT_2);
+
+    EventQueue events1 = new EventQueue();
+    EventQueue events2 = new EventQueue();
+    StreamObserver<OutgoingEventPB> player1 = Events.openStream(
+        NetPlayServerServiceGrpc.newStub(domainChannel), consoleId, clientId1, events1);
+    StreamObserver<OutgoingEventPB> player2 = node.openStream(consoleId, clientId2, events2);
+    assertTrue(node.awaitClientsReady(consoleId));
+
+    KeyStatePB fromLocal = Events.keyState(consoleId, Port.PORT_1, 1);
+    player1.onNext(OutgoingEventPB.newBuilder().addKeyPress(fromLocal).build());
+    IncomingEventPB received = events2.poll(5000);
+    assertNotNull(received);
+    assertEquals(fromLocal, received.getKeyPress(0));
+
+    KeyStatePB fromRemote = Events.keyState(consoleId, Port.PORT_2, 1);
+    player2.onNext(OutgoingEventPB.newBuilder().addKeyPress(fromRemote).build());
+    received = events1.poll(5000);
+    assertNotNull(received);
+    assertEquals(fromRemote, received.getKeyPress(0));
+    player1.onCompleted();
+    player2.onCompleted();
+  }
+}
@@ -0,0 +1,148 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.Redirects;
+import netplayServer.Server;
+import netplayServer.cluster.ClusterMembership;
+import netplayServer.drain.DrainController;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.MakeConsoleRequestPB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StopConsolePB;
+
+@RunWith(JUnit4.class)
+public class DrainTest {
+
+  private LocalServerNode node;
+  private NetPlayServerServiceBlockingStub stub;
+  private Server server;
+  private DrainController drain;
+
+  @Before
+  public void setUp() throws Exception {
+    node = new LocalServerNode(new Server(false));
+    stub = node.control();
+    server = node.getServer();
+    drain = server.getDrainController();
+  }
+
+  @After
+  public void tearDown() {
+    node.shutdown();
+  }
+
+  @Test
+  public void testDrainingServerRefusesNewWork() throws Exception {
+    Console running = server.createConsole();
+    Client client = running.tryAddPlayers(1, Port.PORT_1);
+    node.openStream(running.getId(), client.getId(), new EventQueue());
+    assertTrue(LocalServerNode.awaitStatus(client, ClientStatus.READY));
+    running.broadcastStartGame();
+    drain.drain(TimeUnit.MINUTES.toMillis(1));
+    try {
+      stub.makeConsole(MakeConsoleRequestPB.getDefaultInstance());
+      fail("Expected the console to be refused");
+    } catch (StatusRuntimeException expected) {
+      assertEquals(Status.Code.UNAVAILABLE, expected.getStatus().getCode());
+    }
+    try {
+      stub.plugController(PlugControllerRequestPB.newBuilder().setConsoleId(running.getId())
+          .setRequestedPort1(Port.PORT_ANY).build());
+      fail("Expected the plug to be refused");
+    } catch (StatusRuntimeException expected) {
+      assertEquals(Status.Code.UNAVAILABLE, expected.getStatus().getCode());
+    }
+    assertSame(running, server.getConsole(running.getId()));
+  }
+
+  @Test
+  public void testLobbiesStoppedWhenDrainStarts() throws Exception {
+    long lobbyId = stub.makeConsole(MakeConsoleRequestPB.getDefaultInstance()).getConsoleId();
+    long clientId = node.plug(lobbyId, Port.PORT_1);
+    EventQueue events = new EventQueue();
+    node.openStream(lobbyId, clientId, events);
+    assertTrue(node.awaitClientsReady(lobbyId));
+    Console empty = server.createConsole();
+
+    // Neither lobby waits for the deadline: the players of the first are told it stopped.
+    drain.drain(TimeUnit.MINUTES.toMillis(1));
+    assertNull(server.getConsole(lobbyId));
+    assertNull(server.getConsole(empty.getId()));
+    IncomingEventPB stop = events.nextStopConsole(5000);
+    assertNotNull(stop);
+    assertEquals(StopConsolePB.Reason.ERROR, stop.getStopConsole().getStopReason());
+    assertTrue(drain.awaitDrained(0, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testClusterRedirectsNewConsoles() {
+    server.setCluster(new ClusterMembership(0, ImmutableList.of("a:1", "b:2")));
+    drain.drain(TimeUnit.MINUTES.toMillis(1));
+    assertEquals("b:2", Redirects.targetOf(drain.refuseConsole()));
+  }
+
+  @Test
+  public void testFinishedGamesLeaveUntilDrained() throws Exception {
+    Console console = server.createConsole();
+    Client client = console.tryAddPlayers(1, Port.PORT_1);
+    StreamObserver<OutgoingEventPB> stream =
+        node.openStream(console.getId(), client.getId(), new EventQueue());
+    assertTrue(LocalServerNode.awaitStatus(client, ClientStatus.READY));
+    console.broadcastStartGame();
+
+    drain.drain(TimeUnit.MINUTES.toMillis(1));
+    assertSame(console, server.getConsole(console.getId()));
+    assertFalse(drain.awaitDrained(0, TimeUnit.MILLISECONDS));
+
+    stream.onCompleted();
+    assertTrue(LocalServerNode.awaitStatus(client, ClientStatus.DONE));
+    assertTrue(drain.awaitDrained(5, TimeUnit.SECONDS));
+    assertEquals(0, server.getConsoleCount());
+  }
+
+  @Test
+  public void testStragglersStoppedAtDeadline() throws Exception {
+    Console console = server.createConsole();
+    Client client = console.tryAddPlayers(1, Port.PORT_1);
+    EventQueue events = new EventQueue();
+    node.openStream(console.getId(), client.getId(), events);
+    assertTrue(LocalServerNode.awaitStatus(client, ClientStatus.READY));
+    console.broadcastStartGame();
+    assertTrue(events.poll(5000).hasStartGame());
+
+    drain.drain(0);
+    IncomingEventPB stop = events.poll(5000);
+    assertNotNull(stop);
+    assertEquals(StopConsolePB.Reason.ERROR, stop.getStopConsole().getStopReason());
+    assertEquals(console.getId(), stop.getStopConsole().getConsoleId());
+    assertTrue(drain.awaitDrained(0, TimeUnit.MILLISECONDS));
+  }
+}
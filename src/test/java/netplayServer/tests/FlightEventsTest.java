@@ -0,0 +1,167 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import io.grpc.stub.StreamObserver;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import netplayServer.Client;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.jfr.FlightEvents;
+import netplayServer.utils.Events;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StopConsolePB;
+
+@RunWith(JUnit4.class)
+public class FlightEventsTest {
+
+  private Recording recording;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("netplay", ".jfr");
+    file.deleteOnExit();
+    recording = new Recording();
+    for (String name : ImmutableList.of("ConsoleCreated", "ConsoleTornDown", "ControllerPlugged",
+        "ClientReady", "GameStarted", "ConsoleStopped", "RelayStall")) {
+      recording.enable("netplay." + name);
+    }
+    recording.start();
+  }
+
+  @After
+  public void tearDown() {
+    recording.close();
+    file.delete();
+  }
+
+  @Test
+  public void testLifecycleRecorded() throws Exception {
+    Server server = new Server(false);
+    Console console = server.createConsole();
+    Client client = console.tryAddPlayers(2, Port.PORT_1, Port.PORT_2);
+    client.setStreamObserver(new NullObserver(0));
+    client.onNext(Events.clientReady(console.getId(), client.getId()));
+    console.broadcastStartGame();
+    console.stop(StopConsolePB.Reason.ERROR);
+
+    List<RecordedEvent> events = forConsole(stopAndRead(), console.getId());
+    List<String> names = Lists.newArrayList();
+    for (RecordedEvent event : events) {
+      if (!event.getEventType().getName().equals("netplay.RelayStall")) {
+        names.add(event.getEventType().getName());
+      }
+    }
+    assertEquals(ImmutableList.of("netplay.ConsoleCreated", "netplay.ControllerPlugged",
+        "netplay.ClientReady", "netplay.GameStarted", "netplay.ConsoleStopped",
+        "netplay.ConsoleTornDown"), names);
+    RecordedEvent plugged = named(events, "netplay.ControllerPlugged").get(0);
+    assertEquals(client.getId(), plugged.getLong("clientId"));
+    assertEquals(0b11, plugged.getLong("slotMask"));
+    assertEquals(2, plugged.getInt("delayFrames"));
+    assertEquals("ERROR", named(events, "netplay.ConsoleStopped").get(0).getString("reason"));
+  }
+
+  @Test
+  public void testSlowWritesRecorded() throws Exception {
+    Server server = new Server(false);
+    Console console = server.createConsole();
+    Client sender = console.tryAddPlayers(1, Port.PORT_1);
+    Client fast = console.tryAddPlayers(1, Port.PORT_2);
+    Client slow = console.tryAddPlayers(1, Port.PORT_3);
+    sender.setStreamObserver(new NullObserver(0));
+    fast.setStreamObserver(new NullObserver(0));
+    slow.setStreamObserver(new NullObserver(5));
+    sender.onNext(Events.keyPress(console.getId(), Port.PORT_1, 1));
+
+    List<RecordedEvent> stalls =
+        named(forConsole(stopAndRead(), console.getId()), "netplay.RelayStall");
+    List<String> stages = Lists.newArrayList();
+    for (RecordedEvent stall : stalls) {
+      assertTrue(stall.getDuration().compareTo(Duration.ofMillis(1)) >= 0);
+      stages.add(stall.getString("stage") + ":" + stall.getLong("clientId"));
+    }
+    // The fast write is normally left out too, but a busy machine may stall it.
+    assertTrue(stages.toString(), stages.containsAll(ImmutableList.of(
+        FlightEvents.STAGE_WRITE + ":" + slow.getId(),
+        FlightEvents.STAGE_BROADCAST + ":" + sender.getId())));
+  }
+
+  private List<RecordedEvent> stopAndRead() throws IOException {
+    recording.stop();
+    recording.dump(file.toPath());
+    return RecordingFile.readAllEvents(file.toPath());
+  }
+
+  /**
+   * Returns the netplay events of the given console, leaving out those of consoles that earlier
+   * tests in the same JVM left behind.
+   */
+  private static List<RecordedEvent> forConsole(List<RecordedEvent> events, long consoleId) {
+    List<RecordedEvent> forConsole = Lists.newArrayList();
+    for (RecordedEvent event : events) {
+      if (event.getEventType().getName().startsWith("netplay.")
+          && event.getLong("consoleId") == consoleId) {
+        forConsole.add(event);
+      }
+    }
+    return forConsole;
+  }
+
+  private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+    List<RecordedEvent> named = Lists.newArrayList();
+    for (RecordedEvent event : events) {
+      if (event.getEventType().getName().equals(name)) {
+        named.add(event);
+      }
+    }
+    return named;
+  }
+
+  /**
+   * A stream that takes the given time to accept each event.
+   */
+  private static class NullObserver implements StreamObserver<IncomingEventPB> {
+    private final long delayMillis;
+
+    NullObserver(long delayMillis) {
+      this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public void onNext(IncomingEventPB value) {
+      if (delayMillis > 0) {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {}
+
+    @Override
+    public void onCompleted() {}
+  }
+}
@@ -0,0 +1,220 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Lists;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.datagram.DatagramRelay;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.Events;
+import netplayServer.utils.ImpairingDatagramProxy;
+import netplayServer.utils.ImpairingProxy;
+import netplayServer.utils.LocalServerNode;
+import netplayServer.utils.LossyDatagramClient;
+import netplayServer.utils.NetworkImpairment;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayserverprotos.DatagramServiceGrpc;
+import netplayserverprotos.DatagramServiceProto.DatagramTokenRequestPB;
+import netplayserverprotos.DatagramServiceProto.DatagramTokenResponsePB;
+
+/**
+ * Plays two clients against a local server while one of them is behind an impairing proxy.
+ */
+@RunWith(JUnit4.class)
+public class ImpairmentTest {
+
+  private static final long LATENCY_MILLIS = 150;
+  private static final long STALL_MILLIS = 300;
+
+  private LocalServerNode node;
+  private ImpairingProxy proxy;
+  private List<ManagedChannel> impairedChannels = Lists.newArrayList();
+  private long consoleId;
+  private Console console;
+  private long[] clientIds = new long[2];
+
+  @Before
+  public void setUp() throws Exception {
+    node = new LocalServerNode(new Server(false));
+    proxy = new ImpairingProxy(node.getPort());
+    consoleId = node.makeConsole();
+    console = node.getServer().getConsole(consoleId);
+    clientIds[0] = node.plug(consoleId, Port.PORT_1);
+    clientIds[1] = node.plug(consoleId, Port.PORT_2);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (ManagedChannel channel : impairedChannels) {
+      channel.shutdownNow();
+    }
+    proxy.close();
+    node.shutdown();
+  }
+
+  private ManagedChannel direct() {
+    return node.connect();
+  }
+
+  private ManagedChannel impaired() {
+    ManagedChannel channel = proxy.newChannel();
+    impairedChannels.add(channel);
+    return channel;
+  }
+
+  private StreamObserver<OutgoingEventPB> openStream(ManagedChannel channel, int player,
+      EventQueue events) {
+    return Events.openStream(NetPlayServerServiceGrpc.newStub(channel), consoleId,
+        clientIds[player], events);
+  }
+
+  @Test
+  public void testLatencyDelaysRelay() throws Exception {
+    EventQueue events2 = new EventQueue();
+    StreamObserver<OutgoingEventPB> stream1 = openStream(impaired(), 0, new EventQueue());
+    openStream(direct(), 1, events2);
+    assertTrue(node.awaitClientsReady(consoleId));
+
+    proxy.getUpstream().setLatency(LATENCY_MILLIS);
+    long sentAt = System.nanoTime();
+    stream1.onNext(Events.keyPress(consoleId, Port.PORT_1, 1));
+    KeyStatePB relayed = events2.nextKeyPress(5000);
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt);
+    assertNotNull(relayed);
+    assertEquals(1, relayed.getFrameNumber());
+    assertTrue("Relayed after " + elapsedMillis + " ms", elapsedMillis >= LATENCY_MILLIS);
+  }
+
+  @Test
+  public void testStallHoldsBackFramesInOrder() throws Exception {
+    EventQueue events1 = new EventQueue();
+    openStream(impaired(), 0, events1);
+    StreamObserver<OutgoingEventPB> stream2 = openStream(direct(), 1, new EventQueue());
+    assertTrue(node.awaitClientsReady(consoleId));
+
+    proxy.getDownstream().setJitter(20).stall(STALL_MILLIS);
+    for (int frame = 1; frame <= 10; ++frame) {
+      stream2.onNext(Events.keyPress(consoleId, Port.PORT_2, frame));
+    }
+    assertNull(events1.nextKeyPress(STALL_MILLIS / 2));
+    for (int frame = 1; frame <= 10; ++frame) {
+      KeyStatePB relayed = events1.nextKeyPress(5000);
+      assertNotNull(relayed);
+      assertEquals(frame, relayed.getFrameNumber());
+    }
+  }
+
+  @Test
+  public void testCutConnectionDisconnectsClient() throws Exception {
+    openStream(impaired(), 0, new EventQueue());
+    openStream(direct(), 1, new EventQueue());
+    assertTrue(node.awaitClientsReady(consoleId));
+
+    proxy.cutConnections();
+    Client client = console.getClientById(clientIds[0]);
+    assertTrue(LocalServerNode.awaitStatus(client, ClientStatus.DISCONNECTED));
+    assertEquals(ClientStatus.READY, console.getClientById(clientIds[1]).getStatus());
+  }
+
+  @Test
+  public void testProxyKeepsAcceptingWhileServerIsDown() throws Exception {
+    ServerSocket unused = new ServerSocket(0);
+    int closedPort = unused.getLocalPort();
+    unused.close();
+    ImpairingProxy downProxy = new ImpairingProxy(closedPort);
+    try {
+      // Each connection is closed as the server refuses it, and the next one is still accepted.
+      for (int i = 0; i < 2; ++i) {
+        Socket socket = new Socket("localhost", downProxy.getPort());
+        try {
+          socket.setSoTimeout(5000);
+          assertEquals(-1, socket.getInputStream().read());
+        } finally {
+          socket.close();
+        }
+      }
+    } finally {
+      downProxy.close();
+    }
+  }
+
+  @Test
+  public void testReorderedDatagramsRecovered() throws Exception {
+    node.getServer().getDatagramRelay().start(new InetSocketAddress("localhost", 0));
+    openStream(direct(), 0, new EventQueue());
+    openStream(direct(), 1, new EventQueue());
+    assertTrue(node.awaitClientsReady(consoleId));
+    DatagramTokenResponsePB token = DatagramServiceGrpc.newBlockingStub(direct())
+        .getToken(DatagramTokenRequestPB.newBuilder().setConsoleId(consoleId)
+            .setClientId(clientIds[0]).build());
+    assertEquals(DatagramTokenResponsePB.Status.SUCCESS, token.getStatus());
+
+    ImpairingDatagramProxy datagramProxy = new ImpairingDatagramProxy(token.getUdpPort());
+    LossyDatagramClient player1 = new LossyDatagramClient(datagramProxy.getPort(),
+        token.getToken(), DatagramRelay.DEFAULT_REDUNDANCY, 0, 0);
+    try {
+      player1.open();
+      Client serverSide = console.getClientById(clientIds[0]);
+      for (int i = 0; i < 100 && !serverSide.getDatagramPath().isConnected(); ++i) {
+        Thread.sleep(20);
+      }
+      assertTrue(serverSide.getDatagramPath().isConnected());
+
+      // A datagram held back is overtaken by the next one at most, which repeats its frame; the
+      // relay drops frames older than the newest it has, so longer holds would lose frames.
+      datagramProxy.getUpstream().setReorder(0.3);
+      for (int frame = 1; frame <= 50; ++frame) {
+        player1.send(Events.keyState(consoleId, Port.PORT_1, frame));
+        Thread.sleep(4);
+      }
+      for (int i = 0; i < 100 && console.getKeyHistory().newestFrame(Port.PORT_1) < 50; ++i) {
+        Thread.sleep(20);
+      }
+      assertEquals(50, console.getKeyHistory().newestFrame(Port.PORT_1));
+      assertEquals(50, console.getKeyHistory().allFrames().size());
+    } finally {
+      player1.close();
+      datagramProxy.close();
+    }
+  }
+
+  @Test
+  public void testBandwidthSpacesDeliveries() {
+    NetworkImpairment impairment = new NetworkImpairment().setBandwidth(10000).setLatency(5);
+    NetworkImpairment.Link link = impairment.newLink();
+    long now = System.nanoTime();
+    long first = link.deliveryTime(1000, true);
+    long second = link.deliveryTime(1000, true);
+    // 1000 bytes take 100ms at 10000 bytes per second, and the second waits for the first.
+    assertTrue(first - now >= TimeUnit.MILLISECONDS.toNanos(105));
+    assertTrue(second - first >= TimeUnit.MILLISECONDS.toNanos(100));
+    assertTrue(second - now < TimeUnit.MILLISECONDS.toNanos(300));
+    // Another connection under the same impairment is not held back by the first one's.
+    long other = impairment.newLink().deliveryTime(1000, true);
+    assertTrue(other - now < TimeUnit.MILLISECONDS.toNanos(200));
+  }
+}
@@ -0,0 +1,361 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Lists;
+
+import io.grpc.Status;
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.PlugRequestException;
+import netplayServer.Server;
+import netplayServer.utils.ControlledScheduler;
+import netplayServer.utils.ControlledScheduler.Scenario;
+import netplayServer.utils.ControlledScheduler.YieldingObserver;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StartGameRequestPB;
+import netplayprotos.NetplayServiceProto.StartGameResponsePB;
+import netplayprotos.NetplayServiceProto.StopConsolePB;
+
+/**
+ * Runs the operations that race on a console and its clients under every interleaving of their
+ * stream writes, and checks that none loses an update.
+ */
+@RunWith(JUnit4.class)
+public class InterleavingTest {
+
+  private static final int MAX_SCHEDULES = 2000;
+
+  private Server server;
+  private ControlledScheduler scheduler;
+
+  @Before
+  public void setUp() {
+    server = new Server(false);
+    // Disconnected clients are left disconnected for the length of a test.
+    server.setResumeGraceMillis(TimeUnit.HOURS.toMillis(1));
+    scheduler = new ControlledScheduler(MAX_SCHEDULES);
+  }
+
+  private static List<Runnable> steps(Runnable... steps) {
+    return Arrays.asList(steps);
+  }
+
+  @SafeVarargs
+  private static List<List<Runnable>> inParallel(List<Runnable>... actors) {
+    // Copied one by one, as handing the array to another varargs method would warn.
+    List<List<Runnable>> parallel = Lists.newArrayList();
+    for (List<Runnable> actor : actors) {
+      parallel.add(actor);
+    }
+    return parallel;
+  }
+
+  /**
+   * Plugs a ready client with a stream of its own into the console.
+   */
+  private Client readyClient(Console console, Port port,
+      YieldingObserver<IncomingEventPB> stream) throws PlugRequestException {
+    Client client = console.tryAddPlayers(0, port);
+    client.setStreamObserver(stream);
+    client.setReady();
+    return client;
+  }
+
+  private static int count(YieldingObserver<IncomingEventPB> stream, boolean startGame) {
+    int count = 0;
+    for (IncomingEventPB event : stream.getValues()) {
+      if (startGame ? event.hasStartGame() : event.hasStopConsole()) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testStartGameRacesStreamError() throws Exception {
+    assertExplored(scheduler.explore(new Scenario() {
+      Console console;
+      Client client;
+      YieldingObserver<IncomingEventPB> stream;
+
+      @Override
+      public void setUp() throws Exception {
+        console = server.createConsole();
+        stream = scheduler.newObserver();
+        client = readyClient(console, Port.PORT_1, stream);
+      }
+
+      @Override
+      public List<List<Runnable>> actors() {
+        return inParallel(steps(new Runnable() {
+          @Override
+          public void run() {
+            console.broadcastStartGame();
+          }
+        }), steps(new Runnable() {
+          @Override
+          public void run() {
+            client.onError(Status.UNAVAILABLE.asRuntimeException());
+          }
+        }));
+      }
+
+      @Override
+      public void check() {
+        // The stream failed and did not resume, whether or not the game started first.
+        assertEquals(ClientStatus.DISCONNECTED, client.getStatus());
+        assertFalse(stream.wasCalledConcurrently());
+      }
+    }));
+  }
+
+  @Test
+  public void testStartGameRacesResume() throws Exception {
+    assertExplored(scheduler.explore(new Scenario() {
+      Console console;
+      Client client;
+      YieldingObserver<IncomingEventPB> resumedStream;
+
+      @Override
+      public void setUp() throws Exception {
+        console = server.createConsole();
+        client = readyClient(console, Port.PORT_1, scheduler.<IncomingEventPB>newObserver());
+        client.onError(Status.UNAVAILABLE.asRuntimeException());
+        resumedStream = scheduler.newObserver();
+      }
+
+      @Override
+      public List<List<Runnable>> actors() {
+        return inParallel(steps(new Runnable() {
+          @Override
+          public void run() {
+            console.broadcastStartGame();
+          }
+        }), steps(new Runnable() {
+          @Override
+          public void run() {
+            client.resume(resumedStream, Collections.<Integer, Long>emptyMap());
+          }
+        }));
+      }
+
+      @Override
+      public void check() {
+        // The resumed stream gets the start whether the game started before or after it resumed.
+        assertEquals(ClientStatus.PLAYING, client.getStatus());
+        assertEquals(1, count(resumedStream, true));
+        assertTrue(resumedStream.getValues().get(0).hasStartGame());
+        assertFalse(resumedStream.wasCalledConcurrently());
+      }
+    }));
+  }
+
+  @Test
+  public void testStopRacesPlug() throws Exception {
+    assertExplored(scheduler.explore(new Scenario() {
+      Console console;
+      Client requester;
+      YieldingObserver<IncomingEventPB> otherStream;
+      Client plugged;
+
+      @Override
+      public void setUp() throws Exception {
+        console = server.createConsole();
+        requester = readyClient(console, Port.PORT_1, scheduler.<IncomingEventPB>newObserver());
+        otherStream = scheduler.newObserver();
+        readyClient(console, Port.PORT_2, otherStream);
+        plugged = null;
+      }
+
+      @Override
+      public List<List<Runnable>> actors() {
+        return inParallel(steps(new Runnable() {
+          @Override
+          public void run() {
+            console.broadcastStopConsole(StopConsolePB.Reason.ERROR, requester);
+          }
+        }), steps(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              plugged = console.tryAddPlayers(0, Port.PORT_3);
+            } catch (PlugRequestException e) {
+              plugged = null;
+            }
+          }
+        }));
+      }
+
+      @Override
+      public void check() {
+        assertNull(server.getConsole(console.getId()));
+        assertEquals(1, count(otherStream, false));
+        // A client plugged in before the stop is stopped with the others; none is plugged in
+        // after it.
+        for (Client client : console.getClients()) {
+          if (client != requester) {
+            assertEquals(ClientStatus.DONE, client.getStatus());
+          }
+        }
+        if (plugged != null) {
+          assertTrue(console.getClients().contains(plugged));
+        }
+      }
+    }));
+  }
+
+  @Test
+  public void testLastStreamEndRacesPlug() throws Exception {
+    assertExplored(scheduler.explore(new Scenario() {
+      Console console;
+      Client first;
+      Client plugged;
+
+      @Override
+      public void setUp() throws Exception {
+        console = server.createConsole();
+        first = readyClient(console, Port.PORT_1, scheduler.<IncomingEventPB>newObserver());
+        plugged = null;
+      }
+
+      @Override
+      public List<List<Runnable>> actors() {
+        return inParallel(steps(new Runnable() {
+          @Override
+          public void run() {
+            first.onCompleted();
+          }
+        }), steps(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              plugged = console.tryAddPlayers(0, Port.PORT_2);
+            } catch (PlugRequestException e) {
+              plugged = null;
+            }
+          }
+        }));
+      }
+
+      @Override
+      public void check() {
+        // Either the new player keeps the console alive, or it was turned away from a console
+        // that was torn down.
+        if (plugged != null) {
+          assertSame(console, server.getConsole(console.getId()));
+        } else {
+          assertNull(server.getConsole(console.getId()));
+        }
+      }
+    }));
+  }
+
+  @Test
+  public void testKeypressesRaceStop() throws Exception {
+    assertExplored(scheduler.explore(new Scenario() {
+      Console console;
+      Client sender;
+      YieldingObserver<IncomingEventPB> senderStream;
+      YieldingObserver<IncomingEventPB> receiverStream;
+
+      @Override
+      public void setUp() throws Exception {
+        console = server.createConsole();
+        senderStream = scheduler.newObserver();
+        receiverStream = scheduler.newObserver();
+        sender = readyClient(console, Port.PORT_1, senderStream);
+        readyClient(console, Port.PORT_2, receiverStream);
+      }
+
+      @Override
+      public List<List<Runnable>> actors() {
+        return inParallel(steps(new Runnable() {
+          @Override
+          public void run() {
+            sender.onNext(OutgoingEventPB.newBuilder().addKeyPress(KeyStatePB.newBuilder()
+                .setConsoleId(console.getId()).setPort(Port.PORT_1).setFrameNumber(1)).build());
+          }
+        }), steps(new Runnable() {
+          @Override
+          public void run() {
+            console.stop(StopConsolePB.Reason.USER_REQUESTED);
+          }
+        }));
+      }
+
+      @Override
+      public void check() {
+        assertFalse(senderStream.wasCalledConcurrently());
+        assertFalse(receiverStream.wasCalledConcurrently());
+        // Nothing follows the stop on a stream.
+        List<IncomingEventPB> received = receiverStream.getValues();
+        assertTrue(received.get(received.size() - 1).hasStopConsole());
+        assertEquals(1, count(receiverStream, false));
+      }
+    }));
+  }
+
+  @Test
+  public void testConcurrentStartGame() throws Exception {
+    assertExplored(scheduler.explore(new Scenario() {
+      Console console;
+      YieldingObserver<IncomingEventPB> firstStream;
+      YieldingObserver<IncomingEventPB> secondStream;
+
+      @Override
+      public void setUp() throws Exception {
+        console = server.createConsole();
+        firstStream = scheduler.newObserver();
+        secondStream = scheduler.newObserver();
+        readyClient(console, Port.PORT_1, firstStream);
+        readyClient(console, Port.PORT_2, secondStream);
+      }
+
+      @Override
+      public List<List<Runnable>> actors() {
+        Runnable start = new Runnable() {
+          @Override
+          public void run() {
+            server.startGame(StartGameRequestPB.newBuilder().setConsoleId(console.getId())
+                .build(), scheduler.<StartGameResponsePB>newObserver());
+          }
+        };
+        return inParallel(steps(start), steps(start));
+      }
+
+      @Override
+      public void check() {
+        assertEquals(1, count(firstStream, true));
+        assertEquals(1, count(secondStream, true));
+        assertFalse(firstStream.wasCalledConcurrently());
+        assertFalse(secondStream.wasCalledConcurrently());
+      }
+    }));
+  }
+
+  /**
+   * Asserts that every schedule was tried rather than only as many as the bound allows.
+   */
+  private static void assertExplored(int schedules) {
+    assertTrue("Explored " + schedules + " schedules", schedules > 1 && schedules < MAX_SCHEDULES);
+  }
+}
@@ -0,0 +1,98 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import netplayServer.KeyHistory;
+import netplayServer.ResumeInterceptor;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.Port;
+
+@RunWith(JUnit4.class)
+public class KeyHistoryTest {
+
+  private KeyHistory history;
+
+  @Before
+  public void setUp() {
+    history = new KeyHistory(4);
+  }
+
+  private static KeyStatePB key(Port port, long frame) {
+    return KeyStatePB.newBuilder().setConsoleId(1).setPort(port).setFrameNumber(frame).build();
+  }
+
+  @Test
+  public void testRecordDropsDuplicates() {
+    assertEquals(2,
+        history.record(ImmutableList.of(key(Port.PORT_1, 1), key(Port.PORT_1, 2))).size());
+    List<KeyStatePB> accepted =
+        history.record(ImmutableList.of(key(Port.PORT_1, 2), key(Port.PORT_1, 3)));
+    assertEquals(ImmutableList.of(key(Port.PORT_1, 3)), accepted);
+    assertEquals(3, history.newestFrame(Port.PORT_1));
+    assertEquals(-1, history.newestFrame(Port.PORT_2));
+  }
+
+  @Test
+  public void testFramesAfterSkipsOwnPortsAndSeenFrames() {
+    history.record(ImmutableList.of(key(Port.PORT_1, 1), key(Port.PORT_2, 1)));
+    history.record(ImmutableList.of(key(Port.PORT_1, 2), key(Port.PORT_2, 2)));
+    history.record(ImmutableList.of(key(Port.PORT_3, 1)));
+
+    List<KeyStatePB> missed = history.framesAfter(
+        ImmutableMap.of(Port.PORT_1_VALUE, 1L, Port.PORT_2_VALUE, 2L),
+        ImmutableSet.of(Port.PORT_3_VALUE));
+    assertEquals(ImmutableList.of(key(Port.PORT_1, 2)), missed);
+  }
+
+  @Test
+  public void testFramesAfterOrderedByFrame() {
+    history.record(ImmutableList.of(key(Port.PORT_1, 1), key(Port.PORT_1, 2)));
+    history.record(ImmutableList.of(key(Port.PORT_2, 1), key(Port.PORT_2, 2)));
+    List<KeyStatePB> missed = history.framesAfter(
+        ImmutableMap.of(Port.PORT_1_VALUE, 0L, Port.PORT_2_VALUE, 0L), ImmutableSet.<Integer>of());
+    assertEquals(4, missed.size());
+    assertEquals(1, missed.get(0).getFrameNumber());
+    assertEquals(1, missed.get(1).getFrameNumber());
+    assertEquals(2, missed.get(2).getFrameNumber());
+    assertEquals(2, missed.get(3).getFrameNumber());
+    // Ports without a last seen frame are not replayed.
+    assertEquals(2, history
+        .framesAfter(ImmutableMap.of(Port.PORT_1_VALUE, 0L), ImmutableSet.<Integer>of()).size());
+  }
+
+  @Test
+  public void testFramesAfterEvictedFramesIsAGap() {
+    for (int frame = 1; frame <= 6; ++frame) {
+      history.record(ImmutableList.of(key(Port.PORT_1, frame)));
+    }
+    // Frames 3 through 6 are retained.
+    assertEquals(4, history
+        .framesAfter(ImmutableMap.of(Port.PORT_1_VALUE, 2L), ImmutableSet.<Integer>of()).size());
+    try {
+      history.framesAfter(ImmutableMap.of(Port.PORT_1_VALUE, 1L), ImmutableSet.<Integer>of());
+      fail("Expected the evicted frame 2 to be reported as a gap");
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testResumeHeaderRoundTrip() {
+    Map<Integer, Long> frames = ImmutableMap.of(Port.PORT_1_VALUE, 12L, Port.PORT_3_VALUE, 10L);
+    assertEquals(frames, ResumeInterceptor.parseFrames(ResumeInterceptor.formatFrames(frames)));
+    assertEquals(null, ResumeInterceptor.parseFrames("1:12,bogus"));
+  }
+}
@@ -0,0 +1,149 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.admission.AdmissionController;
+import netplayServer.lanes.ExecutionLanes;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.Events;
+import netplayServer.utils.LocalServerNode;
+import netplayServer.utils.QueueObserver;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceStub;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.MakeConsoleRequestPB;
+import netplayprotos.NetplayServiceProto.MakeConsoleResponsePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+
+@RunWith(JUnit4.class)
+public class LanesTest {
+
+  private LocalServerNode node;
+  private ManagedChannel channel;
+  private ExecutionLanes lanes;
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final CountDownLatch blocked = new CountDownLatch(1);
+
+  /** Holds every makeConsole call on its thread until released. */
+  private class BlockingInterceptor implements ServerInterceptor {
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+        MethodDescriptor<ReqT, RespT> method, ServerCall<RespT> call, Metadata headers,
+        ServerCallHandler<ReqT, RespT> next) {
+      if (method.getFullMethodName()
+          .equals(NetPlayServerServiceGrpc.METHOD_MAKE_CONSOLE.getFullMethodName())) {
+        blocked.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return next.startCall(method, call, headers);
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    node = new LocalServerNode(new Server(false), new BlockingInterceptor());
+    channel = node.connect();
+    lanes = node.getServer().getExecutionLanes();
+    lanes.setControlThreads(1);
+    lanes.setMaxControlQueue(1);
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    node.shutdown();
+  }
+
+  @Test
+  public void testKeypressesFlowWhileControlLaneIsSaturated() throws Exception {
+    // Set up the match without control calls.
+    Console console = node.getServer().createConsole();
+    Client client1 = console.tryAddPlayers(1, Port.PORT_1);
+    Client client2 = console.tryAddPlayers(1, Port.PORT_2);
+    NetPlayServerServiceStub stub = NetPlayServerServiceGrpc.newStub(channel);
+    EventQueue player2Events = new EventQueue();
+    StreamObserver<OutgoingEventPB> player1 =
+        node.openStream(console.getId(), client1.getId(), new EventQueue());
+    node.openStream(console.getId(), client2.getId(), player2Events);
+    assertTrue(LocalServerNode.awaitStatus(client1, ClientStatus.READY));
+    assertTrue(LocalServerNode.awaitStatus(client2, ClientStatus.READY));
+    console.broadcastStartGame();
+    assertTrue(player2Events.poll(5000).hasStartGame());
+
+    // One control call holds the only control thread and a second waits in its queue.
+    QueueObserver<MakeConsoleResponsePB> held = new QueueObserver<>();
+    stub.makeConsole(MakeConsoleRequestPB.getDefaultInstance(), held);
+    assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    stub.makeConsole(MakeConsoleRequestPB.getDefaultInstance(), held);
+    for (int i = 0; i < 100 && lanes.getControlQueueDepth() == 0; ++i) {
+      Thread.sleep(20);
+    }
+    assertEquals(1, lanes.getControlActiveThreads());
+    assertEquals(1, lanes.getControlQueueDepth());
+
+    // Further control calls are refused at once.
+    try {
+      NetPlayServerServiceGrpc.newBlockingStub(channel).withDeadlineAfter(5, TimeUnit.SECONDS)
+          .makeConsole(MakeConsoleRequestPB.getDefaultInstance());
+      fail("Expected the control call to be refused");
+    } catch (StatusRuntimeException expected) {
+      assertEquals(Status.Code.RESOURCE_EXHAUSTED, expected.getStatus().getCode());
+      assertEquals(ExecutionLanes.CONTROL_BACKOFF_MILLIS,
+          AdmissionController.retryAfterMillis(expected.getStatus()));
+    }
+    assertEquals(1, lanes.getControlRejected());
+
+    // Keypresses are still relayed.
+    player1.onNext(Events.keyPress(console.getId(), Port.PORT_1, 1));
+    IncomingEventPB event = player2Events.poll(5000);
+    assertNotNull(event);
+    assertEquals(1, event.getKeyPress(0).getFrameNumber());
+
+    // Once released, the held calls complete.
+    release.countDown();
+    assertNotNull(held.poll(5000));
+    assertNotNull(held.poll(5000));
+  }
+
+  @Test
+  public void testControlCallsAreCounted() throws Exception {
+    release.countDown();
+    NetPlayServerServiceStub stub = NetPlayServerServiceGrpc.newStub(channel);
+    QueueObserver<MakeConsoleResponsePB> responses = new QueueObserver<>();
+    stub.withDeadlineAfter(5, TimeUnit.SECONDS)
+        .makeConsole(MakeConsoleRequestPB.getDefaultInstance(), responses);
+    assertNotNull(responses.poll(5000));
+    assertEquals(1, lanes.getControlCalls());
+    assertEquals(1, node.getServer().getConsoleCount());
+  }
+}
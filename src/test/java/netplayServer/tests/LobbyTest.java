@@ -0,0 +1,138 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import io.grpc.stub.StreamObserver;
+import netplayServer.Console;
+import netplayServer.Console.ConsoleStatus;
+import netplayServer.PlugRequestException;
+import netplayServer.Server;
+import netplayServer.lobby.LobbyIndex;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayserverprotos.LobbyServiceGrpc;
+import netplayserverprotos.LobbyServiceProto.LobbyEntryPB;
+import netplayserverprotos.LobbyServiceProto.LobbyUpdatePB;
+import netplayserverprotos.LobbyServiceProto.WatchLobbyRequestPB;
+
+@RunWith(JUnit4.class)
+public class LobbyTest {
+
+  private Server server;
+  private LobbyIndex lobby;
+
+  @Before
+  public void setUp() {
+    server = new Server(false);
+    lobby = server.getLobbyIndex();
+  }
+
+  @Test
+  public void testIndexFollowsPlugs() throws PlugRequestException {
+    Console empty = server.createConsole();
+    Console busy = server.createConsole();
+    busy.tryAddPlayers(1, Port.PORT_1, Port.PORT_2, Port.PORT_3);
+
+    List<LobbyEntryPB> open = lobby.find(ConsoleStatus.CREATED, 1, Integer.MAX_VALUE);
+    assertEquals(ImmutableList.of(busy.getId(), empty.getId()), ids(open));
+    assertEquals(1, open.get(0).getFreePorts());
+    assertEquals(ImmutableList.of(empty.getId()),
+        ids(lobby.find(ConsoleStatus.CREATED, 2, Integer.MAX_VALUE)));
+    assertEquals(ImmutableList.of(busy.getId()), ids(lobby.find(ConsoleStatus.CREATED, 1, 1)));
+
+    busy.tryAddPlayers(1, Port.PORT_ANY);
+    assertEquals(ImmutableList.of(empty.getId()),
+        ids(lobby.find(ConsoleStatus.CREATED, 1, Integer.MAX_VALUE)));
+    assertEquals(ImmutableList.of(busy.getId()),
+        ids(lobby.find(ConsoleStatus.CREATED, 0, Integer.MAX_VALUE)).subList(0, 1));
+  }
+
+  @Test
+  public void testStartedAndTornDownConsolesLeave() {
+    Console started = server.createConsole();
+    Console stopped = server.createConsole();
+    started.broadcastStartGame();
+    server.tearDownConsole(stopped.getId());
+
+    assertTrue(lobby.find(ConsoleStatus.CREATED, 0, Integer.MAX_VALUE).isEmpty());
+    assertEquals(ImmutableList.of(started.getId()),
+        ids(lobby.find(ConsoleStatus.POWERED, 0, Integer.MAX_VALUE)));
+  }
+
+  @Test
+  public void testWatcherGetsSnapshotThenBatchedChanges() throws PlugRequestException {
+    Console first = server.createConsole();
+    UpdateObserver watcher = new UpdateObserver();
+    lobby.watchLobby(WatchLobbyRequestPB.getDefaultInstance(), watcher);
+    assertEquals(1, watcher.updates.size());
+    assertTrue(watcher.updates.get(0).getSnapshot());
+    assertEquals(ImmutableList.of(first.getId()), ids(watcher.updates.get(0).getChangedList()));
+
+    Console second = server.createConsole();
+    first.tryAddPlayers(1, Port.PORT_1);
+    first.tryAddPlayers(1, Port.PORT_2);
+    server.tearDownConsole(second.getId());
+    lobby.publish();
+
+    assertEquals(2, watcher.updates.size());
+    LobbyUpdatePB update = watcher.updates.get(1);
+    assertEquals(ImmutableList.of(first.getId()), ids(update.getChangedList()));
+    assertEquals(2, update.getChanged(0).getFreePorts());
+    assertEquals(ImmutableList.of(second.getId()), update.getRemovedList());
+
+    lobby.publish();
+    assertEquals(2, watcher.updates.size());
+  }
+
+  @Test
+  public void testWatchOverRpc() throws Exception {
+    LocalServerNode node = new LocalServerNode(new Server(false));
+    try {
+      Iterator<LobbyUpdatePB> updates = LobbyServiceGrpc.newBlockingStub(node.connect())
+          .withDeadlineAfter(5, TimeUnit.SECONDS)
+          .watchLobby(WatchLobbyRequestPB.getDefaultInstance());
+      assertEquals(0, updates.next().getChangedCount());
+      Console console = node.getServer().createConsole();
+      LobbyUpdatePB update = updates.next();
+      assertEquals(ImmutableList.of(console.getId()), ids(update.getChangedList()));
+    } finally {
+      node.shutdown();
+    }
+  }
+
+  private static List<Long> ids(List<LobbyEntryPB> entries) {
+    List<Long> ids = Lists.newArrayList();
+    for (LobbyEntryPB entry : entries) {
+      ids.add(entry.getConsoleId());
+    }
+    return ids;
+  }
+
+  private static class UpdateObserver implements StreamObserver<LobbyUpdatePB> {
+    private final List<LobbyUpdatePB> updates = Lists.newArrayList();
+
+    @Override
+    public void onNext(LobbyUpdatePB value) {
+      updates.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {}
+
+    @Override
+    public void onCompleted() {}
+  }
+}
@@ -0,0 +1,140 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Lists;
+
+import io.grpc.stub.StreamObserver;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.matchmaking.Matchmaker;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayserverprotos.MatchmakingServiceGrpc;
+import netplayserverprotos.MatchmakingServiceProto.JoinQueueRequestPB;
+import netplayserverprotos.MatchmakingServiceProto.MatchAssignmentPB;
+
+@RunWith(JUnit4.class)
+public class MatchmakingTest {
+
+  private Server server;
+  // Ticks are run by hand; the scheduled pass is an hour away.
+  private Matchmaker matchmaker;
+
+  @Before
+  public void setUp() {
+    server = new Server(false);
+    matchmaker = new Matchmaker(server, TimeUnit.HOURS.toMillis(1));
+  }
+
+  @Test
+  public void testLargestPartiesPackedFirst() {
+    AssignmentObserver three = join(3, "");
+    AssignmentObserver twoA = join(2, "");
+    AssignmentObserver twoB = join(2, "");
+    AssignmentObserver one = join(1, "");
+    matchmaker.tick();
+
+    assertEquals(three.assignment().getConsoleId(), one.assignment().getConsoleId());
+    assertEquals(twoA.assignment().getConsoleId(), twoB.assignment().getConsoleId());
+    assertTrue(three.assignment().getConsoleId() != twoA.assignment().getConsoleId());
+    assertEquals(3, three.assignment().getPortCount());
+    Console console = server.getConsole(one.assignment().getConsoleId());
+    assertEquals(0, console.getFreePortCount());
+    assertNotNull(console.getClientById(one.assignment().getClientId()));
+  }
+
+  @Test
+  public void testLaterTickFillsFormedConsole() {
+    AssignmentObserver first = join(2, "");
+    matchmaker.tick();
+    AssignmentObserver second = join(2, "");
+    matchmaker.tick();
+    assertEquals(first.assignment().getConsoleId(), second.assignment().getConsoleId());
+    assertEquals(Lists.newArrayList(Port.PORT_3_VALUE, Port.PORT_4_VALUE),
+        second.assignment().getPortList());
+  }
+
+  @Test
+  public void testGamesAndSizesNotMixed() {
+    AssignmentObserver kart = join(1, "kart");
+    AssignmentObserver smash = join(1, "smash");
+    AssignmentObserver party = join(JoinQueueRequestPB.newBuilder().setPlayerCount(1)
+        .setGame("kart").setConsoleSize(16).build());
+    matchmaker.tick();
+    assertTrue(kart.assignment().getConsoleId() != smash.assignment().getConsoleId());
+    assertTrue(kart.assignment().getConsoleId() != party.assignment().getConsoleId());
+    assertEquals(16, server.getConsole(party.assignment().getConsoleId()).getPortCount());
+  }
+
+  @Test
+  public void testInvalidRequestRejected() {
+    AssignmentObserver tooMany = join(5, "");
+    assertEquals(1, tooMany.assignments.size());
+    assertEquals(MatchAssignmentPB.Status.INVALID_REQUEST, tooMany.assignments.get(0).getStatus());
+    assertTrue(tooMany.completed);
+  }
+
+  @Test
+  public void testAssignmentStreamedOverRpc() throws Exception {
+    LocalServerNode node = new LocalServerNode(new Server(false));
+    try {
+      Iterator<MatchAssignmentPB> assignments = MatchmakingServiceGrpc
+          .newBlockingStub(node.connect()).withDeadlineAfter(5, TimeUnit.SECONDS)
+          .joinQueue(JoinQueueRequestPB.newBuilder().setPlayerCount(2).build());
+      assertEquals(MatchAssignmentPB.Status.QUEUED, assignments.next().getStatus());
+      MatchAssignmentPB assignment = assignments.next();
+      assertEquals(MatchAssignmentPB.Status.ASSIGNED, assignment.getStatus());
+      assertEquals(2, assignment.getPortCount());
+      assertNotNull(node.getServer().getConsole(assignment.getConsoleId())
+          .getClientById(assignment.getClientId()));
+    } finally {
+      node.shutdown();
+    }
+  }
+
+  private AssignmentObserver join(int playerCount, String game) {
+    return join(JoinQueueRequestPB.newBuilder().setPlayerCount(playerCount).setGame(game).build());
+  }
+
+  private AssignmentObserver join(JoinQueueRequestPB request) {
+    AssignmentObserver observer = new AssignmentObserver();
+    matchmaker.joinQueue(request, observer);
+    return observer;
+  }
+
+  private static class AssignmentObserver implements StreamObserver<MatchAssignmentPB> {
+    private final List<MatchAssignmentPB> assignments = Lists.newArrayList();
+    private boolean completed = false;
+
+    MatchAssignmentPB assignment() {
+      MatchAssignmentPB last = assignments.get(assignments.size() - 1);
+      assertEquals(MatchAssignmentPB.Status.ASSIGNED, last.getStatus());
+      return last;
+    }
+
+    @Override
+    public void onNext(MatchAssignmentPB value) {
+      assignments.add(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {}
+
+    @Override
+    public void onCompleted() {
+      completed = true;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Lists;
+
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.metrics.ConsoleMetrics;
+import netplayServer.metrics.LatencyHistogram;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.Events;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+
+@RunWith(JUnit4.class)
+public class MetricsTest {
+
+  @Test
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long micros = 1; micros <= 1000; ++micros) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(1000, snapshot.getCount());
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), snapshot.getMax());
+    assertWithin(TimeUnit.MICROSECONDS.toNanos(500), snapshot.getValueAtPercentile(50));
+    assertWithin(TimeUnit.MICROSECONDS.toNanos(990), snapshot.getValueAtPercentile(99));
+    assertEquals(snapshot.getMax(), snapshot.getValueAtPercentile(100));
+
+    // Small values are exact, out of range ones are clamped.
+    LatencyHistogram small = new LatencyHistogram();
+    small.record(7);
+    small.record(-1);
+    small.record(Long.MAX_VALUE);
+    assertEquals(0, small.snapshot().getValueAtPercentile(1));
+    assertEquals(7, small.snapshot().getValueAtPercentile(50));
+    assertEquals(LatencyHistogram.MAX_VALUE, small.snapshot().getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testIntervalBetweenSnapshots() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 100; ++i) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+    }
+    LatencyHistogram.Snapshot before = histogram.snapshot();
+    for (int i = 0; i < 10; ++i) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+    }
+    LatencyHistogram.Snapshot interval = histogram.snapshot().minus(before);
+    assertEquals(10, interval.getCount());
+    assertWithin(TimeUnit.MICROSECONDS.toNanos(100), interval.getValueAtPercentile(99));
+  }
+
+  @Test
+  public void testConcurrentRecordsAllCounted() throws InterruptedException {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    List<Thread> threads = Lists.newArrayList();
+    for (int t = 0; t < 4; ++t) {
+      final long value = 1000 * (t + 1);
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 100000; ++i) {
+            histogram.record(value);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(400000, snapshot.getCount());
+    assertEquals(4000, snapshot.getMax());
+    assertEquals(1000L * 100000 * (1 + 2 + 3 + 4), snapshot.getSum());
+  }
+
+  @Test
+  public void testRelayIsMeasured() throws Exception {
+    Server server = new Server(false);
+    LocalServerNode node = new LocalServerNode(server);
+    try {
+      Console console = server.createConsole();
+      Client sender = console.tryAddPlayers(1, Port.PORT_1);
+      Client receiver = console.tryAddPlayers(1, Port.PORT_2);
+      EventQueue received = new EventQueue();
+      StreamObserver<OutgoingEventPB> senderStream =
+          node.openStream(console.getId(), sender.getId(), new EventQueue());
+      node.openStream(console.getId(), receiver.getId(), received);
+      assertTrue(LocalServerNode.awaitStatus(receiver, ClientStatus.READY));
+      console.broadcastStartGame();
+
+      for (long frame = 1; frame <= 10; ++frame) {
+        senderStream.onNext(Events.keyPress(console.getId(), Port.PORT_1, frame));
+      }
+      for (int i = 0; i < 10; ++i) {
+        assertNotNull(received.nextKeyPress(5000));
+      }
+
+      // The server records an event after writing it, so it may still be at it.
+      LatencyHistogram residency = server.getMetrics().getResidency();
+      for (int i = 0; i < 100 && residency.snapshot().getCount() < 10; ++i) {
+        Thread.sleep(20);
+      }
+      ConsoleMetrics metrics = console.getMetrics();
+      assertEquals(10, metrics.getMessagesIn());
+      assertEquals(10, metrics.getKeyStatesIn());
+      assertEquals(10, metrics.getMessagesOut());
+      assertTrue(metrics.getBytesIn() > 0);
+      assertTrue(metrics.getBytesOut() > 0);
+      assertEquals(10, residency.snapshot().getCount());
+
+      // Totals outlive the console.
+      server.tearDownConsole(console.getId());
+      StringBuilder export = new StringBuilder();
+      server.getMetrics().writeTo(export);
+      assertTrue(export.toString(),
+          export.toString().contains("\nnetplay_messages_received_total 10.0\n"));
+      assertTrue(export.toString().contains("\nnetplay_relay_residency_seconds_count 10.0\n"));
+      assertTrue(export.toString().contains("netplay_relay_residency_seconds{quantile=\"0.99\"}"));
+    } finally {
+      node.shutdown();
+    }
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue(String.format("%d not within 7%% of %d", actual, expected),
+        Math.abs(actual - expected) <= expected * 7 / 100);
+  }
+}
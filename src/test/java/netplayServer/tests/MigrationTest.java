@@ -0,0 +1,247 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableMap;
+
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.KeyHistory;
+import netplayServer.Redirects;
+import netplayServer.ResumeInterceptor;
+import netplayServer.Server;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.Events;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceStub;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.InvalidDataPB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StartGameRequestPB;
+import netplayserverprotos.MigrationServiceGrpc;
+import netplayserverprotos.MigrationServiceProto.ClientSnapshotPB;
+import netplayserverprotos.MigrationServiceProto.ConsoleSnapshotPB;
+import netplayserverprotos.MigrationServiceProto.MigrateConsoleRequestPB;
+import netplayserverprotos.MigrationServiceProto.MigrateConsoleResponsePB;
+
+/**
+ * Moves a running two-player console between two servers on localhost.
+ */
+@RunWith(JUnit4.class)
+public class MigrationTest {
+
+  private LocalServerNode source;
+  private LocalServerNode target;
+
+  @Before
+  public void setUp() throws Exception {
+    source = new LocalServerNode(new Server(false));
+    target = new LocalServerNode(new Server(false));
+  }
+
+  @After
+  public void tearDown() {
+    source.shutdown();
+    target.shutdown();
+  }
+
+  private StreamObserver<OutgoingEventPB> resume(LocalServerNode node, long consoleId,
+      long clientId, Map<Integer, Long> resumeFrames, EventQueue events) {
+    Metadata headers = new Metadata();
+    headers.put(ResumeInterceptor.RESUME_HEADER, ResumeInterceptor.formatFrames(resumeFrames));
+    NetPlayServerServiceStub stub =
+        MetadataUtils.attachHeaders(NetPlayServerServiceGrpc.newStub(node.connect()), headers);
+    return Events.openStream(stub, consoleId, clientId, events);
+  }
+
+  private static void awaitStatus(Console console, long clientId, ClientStatus status)
+      throws InterruptedException {
+    assertTrue(LocalServerNode.awaitStatus(console.getClientById(clientId), status));
+  }
+
+  /**
+   * Asks the source's admin listener to move the console to the target.
+   */
+  private MigrateConsoleResponsePB migrate(long consoleId) throws IOException {
+    return MigrationServiceGrpc.newBlockingStub(source.connectAdmin())
+        .migrateConsole(MigrateConsoleRequestPB.newBuilder().setConsoleId(consoleId)
+            .setTarget(target.getTarget()).setImportTarget(target.getAdminTarget()).build());
+  }
+
+  @Test
+  public void testMigrateRunningConsole() throws Exception {
+    NetPlayServerServiceBlockingStub control = source.control();
+    long consoleId = source.makeConsole();
+    long clientId1 = control.plugController(PlugControllerRequestPB.newBuilder()
+        .setConsoleId(consoleId).setDelayFrames(2).setRequestedPort1(Port.PORT_1).build())
+        .getClientId();
+    long clientId2 = control.plugController(PlugControllerRequestPB.newBuilder()
+        .setConsoleId(consoleId).setDelayFrames(3).setRequestedPort1(Port.PORT_2).build())
+        .getClientId();
+
+    EventQueue player1Events = new EventQueue();
+    EventQueue player2Events = new EventQueue();
+    StreamObserver<OutgoingEventPB> player1 =
+        source.openStream(consoleId, clientId1, player1Events);
+    source.openStream(consoleId, clientId2, player2Events);
+    Console sourceConsole = source.getServer().getConsole(consoleId);
+    awaitStatus(sourceConsole, clientId1, ClientStatus.READY);
+    awaitStatus(sourceConsole, clientId2, ClientStatus.READY);
+    control.startGame(StartGameRequestPB.newBuilder().setConsoleId(consoleId).build());
+    for (long frame = 1; frame <= 3; ++frame) {
+      player1.onNext(Events.keyPress(consoleId, Port.PORT_1, frame));
+    }
+    assertEquals(1, player2Events.nextKeyPress(5000).getFrameNumber());
+    assertEquals(2, player2Events.nextKeyPress(5000).getFrameNumber());
+    assertEquals(3, player2Events.nextKeyPress(5000).getFrameNumber());
+
+    MigrateConsoleResponsePB response = migrate(consoleId);
+    assertEquals(MigrateConsoleResponsePB.Status.SUCCESS, response.getStatus());
+    assertTrue(response.getPauseFrames() >= 0);
+    assertNull(source.getServer().getConsole(consoleId));
+
+    // Both players are told to go to the target, where the console is waiting for them.
+    String redirect1 =
+        Redirects.targetOf(Status.fromThrowable(player1Events.pollError(5000)));
+    String redirect2 =
+        Redirects.targetOf(Status.fromThrowable(player2Events.pollError(5000)));
+    assertEquals(target.getTarget(), redirect1);
+    assertEquals(target.getTarget(), redirect2);
+    Console targetConsole = target.getServer().getConsole(consoleId);
+    assertNotNull(targetConsole);
+    assertEquals(Console.ConsoleStatus.POWERED, targetConsole.getStatus());
+    assertEquals(2, (int) targetConsole.getPortDelayMap().get(Port.PORT_1));
+    assertEquals(3, (int) targetConsole.getPortDelayMap().get(Port.PORT_2));
+    assertEquals(3, targetConsole.getKeyHistory().newestFrame(Port.PORT_1));
+
+    EventQueue resumed2 = new EventQueue();
+    player1 = resume(target, consoleId, clientId1, ImmutableMap.<Integer, Long>of(),
+        new EventQueue());
+    resume(target, consoleId, clientId2, ImmutableMap.of(Port.PORT_1_VALUE, 3L), resumed2);
+    awaitStatus(targetConsole, clientId1, ClientStatus.PLAYING);
+    awaitStatus(targetConsole, clientId2, ClientStatus.PLAYING);
+    assertTrue(targetConsole.getMigrationPauseFrames() >= 0);
+
+    // The match continues on the target.
+    player1.onNext(Events.keyPress(consoleId, Port.PORT_1, 4));
+    assertEquals(4, resumed2.nextKeyPress(5000).getFrameNumber());
+  }
+
+  @Test
+  public void testMigrateAfterHistoryWrapped() throws Exception {
+    long consoleId = source.makeConsole();
+    long clientId1 = source.plug(consoleId, Port.PORT_1);
+    long clientId2 = source.plug(consoleId, Port.PORT_2);
+    StreamObserver<OutgoingEventPB> player1 =
+        source.openStream(consoleId, clientId1, new EventQueue());
+    StreamObserver<OutgoingEventPB> player2 =
+        source.openStream(consoleId, clientId2, new EventQueue());
+    assertTrue(source.awaitClientsReady(consoleId));
+    source.control().startGame(StartGameRequestPB.newBuilder().setConsoleId(consoleId).build());
+    // Both ports relay more frames than the history retains, so their oldest ones are evicted.
+    long frames = KeyHistory.DEFAULT_FRAMES_PER_PORT + 100;
+    for (long frame = 1; frame <= frames; ++frame) {
+      player1.onNext(Events.keyPress(consoleId, Port.PORT_1, frame));
+      player2.onNext(Events.keyPress(consoleId, Port.PORT_2, frame));
+    }
+    KeyHistory history = source.getServer().getConsole(consoleId).getKeyHistory();
+    for (int i = 0; i < 250 && (history.newestFrame(Port.PORT_1) < frames
+        || history.newestFrame(Port.PORT_2) < frames); ++i) {
+      Thread.sleep(20);
+    }
+
+    MigrateConsoleResponsePB response = migrate(consoleId);
+    assertEquals(MigrateConsoleResponsePB.Status.SUCCESS, response.getStatus());
+    KeyHistory imported = target.getServer().getConsole(consoleId).getKeyHistory();
+    assertEquals(frames, imported.newestFrame(Port.PORT_1));
+    assertEquals(frames, imported.newestFrame(Port.PORT_2));
+    assertEquals(2 * KeyHistory.DEFAULT_FRAMES_PER_PORT, imported.allFrames().size());
+  }
+
+  @Test
+  public void testMigrateConsoleOnSharedStream() throws Exception {
+    long[] consoleIds = new long[2];
+    long[] clientIds = new long[2];
+    EventQueue sharedEvents = new EventQueue();
+    StreamObserver<OutgoingEventPB> shared =
+        NetPlayServerServiceGrpc.newStub(source.connect()).sendEvent(sharedEvents);
+    for (int i = 0; i < 2; ++i) {
+      consoleIds[i] = source.makeConsole();
+      clientIds[i] = source.plug(consoleIds[i], Port.PORT_1);
+      shared.onNext(Events.clientReady(consoleIds[i], clientIds[i]));
+    }
+    for (int i = 0; i < 2; ++i) {
+      awaitStatus(source.getServer().getConsole(consoleIds[i]), clientIds[i], ClientStatus.READY);
+    }
+    assertEquals(MigrateConsoleResponsePB.Status.SUCCESS, migrate(consoleIds[0]).getStatus());
+
+    // The shared stream carries on and only reports the moved console as invalid.
+    IncomingEventPB invalid;
+    do {
+      invalid = sharedEvents.poll(5000);
+      assertNotNull(invalid);
+    } while (invalid.getInvalidDataCount() == 0);
+    assertEquals(consoleIds[0], invalid.getInvalidData(0).getConsoleId());
+    assertEquals(InvalidDataPB.Status.INVALID_CONSOLE, invalid.getInvalidData(0).getStatus());
+    assertNull(sharedEvents.pollError(100));
+
+    // A stream of its own for the moved console learns where it went.
+    EventQueue ownEvents = new EventQueue();
+    source.openStream(consoleIds[0], clientIds[0], ownEvents);
+    assertEquals(target.getTarget(),
+        Redirects.targetOf(Status.fromThrowable(ownEvents.pollError(5000))));
+    shared.onCompleted();
+  }
+
+  @Test
+  public void testMigrateUnknownConsole() throws Exception {
+    assertEquals(MigrateConsoleResponsePB.Status.NO_SUCH_CONSOLE, migrate(4242).getStatus());
+  }
+
+  @Test
+  public void testImportedClientIdsAreReserved() throws Exception {
+    long importedId = source.plug(source.makeConsole(), Port.PORT_1) + 1000;
+    Console.fromSnapshot(target.getServer(), ConsoleSnapshotPB.newBuilder().setConsoleId(4242)
+        .setStatus(Console.ConsoleStatus.CREATED.name())
+        .addClients(ClientSnapshotPB.newBuilder().setClientId(importedId)
+            .setStatus(ClientStatus.CREATED.name()).addPort(Port.PORT_1_VALUE))
+        .build());
+    assertTrue(target.plug(target.makeConsole(), Port.PORT_1) > importedId);
+  }
+
+  @Test
+  public void testMigrationNotServedOnClientPort() throws Exception {
+    long consoleId = source.makeConsole();
+    try {
+      MigrationServiceGrpc.newBlockingStub(source.connect())
+          .migrateConsole(MigrateConsoleRequestPB.newBuilder().setConsoleId(consoleId)
+              .setTarget(target.getTarget()).setImportTarget(target.getAdminTarget()).build());
+      fail("Expected the client port not to serve the migration service");
+    } catch (StatusRuntimeException expected) {
+      assertEquals(Status.Code.UNIMPLEMENTED, expected.getStatus().getCode());
+    }
+    assertNotNull(source.getServer().getConsole(consoleId));
+  }
+}
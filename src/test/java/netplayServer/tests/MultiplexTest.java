@@ -0,0 +1,153 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Lists;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+import netplayServer.MultiplexedStream;
+import netplayServer.Server;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.Events;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StopConsolePB;
+
+/**
+ * Attaches the clients of several consoles to one event stream.
+ */
+@RunWith(JUnit4.class)
+public class MultiplexTest {
+
+  private LocalServerNode node;
+
+  @After
+  public void tearDown() {
+    if (node != null) {
+      node.shutdown();
+    }
+  }
+
+  @Test
+  public void testWritesWhileBusyAreCombined() throws Exception {
+    final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+    final CountDownLatch releaseFirstWrite = new CountDownLatch(1);
+    final List<IncomingEventPB> written = Lists.newCopyOnWriteArrayList();
+    MultiplexedStream stream = new MultiplexedStream(new EventQueue() {
+      @Override
+      public void onNext(IncomingEventPB value) {
+        written.add(value);
+        if (written.size() == 1) {
+          firstWriteStarted.countDown();
+          try {
+            releaseFirstWrite.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      }
+    });
+    final StreamObserver<IncomingEventPB> lane1 = stream.newLane(1);
+    StreamObserver<IncomingEventPB> lane2 = stream.newLane(2);
+
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        lane1.onNext(
+            IncomingEventPB.newBuilder().addKeyPress(Events.keyState(1, Port.PORT_1, 1)).build());
+      }
+    });
+    writer.start();
+    assertTrue(firstWriteStarted.await(5, TimeUnit.SECONDS));
+    // The stream is busy, so these are queued and the calls return at once.
+    lane1.onNext(
+        IncomingEventPB.newBuilder().addKeyPress(Events.keyState(1, Port.PORT_1, 2)).build());
+    lane2.onNext(
+        IncomingEventPB.newBuilder().addKeyPress(Events.keyState(2, Port.PORT_1, 1)).build());
+    IncomingEventPB stop = IncomingEventPB.newBuilder().setStopConsole(StopConsolePB.newBuilder()
+        .setConsoleId(2).setStopReason(StopConsolePB.Reason.USER_REQUESTED)).build();
+    lane2.onNext(stop);
+    assertEquals(1, written.size());
+    releaseFirstWrite.countDown();
+    writer.join(5000);
+
+    assertEquals(3, written.size());
+    assertEquals(IncomingEventPB.newBuilder().addKeyPress(Events.keyState(1, Port.PORT_1, 2))
+        .addKeyPress(Events.keyState(2, Port.PORT_1, 1)).build(), written.get(1));
+    assertEquals(stop, written.get(2));
+  }
+
+  @Test
+  public void testOneStreamForTwoConsoles() throws Exception {
+    node = new LocalServerNode(new Server(false));
+    ManagedChannel channel = node.connect();
+
+    // The observer sits on port 1 of both consoles; a separate player on port 2 of each.
+    long[] consoleIds = new long[2];
+    long[] observerIds = new long[2];
+    EventQueue[] playerEvents = new EventQueue[2];
+    List<StreamObserver<OutgoingEventPB>> playerStreams = Lists.newArrayList();
+    EventQueue observerEvents = new EventQueue();
+    StreamObserver<OutgoingEventPB> observer =
+        NetPlayServerServiceGrpc.newStub(channel).sendEvent(observerEvents);
+    for (int i = 0; i < 2; ++i) {
+      consoleIds[i] = node.makeConsole();
+      observerIds[i] = node.plug(consoleIds[i], Port.PORT_1);
+      long playerId = node.plug(consoleIds[i], Port.PORT_2);
+      playerEvents[i] = new EventQueue();
+      playerStreams.add(node.openStream(consoleIds[i], playerId, playerEvents[i]));
+      observer.onNext(Events.clientReady(consoleIds[i], observerIds[i]));
+    }
+    for (int i = 0; i < 2; ++i) {
+      assertTrue(node.awaitClientsReady(consoleIds[i]));
+    }
+
+    // One event from the observer carries keypresses for both consoles.
+    observer.onNext(OutgoingEventPB.newBuilder()
+        .addKeyPress(Events.keyState(consoleIds[0], Port.PORT_1, 1))
+        .addKeyPress(Events.keyState(consoleIds[1], Port.PORT_1, 1)).build());
+    for (int i = 0; i < 2; ++i) {
+      IncomingEventPB received = playerEvents[i].poll(5000);
+      assertNotNull(received);
+      assertEquals(1, received.getKeyPressCount());
+      assertEquals(consoleIds[i], received.getKeyPress(0).getConsoleId());
+    }
+
+    // Both players' keypresses come back on the observer's one stream.
+    for (int i = 0; i < 2; ++i) {
+      playerStreams.get(i).onNext(OutgoingEventPB.newBuilder()
+          .addKeyPress(Events.keyState(consoleIds[i], Port.PORT_2, 1)).build());
+    }
+    List<Long> consolesHeard = Lists.newArrayList();
+    while (consolesHeard.size() < 2) {
+      IncomingEventPB received = observerEvents.poll(5000);
+      assertNotNull(received);
+      for (KeyStatePB keyPress : received.getKeyPressList()) {
+        consolesHeard.add(keyPress.getConsoleId());
+      }
+    }
+    assertTrue(consolesHeard.contains(consoleIds[0]));
+    assertTrue(consolesHeard.contains(consoleIds[1]));
+
+    observer.onCompleted();
+    for (StreamObserver<OutgoingEventPB> playerStream : playerStreams) {
+      playerStream.onCompleted();
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import io.grpc.Channel;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import netplayServer.Console;
+import netplayServer.ConsoleIds;
+import netplayServer.Server;
+import netplayServer.admission.AdmissionController;
+import netplayServer.cluster.ClusterMembership;
+import netplayServer.cluster.PlacementPlanner;
+import netplayServer.cluster.PlacementPlanner.Placement;
+import netplayServer.cluster.RttProber;
+import netplayServer.utils.InjectedLatencyInterceptor;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.PlugControllerResponsePB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayserverprotos.PlacementServiceGrpc;
+import netplayserverprotos.PlacementServiceProto.NodeRttPB;
+import netplayserverprotos.PlacementServiceProto.PlaceConsoleRequestPB;
+import netplayserverprotos.PlacementServiceProto.PlaceConsoleResponsePB;
+import netplayserverprotos.PlacementServiceProto.PlayerProbePB;
+
+/**
+ * Places consoles on a three node localhost cluster whose distance to each player is simulated by
+ * delaying the player's calls.
+ */
+@RunWith(JUnit4.class)
+public class PlacementTest {
+
+  // Round trip times of two players to nodes 0, 1 and 2. Node 2 has the smallest worst case.
+  private static final int[] ALICE_RTTS = {10, 80, 40};
+  private static final int[] BOB_RTTS = {90, 70, 40};
+
+  private List<LocalServerNode> nodes = Lists.newArrayList();
+
+  @Before
+  public void setUp() throws Exception {
+    List<String> peers = Lists.newArrayList();
+    for (int i = 0; i < 3; ++i) {
+      InjectedLatencyInterceptor latency = new InjectedLatencyInterceptor();
+      latency.setRtt("alice", ALICE_RTTS[i]);
+      latency.setRtt("bob", BOB_RTTS[i]);
+      LocalServerNode node = new LocalServerNode(new Server(false), latency);
+      nodes.add(node);
+      peers.add(node.getTarget());
+    }
+    for (int i = 0; i < 3; ++i) {
+      nodes.get(i).getServer().setCluster(new ClusterMembership(i, peers));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    for (LocalServerNode node : nodes) {
+      node.getServer().getPeers().shutdown();
+      node.shutdown();
+    }
+  }
+
+  private ManagedChannel channelTo(int node) {
+    return nodes.get(node).connect();
+  }
+
+  private PlayerProbePB probe(String player) {
+    List<Channel> playerChannels = Lists.newArrayList();
+    for (int i = 0; i < nodes.size(); ++i) {
+      playerChannels.add(InjectedLatencyInterceptor.asPlayer(channelTo(i), player));
+    }
+    return new RttProber(3).probe(player, playerChannels);
+  }
+
+  private static PlayerProbePB probeOf(String player, int... rtts) {
+    PlayerProbePB.Builder probe = PlayerProbePB.newBuilder().setPlayer(player);
+    for (int node = 0; node < rtts.length; ++node) {
+      if (rtts[node] >= 0) {
+        probe.addRtts(NodeRttPB.newBuilder().setNodeId(node).setRttMillis(rtts[node]));
+      }
+    }
+    return probe.build();
+  }
+
+  @Test
+  public void testPlannerMinimizesWorstDelay() {
+    Placement placement = PlacementPlanner
+        .choose(ImmutableList.of(probeOf("a", ALICE_RTTS), probeOf("b", BOB_RTTS)), 3);
+    assertEquals(2, placement.getNodeId());
+    assertEquals(20, placement.getMaxOneWayMillis());
+    assertEquals(2, placement.getDelayFrames());
+  }
+
+  @Test
+  public void testPlannerSkipsNodesNotProbedByEveryone() {
+    // Node 0 would be best but b could not reach it; node 3 is not part of the cluster.
+    Placement placement = PlacementPlanner
+        .choose(ImmutableList.of(probeOf("a", 10, 50, 60, 1), probeOf("b", -1, 50, 60, 1)), 3);
+    assertEquals(1, placement.getNodeId());
+    assertNull(PlacementPlanner
+        .choose(ImmutableList.of(probeOf("a", 10, -1), probeOf("b", -1, 10)), 2));
+  }
+
+  @Test
+  public void testPlannerBreaksTiesOnTotalDelay() {
+    Placement placement = PlacementPlanner
+        .choose(ImmutableList.of(probeOf("a", 60, 60), probeOf("b", 60, 20)), 2);
+    assertEquals(1, placement.getNodeId());
+  }
+
+  @Test
+  public void testConsolePlacedOnClosestNode() {
+    PlayerProbePB alice = probe("alice");
+    PlayerProbePB bob = probe("bob");
+    assertEquals(3, alice.getRttsCount());
+
+    // Any node can take the request; node 0 forwards it to node 2.
+    PlaceConsoleResponsePB response = PlacementServiceGrpc.newBlockingStub(channelTo(0))
+        .placeConsole(PlaceConsoleRequestPB.newBuilder().addPlayers(alice).addPlayers(bob).build());
+    assertEquals(PlaceConsoleResponsePB.Status.SUCCESS, response.getStatus());
+    assertEquals(2, response.getNodeId());
+    assertEquals(nodes.get(2).getTarget(), response.getNodeTarget());
+    assertEquals(2, ConsoleIds.nodeOf(response.getConsoleId()));
+    assertTrue(response.getMaxOneWayMillis() >= 20);
+    assertTrue(response.getDelayFrames() >= Console.millisToFrames(20));
+
+    Console console = nodes.get(2).getServer().getConsole(response.getConsoleId());
+    assertNotNull(console);
+    assertEquals(response.getDelayFrames(), console.getMinimumDelayFrames());
+
+    // A client asking for less delay still gets the placement's delay; more is kept.
+    PlugControllerResponsePB plug = NetPlayServerServiceGrpc.newBlockingStub(channelTo(2))
+        .plugController(PlugControllerRequestPB.newBuilder().setConsoleId(response.getConsoleId())
+            .setDelayFrames(0).setRequestedPort1(Port.PORT_1).build());
+    assertEquals(PlugControllerResponsePB.Status.SUCCESS, plug.getStatus());
+    plug = NetPlayServerServiceGrpc.newBlockingStub(channelTo(2))
+        .plugController(PlugControllerRequestPB.newBuilder().setConsoleId(response.getConsoleId())
+            .setDelayFrames(response.getDelayFrames() + 5).setRequestedPort1(Port.PORT_2).build());
+    assertEquals(PlugControllerResponsePB.Status.SUCCESS, plug.getStatus());
+    assertEquals(response.getDelayFrames(), (int) console.getPortDelayMap().get(Port.PORT_1));
+    assertEquals(response.getDelayFrames() + 5, (int) console.getPortDelayMap().get(Port.PORT_2));
+  }
+
+  @Test
+  public void testRefusalOfForwardedPlacementKeepsBackoff() {
+    nodes.get(2).getServer().getAdmissionController().setMaxConsoles(1);
+    nodes.get(2).getServer().createConsole();
+    try {
+      PlacementServiceGrpc.newBlockingStub(channelTo(0)).placeConsole(PlaceConsoleRequestPB
+          .newBuilder().addPlayers(probeOf("a", ALICE_RTTS)).addPlayers(probeOf("b", BOB_RTTS))
+          .build());
+      fail("Expected node 2 to refuse the console");
+    } catch (StatusRuntimeException expected) {
+      // The loaded node is not taken for unreachable, and the client learns when to retry.
+      assertEquals(Status.Code.RESOURCE_EXHAUSTED, expected.getStatus().getCode());
+      assertTrue(AdmissionController.retryAfterMillis(expected.getStatus()) > 0);
+    }
+  }
+
+  @Test
+  public void testNoCommonNode() {
+    PlaceConsoleResponsePB response = PlacementServiceGrpc.newBlockingStub(channelTo(1))
+        .placeConsole(PlaceConsoleRequestPB.newBuilder().addPlayers(probeOf("a", 10, -1, -1))
+            .addPlayers(probeOf("b", -1, 10, -1)).build());
+    assertEquals(PlaceConsoleResponsePB.Status.NO_COMMON_NODE, response.getStatus());
+    response = PlacementServiceGrpc.newBlockingStub(channelTo(1))
+        .placeConsole(PlaceConsoleRequestPB.getDefaultInstance());
+    assertEquals(PlaceConsoleResponsePB.Status.NO_PLAYERS, response.getStatus());
+  }
+}
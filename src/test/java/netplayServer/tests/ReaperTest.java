@@ -0,0 +1,121 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.reaper.ConsoleReaper;
+import netplayServer.visitors.OutgoingEventVisitor;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StopConsolePB;
+
+@RunWith(JUnit4.class)
+public class ReaperTest {
+
+  private static final long IDLE = ConsoleReaper.DEFAULT_IDLE_MILLIS;
+
+  private Server server;
+  private ConsoleReaper reaper;
+
+  @Before
+  public void setUp() {
+    server = new Server(false);
+    reaper = server.getConsoleReaper();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static StreamObserver<IncomingEventPB> mockStream() {
+    return mock(StreamObserver.class);
+  }
+
+  @Test
+  public void testIdleLobbyStopped() throws Exception {
+    Console console = server.createConsole();
+    Client client = console.tryAddPlayers(0, Port.PORT_1);
+    StreamObserver<IncomingEventPB> stream = mockStream();
+    client.setStreamObserver(stream);
+
+    reaper.sweep(1000);
+    reaper.sweep(1000 + IDLE - 1);
+    assertSame(console, server.getConsole(console.getId()));
+
+    reaper.sweep(1000 + IDLE);
+    assertNull(server.getConsole(console.getId()));
+    verify(stream).onNext(IncomingEventPB.newBuilder()
+        .setStopConsole(StopConsolePB.newBuilder().setConsoleId(console.getId())
+            .setStopReason(StopConsolePB.Reason.ERROR))
+        .build());
+  }
+
+  @Test
+  public void testRelayingConsoleKept() throws Exception {
+    Console console = server.createConsole();
+    console.tryAddPlayers(0, Port.PORT_1);
+
+    reaper.sweep(0);
+    console.getMetrics().recordReceived(1, 10);
+    reaper.sweep(IDLE);
+    reaper.sweep(2 * IDLE - 1);
+    assertSame(console, server.getConsole(console.getId()));
+
+    reaper.sweep(2 * IDLE);
+    assertNull(server.getConsole(console.getId()));
+  }
+
+  @Test
+  public void testConsoleTornDownOnceEveryStreamCompleted() throws Exception {
+    Console console = server.createConsole();
+    Client first = console.tryAddPlayers(0, Port.PORT_1);
+    Client second = console.tryAddPlayers(0, Port.PORT_2);
+    StreamObserver<IncomingEventPB> firstStream = mockStream();
+    first.setStreamObserver(firstStream);
+    second.setStreamObserver(mockStream());
+
+    first.onCompleted();
+    verify(firstStream).onCompleted();
+    assertSame(console, server.getConsole(console.getId()));
+    second.onCompleted();
+    assertEquals(ClientStatus.DONE, second.getStatus());
+    assertNull(server.getConsole(console.getId()));
+  }
+
+  @Test
+  public void testTearDownStopsVisits() throws Exception {
+    OutgoingEventVisitor visitor = mock(OutgoingEventVisitor.class);
+    server.getEventVisitors().clear();
+    server.getEventVisitors().add(visitor);
+    Console console = server.createConsole();
+    Client client = console.tryAddPlayers(0, Port.PORT_1);
+    client.setStreamObserver(mockStream());
+
+    client.onNext(keypress(console, 1));
+    verify(visitor, timeout(1000)).visit(any(OutgoingEventPB.class));
+
+    server.tearDownConsole(console.getId());
+    client.onNext(keypress(console, 2));
+    verify(visitor, after(200)).visit(any(OutgoingEventPB.class));
+  }
+
+  private static OutgoingEventPB keypress(Console console, long frame) {
+    return OutgoingEventPB.newBuilder().addKeyPress(KeyStatePB.newBuilder()
+        .setConsoleId(console.getId()).setPort(Port.PORT_1).setFrameNumber(frame)).build();
+  }
+}
@@ -0,0 +1,170 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Context;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.relay.RelayFeed;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.Events;
+import netplayServer.utils.LocalServerNode;
+import netplayServer.utils.QueueObserver;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayserverprotos.RelayServiceGrpc;
+import netplayserverprotos.RelayServiceProto.RelayFramePB;
+import netplayserverprotos.RelayServiceProto.RelaySubscribeRequestPB;
+
+/**
+ * Chains three servers on localhost (origin, middle and edge) and watches a console of the origin
+ * through the edge.
+ */
+@RunWith(JUnit4.class)
+public class RelayTest {
+
+  private LocalServerNode origin;
+  private LocalServerNode middle;
+  private LocalServerNode edge;
+
+  @Before
+  public void setUp() throws Exception {
+    origin = new LocalServerNode(new Server(false));
+    middle = new LocalServerNode(new Server(false));
+    middle.getServer().getRelayHub().setUpstream(origin.connect());
+    edge = new LocalServerNode(new Server(false));
+    edge.getServer().getRelayHub().setUpstream(middle.connect());
+  }
+
+  @After
+  public void tearDown() {
+    edge.shutdown();
+    middle.shutdown();
+    origin.shutdown();
+  }
+
+  private static void awaitSubscribers(LocalServerNode node, long consoleId)
+      throws InterruptedException {
+    for (int i = 0; i < 100 && node.getServer().getRelayHub().getSubscriberCount(consoleId) == 0;
+        ++i) {
+      Thread.sleep(20);
+    }
+    assertTrue(node.getServer().getRelayHub().getSubscriberCount(consoleId) > 0);
+  }
+
+  @Test
+  public void testSpectateThroughRelayChain() throws Exception {
+    long consoleId = origin.makeConsole();
+    long clientId1 = origin.plug(consoleId, Port.PORT_1);
+    long clientId2 = origin.plug(consoleId, Port.PORT_2);
+
+    QueueObserver<RelayFramePB> viewer = new QueueObserver<>();
+    RelayServiceGrpc.newStub(edge.connect()).subscribe(
+        RelaySubscribeRequestPB.newBuilder().setConsoleId(consoleId).build(), viewer);
+    awaitSubscribers(origin, consoleId);
+
+    StreamObserver<OutgoingEventPB> player1 =
+        origin.openStream(consoleId, clientId1, new EventQueue());
+    StreamObserver<OutgoingEventPB> player2 =
+        origin.openStream(consoleId, clientId2, new EventQueue());
+    assertTrue(origin.awaitClientsReady(consoleId));
+
+    KeyStatePB keyState = Events.keyState(consoleId, Port.PORT_1, 1);
+    player1.onNext(OutgoingEventPB.newBuilder().addKeyPress(keyState).build());
+
+    RelayFramePB frame = viewer.poll(5000);
+    assertNotNull(frame);
+    assertEquals(consoleId, frame.getConsoleId());
+    assertEquals(1, frame.getSequence());
+    IncomingEventPB relayed = IncomingEventPB.parseFrom(frame.getIncomingEvent());
+    assertEquals(keyState, relayed.getKeyPress(0));
+
+    // Tearing the console down at the origin ends the feed all the way down the chain.
+    origin.getServer().tearDownConsole(consoleId);
+    assertTrue(viewer.awaitCompleted(5000));
+    player1.onCompleted();
+    player2.onCompleted();
+  }
+
+  @Test
+  public void testUnwatchedConsoleHasNoVisitors() throws Exception {
+    long consoleId = origin.makeConsole();
+    Console console = origin.getServer().getConsole(consoleId);
+    // Events of a console nobody watches are not handed off the relay path.
+    assertTrue(console.getEventVisitors().isEmpty());
+
+    RelayServiceGrpc.newStub(origin.connect()).subscribe(
+        RelaySubscribeRequestPB.newBuilder().setConsoleId(consoleId).build(),
+        new QueueObserver<RelayFramePB>());
+    awaitSubscribers(origin, consoleId);
+    assertEquals(1, console.getEventVisitors().size());
+  }
+
+  @Test
+  public void testLastViewerLeavingCancelsUpstream() throws Exception {
+    long consoleId = origin.makeConsole();
+    Context.CancellableContext viewerCall = Context.ROOT.withCancellation();
+    Context previous = viewerCall.attach();
+    try {
+      RelayServiceGrpc.newStub(edge.connect()).subscribe(
+          RelaySubscribeRequestPB.newBuilder().setConsoleId(consoleId).build(),
+          new QueueObserver<RelayFramePB>());
+    } finally {
+      viewerCall.detach(previous);
+    }
+    awaitSubscribers(origin, consoleId);
+
+    viewerCall.cancel(null);
+    for (int i = 0; i < 250
+        && origin.getServer().getRelayHub().getSubscriberCount(consoleId) > 0; ++i) {
+      Thread.sleep(20);
+    }
+    assertEquals(0, edge.getServer().getRelayHub().getSubscriberCount(consoleId));
+    assertEquals(0, middle.getServer().getRelayHub().getSubscriberCount(consoleId));
+    assertEquals(0, origin.getServer().getRelayHub().getSubscriberCount(consoleId));
+  }
+
+  @Test
+  public void testSlowSubscriberDropped() {
+    RelayFeed feed = new RelayFeed(1, origin.getServer().getRelayHub());
+    @SuppressWarnings("unchecked")
+    ServerCallStreamObserver<RelayFramePB> slow = mock(ServerCallStreamObserver.class);
+    QueueObserver<RelayFramePB> fast = new QueueObserver<>();
+    feed.addSubscriber(slow);
+    feed.addSubscriber(fast);
+    for (int i = 0; i <= RelayFeed.MAX_BACKLOG_FRAMES; ++i) {
+      feed.publish(ByteString.EMPTY);
+    }
+    verify(slow, times(RelayFeed.MAX_BACKLOG_FRAMES)).onNext(any(RelayFramePB.class));
+    verify(slow).onError(any(Throwable.class));
+    assertEquals(1, feed.getSubscriberCount());
+    assertEquals(RelayFeed.MAX_BACKLOG_FRAMES + 1, fast.getValues().size());
+  }
+
+  @Test
+  public void testSubscribeToUnknownConsoleWithoutUpstream() throws Exception {
+    QueueObserver<RelayFramePB> viewer = new QueueObserver<>();
+    RelayServiceGrpc.newStub(origin.connect()).subscribe(
+        RelaySubscribeRequestPB.newBuilder().setConsoleId(12345).build(), viewer);
+    assertNotNull(viewer.pollError(5000));
+    assertTrue(viewer.getValues().isEmpty());
+  }
+}
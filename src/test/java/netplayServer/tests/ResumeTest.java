@@ -0,0 +1,208 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableMap;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.KeyHistory;
+import netplayServer.ResumeInterceptor;
+import netplayServer.Server;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.Events;
+import netplayServer.utils.LocalServerNode;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceStub;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayprotos.NetplayServiceProto.StartGameRequestPB;
+import netplayprotos.NetplayServiceProto.StartGameResponsePB;
+
+/**
+ * Drops and resumes the event stream of a player in a running game on a localhost server.
+ */
+@RunWith(JUnit4.class)
+public class ResumeTest {
+
+  private LocalServerNode node;
+  private ManagedChannel channel;
+  private long consoleId;
+  private long clientId1;
+  private long clientId2;
+  private StreamObserver<OutgoingEventPB> player1;
+  private EventQueue player1Events;
+
+  @Before
+  public void setUp() throws Exception {
+    node = new LocalServerNode(new Server(false));
+    channel = node.connect();
+    consoleId = node.makeConsole();
+    clientId1 = node.plug(consoleId, Port.PORT_1);
+    clientId2 = node.plug(consoleId, Port.PORT_2);
+  }
+
+  @After
+  public void tearDown() {
+    node.shutdown();
+  }
+
+  private StreamObserver<OutgoingEventPB> connect(NetPlayServerServiceStub stub, long clientId,
+      EventQueue events) {
+    return Events.openStream(stub, consoleId, clientId, events);
+  }
+
+  private Client serverSideClient(long clientId) {
+    return node.getServer().getConsole(consoleId).getClientById(clientId);
+  }
+
+  private void awaitStatus(long clientId, ClientStatus status) throws InterruptedException {
+    assertTrue(LocalServerNode.awaitStatus(serverSideClient(clientId), status));
+  }
+
+  private void sendFrame(long frame) {
+    player1.onNext(Events.keyPress(consoleId, Port.PORT_1, frame));
+  }
+
+  private long nextKeyFrame(EventQueue events) throws InterruptedException {
+    while (true) {
+      IncomingEventPB event = events.poll(5000);
+      assertNotNull(event);
+      if (event.getKeyPressCount() > 0) {
+        assertEquals(1, event.getKeyPressCount());
+        return event.getKeyPress(0).getFrameNumber();
+      }
+    }
+  }
+
+  private StreamObserver<OutgoingEventPB> resume(long clientId, Map<Integer, Long> lastFrames,
+      EventQueue events) {
+    Metadata headers = new Metadata();
+    headers.put(ResumeInterceptor.RESUME_HEADER, ResumeInterceptor.formatFrames(lastFrames));
+    return connect(MetadataUtils.attachHeaders(NetPlayServerServiceGrpc.newStub(channel), headers),
+        clientId, events);
+  }
+
+  /**
+   * Starts a game with both players connected and returns the stream of player 2.
+   */
+  private StreamObserver<OutgoingEventPB> startGame(EventQueue player2Events)
+      throws InterruptedException {
+    NetPlayServerServiceStub stub = NetPlayServerServiceGrpc.newStub(channel);
+    player1Events = new EventQueue();
+    player1 = connect(stub, clientId1, player1Events);
+    StreamObserver<OutgoingEventPB> player2 = connect(stub, clientId2, player2Events);
+    awaitStatus(clientId1, ClientStatus.READY);
+    awaitStatus(clientId2, ClientStatus.READY);
+    assertEquals(StartGameResponsePB.Status.SUCCESS, node.control()
+        .startGame(StartGameRequestPB.newBuilder().setConsoleId(consoleId).build()).getStatus());
+    return player2;
+  }
+
+  @Test
+  public void testResumeReplaysMissedFramesOnce() throws Exception {
+    EventQueue player2Events = new EventQueue();
+    StreamObserver<OutgoingEventPB> player2 = startGame(player2Events);
+    for (long frame = 1; frame <= 3; ++frame) {
+      sendFrame(frame);
+    }
+    assertTrue(player2Events.poll(5000).hasStartGame());
+    assertEquals(1, nextKeyFrame(player2Events));
+    assertEquals(2, nextKeyFrame(player2Events));
+    assertEquals(3, nextKeyFrame(player2Events));
+
+    // Player 2's connection drops. Player 1 keeps playing.
+    player2.onError(new RuntimeException("Wi-Fi blip"));
+    awaitStatus(clientId2, ClientStatus.DISCONNECTED);
+    for (long frame = 4; frame <= 6; ++frame) {
+      sendFrame(frame);
+    }
+    KeyHistory history = node.getServer().getConsole(consoleId).getKeyHistory();
+    for (int i = 0; i < 100 && history.newestFrame(Port.PORT_1) < 6; ++i) {
+      Thread.sleep(20);
+    }
+
+    // Player 2 claims to have seen only up to frame 2, so frames 3 through 6 are replayed.
+    EventQueue resumedEvents = new EventQueue();
+    StreamObserver<OutgoingEventPB> resumed =
+        resume(clientId2, ImmutableMap.of(Port.PORT_1_VALUE, 2L), resumedEvents);
+    awaitStatus(clientId2, ClientStatus.PLAYING);
+
+    // A frame resent by player 1 is not relayed twice.
+    sendFrame(6);
+    sendFrame(7);
+    IncomingEventPB replay = resumedEvents.poll(5000);
+    assertNotNull(replay);
+    assertEquals(4, replay.getKeyPressCount());
+    for (int i = 0; i < 4; ++i) {
+      assertEquals(3 + i, replay.getKeyPress(i).getFrameNumber());
+    }
+    assertEquals(7, nextKeyFrame(resumedEvents));
+    assertNull(resumedEvents.poll(100));
+    for (IncomingEventPB event : player1Events.getValues()) {
+      assertTrue(!event.hasStopConsole());
+    }
+    resumed.onCompleted();
+  }
+
+  @Test
+  public void testPortMissingFromHeaderIsNotReplayed() throws Exception {
+    EventQueue player2Events = new EventQueue();
+    StreamObserver<OutgoingEventPB> player2 = startGame(player2Events);
+    // More frames than the history retains, so replaying port 1 from its start would leave a gap.
+    long frames = KeyHistory.DEFAULT_FRAMES_PER_PORT + 10;
+    for (long frame = 1; frame <= frames; ++frame) {
+      sendFrame(frame);
+    }
+    KeyHistory history = node.getServer().getConsole(consoleId).getKeyHistory();
+    for (int i = 0; i < 250 && history.newestFrame(Port.PORT_1) < frames; ++i) {
+      Thread.sleep(20);
+    }
+    player2.onError(new RuntimeException("Wi-Fi blip"));
+    awaitStatus(clientId2, ClientStatus.DISCONNECTED);
+
+    EventQueue resumedEvents = new EventQueue();
+    StreamObserver<OutgoingEventPB> resumed =
+        resume(clientId2, ImmutableMap.<Integer, Long>of(), resumedEvents);
+    awaitStatus(clientId2, ClientStatus.PLAYING);
+    sendFrame(frames + 1);
+    assertEquals(frames + 1, nextKeyFrame(resumedEvents));
+    assertNotNull(node.getServer().getConsole(consoleId));
+    resumed.onCompleted();
+  }
+
+  @Test
+  public void testConsoleStopsAfterGraceWindow() throws Exception {
+    node.getServer().setResumeGraceMillis(100);
+    EventQueue player2Events = new EventQueue();
+    StreamObserver<OutgoingEventPB> player2 = startGame(player2Events);
+    player2.onError(new RuntimeException("Gone for good"));
+
+    IncomingEventPB event;
+    do {
+      event = player1Events.poll(5000);
+      assertNotNull(event);
+    } while (!event.hasStopConsole());
+    assertEquals(consoleId, event.getStopConsole().getConsoleId());
+    for (int i = 0; i < 100 && node.getServer().getConsole(consoleId) != null; ++i) {
+      Thread.sleep(20);
+    }
+    assertNull(node.getServer().getConsole(consoleId));
+  }
+}
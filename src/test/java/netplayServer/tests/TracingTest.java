@@ -0,0 +1,144 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.admin.ServerAdmin;
+import netplayServer.tracing.KeypressTrace;
+import netplayServer.tracing.KeypressTracer;
+import netplayServer.utils.EventQueue;
+import netplayServer.utils.Events;
+import netplayServer.utils.LocalServerNode;
+import netplayServer.utils.QueueObserver;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayserverprotos.AdminServiceProto.DumpTracesRequestPB;
+import netplayserverprotos.AdminServiceProto.DumpTracesResponsePB;
+import netplayserverprotos.AdminServiceProto.KeypressTracePB;
+import netplayserverprotos.AdminServiceProto.RecipientTracePB;
+
+@RunWith(JUnit4.class)
+public class TracingTest {
+
+  private Server server;
+  private LocalServerNode node;
+  private Console console;
+  private Client sender;
+  private Client receiver;
+  private StreamObserver<OutgoingEventPB> senderStream;
+  private EventQueue received = new EventQueue();
+
+  @Before
+  public void setUp() throws Exception {
+    server = new Server(false);
+    node = new LocalServerNode(server);
+    console = server.createConsole();
+    sender = console.tryAddPlayers(1, Port.PORT_1);
+    receiver = console.tryAddPlayers(1, Port.PORT_2);
+    senderStream = node.openStream(console.getId(), sender.getId(), new EventQueue());
+    node.openStream(console.getId(), receiver.getId(), received);
+    assertTrue(LocalServerNode.awaitStatus(receiver, ClientStatus.READY));
+    console.broadcastStartGame();
+  }
+
+  @After
+  public void tearDown() {
+    node.shutdown();
+  }
+
+  @Test
+  public void testEveryStageStamped() throws Exception {
+    server.getTracer().setSampleRate(1);
+    relay(3);
+
+    List<KeypressTrace> traces = awaitTraces(3);
+    KeypressTracePB newest = traces.get(0).toProto();
+    assertEquals(console.getId(), newest.getConsoleId());
+    assertEquals(sender.getId(), newest.getClientId());
+    assertEquals(Port.PORT_1_VALUE, newest.getPort());
+    assertEquals(3, newest.getFrameNumber());
+    assertTrue(newest.getValidatedNanos() > 0);
+    assertTrue(newest.getBroadcastNanos() >= newest.getValidatedNanos());
+    assertEquals(1, newest.getRecipientsCount());
+    RecipientTracePB recipient = newest.getRecipients(0);
+    assertEquals(receiver.getId(), recipient.getClientId());
+    assertTrue(recipient.getEnqueuedNanos() >= newest.getBroadcastNanos());
+    assertTrue(recipient.getWrittenNanos() >= recipient.getEnqueuedNanos());
+    assertTrue(newest.getFinishedNanos() >= recipient.getWrittenNanos());
+  }
+
+  @Test
+  public void testUnsampledEventsNotTraced() throws Exception {
+    server.getTracer().setSampleRate(0);
+    relay(3);
+    assertTrue(server.getTracer().getTraces().isEmpty());
+  }
+
+  @Test
+  public void testDumpFiltersByConsole() throws Exception {
+    server.getTracer().setSampleRate(1);
+    relay(2);
+    awaitTraces(2);
+    ServerAdmin admin = new ServerAdmin(server);
+    QueueObserver<DumpTracesResponsePB> responses = new QueueObserver<>();
+    admin.dumpTraces(DumpTracesRequestPB.newBuilder().setConsoleId(console.getId()).build(),
+        responses);
+    assertEquals(2, responses.poll(5000).getTracesCount());
+    admin.dumpTraces(DumpTracesRequestPB.newBuilder().setClientId(receiver.getId()).build(),
+        responses);
+    assertEquals(0, responses.poll(5000).getTracesCount());
+  }
+
+  @Test
+  public void testRingKeepsNewest() {
+    KeypressTracer tracer = new KeypressTracer();
+    tracer.setSampleRate(1);
+    for (long frame = 1; frame <= KeypressTracer.RING_SIZE + 10; ++frame) {
+      KeypressTrace trace = tracer.start(OutgoingEventPB.newBuilder()
+          .addKeyPress(KeyStatePB.newBuilder().setFrameNumber(frame)).build(), System.nanoTime());
+      assertTrue(trace == KeypressTrace.current());
+      tracer.finish(trace, System.nanoTime());
+      assertNull(KeypressTrace.current());
+    }
+    List<KeypressTrace> traces = tracer.getTraces();
+    assertEquals(KeypressTracer.RING_SIZE, traces.size());
+    assertEquals(KeypressTracer.RING_SIZE + 10, traces.get(0).toProto().getFrameNumber());
+    assertEquals(11, traces.get(traces.size() - 1).toProto().getFrameNumber());
+  }
+
+  private void relay(int frames) throws InterruptedException {
+    for (long frame = 1; frame <= frames; ++frame) {
+      senderStream.onNext(Events.keyPress(console.getId(), Port.PORT_1, frame));
+    }
+    for (int i = 0; i < frames; ++i) {
+      assertNotNull(received.nextKeyPress(5000));
+    }
+  }
+
+  /**
+   * Waits for the traces of relayed events, which the server keeps only after the recipients
+   * were written to.
+   */
+  private List<KeypressTrace> awaitTraces(int count) throws InterruptedException {
+    for (int i = 0; i < 100 && server.getTracer().getTraces().size() < count; ++i) {
+      Thread.sleep(20);
+    }
+    return server.getTracer().getTraces();
+  }
+}
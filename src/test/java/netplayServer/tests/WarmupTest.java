@@ -0,0 +1,35 @@
+package netplayServer.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import netplayServer.warmup.RelayWarmup;
+
+@RunWith(JUnit4.class)
+public class WarmupTest {
+
+  @Test
+  public void testWarmupPlaysMatchesAndStopsItsThreads() throws Exception {
+    int controlThreads = countThreads("netplay-control-");
+    new RelayWarmup(3).run();
+    // The warm-up's players and its server's control lane must not outlive it.
+    for (int i = 0; i < 50 && countThreads("netplay-control-") > controlThreads; ++i) {
+      Thread.sleep(20);
+    }
+    assertEquals(0, countThreads("netplay-warmup-"));
+    assertEquals(controlThreads, countThreads("netplay-control-"));
+  }
+
+  private static int countThreads(String prefix) {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith(prefix)) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
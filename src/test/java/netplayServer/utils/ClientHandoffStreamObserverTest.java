@@ -1,5 +1,7 @@
 package netplayServer.utils;
 
+import static org.junit.Assert.assertNotSame;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -13,7 +15,10 @@ import java.util.Map;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import io.grpc.stub.StreamObserver;
@@ -32,16 +37,24 @@ public class ClientHandoffStreamObserverTest {
 
   private final long CONSOLE_ID = 100L;
   private final long CLIENT_ID = 200L;
+  private final long OTHER_CONSOLE_ID = 300L;
+  private final long OTHER_CLIENT_ID = 400L;
 
   @Mock
   private Map<Long, Console> consoleMap;
   @Mock
   private StreamObserver<IncomingEventPB> responseObserver;
+  @Captor
+  private ArgumentCaptor<StreamObserver<IncomingEventPB>> firstLane;
+  @Captor
+  private ArgumentCaptor<StreamObserver<IncomingEventPB>> secondLane;
 
   private ClientHandoffStreamObserver<IncomingEventPB> handoffObserver;
 
   private Console mockConsole = mock(Console.class);
   private Client mockClient = mock(Client.class);
+  private Console otherConsole = mock(Console.class);
+  private Client otherClient = mock(Client.class);
 
   @Before
   public void setUp() {
@@ -50,6 +63,19 @@ public class ClientHandoffStreamObserverTest {
     when(consoleMap.get(any())).thenReturn(null);
     when(consoleMap.get(CONSOLE_ID)).thenReturn(mockConsole);
     when(mockConsole.getClientById(CLIENT_ID)).thenReturn(mockClient);
+    when(consoleMap.get(OTHER_CONSOLE_ID)).thenReturn(otherConsole);
+    when(otherConsole.getClientById(OTHER_CLIENT_ID)).thenReturn(otherClient);
+  }
+
+  private static OutgoingEventPB clientReady(long consoleId, long clientId) {
+    return OutgoingEventPB.newBuilder()
+        .setClientReady(ClientReadyPB.newBuilder().setConsoleId(consoleId).setClientId(clientId))
+        .build();
+  }
+
+  private static KeyStatePB keyPress(long consoleId, long frame) {
+    return KeyStatePB.newBuilder().setConsoleId(consoleId).setPort(Port.PORT_1)
+        .setFrameNumber(frame).build();
   }
 
   @Test
@@ -89,6 +115,65 @@ public class ClientHandoffStreamObserverTest {
     verify(mockClient, never()).setReady();
   }
 
+  @Test
+  public void testSecondConsoleSharesStream() {
+    handoffObserver.onNext(clientReady(CONSOLE_ID, CLIENT_ID));
+    handoffObserver.onNext(clientReady(OTHER_CONSOLE_ID, OTHER_CLIENT_ID));
+
+    verify(mockClient, times(1)).moveStream(eq(responseObserver), firstLane.capture());
+    verify(otherClient, times(1)).setStreamObserver(secondLane.capture());
+    verify(otherClient, times(1)).setReady();
+    assertNotSame(responseObserver, secondLane.getValue());
+    assertNotSame(firstLane.getValue(), secondLane.getValue());
+
+    // Both lanes write to the one stream.
+    IncomingEventPB event = IncomingEventPB.newBuilder().addKeyPress(keyPress(CONSOLE_ID, 1))
+        .build();
+    firstLane.getValue().onNext(event);
+    verify(responseObserver, times(1)).onNext(event);
+  }
+
+  @Test
+  public void testKeypressesRoutedByConsole() {
+    handoffObserver.onNext(clientReady(CONSOLE_ID, CLIENT_ID));
+    handoffObserver.onNext(clientReady(OTHER_CONSOLE_ID, OTHER_CLIENT_ID));
+    handoffObserver.onNext(OutgoingEventPB.newBuilder().addKeyPress(keyPress(CONSOLE_ID, 1))
+        .addKeyPress(keyPress(OTHER_CONSOLE_ID, 1)).addKeyPress(keyPress(CONSOLE_ID, 2)).build());
+
+    verify(mockClient, times(1)).onNext(OutgoingEventPB.newBuilder()
+        .addKeyPress(keyPress(CONSOLE_ID, 1)).addKeyPress(keyPress(CONSOLE_ID, 2)).build());
+    verify(otherClient, times(1)).onNext(
+        OutgoingEventPB.newBuilder().addKeyPress(keyPress(OTHER_CONSOLE_ID, 1)).build());
+
+    // A console not attached to the stream is reported without ending it.
+    handoffObserver.onNext(
+        OutgoingEventPB.newBuilder().addKeyPress(keyPress(CONSOLE_ID + 2, 1)).build());
+    verify(responseObserver, times(1)).onNext(IncomingEventPB.newBuilder()
+        .addInvalidData(InvalidDataPB.newBuilder().setConsoleId(CONSOLE_ID + 2)
+            .setStatus(InvalidDataPB.Status.INVALID_CONSOLE))
+        .build());
+    verify(responseObserver, never()).onCompleted();
+  }
+
+  @Test
+  public void testUnknownClientOnSharedStream() {
+    handoffObserver.onNext(clientReady(CONSOLE_ID, CLIENT_ID));
+    handoffObserver.onNext(clientReady(OTHER_CONSOLE_ID, OTHER_CLIENT_ID + 1));
+
+    // The console is reported without ending the stream, and the attached client keeps it alone.
+    verify(responseObserver, times(1)).onNext(IncomingEventPB.newBuilder()
+        .addInvalidData(InvalidDataPB.newBuilder().setConsoleId(OTHER_CONSOLE_ID)
+            .setStatus(InvalidDataPB.Status.INVALID_CONSOLE))
+        .build());
+    verify(responseObserver, never()).onCompleted();
+    verify(mockClient, never()).moveStream(eq(responseObserver),
+        Mockito.<StreamObserver<IncomingEventPB>>any());
+    OutgoingEventPB keyPresses =
+        OutgoingEventPB.newBuilder().addKeyPress(keyPress(CONSOLE_ID, 1)).build();
+    handoffObserver.onNext(keyPresses);
+    verify(mockClient, times(1)).onNext(keyPresses);
+  }
+
   @Test
   public void testOnNextClientReadyNoSuchConsole() {
     OutgoingEventPB event =
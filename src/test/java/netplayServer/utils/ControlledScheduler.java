@@ -0,0 +1,335 @@
+package netplayServer.utils;
+
+import java.lang.Thread.State;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Runs a few actors, each on a thread of its own, one at a time, and explores the orders in which
+ * they can interleave. An actor runs until it reaches a yield point, finishes, or blocks on a
+ * monitor another actor holds; then the scheduler picks which paused actor goes next. Yield points
+ * are the start of each step of an actor and every call to a {@link YieldingObserver}, so a
+ * scenario whose server writes to such streams is paused in the middle of the server's methods,
+ * where its races are.
+ *
+ * Every order of choices is tried depth first, up to a bound, each time on fresh state from the
+ * scenario. A schedule that leaves an invariant broken, throws or deadlocks fails with the order
+ * that led to it, so that it can be replayed with {@link #replay}.
+ *
+ * Between two yield points an actor is not interrupted, except that an actor woken by a monitor
+ * another one released runs alongside it until both pause. State the monitor guards is not raced
+ * on that way; only unguarded state read right after a monitor is released could be.
+ */
+public class ControlledScheduler {
+
+  // Longest an actor may run between two yield points before the schedule is taken to hang.
+  private static final long STEP_TIMEOUT_MILLIS = 10000;
+  // Times in a row every actor must be seen paused before the next one is picked, so that an
+  // actor just woken by a released monitor is noticed.
+  private static final int QUIET_POLLS = 3;
+
+  /**
+   * A concurrent scenario: fresh state, the actors that race on it, and the invariants that must
+   * hold once they all finished, whatever the order.
+   */
+  public abstract static class Scenario {
+    /** Creates the state for one schedule. */
+    public abstract void setUp() throws Exception;
+
+    /** Returns the actors of this schedule, each a list of steps run in order. */
+    public abstract List<List<Runnable>> actors();
+
+    /** Checks the invariants, throwing an AssertionError if one is broken. */
+    public abstract void check() throws Exception;
+  }
+
+  /**
+   * A stream that pauses its actor in each call and records what it was sent. A gRPC stream must
+   * not be called from two threads at once, so calls that overlap are recorded too.
+   */
+  public class YieldingObserver<T> implements StreamObserver<T> {
+    private final List<T> values = Collections.synchronizedList(Lists.<T>newArrayList());
+    private final AtomicInteger callers = new AtomicInteger();
+    private volatile boolean overlapped = false;
+    private volatile boolean completed = false;
+    private volatile Throwable error;
+
+    @Override
+    public void onNext(T value) {
+      enter();
+      values.add(value);
+      callers.decrementAndGet();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      enter();
+      error = t;
+      callers.decrementAndGet();
+    }
+
+    @Override
+    public void onCompleted() {
+      enter();
+      completed = true;
+      callers.decrementAndGet();
+    }
+
+    private void enter() {
+      if (callers.incrementAndGet() > 1) {
+        overlapped = true;
+      }
+      yieldPoint();
+    }
+
+    /**
+     * Returns true if the stream was called while another call was in progress.
+     */
+    public boolean wasCalledConcurrently() {
+      return overlapped;
+    }
+
+    public List<T> getValues() {
+      synchronized (values) {
+        return Lists.newArrayList(values);
+      }
+    }
+
+    public boolean isCompleted() {
+      return completed;
+    }
+
+    public Throwable getError() {
+      return error;
+    }
+  }
+
+  private final int maxSchedules;
+  // The actors of the schedule being run, null between schedules.
+  private volatile List<Actor> actors;
+
+  /**
+   * @param maxSchedules the most schedules to try per scenario
+   */
+  public ControlledScheduler(int maxSchedules) {
+    this.maxSchedules = maxSchedules;
+  }
+
+  public <T> YieldingObserver<T> newObserver() {
+    return new YieldingObserver<T>();
+  }
+
+  /**
+   * Pauses the calling actor until the scheduler picks it again. Does nothing on other threads,
+   * such as the one setting up or checking the scenario.
+   */
+  public void yieldPoint() {
+    List<Actor> running = actors;
+    if (running == null) {
+      return;
+    }
+    for (Actor actor : running) {
+      if (actor.thread == Thread.currentThread()) {
+        actor.pause();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Runs the scenario under every schedule up to the bound and returns the number of schedules
+   * run. Throws an AssertionError naming the schedule if one fails.
+   */
+  public int explore(Scenario scenario) throws Exception {
+    List<Integer> prefix = Lists.newArrayList();
+    for (int schedules = 1; schedules <= maxSchedules; ++schedules) {
+      List<int[]> choices = run(scenario, prefix);
+      // Depth first: move on from the last choice that still has an untried option.
+      prefix = Lists.newArrayList();
+      int last = choices.size() - 1;
+      while (last >= 0 && choices.get(last)[0] + 1 >= choices.get(last)[1]) {
+        last--;
+      }
+      if (last < 0) {
+        return schedules;
+      }
+      for (int i = 0; i < last; ++i) {
+        prefix.add(choices.get(i)[0]);
+      }
+      prefix.add(choices.get(last)[0] + 1);
+    }
+    return maxSchedules;
+  }
+
+  /**
+   * Runs the scenario once, picking the paused actors in the given order of choices, e.g. one
+   * reported by a failed exploration.
+   */
+  public void replay(Scenario scenario, List<Integer> schedule) throws Exception {
+    run(scenario, schedule);
+  }
+
+  /**
+   * Runs one schedule and returns, for each decision, the option taken and the number of options.
+   */
+  private List<int[]> run(Scenario scenario, List<Integer> prefix) throws Exception {
+    scenario.setUp();
+    List<Actor> schedule = Lists.newArrayList();
+    int index = 0;
+    for (List<Runnable> steps : scenario.actors()) {
+      schedule.add(new Actor(index++, steps));
+    }
+    actors = schedule;
+    List<int[]> choices = Lists.newArrayList();
+    List<Integer> taken = Lists.newArrayList();
+    try {
+      for (Actor actor : schedule) {
+        actor.thread.start();
+      }
+      while (true) {
+        List<Actor> paused = awaitQuiet(schedule, taken);
+        if (paused.isEmpty()) {
+          break;
+        }
+        int decision = choices.size();
+        int option = decision < prefix.size() ? Math.min(prefix.get(decision), paused.size() - 1)
+            : 0;
+        choices.add(new int[] {option, paused.size()});
+        taken.add(option);
+        paused.get(option).resume();
+      }
+      for (Actor actor : schedule) {
+        if (actor.failure != null) {
+          throw failure(taken, "actor " + actor.index + " threw", actor.failure);
+        }
+      }
+      try {
+        scenario.check();
+      } catch (AssertionError | RuntimeException e) {
+        throw failure(taken, "invariant broken", e);
+      }
+      return choices;
+    } finally {
+      actors = null;
+      for (Actor actor : schedule) {
+        actor.thread.interrupt();
+      }
+    }
+  }
+
+  /**
+   * Waits until no actor is running and some are paused, and returns those, in actor order.
+   * Returns an empty list once every actor finished. Fails if the actors left stay blocked, or if
+   * one does not pause in time.
+   */
+  private List<Actor> awaitQuiet(List<Actor> schedule, List<Integer> taken)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + STEP_TIMEOUT_MILLIS;
+    int quietPolls = 0;
+    while (true) {
+      boolean quiet = true;
+      boolean finished = true;
+      List<Actor> paused = Lists.newArrayList();
+      for (Actor actor : schedule) {
+        quiet &= actor.isQuiet();
+        finished &= !actor.thread.isAlive();
+        if (actor.phase == Actor.PAUSED) {
+          paused.add(actor);
+        }
+      }
+      quietPolls = quiet ? quietPolls + 1 : 0;
+      if (quietPolls >= QUIET_POLLS && (finished || !paused.isEmpty())) {
+        return paused;
+      }
+      if (System.currentTimeMillis() > deadline) {
+        throw failure(taken, quiet ? "the actors deadlocked" : "an actor did not pause", null);
+      }
+      TimeUnit.MICROSECONDS.sleep(100);
+    }
+  }
+
+  private static AssertionError failure(List<Integer> taken, String what, Throwable cause) {
+    AssertionError error = new AssertionError("Schedule " + taken + ": " + what);
+    if (cause != null) {
+      error.initCause(cause);
+    }
+    return error;
+  }
+
+  private static class Actor {
+    static final int PAUSED = 0;
+    static final int RESUMED = 1;
+    static final int RUNNING = 2;
+
+    final int index;
+    final Thread thread;
+    final Semaphore turn = new Semaphore(0);
+    // Resumed until the actor's thread noticed it was picked, so that it is not taken for blocked.
+    volatile int phase = RUNNING;
+    volatile Throwable failure;
+
+    Actor(int index, final List<Runnable> steps) {
+      this.index = index;
+      this.thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (Runnable step : steps) {
+              pause();
+              step.run();
+            }
+          } catch (Throwable t) {
+            if (!(t instanceof Interrupted)) {
+              failure = t;
+            }
+          }
+        }
+      }, "controlled-actor-" + index);
+      thread.setDaemon(true);
+    }
+
+    void pause() {
+      phase = PAUSED;
+      try {
+        turn.acquire();
+      } catch (InterruptedException e) {
+        // The schedule was abandoned.
+        throw new Interrupted();
+      }
+      phase = RUNNING;
+    }
+
+    void resume() {
+      phase = RESUMED;
+      turn.release();
+    }
+
+    /**
+     * Returns true if this actor is paused, finished, or blocked on a monitor or a lock.
+     */
+    boolean isQuiet() {
+      int current = phase;
+      if (current == PAUSED || !thread.isAlive()) {
+        return true;
+      }
+      if (current == RESUMED) {
+        return false;
+      }
+      State state = thread.getState();
+      return state == State.BLOCKED || state == State.WAITING || state == State.TIMED_WAITING;
+    }
+  }
+
+  /**
+   * Unwinds an actor whose schedule was abandoned.
+   */
+  @SuppressWarnings("serial")
+  private static class Interrupted extends RuntimeException {}
+}
@@ -0,0 +1,45 @@
+package netplayServer.utils;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+
+/**
+ * The event stream of a test client. Its events can be taken whole, or one keypress at a time
+ * whatever the batches the server combined them in; a test should stick to one way per stream.
+ */
+public class EventQueue extends QueueObserver<IncomingEventPB> {
+
+  private final Queue<KeyStatePB> pendingKeyPresses = new ArrayDeque<>();
+
+  /**
+   * Returns the next keypress relayed, skipping events without any, or null if none came in time.
+   */
+  public KeyStatePB nextKeyPress(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (pendingKeyPresses.isEmpty()) {
+      IncomingEventPB event = poll(Math.max(0, deadline - System.currentTimeMillis()));
+      if (event == null) {
+        return null;
+      }
+      pendingKeyPresses.addAll(event.getKeyPressList());
+    }
+    return pendingKeyPresses.poll();
+  }
+
+  /**
+   * Returns the next event that stops a console, skipping the others, or null if none came in
+   * time.
+   */
+  public IncomingEventPB nextStopConsole(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (true) {
+      IncomingEventPB event = poll(Math.max(0, deadline - System.currentTimeMillis()));
+      if (event == null || event.hasStopConsole()) {
+        return event;
+      }
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package netplayServer.utils;
+
+import io.grpc.stub.StreamObserver;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceStub;
+import netplayprotos.NetplayServiceProto.ClientReadyPB;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.Port;
+
+/**
+ * Builds the events test clients send.
+ */
+public class Events {
+
+  private Events() {}
+
+  public static OutgoingEventPB clientReady(long consoleId, long clientId) {
+    return OutgoingEventPB.newBuilder().setClientReady(
+        ClientReadyPB.newBuilder().setConsoleId(consoleId).setClientId(clientId)).build();
+  }
+
+  public static KeyStatePB keyState(long consoleId, Port port, long frame) {
+    return KeyStatePB.newBuilder().setConsoleId(consoleId).setPort(port).setFrameNumber(frame)
+        .build();
+  }
+
+  /**
+   * Returns an event carrying the keypress of one port for one frame.
+   */
+  public static OutgoingEventPB keyPress(long consoleId, Port port, long frame) {
+    return OutgoingEventPB.newBuilder().addKeyPress(keyState(consoleId, port, frame)).build();
+  }
+
+  /**
+   * Opens an event stream with the given stub and sends the client's ClientReadyPB on it.
+   */
+  public static StreamObserver<OutgoingEventPB> openStream(NetPlayServerServiceStub stub,
+      long consoleId, long clientId, StreamObserver<IncomingEventPB> events) {
+    StreamObserver<OutgoingEventPB> stream = stub.sendEvent(events);
+    stream.onNext(clientReady(consoleId, clientId));
+    return stream;
+  }
+}
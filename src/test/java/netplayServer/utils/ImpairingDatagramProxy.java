@@ -0,0 +1,162 @@
+package netplayServer.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A UDP proxy in front of a local datagram relay that delays, drops and reorders the datagrams
+ * through it. Each client address gets a socket of its own towards the relay, so the relay sees
+ * every client at a distinct address, as it would without the proxy, and its own links under the
+ * impairments of each direction.
+ */
+public class ImpairingDatagramProxy implements Closeable {
+
+  private static final int MAX_DATAGRAM_BYTES = 1500;
+
+  private final DatagramSocket listener;
+  private final InetSocketAddress target;
+  private final NetworkImpairment upstream = new NetworkImpairment();
+  private final NetworkImpairment downstream = new NetworkImpairment();
+  private final Map<SocketAddress, ClientPath> clientPaths = Maps.newConcurrentMap();
+  private final ScheduledExecutorService deliveries = Executors.newSingleThreadScheduledExecutor();
+
+  /**
+   * Starts proxying a free localhost port to the given port.
+   */
+  public ImpairingDatagramProxy(int targetPort) throws IOException {
+    this.target = new InetSocketAddress("localhost", targetPort);
+    this.listener = new DatagramSocket(new InetSocketAddress("localhost", 0));
+    Thread receiver = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        receiveFromClients();
+      }
+    }, "impairing-datagram-proxy");
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  public int getPort() {
+    return listener.getLocalPort();
+  }
+
+  /**
+   * Returns the conditions from the clients to the relay.
+   */
+  public NetworkImpairment getUpstream() {
+    return upstream;
+  }
+
+  /**
+   * Returns the conditions from the relay to the clients.
+   */
+  public NetworkImpairment getDownstream() {
+    return downstream;
+  }
+
+  @Override
+  public void close() {
+    listener.close();
+    for (ClientPath path : clientPaths.values()) {
+      path.relaySocket.close();
+    }
+    deliveries.shutdownNow();
+  }
+
+  private void receiveFromClients() {
+    byte[] buffer = new byte[MAX_DATAGRAM_BYTES];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    while (!listener.isClosed()) {
+      try {
+        packet.setLength(buffer.length);
+        listener.receive(packet);
+        ClientPath path = clientPath(packet.getSocketAddress());
+        forward(path.relaySocket, target, packet, path.upstream);
+      } catch (IOException e) {
+        // Closed, or a datagram that could not be received, which is just lost.
+      }
+    }
+  }
+
+  /**
+   * Returns the path of the given client, opening its socket towards the relay and starting to
+   * pass back what the relay sends to it on first use.
+   */
+  private synchronized ClientPath clientPath(final SocketAddress client) throws IOException {
+    ClientPath path = clientPaths.get(client);
+    if (path != null) {
+      return path;
+    }
+    final DatagramSocket relaySocket = new DatagramSocket(new InetSocketAddress("localhost", 0));
+    final ClientPath newPath = new ClientPath(relaySocket);
+    clientPaths.put(client, newPath);
+    Thread receiver = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[MAX_DATAGRAM_BYTES];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!relaySocket.isClosed()) {
+          try {
+            packet.setLength(buffer.length);
+            relaySocket.receive(packet);
+            forward(listener, client, packet, newPath.downstream);
+          } catch (IOException e) {
+            // As above.
+          }
+        }
+      }
+    }, "impairing-datagram-proxy-reply");
+    receiver.setDaemon(true);
+    receiver.start();
+    return newPath;
+  }
+
+  private void forward(final DatagramSocket from, SocketAddress to, DatagramPacket packet,
+      NetworkImpairment.Link link) {
+    if (link.getImpairment().drop()) {
+      return;
+    }
+    byte[] bytes = Arrays.copyOf(packet.getData(), packet.getLength());
+    final DatagramPacket delayed = new DatagramPacket(bytes, bytes.length, to);
+    long delay = link.deliveryTime(bytes.length, false) - System.nanoTime();
+    try {
+      deliveries.schedule(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            from.send(delayed);
+          } catch (IOException e) {
+            // Lost.
+          }
+        }
+      }, Math.max(0, delay), TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // Closed.
+    }
+  }
+
+  /**
+   * A client's socket towards the relay and its links either way.
+   */
+  private class ClientPath {
+    final DatagramSocket relaySocket;
+    final NetworkImpairment.Link upstream = ImpairingDatagramProxy.this.upstream.newLink();
+    final NetworkImpairment.Link downstream = ImpairingDatagramProxy.this.downstream.newLink();
+
+    ClientPath(DatagramSocket relaySocket) {
+      this.relaySocket = relaySocket;
+    }
+  }
+}
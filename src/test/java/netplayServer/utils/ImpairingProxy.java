@@ -0,0 +1,238 @@
+package netplayServer.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Sets;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+
+/**
+ * A TCP proxy in front of a local server that impairs the connections through it, so that clients
+ * can be tested over a network like the one between players and a server, without tools outside
+ * the JVM. Each direction has its own {@link NetworkImpairment}, and each connection its own
+ * links under it. Only a bounded amount of data is
+ * held in flight per direction; beyond that the proxy stops reading, so a slow link pushes back
+ * on the sender as a real one would.
+ */
+public class ImpairingProxy implements Closeable {
+
+  private static final int CHUNK_BYTES = 16384;
+  // Chunks held per direction before the proxy stops reading from the sender.
+  private static final int CHUNKS_IN_FLIGHT = 16;
+  private static final byte[] END = new byte[0];
+
+  private final ServerSocket listener;
+  private final InetSocketAddress target;
+  private final NetworkImpairment upstream = new NetworkImpairment();
+  private final NetworkImpairment downstream = new NetworkImpairment();
+  private final Set<Socket> sockets = Sets.newConcurrentHashSet();
+  private volatile boolean blackholed = false;
+
+  /**
+   * Starts proxying a free localhost port to the given port.
+   */
+  public ImpairingProxy(int targetPort) throws IOException {
+    this.target = new InetSocketAddress("localhost", targetPort);
+    this.listener = new ServerSocket(0);
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptLoop();
+      }
+    }, "impairing-proxy-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return listener.getLocalPort();
+  }
+
+  /**
+   * Returns the conditions from the clients to the server.
+   */
+  public NetworkImpairment getUpstream() {
+    return upstream;
+  }
+
+  /**
+   * Returns the conditions from the server to the clients.
+   */
+  public NetworkImpairment getDownstream() {
+    return downstream;
+  }
+
+  public ManagedChannel newChannel() {
+    return NettyChannelBuilder.forAddress("localhost", getPort()).usePlaintext(true).build();
+  }
+
+  /**
+   * Silently discards everything sent either way while set, keeping the connections open, as a
+   * peer that lost power would.
+   */
+  public void setBlackholed(boolean blackholed) {
+    this.blackholed = blackholed;
+  }
+
+  /**
+   * Resets every connection through the proxy, as a network failure would. New connections are
+   * still accepted.
+   */
+  public void cutConnections() {
+    for (Socket socket : sockets) {
+      try {
+        socket.setSoLinger(true, 0);
+        socket.close();
+      } catch (IOException e) {
+        // Already closed.
+      }
+    }
+    sockets.clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    listener.close();
+    cutConnections();
+  }
+
+  private void acceptLoop() {
+    while (!listener.isClosed()) {
+      Socket client;
+      try {
+        client = listener.accept();
+      } catch (IOException e) {
+        // Closed, or a connection that went away before it was accepted.
+        continue;
+      }
+      Socket server = new Socket();
+      try {
+        server.connect(target);
+        client.setTcpNoDelay(true);
+        server.setTcpNoDelay(true);
+      } catch (IOException e) {
+        // The server is down or refused the connection, which the client then sees closed, as it
+        // would without the proxy.
+        closeQuietly(client);
+        closeQuietly(server);
+        continue;
+      }
+      sockets.add(client);
+      sockets.add(server);
+      new Pipe(client, server, upstream.newLink()).start();
+      new Pipe(server, client, downstream.newLink()).start();
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Already closed.
+    }
+  }
+
+  /**
+   * Moves the bytes of one direction of a connection: a reader stamps each chunk with its
+   * delivery time and a writer delivers the chunks in order when they are due.
+   */
+  private class Pipe {
+    private final Socket from;
+    private final Socket to;
+    private final NetworkImpairment.Link link;
+    private final BlockingQueue<Chunk> inFlight = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT);
+
+    Pipe(Socket from, Socket to, NetworkImpairment.Link link) {
+      this.from = from;
+      this.to = to;
+      this.link = link;
+    }
+
+    void start() {
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          read();
+        }
+      }, "impairing-proxy-read");
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          write();
+        }
+      }, "impairing-proxy-write");
+      reader.setDaemon(true);
+      writer.setDaemon(true);
+      reader.start();
+      writer.start();
+    }
+
+    private void read() {
+      byte[] buffer = new byte[CHUNK_BYTES];
+      try {
+        InputStream in = from.getInputStream();
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+          if (blackholed) {
+            continue;
+          }
+          inFlight.put(new Chunk(Arrays.copyOf(buffer, read),
+              link.deliveryTime(read, true)));
+        }
+        inFlight.put(new Chunk(END, link.deliveryTime(0, true)));
+      } catch (IOException | InterruptedException e) {
+        closeBoth();
+      }
+    }
+
+    private void write() {
+      try {
+        OutputStream out = to.getOutputStream();
+        while (true) {
+          Chunk chunk = inFlight.take();
+          long wait = chunk.dueNanos - System.nanoTime();
+          if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          }
+          if (chunk.bytes == END) {
+            to.shutdownOutput();
+            return;
+          }
+          out.write(chunk.bytes);
+          out.flush();
+        }
+      } catch (IOException | InterruptedException e) {
+        closeBoth();
+      }
+    }
+
+    private void closeBoth() {
+      for (Socket socket : new Socket[] {from, to}) {
+        closeQuietly(socket);
+        sockets.remove(socket);
+      }
+    }
+  }
+
+  private static class Chunk {
+    final byte[] bytes;
+    final long dueNanos;
+
+    Chunk(byte[] bytes, long dueNanos) {
+      this.bytes = bytes;
+      this.dueNanos = dueNanos;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package netplayServer.utils;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import io.grpc.Channel;
+import io.grpc.ClientInterceptors;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.stub.MetadataUtils;
+
+/**
+ * Simulates the network distance between players and one server: every call made through a
+ * channel returned by {@link #asPlayer} is held back by that player's round trip time to the
+ * server before it is handled.
+ */
+public class InjectedLatencyInterceptor implements ServerInterceptor {
+
+  private static final Metadata.Key<String> PLAYER_HEADER =
+      Metadata.Key.of("netplay-test-player", Metadata.ASCII_STRING_MARSHALLER);
+
+  private final Map<String, Integer> rttMillis = Maps.newConcurrentMap();
+
+  public void setRtt(String player, int millis) {
+    rttMillis.put(player, millis);
+  }
+
+  /**
+   * Returns a channel whose calls are tagged as made by the given player.
+   */
+  public static Channel asPlayer(Channel channel, String player) {
+    Metadata headers = new Metadata();
+    headers.put(PLAYER_HEADER, player);
+    return ClientInterceptors.intercept(channel,
+        MetadataUtils.newAttachHeadersInterceptor(headers));
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+      ServerCall<RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    String player = headers.get(PLAYER_HEADER);
+    Integer rtt = player == null ? null : rttMillis.get(player);
+    if (rtt != null) {
+      Uninterruptibles.sleepUninterruptibly(rtt, TimeUnit.MILLISECONDS);
+    }
+    return next.startCall(method, call, headers);
+  }
+}
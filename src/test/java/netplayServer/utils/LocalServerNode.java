@@ -0,0 +1,209 @@
+package netplayServer.utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ServerInterceptor;
+import io.grpc.internal.ServerImpl;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+import netplayServer.Client;
+import netplayServer.Client.ClientStatus;
+import netplayServer.Console;
+import netplayServer.Server;
+import netplayServer.ServerStart;
+import netplayServer.transport.DomainSocketTransport;
+import netplayprotos.NetPlayServerServiceGrpc;
+import netplayprotos.NetPlayServerServiceGrpc.NetPlayServerServiceBlockingStub;
+import netplayprotos.NetplayServiceProto.IncomingEventPB;
+import netplayprotos.NetplayServiceProto.MakeConsoleRequestPB;
+import netplayprotos.NetplayServiceProto.OutgoingEventPB;
+import netplayprotos.NetplayServiceProto.PlugControllerRequestPB;
+import netplayprotos.NetplayServiceProto.PlugControllerResponsePB;
+import netplayprotos.NetplayServiceProto.Port;
+
+/**
+ * A netplay server listening on a real localhost port, wired up by
+ * {@link ServerStart#addServices}. Several of these stand in for separate server processes.
+ *
+ * Channels opened with {@link #connect} are shut down with the node, and the helpers below make
+ * consoles and plug clients over one of them, as a frontend would.
+ */
+public class LocalServerNode {
+
+  private final Server server;
+  private final ServerImpl serverImpl;
+  private final int port;
+  private final List<ManagedChannel> channels = Lists.newCopyOnWriteArrayList();
+  private ManagedChannel controlChannel;
+  private ServerImpl domainSocketImpl;
+  private String domainSocketPath;
+  private ServerImpl adminImpl;
+
+  public LocalServerNode(Server server) throws IOException {
+    this(server, new ServerInterceptor[0]);
+  }
+
+  /**
+   * @param interceptors extra interceptors for the netplay service, for example to simulate
+   *        network conditions
+   */
+  public LocalServerNode(Server server, ServerInterceptor... interceptors) throws IOException {
+    this.server = server;
+    this.port = findFreePort();
+    this.serverImpl =
+        ServerStart.addServices(NettyServerBuilder.forPort(port), server, interceptors).build();
+    server.setServerImpl(serverImpl);
+    serverImpl.start();
+  }
+
+  private static int findFreePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  public Server getServer() {
+    return server;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public String getTarget() {
+    return "localhost:" + port;
+  }
+
+  public ManagedChannel newChannel() {
+    return NettyChannelBuilder.forAddress("localhost", port).usePlaintext(true).build();
+  }
+
+  /**
+   * Opens a channel to this node that is shut down with it.
+   */
+  public ManagedChannel connect() {
+    ManagedChannel channel = newChannel();
+    channels.add(channel);
+    return channel;
+  }
+
+  /**
+   * Returns a stub on the channel the helpers below share.
+   */
+  public synchronized NetPlayServerServiceBlockingStub control() {
+    if (controlChannel == null) {
+      controlChannel = connect();
+    }
+    return NetPlayServerServiceGrpc.newBlockingStub(controlChannel);
+  }
+
+  public long makeConsole() {
+    return control().makeConsole(MakeConsoleRequestPB.getDefaultInstance()).getConsoleId();
+  }
+
+  /**
+   * Plugs a controller into the given port and returns the new client's id.
+   */
+  public long plug(long consoleId, Port port) {
+    PlugControllerResponsePB plug = control().plugController(PlugControllerRequestPB
+        .newBuilder().setConsoleId(consoleId).setRequestedPort1(port).build());
+    if (plug.getStatus() != PlugControllerResponsePB.Status.SUCCESS) {
+      throw new IllegalStateException("Plugging into port " + port + " failed: "
+          + plug.getStatus());
+    }
+    return plug.getClientId();
+  }
+
+  /**
+   * Opens an event stream for the given client and sends its ClientReadyPB.
+   */
+  public StreamObserver<OutgoingEventPB> openStream(long consoleId, long clientId,
+      StreamObserver<IncomingEventPB> events) {
+    control();
+    return Events.openStream(NetPlayServerServiceGrpc.newStub(controlChannel), consoleId,
+        clientId, events);
+  }
+
+  /**
+   * Waits for every client of the console to be ready, and returns true if they were in time.
+   */
+  public boolean awaitClientsReady(long consoleId) throws InterruptedException {
+    Console console = server.getConsole(consoleId);
+    for (int i = 0; i < 250 && !console.verifyClientsReady(); ++i) {
+      Thread.sleep(20);
+    }
+    return console.verifyClientsReady();
+  }
+
+  /**
+   * Waits for the client to reach the given status, and returns true if it did in time.
+   */
+  public static boolean awaitStatus(Client client, ClientStatus status)
+      throws InterruptedException {
+    for (int i = 0; i < 250 && client.getStatus() != status; ++i) {
+      Thread.sleep(20);
+    }
+    return client.getStatus() == status;
+  }
+
+  /**
+   * Also serves the node on a Unix domain socket at the given path, as ServerStart does.
+   */
+  public void listenOnDomainSocket(String path) throws IOException {
+    domainSocketPath = path;
+    domainSocketImpl =
+        ServerStart.addServices(DomainSocketTransport.serverBuilder(path), server).build();
+    domainSocketImpl.start();
+  }
+
+  /**
+   * Returns the host:port of the node's admin listener, which serves the admin and migration
+   * services on a loopback port of its own, as ServerStart does. It is started on first use.
+   */
+  public synchronized String getAdminTarget() throws IOException {
+    if (adminImpl == null) {
+      adminImpl = ServerStart.addAdminServices(NettyServerBuilder.forAddress(
+          new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)), server).build();
+      adminImpl.start();
+    }
+    return InetAddress.getLoopbackAddress().getHostAddress() + ":" + adminImpl.getPort();
+  }
+
+  /**
+   * Opens a channel to the node's admin listener that is shut down with it.
+   */
+  public ManagedChannel connectAdmin() throws IOException {
+    ManagedChannel channel =
+        NettyChannelBuilder.forTarget(getAdminTarget()).usePlaintext(true).build();
+    channels.add(channel);
+    return channel;
+  }
+
+  public ManagedChannel newDomainSocketChannel() {
+    return DomainSocketTransport.channelTo(domainSocketPath);
+  }
+
+  public void shutdown() {
+    for (ManagedChannel channel : channels) {
+      channel.shutdownNow();
+    }
+    server.getDatagramRelay().close();
+    if (domainSocketImpl != null) {
+      domainSocketImpl.shutdownNow();
+    }
+    synchronized (this) {
+      if (adminImpl != null) {
+        adminImpl.shutdownNow();
+      }
+    }
+    serverImpl.shutdownNow();
+  }
+}
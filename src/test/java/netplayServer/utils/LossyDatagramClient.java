@@ -0,0 +1,145 @@
+package netplayServer.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+
+import netplayprotos.NetplayServiceProto.KeyStatePB;
+import netplayprotos.NetplayServiceProto.Port;
+import netplayserverprotos.DatagramServiceProto.DatagramPB;
+
+/**
+ * The datagram side of a client, which drops a fixed share of the datagrams it sends and receives
+ * to simulate a lossy network.
+ */
+public class LossyDatagramClient {
+
+  private final DatagramChannel channel;
+  private final long token;
+  private final int redundancy;
+  private final int dropSentEvery;
+  private final int dropReceivedEvery;
+  private final Deque<List<KeyStatePB>> recentBatches = new ArrayDeque<>();
+  private final Map<Port, Map<Long, KeyStatePB>> receivedFrames = Maps.newConcurrentMap();
+  private int sent = 0;
+  private int received = 0;
+  private int receivedDatagrams = 0;
+
+  /**
+   * @param dropSentEvery every how many datagrams one is dropped instead of sent, or 0
+   * @param dropReceivedEvery every how many received datagrams one is ignored, or 0
+   */
+  public LossyDatagramClient(int serverPort, long token, int redundancy, int dropSentEvery,
+      int dropReceivedEvery) throws IOException {
+    this.token = token;
+    this.redundancy = redundancy;
+    this.dropSentEvery = dropSentEvery;
+    this.dropReceivedEvery = dropReceivedEvery;
+    this.channel = DatagramChannel.open();
+    channel.connect(new InetSocketAddress("localhost", serverPort));
+    Thread receiver = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        receiveLoop();
+      }
+    });
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  /**
+   * Sends an empty datagram, which is never dropped, so that the server learns this address.
+   */
+  public void open() throws IOException {
+    channel.write(ByteBuffer.wrap(DatagramPB.newBuilder().setToken(token).build().toByteArray()));
+  }
+
+  /**
+   * Sends a frame along with the previous ones, unless this datagram is one to drop.
+   */
+  public void send(KeyStatePB keyPress) throws IOException {
+    send(ImmutableList.of(keyPress));
+  }
+
+  /**
+   * Sends a batch of frames in one datagram along with the previous batches, unless this datagram
+   * is one to drop.
+   */
+  public synchronized void send(List<KeyStatePB> keyPresses) throws IOException {
+    if (recentBatches.size() == redundancy) {
+      recentBatches.removeFirst();
+    }
+    recentBatches.addLast(keyPresses);
+    sent++;
+    if (dropSentEvery > 0 && sent % dropSentEvery == 0) {
+      return;
+    }
+    DatagramPB.Builder datagram = DatagramPB.newBuilder().setToken(token);
+    for (List<KeyStatePB> batch : recentBatches) {
+      for (KeyStatePB frame : batch) {
+        datagram.addKeyState(frame.toByteString());
+      }
+    }
+    channel.write(ByteBuffer.wrap(datagram.build().toByteArray()));
+  }
+
+  private void receiveLoop() {
+    // As large as a datagram may be under a 1500 byte MTU, which the server stays within.
+    ByteBuffer buffer = ByteBuffer.allocate(1472);
+    while (true) {
+      try {
+        buffer.clear();
+        channel.receive(buffer);
+        buffer.flip();
+        synchronized (this) {
+          received++;
+          if (dropReceivedEvery > 0 && received % dropReceivedEvery == 0) {
+            continue;
+          }
+          receivedDatagrams++;
+        }
+        DatagramPB datagram = DatagramPB.parseFrom(ByteString.copyFrom(buffer));
+        for (ByteString keyState : datagram.getKeyStateList()) {
+          KeyStatePB keyPress = KeyStatePB.parseFrom(keyState);
+          Map<Long, KeyStatePB> portFrames = receivedFrames.get(keyPress.getPort());
+          if (portFrames == null) {
+            receivedFrames.putIfAbsent(keyPress.getPort(),
+                Maps.<Long, KeyStatePB>newConcurrentMap());
+            portFrames = receivedFrames.get(keyPress.getPort());
+          }
+          portFrames.put(keyPress.getFrameNumber(), keyPress);
+        }
+      } catch (ClosedChannelException e) {
+        return;
+      } catch (IOException e) {
+        // Malformed or refused datagrams are just lost.
+      }
+    }
+  }
+
+  /**
+   * Returns the frames received for a port, deduplicated, by frame number.
+   */
+  public Map<Long, KeyStatePB> getReceivedFrames(Port port) {
+    Map<Long, KeyStatePB> frames = receivedFrames.get(port);
+    return frames == null ? Maps.<Long, KeyStatePB>newHashMap() : frames;
+  }
+
+  public synchronized int getReceivedDatagrams() {
+    return receivedDatagrams;
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+}
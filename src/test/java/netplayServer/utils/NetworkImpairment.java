@@ -0,0 +1,129 @@
+package netplayServer.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The conditions of one direction of a simulated network link: a fixed latency, random jitter on
+ * top of it, a bandwidth limit, stalls during which nothing gets through, and, for datagrams,
+ * loss and reordering. Settings can be changed while traffic flows.
+ *
+ * A byte stream keeps its order, so on {@link ImpairingProxy} jitter and stalls hold back what
+ * follows, as a lost TCP segment would; {@link ImpairingDatagramProxy} lets datagrams overtake one
+ * another. The settings are shared by every connection in that direction, but each connection is
+ * paced and ordered on a {@link Link} of its own, so a slow connection does not hold back the
+ * others.
+ */
+public class NetworkImpairment {
+
+  // Least time a reordered datagram is held back, so that reordering works without latency.
+  private static final long MIN_REORDER_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  private volatile long latencyNanos;
+  private volatile long jitterNanos;
+  private volatile long bytesPerSecond;
+  private volatile double lossRate;
+  private volatile double reorderRate;
+  private volatile long stalledUntilNanos;
+
+  public NetworkImpairment setLatency(long millis) {
+    latencyNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    return this;
+  }
+
+  /**
+   * Adds up to the given time, uniformly at random, to the latency of each delivery.
+   */
+  public NetworkImpairment setJitter(long millis) {
+    jitterNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    return this;
+  }
+
+  /**
+   * Limits the link to the given rate, or lifts the limit with 0.
+   */
+  public NetworkImpairment setBandwidth(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+    return this;
+  }
+
+  /**
+   * Drops the given share of datagrams. Byte streams are never dropped from.
+   */
+  public NetworkImpairment setLoss(double rate) {
+    lossRate = rate;
+    return this;
+  }
+
+  /**
+   * Holds back the given share of datagrams by one more latency and jitter, and at least 5ms, so
+   * that those sent after them overtake them.
+   */
+  public NetworkImpairment setReorder(double rate) {
+    reorderRate = rate;
+    return this;
+  }
+
+  /**
+   * Lets nothing through for the given time from now; what is sent meanwhile is delivered after.
+   */
+  public void stall(long millis) {
+    stalledUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  /**
+   * Returns true if a datagram sent now should be dropped.
+   */
+  public boolean drop() {
+    return lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate;
+  }
+
+  /**
+   * Returns a link for one connection under these conditions.
+   */
+  public Link newLink() {
+    return new Link();
+  }
+
+  /**
+   * One connection in this direction, which is sent on at the impairment's bandwidth on its own
+   * and keeps its own order.
+   */
+  public class Link {
+    // When the link is done sending what was queued and when the last ordered delivery is due,
+    // guarded by this.
+    private long linkFreeAtNanos;
+    private long lastDueNanos;
+
+    private Link() {}
+
+    public NetworkImpairment getImpairment() {
+      return NetworkImpairment.this;
+    }
+
+    /**
+     * Returns when, in {@link System#nanoTime} terms, the given number of bytes sent now arrive.
+     * Ordered deliveries never arrive before an earlier ordered one on this link.
+     */
+    public synchronized long deliveryTime(int bytes, boolean ordered) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long start = Math.max(System.nanoTime(), stalledUntilNanos);
+      long rate = bytesPerSecond;
+      if (rate > 0) {
+        start = Math.max(start, linkFreeAtNanos) + TimeUnit.SECONDS.toNanos(bytes) / rate;
+        linkFreeAtNanos = start;
+      }
+      long latency = latencyNanos;
+      long jitter = jitterNanos;
+      long due = start + latency + (jitter > 0 ? random.nextLong(jitter) : 0);
+      if (!ordered && reorderRate > 0 && random.nextDouble() < reorderRate) {
+        due += Math.max(latency + jitter, MIN_REORDER_NANOS);
+      }
+      if (ordered) {
+        due = Math.max(due, lastDueNanos);
+        lastDueNanos = due;
+      }
+      return due;
+    }
+  }
+}
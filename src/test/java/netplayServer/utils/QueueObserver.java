@@ -0,0 +1,68 @@
+package netplayServer.utils;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.stub.StreamObserver;
+
+/**
+ * A stream that queues what it is sent, for a test to take in order.
+ */
+public class QueueObserver<T> implements StreamObserver<T> {
+
+  private final BlockingQueue<T> values = new LinkedBlockingQueue<>();
+  private final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+  private volatile boolean completed = false;
+
+  @Override
+  public void onNext(T value) {
+    values.add(value);
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    errors.add(t);
+  }
+
+  @Override
+  public void onCompleted() {
+    completed = true;
+  }
+
+  /**
+   * Returns the next value, or null if none came in time.
+   */
+  public T poll(long timeoutMillis) throws InterruptedException {
+    return values.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the values not taken yet.
+   */
+  public BlockingQueue<T> getValues() {
+    return values;
+  }
+
+  /**
+   * Returns the error the stream ended with, or null if it did not fail in time.
+   */
+  public Throwable pollError(long timeoutMillis) throws InterruptedException {
+    return errors.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public boolean isCompleted() {
+    return completed;
+  }
+
+  /**
+   * Waits for the stream to be completed and returns true if it was in time.
+   */
+  public boolean awaitCompleted(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (!completed && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    return completed;
+  }
+}